@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
+import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// compares capped database codecs on trace entry payloads, reporting uncompressed and compressed
+// bytes per second (as auxiliary counters), so that MB/s is the uncompressed rate and the
+// compression ratio is the uncompressed rate divided by the compressed rate
+//
+// this does not need to be run with the agent
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CappedDatabaseCodecBenchmark {
+
+    @Param({"LZF", "LZ4", "DEFLATE_DICTIONARY"})
+    private CappedDatabaseCodec codec;
+
+    private File file;
+    private CappedDatabase cappedDatabase;
+
+    private final List<List<Trace.Entry>> traces = Lists.newArrayList();
+    private int traceIndex;
+    private long lastCappedId;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        cappedDatabase = new CappedDatabase(file, 100 * 1024, Ticker.systemTicker(), false, codec);
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            traces.add(createTraceEntries(random));
+        }
+        // prime the capped database (and train the dictionary when using DEFLATE_DICTIONARY)
+        for (List<Trace.Entry> entries : traces) {
+            lastCappedId = cappedDatabase.writeMessages(entries, "trace entries");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long write(Bytes bytes) throws IOException {
+        CappedDatabaseStats stats = cappedDatabase.getStats("trace entries");
+        long bytesBeforeCompression = stats.getTotalBytesBeforeCompression();
+        long bytesAfterCompression = stats.getTotalBytesAfterCompression();
+        lastCappedId = cappedDatabase.writeMessages(nextTrace(), "trace entries");
+        bytes.uncompressedBytes +=
+                stats.getTotalBytesBeforeCompression() - bytesBeforeCompression;
+        bytes.compressedBytes += stats.getTotalBytesAfterCompression() - bytesAfterCompression;
+        return lastCappedId;
+    }
+
+    @Benchmark
+    public List<Trace.Entry> read() throws IOException {
+        return cappedDatabase.readMessages(lastCappedId, Trace.Entry.parser());
+    }
+
+    private List<Trace.Entry> nextTrace() {
+        List<Trace.Entry> entries = traces.get(traceIndex);
+        traceIndex = (traceIndex + 1) % traces.size();
+        return entries;
+    }
+
+    // mimics a typical web request: servlet entry with a few nested service calls, each executing
+    // a handful of jdbc queries against a small set of shared query texts
+    private static List<Trace.Entry> createTraceEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        long offsetNanos = 0;
+        entries.add(Trace.Entry.newBuilder()
+                .setDepth(0)
+                .setStartOffsetNanos(0)
+                .setDurationNanos(50000000 + random.nextInt(50000000))
+                .setMessage("GET /api/orders/" + random.nextInt(100000))
+                .addDetailEntry(Trace.DetailEntry.newBuilder()
+                        .setName("Request http method")
+                        .addValue(Trace.DetailValue.newBuilder().setString("GET")))
+                .addDetailEntry(Trace.DetailEntry.newBuilder()
+                        .setName("Request remote address")
+                        .addValue(Trace.DetailValue.newBuilder()
+                                .setString("10.0.0." + random.nextInt(256))))
+                .build());
+        int serviceCallCount = 5 + random.nextInt(10);
+        for (int i = 0; i < serviceCallCount; i++) {
+            offsetNanos += random.nextInt(1000000);
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(1)
+                    .setStartOffsetNanos(offsetNanos)
+                    .setDurationNanos(random.nextInt(5000000))
+                    .setMessage("http client request: GET http://inventory/items/"
+                            + random.nextInt(100000))
+                    .build());
+            int queryCount = 1 + random.nextInt(10);
+            for (int j = 0; j < queryCount; j++) {
+                offsetNanos += random.nextInt(100000);
+                entries.add(Trace.Entry.newBuilder()
+                        .setDepth(2)
+                        .setStartOffsetNanos(offsetNanos)
+                        .setDurationNanos(random.nextInt(2000000))
+                        .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                                .setSharedQueryTextIndex(random.nextInt(20))
+                                .setPrefix("jdbc query: ")
+                                .setSuffix(" ['" + random.nextInt(100000) + "'] => "
+                                        + random.nextInt(50) + " rows"))
+                        .build());
+            }
+        }
+        return entries;
+    }
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Bytes {
+
+        public long uncompressedBytes;
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            uncompressedBytes = 0;
+            compressedBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compares duration histogram kinds, reporting encoded size and p99 relative error (as auxiliary
+// counters) alongside the time to record and merge
+//
+// this does not need to be run with the agent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    @Param({"HDR_HISTOGRAM", "LOG_BUCKETED_SKETCH"})
+    private HistogramKind histogramKind;
+
+    @Param({"2000", "20000", "200000"})
+    private int valueCount;
+
+    private long[] values;
+    private long exactP99;
+
+    private Aggregate.Histogram encodedHistogram;
+
+    @Setup
+    public void setup() {
+        // log-normal distribution of durations, centered around 10 milliseconds
+        Random random = new Random(0);
+        values = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = (long) (Math.exp(random.nextGaussian()) * 10000000);
+        }
+        long[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        exactP99 = sortedValues[(int) Math.ceil(valueCount * 0.99) - 1];
+        encodedHistogram = record().toProto(new ScratchBuffer());
+    }
+
+    @Benchmark
+    public LazyHistogram recordValues() {
+        return record();
+    }
+
+    @Benchmark
+    public LazyHistogram mergeEncoded() {
+        LazyHistogram lazyHistogram = new LazyHistogram(histogramKind);
+        for (int i = 0; i < 10; i++) {
+            lazyHistogram.merge(encodedHistogram);
+        }
+        return lazyHistogram;
+    }
+
+    @Benchmark
+    public void measureSizeAndAccuracy(SizeAndAccuracy sizeAndAccuracy) {
+        LazyHistogram lazyHistogram = record();
+        sizeAndAccuracy.encodedBytes =
+                lazyHistogram.toProto(new ScratchBuffer()).getSerializedSize();
+        sizeAndAccuracy.p99ErrorPpm = Math.abs(lazyHistogram.getValueAtPercentile(99) - exactP99)
+                * 1000000 / exactP99;
+    }
+
+    private LazyHistogram record() {
+        LazyHistogram lazyHistogram = new LazyHistogram(histogramKind);
+        for (long value : values) {
+            lazyHistogram.add(value);
+        }
+        return lazyHistogram;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class SizeAndAccuracy {
+
+        // these are set (not incremented) on each invocation
+        public long encodedBytes;
+        // relative error in parts per million
+        public long p99ErrorPpm;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            encodedBytes = 0;
+            p99ErrorPpm = 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.NestedTimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures nested timer lookup (NestedTimerMap) in deep timer trees, run against agent builds
+// before and after a NestedTimerMap change in order to compare implementations
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class NestedTimerBenchmark extends TransactionWorthy {
+
+    @Param({"4", "16", "64"})
+    private int depth;
+
+    private NestedTimerWorthy nestedTimerWorthy;
+
+    @Setup
+    public void setup() {
+        nestedTimerWorthy = new NestedTimerWorthy();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        // the first iteration creates the nested timers, the remaining iterations look them up
+        for (int i = 0; i < 100; i++) {
+            nestedTimerWorthy.doSomethingNestedTimerWorthyA(depth);
+        }
+    }
+}
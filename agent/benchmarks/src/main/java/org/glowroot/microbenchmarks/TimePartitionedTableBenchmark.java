@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.embedded.util.ImmutableColumn;
+import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// compares a single table against a table partitioned by day, using 90 days of hourly rollup data
+// for 2,000 transaction names
+//
+// this does not need to be run with the agent
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TimePartitionedTableBenchmark {
+
+    private static final int DAYS_OF_DATA = 90;
+    private static final int TRANSACTION_NAMES = 2000;
+    private static final long INTERVAL_MILLIS = HOURS.toMillis(1);
+    private static final long START_TIME = DAYS.toMillis(17500);
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_name_id", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("total_duration_nanos", ColumnType.DOUBLE),
+            ImmutableColumn.of("transaction_count", ColumnType.BIGINT));
+
+    @Param({"true", "false"})
+    private boolean partitioned;
+
+    private File dbFile;
+    private DataSource dataSource;
+    private TimePartitionedTable partitionedTable;
+
+    private final Random random = new Random(0);
+    private long expireBefore;
+
+    @Setup
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("glowroot-benchmark-", ".h2.db");
+        dbFile.delete();
+        dataSource = new DataSource(dbFile);
+        if (partitioned) {
+            partitionedTable = new TimePartitionedTable(dataSource, "benchmark", columns,
+                    ImmutableList.<Index>of(ImmutableIndex.of("idx",
+                            ImmutableList.of("transaction_name_id", "capture_time"))),
+                    DAYS.toMillis(1));
+        } else {
+            dataSource.syncTable("benchmark", columns);
+            dataSource.syncIndexes("benchmark", ImmutableList.<Index>of(ImmutableIndex
+                    .of("benchmark_idx", ImmutableList.of("transaction_name_id", "capture_time"))));
+        }
+        for (int day = 0; day < DAYS_OF_DATA; day++) {
+            final long dayStartTime = START_TIME + DAYS.toMillis(day);
+            final String tableName;
+            if (partitioned) {
+                tableName = partitionedTable.getPartitionTableName(dayStartTime + 1);
+            } else {
+                tableName = "benchmark";
+            }
+            dataSource.batchUpdate(new JdbcUpdate() {
+                @Override
+                public String getSql() {
+                    return "insert into " + tableName + " (transaction_name_id, capture_time,"
+                            + " total_duration_nanos, transaction_count) values (?, ?, ?, ?)";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) throws SQLException {
+                    for (long time = dayStartTime + INTERVAL_MILLIS; time <= dayStartTime
+                            + DAYS.toMillis(1); time += INTERVAL_MILLIS) {
+                        for (int i = 0; i < TRANSACTION_NAMES; i++) {
+                            preparedStatement.setLong(1, i);
+                            preparedStatement.setLong(2, time);
+                            preparedStatement.setDouble(3, random.nextDouble() * 1000000000);
+                            preparedStatement.setLong(4, random.nextInt(100));
+                            preparedStatement.addBatch();
+                        }
+                    }
+                }
+            });
+        }
+        expireBefore = START_TIME + 1;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    // reads one transaction name over the most recent day
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public long readRecentDay() throws Exception {
+        long to = START_TIME + DAYS.toMillis(DAYS_OF_DATA);
+        long from = to - DAYS.toMillis(1);
+        long transactionNameId = random.nextInt(TRANSACTION_NAMES);
+        long count = 0;
+        if (partitioned) {
+            for (String tableName : partitionedTable.getPartitionTableNames(from, to)) {
+                count += read(tableName, transactionNameId, from, to);
+            }
+        } else {
+            count = read("benchmark", transactionNameId, from, to);
+        }
+        return count;
+    }
+
+    // expires the oldest remaining day of data
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void expireOldestDay() throws Exception {
+        expireBefore += DAYS.toMillis(1);
+        if (partitioned) {
+            partitionedTable.deleteBefore(expireBefore);
+        } else {
+            dataSource.deleteBefore("benchmark", expireBefore);
+        }
+    }
+
+    private long read(final String tableName, final long transactionNameId, final long from,
+            final long to) throws Exception {
+        List<Long> counts = dataSource.query(new JdbcRowQuery<Long>() {
+            @Override
+            public String getSql() {
+                return "select transaction_count from " + tableName
+                        + " where transaction_name_id = ? and capture_time > ?"
+                        + " and capture_time <= ?";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) throws SQLException {
+                preparedStatement.setLong(1, transactionNameId);
+                preparedStatement.setLong(2, from);
+                preparedStatement.setLong(3, to);
+            }
+            @Override
+            public Long mapRow(ResultSet resultSet) throws SQLException {
+                return resultSet.getLong(1);
+            }
+        });
+        long total = 0;
+        for (Long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+}
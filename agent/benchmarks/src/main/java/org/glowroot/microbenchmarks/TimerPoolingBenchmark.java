@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// compares transactions with and without (experimental) timer pooling, the interesting number is
+// the allocation rate per operation, so run with "-prof gc"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TimerPoolingBenchmark extends TransactionWorthy {
+
+    private TimerWorthy timerWorthy;
+
+    @Setup
+    public void setup() {
+        timerWorthy = new TimerWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.experimental.timerPooling=false")
+    public void executeWithoutPooling() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.experimental.timerPooling=true")
+    public void executeWithPooling() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            timerWorthy.doSomethingTimerWorthy();
+            timerWorthy.doSomethingTimerWorthyB();
+            timerWorthy.doSomethingTimerWorthy2();
+            timerWorthy.doSomethingTimerWorthy2B();
+        }
+    }
+}
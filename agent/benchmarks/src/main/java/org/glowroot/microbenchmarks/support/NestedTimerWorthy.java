@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+// each method is captured with a different timer, and calls the next method, which creates a
+// nested timer chain of the given depth
+public class NestedTimerWorthy {
+
+    public void doSomethingNestedTimerWorthyA(int depth) {
+        if (depth > 0) {
+            doSomethingNestedTimerWorthyB(depth - 1);
+        }
+    }
+
+    public void doSomethingNestedTimerWorthyB(int depth) {
+        if (depth > 0) {
+            doSomethingNestedTimerWorthyC(depth - 1);
+        }
+    }
+
+    public void doSomethingNestedTimerWorthyC(int depth) {
+        if (depth > 0) {
+            doSomethingNestedTimerWorthyD(depth - 1);
+        }
+    }
+
+    public void doSomethingNestedTimerWorthyD(int depth) {
+        if (depth > 0) {
+            doSomethingNestedTimerWorthyA(depth - 1);
+        }
+    }
+}
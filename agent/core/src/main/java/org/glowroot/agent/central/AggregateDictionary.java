@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.grpc.stub.StreamObserver;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.DictionaryEntry;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// dictionary used to code aggregate streams sent to the central collector, so that transaction
+// types, transaction names, timer names, service call texts and profile frame names, which are
+// mostly the same from one interval to the next, are only sent once (query texts use the
+// persistent QueryTextDictionary instead)
+//
+// ids are only valid within a single dictionary instance (identified by dictionary id), a new
+// dictionary is started whenever the central collector reports that it no longer has this one
+class AggregateDictionary {
+
+    // once the dictionary reaches this size, a new dictionary is started (this bounds memory on
+    // both the agent and the central collector)
+    static final int MAX_ENTRIES =
+            Integer.getInteger("glowroot.central.aggregate.dictionary.max.entries", 20000);
+
+    private final String dictionaryId = UUID.randomUUID().toString();
+
+    @GuardedBy("this")
+    private final Map<String, Integer> textIds = Maps.newHashMap();
+
+    // ids that have been sent as part of a stream that the central collector successfully
+    // processed, so no longer need to be sent
+    @GuardedBy("this")
+    private final BitSet acknowledged = new BitSet();
+
+    // ids start at 1, since 0 means not dictionary coded
+    @GuardedBy("this")
+    private int nextId = 1;
+
+    String getDictionaryId() {
+        return dictionaryId;
+    }
+
+    synchronized boolean isFull() {
+        return nextId > MAX_ENTRIES;
+    }
+
+    Encoder newEncoder(StreamObserver<AggregateStreamMessage> requestObserver) {
+        return new Encoder(requestObserver);
+    }
+
+    private synchronized void acknowledge(List<Integer> ids) {
+        for (int id : ids) {
+            acknowledged.set(id);
+        }
+    }
+
+    // encoder for a single stream, not thread safe
+    class Encoder {
+
+        private final StreamObserver<AggregateStreamMessage> requestObserver;
+
+        // ids whose entries have been sent in this stream
+        private final List<Integer> sentIds = Lists.newArrayList();
+        private final BitSet sent = new BitSet();
+
+        private Encoder(StreamObserver<AggregateStreamMessage> requestObserver) {
+            this.requestObserver = requestObserver;
+        }
+
+        int encode(String text) {
+            int id;
+            boolean needsToBeSent;
+            synchronized (AggregateDictionary.this) {
+                Integer existingId = textIds.get(text);
+                if (existingId == null) {
+                    id = nextId++;
+                    textIds.put(text, id);
+                } else {
+                    id = existingId;
+                }
+                needsToBeSent = !acknowledged.get(id);
+            }
+            if (needsToBeSent && !sent.get(id)) {
+                send(DictionaryEntry.newBuilder()
+                        .setId(id)
+                        .setText(text)
+                        .build());
+            }
+            return id;
+        }
+
+        Aggregate encode(Aggregate aggregate) {
+            Aggregate.Builder builder = aggregate.toBuilder()
+                    .clearMainThreadRootTimer()
+                    .clearAuxThreadRootTimer()
+                    .clearAsyncTimer()
+                    .clearServiceCall();
+            for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+                builder.addMainThreadRootTimer(encode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+                builder.addAuxThreadRootTimer(encode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+                builder.addAsyncTimer(encode(timer));
+            }
+            for (Aggregate.ServiceCall serviceCall : aggregate.getServiceCallList()) {
+                builder.addServiceCall(serviceCall.toBuilder()
+                        .clearText()
+                        .setTextId(encode(serviceCall.getText())));
+            }
+            if (aggregate.hasMainThreadProfile()) {
+                builder.setMainThreadProfile(encode(aggregate.getMainThreadProfile()));
+            }
+            if (aggregate.hasAuxThreadProfile()) {
+                builder.setAuxThreadProfile(encode(aggregate.getAuxThreadProfile()));
+            }
+            return builder.build();
+        }
+
+        void onSuccess() {
+            acknowledge(sentIds);
+        }
+
+        private Aggregate.Timer encode(Aggregate.Timer timer) {
+            Aggregate.Timer.Builder builder = timer.toBuilder()
+                    .clearChildTimer();
+            if (!timer.getName().isEmpty()) {
+                // name is empty for synthetic root
+                builder.clearName()
+                        .setNameId(encode(timer.getName()));
+            }
+            for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+                builder.addChildTimer(encode(childTimer));
+            }
+            return builder.build();
+        }
+
+        private Profile encode(Profile profile) {
+            Profile.Builder builder = profile.toBuilder()
+                    .clearPackageName()
+                    .clearClassName()
+                    .clearMethodName()
+                    .clearFileName();
+            for (String packageName : profile.getPackageNameList()) {
+                builder.addPackageNameId(encode(packageName));
+            }
+            for (String className : profile.getClassNameList()) {
+                builder.addClassNameId(encode(className));
+            }
+            for (String methodName : profile.getMethodNameList()) {
+                builder.addMethodNameId(encode(methodName));
+            }
+            for (String fileName : profile.getFileNameList()) {
+                builder.addFileNameId(encode(fileName));
+            }
+            return builder.build();
+        }
+
+        private void send(DictionaryEntry entry) {
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setDictionaryEntry(entry)
+                    .build());
+            sent.set(entry.getId());
+            sentIds.add(entry.getId());
+        }
+    }
+}
@@ -20,21 +20,33 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import io.grpc.Metadata;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CollectorSpool.Frame;
+import org.glowroot.agent.central.CollectorSpool.FrameType;
+import org.glowroot.agent.central.QueryTextDictionary.EntryWriter;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -43,6 +55,10 @@ import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem.AggregateStream;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem.TraceStream;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
@@ -53,6 +69,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent.Level;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextDictionaryEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
@@ -61,6 +78,9 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggrega
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class CentralCollector implements Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(CentralCollector.class);
@@ -68,20 +88,68 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // aggregates, gauge values and traces that cannot be sent to the central collector are
+    // spooled to disk (up to this many bytes, 0 disables the spool) and sent after reconnecting
+    private static final long SPOOL_MAX_BYTES =
+            Long.getLong("glowroot.central.spool.max.bytes", 100 * 1024 * 1024);
+    private static final long SPOOL_SEGMENT_MAX_BYTES =
+            Long.getLong("glowroot.central.spool.segment.max.bytes", 4 * 1024 * 1024);
+    // spooled data is sent one frame at a time (at most one frame per interval) so that draining
+    // the spool after a central collector outage does not compete with live data
+    private static final long SPOOL_DRAIN_INTERVAL_MILLIS =
+            Long.getLong("glowroot.central.spool.drain.interval.millis", 100);
+    private static final long SPOOL_DRAIN_ERROR_BACKOFF_NANOS = SECONDS.toNanos(30);
+
+    // larger traces are sent over their own rpc so they don't hold up the collector stream
+    private static final int STREAM_SMALL_TRACE_MAX_BYTES =
+            Integer.getInteger("glowroot.central.stream.small.trace.max.bytes", 64 * 1024);
+
+    // dictionary coding of aggregate streams is used by default when the central collector
+    // supports it
+    private static final boolean AGGREGATE_DICTIONARY_DISABLED =
+            Boolean.getBoolean("glowroot.central.aggregate.dictionary.disabled");
+
+    // query texts in aggregates and traces are referenced by id from a persistent dictionary by
+    // default when the central collector supports it
+    private static final boolean QUERY_TEXT_DICTIONARY_DISABLED =
+            Boolean.getBoolean("glowroot.central.query.text.dictionary.disabled");
+    private static final int QUERY_TEXT_DICTIONARY_MAX_ENTRIES =
+            Integer.getInteger("glowroot.central.query.text.dictionary.max.entries", 50000);
+    private static final int QUERY_TEXT_DICTIONARY_CACHE_SIZE =
+            Integer.getInteger("glowroot.central.query.text.dictionary.cache.size", 10000);
+
+    // the central collector sends this (comma separated) along with NOT_FOUND when it no longer has
+    // some query text dictionary entries (see CollectorServiceImpl in glowroot-central)
+    private static final Metadata.Key<String> MISSING_QUERY_TEXT_IDS_KEY =
+            Metadata.Key.of("glowroot-missing-query-text-ids", Metadata.ASCII_STRING_MARSHALLER);
+
     private final String agentId;
     private final String collectorAddress;
     private final CentralConnection centralConnection;
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
+    private final CollectorStream collectorStream;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
+    private final QueryTextDictionary queryTextDictionary;
+
+    private final CollectorSpool spool;
+    private final ScheduledExecutorService spoolDrainExecutor;
+    private final AtomicBoolean spoolDrainInFlight = new AtomicBoolean();
+    private volatile long spoolDrainResumeNanos = System.nanoTime();
 
     private volatile int nextAggregateDelayMillis;
 
+    private volatile boolean aggregateDictionarySupported;
+    private volatile AggregateDictionary aggregateDictionary = new AggregateDictionary();
+
+    private volatile boolean queryTextDictionarySupported;
+
     public CentralCollector(Map<String, String> properties, String collectorAddress,
             @Nullable String collectorAuthority, File confDir, @Nullable File sharedConfDir,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
+            File tmpDir, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater)
             throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
@@ -109,6 +177,17 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+        collectorStream = new CollectorStream(collectorServiceStub, agentId, centralConnection,
+                Ticker.systemTicker());
+        spool = new CollectorSpool(new File(tmpDir, "central-spool"), SPOOL_MAX_BYTES,
+                SPOOL_SEGMENT_MAX_BYTES, Clock.systemClock());
+        queryTextDictionary = new QueryTextDictionary(
+                new File(tmpDir, "central-query-text-dictionary"),
+                QUERY_TEXT_DICTIONARY_MAX_ENTRIES, QUERY_TEXT_DICTIONARY_CACHE_SIZE);
+        spoolDrainExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Collector-Spool-Drain"));
+        spoolDrainExecutor.scheduleWithFixedDelay(new SpoolDrainer(), SPOOL_DRAIN_INTERVAL_MILLIS,
+                SPOOL_DRAIN_INTERVAL_MILLIS, MILLISECONDS);
     }
 
     @Override
@@ -137,7 +216,15 @@ public class CentralCollector implements Collector {
                         logger.error(e.getMessage(), e);
                     }
                 }
+                // aggregate dictionaries are held in memory by each central collector node, so
+                // they are not used when calls are load balanced across multiple nodes
+                aggregateDictionarySupported = !AGGREGATE_DICTIONARY_DISABLED
+                        && response.getAggregateDictionarySupported()
+                        && !centralConnection.hasMultipleCollectorAddresses();
+                queryTextDictionarySupported = !QUERY_TEXT_DICTIONARY_DISABLED
+                        && response.getQueryTextDictionarySupported();
                 downstreamServiceObserver.connectAsync();
+                collectorStream.connectAsync();
             }
         });
     }
@@ -145,8 +232,10 @@ public class CentralCollector implements Collector {
     // collecting even when no aggregates since collection triggers transaction-based alerts
     @Override
     public void collectAggregates(AggregateReader aggregateReader) {
-        centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
-                new CollectAggregatesGrpcCall(aggregateReader));
+        CollectAggregatesGrpcCall grpcCall = new CollectAggregatesGrpcCall(aggregateReader);
+        if (!grpcCall.offerToCollectorStream()) {
+            centralConnection.callWithAFewRetries(nextAggregateDelayMillis, grpcCall);
+        }
     }
 
     @Override
@@ -156,12 +245,28 @@ public class CentralCollector implements Collector {
                 .addAllGaugeValues(gaugeValues)
                 .setPostV09(true)
                 .build();
-        centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
+        final GrpcCall<EmptyMessage> grpcCall = new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
+            @Override
+            boolean spool() {
+                return spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(gaugeValueMessage));
+            }
+        };
+        CollectItem item = CollectItem.newBuilder()
+                .setGaugeValueMessage(gaugeValueMessage)
+                .build();
+        boolean offered = collectorStream.offer(new CollectorStream.Item(item) {
+            @Override
+            void onFailure() {
+                centralConnection.callWithAFewRetries(grpcCall);
+            }
         });
+        if (!offered) {
+            centralConnection.callWithAFewRetries(grpcCall);
+        }
     }
 
     @Override
@@ -171,7 +276,10 @@ public class CentralCollector implements Collector {
             // reader will not be idempotent, so could lead to confusing results
             centralConnection.callOnce(new CollectTraceGrpcCall(traceReader));
         } else {
-            centralConnection.callWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+            CollectTraceGrpcCall grpcCall = new CollectTraceGrpcCall(traceReader);
+            if (!grpcCall.offerToCollectorStream()) {
+                centralConnection.callWithAFewRetries(grpcCall);
+            }
         }
     }
 
@@ -197,14 +305,26 @@ public class CentralCollector implements Collector {
         });
     }
 
+    public CollectorSpoolStatsMXBean getSpoolStats() {
+        return new CollectorSpoolStats(spool);
+    }
+
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        collectorStream.close();
+        spoolDrainExecutor.shutdown();
         downstreamServiceObserver.close();
         centralConnection.close();
+        spool.close();
+        queryTextDictionary.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
+        collectorStream.awaitClose();
+        if (!spoolDrainExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
     }
 
@@ -220,6 +340,56 @@ public class CentralCollector implements Collector {
         return hostName;
     }
 
+    private AggregateDictionary getAggregateDictionary() {
+        AggregateDictionary dictionary = aggregateDictionary;
+        if (dictionary.isFull()) {
+            // racing with another thread here (or in resetAggregateDictionary) is harmless, it
+            // just means that one of the new dictionaries is abandoned after a single use
+            dictionary = new AggregateDictionary();
+            aggregateDictionary = dictionary;
+        }
+        return dictionary;
+    }
+
+    private void resetAggregateDictionary(AggregateDictionary dictionary) {
+        if (aggregateDictionary == dictionary) {
+            aggregateDictionary = new AggregateDictionary();
+        }
+    }
+
+    // the retry will then send the missing entries again
+    private void onQueryTextsNotFound(QueryTextDictionary.Version version, Throwable t) {
+        List<Integer> missingIds = getMissingQueryTextIds(t);
+        if (missingIds.isEmpty()) {
+            // the central collector did not report which entries are missing, so start a new
+            // version
+            queryTextDictionary.reset(version);
+        } else {
+            version.unacknowledge(missingIds);
+        }
+    }
+
+    @VisibleForTesting
+    static List<Integer> getMissingQueryTextIds(Throwable t) {
+        Metadata trailers = Status.trailersFromThrowable(t);
+        if (trailers == null) {
+            return ImmutableList.of();
+        }
+        String value = trailers.get(MISSING_QUERY_TEXT_IDS_KEY);
+        if (value == null) {
+            return ImmutableList.of();
+        }
+        List<Integer> ids = Lists.newArrayList();
+        for (String id : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+            try {
+                ids.add(Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        return ids;
+    }
+
     private static String convertFromV09AgentRollupId(String agentRollupId) {
         // old agent rollup id supported spaces around separator
         return agentRollupId.replaceAll(" */ *", "::").trim() + "::";
@@ -230,63 +400,170 @@ public class CentralCollector implements Collector {
         private final AggregateReader aggregateReader;
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
+        private @Nullable AggregateDictionary dictionary;
+        private AggregateDictionary. /*@Nullable*/ Encoder dictionaryEncoder;
+        private QueryTextDictionary. /*@Nullable*/ Version queryTextDictionaryVersion;
+        private QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder;
+
         private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
             this.aggregateReader = aggregateReader;
         }
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
+            StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime())
-                            .setPostV09(true))
-                    .build());
-            // need to clear in case this is a retry
-            fullTextSha1s.clear();
-            try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
+            if (writeMessages(requestObserver, true)) {
+                requestObserver.onCompleted();
             }
-            requestObserver.onCompleted();
+        }
+
+        @Override
+        boolean spool() {
+            // spooled aggregates are not dictionary coded since the dictionary may be gone by the
+            // time they are sent
+            CollectingStreamObserver<AggregateStreamMessage> requestObserver =
+                    new CollectingStreamObserver<AggregateStreamMessage>();
+            return writeMessages(requestObserver, false)
+                    && spool.append(FrameType.AGGREGATES, requestObserver.messages);
         }
 
         @Override
         public void doWithResponse(AggregateResponseMessage response) {
+            onSuccess(response.getNextDelayMillis());
+        }
+
+        @Override
+        void doWithError(Throwable t) {
+            Status.Code code = Status.fromThrowable(t).getCode();
+            AggregateDictionary dictionary = this.dictionary;
+            if (dictionary != null && code == Status.Code.FAILED_PRECONDITION) {
+                // the central collector no longer has the dictionary, so start a new one (the
+                // retry will then send all of the dictionary entries that it needs)
+                resetAggregateDictionary(dictionary);
+            }
+            QueryTextDictionary.Version queryTextDictionaryVersion =
+                    this.queryTextDictionaryVersion;
+            if (queryTextDictionaryVersion != null && code == Status.Code.NOT_FOUND) {
+                onQueryTextsNotFound(queryTextDictionaryVersion, t);
+            }
+        }
+
+        // returns false if the aggregates need to be sent over the original rpc instead
+        private boolean offerToCollectorStream() {
+            CollectingStreamObserver<AggregateStreamMessage> requestObserver =
+                    new CollectingStreamObserver<AggregateStreamMessage>();
+            if (!writeMessages(requestObserver, true)) {
+                return false;
+            }
+            CollectItem item = CollectItem.newBuilder()
+                    .setAggregateStream(AggregateStream.newBuilder()
+                            .addAllMessage(requestObserver.messages))
+                    .build();
+            return collectorStream.offer(new CollectorStream.Item(item) {
+                @Override
+                void onSuccess(CollectStreamResponse response) {
+                    CollectAggregatesGrpcCall.this
+                            .onSuccess(response.getNextAggregateDelayMillis());
+                }
+                @Override
+                void onFailure() {
+                    centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
+                            CollectAggregatesGrpcCall.this);
+                }
+            });
+        }
+
+        private void onSuccess(int nextDelayMillis) {
             // Math.min is just for safety
-            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            nextAggregateDelayMillis = Math.min(nextDelayMillis, 30000);
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
+            AggregateDictionary.Encoder dictionaryEncoder = this.dictionaryEncoder;
+            if (dictionaryEncoder != null) {
+                dictionaryEncoder.onSuccess();
+            }
+            QueryTextDictionary.Version.Encoder queryTextEncoder = this.queryTextEncoder;
+            if (queryTextEncoder != null) {
+                queryTextEncoder.onSuccess();
+            }
+        }
+
+        private boolean writeMessages(
+                final StreamObserver<AggregateStreamMessage> requestObserver,
+                boolean dictionaryCoded) {
+            AggregateStreamHeader.Builder streamHeader = AggregateStreamHeader.newBuilder()
+                    .setAgentId(agentId)
+                    .setCaptureTime(aggregateReader.captureTime())
+                    .setPostV09(true);
+            // need to reset in case this is a retry
+            dictionary = null;
+            dictionaryEncoder = null;
+            if (dictionaryCoded && aggregateDictionarySupported) {
+                dictionary = getAggregateDictionary();
+                dictionaryEncoder = dictionary.newEncoder(requestObserver);
+                streamHeader.setDictionaryId(dictionary.getDictionaryId());
+            }
+            queryTextDictionaryVersion = null;
+            queryTextEncoder = null;
+            if (dictionaryCoded && queryTextDictionarySupported) {
+                queryTextDictionaryVersion = queryTextDictionary.getCurrentVersion();
+                queryTextEncoder = queryTextDictionaryVersion.newEncoder(new EntryWriter() {
+                    @Override
+                    public void write(QueryTextDictionaryEntry entry) {
+                        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                                .setQueryTextDictionaryEntry(entry)
+                                .build());
+                    }
+                });
+                streamHeader.setQueryTextDictionaryVersion(
+                        queryTextDictionaryVersion.getVersionId());
+            }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setStreamHeader(streamHeader)
+                    .build());
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            try {
+                aggregateReader.accept(new AggregateVisitorImpl(requestObserver,
+                        dictionaryEncoder, queryTextEncoder));
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return false;
+            }
+            return true;
         }
 
         private class AggregateVisitorImpl implements AggregateVisitor {
 
             private final StreamObserver<AggregateStreamMessage> requestObserver;
+            private final AggregateDictionary. /*@Nullable*/ Encoder dictionaryEncoder;
+            private final QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder;
 
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    AggregateDictionary. /*@Nullable*/ Encoder dictionaryEncoder,
+                    QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder) {
                 this.requestObserver = requestObserver;
+                this.dictionaryEncoder = dictionaryEncoder;
+                this.queryTextEncoder = queryTextEncoder;
             }
 
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
-                            .build());
+                writeSharedQueryTexts(sharedQueryTexts);
+                OverallAggregate.Builder builder = OverallAggregate.newBuilder();
+                if (dictionaryEncoder == null) {
+                    builder.setTransactionType(transactionType)
+                            .setAggregate(overallAggregate);
+                } else {
+                    builder.setTransactionTypeId(dictionaryEncoder.encode(transactionType))
+                            .setAggregate(dictionaryEncoder.encode(overallAggregate));
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                        .setOverallAggregate(builder)
                         .build());
             }
 
@@ -294,19 +571,37 @@ public class CentralCollector implements Collector {
             public void visitTransactionAggregate(String transactionType,
                     String transactionName, List<String> sharedQueryTexts,
                     Aggregate transactionAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
-                            .build());
+                writeSharedQueryTexts(sharedQueryTexts);
+                TransactionAggregate.Builder builder = TransactionAggregate.newBuilder();
+                if (dictionaryEncoder == null) {
+                    builder.setTransactionType(transactionType)
+                            .setTransactionName(transactionName)
+                            .setAggregate(transactionAggregate);
+                } else {
+                    builder.setTransactionTypeId(dictionaryEncoder.encode(transactionType))
+                            .setTransactionNameId(dictionaryEncoder.encode(transactionName))
+                            .setAggregate(dictionaryEncoder.encode(transactionAggregate));
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                        .setTransactionAggregate(builder)
                         .build());
             }
+
+            private void writeSharedQueryTexts(List<String> sharedQueryTexts) {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    if (queryTextEncoder == null) {
+                        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                                .setSharedQueryText(sharedQueryTextLimiter
+                                        .buildAggregateSharedQueryText(sharedQueryText,
+                                                fullTextSha1s))
+                                .build());
+                    } else {
+                        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                                .setQueryTextId(queryTextEncoder.encode(sharedQueryText))
+                                .build());
+                    }
+                }
+            }
         }
     }
 
@@ -316,6 +611,9 @@ public class CentralCollector implements Collector {
 
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
+        private QueryTextDictionary. /*@Nullable*/ Version queryTextDictionaryVersion;
+        private QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder;
+
         private CollectTraceGrpcCall(TraceReader traceReader) {
             this.traceReader = traceReader;
         }
@@ -324,36 +622,119 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
+            if (writeMessages(requestObserver, true)) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        @Override
+        boolean spool() {
+            if (traceReader.partial()) {
+                // partial traces are live, and will be superseded by the final trace anyways
+                return false;
+            }
+            // spooled traces do not reference the query text dictionary since the central
+            // collector may no longer have the entries by the time they are sent
+            CollectingStreamObserver<TraceStreamMessage> requestObserver =
+                    new CollectingStreamObserver<TraceStreamMessage>();
+            return writeMessages(requestObserver, false)
+                    && spool.append(FrameType.TRACE, requestObserver.messages);
+        }
+
+        @Override
+        public void doWithResponse(EmptyMessage response) {
+            onSuccess();
+        }
+
+        @Override
+        void doWithError(Throwable t) {
+            QueryTextDictionary.Version queryTextDictionaryVersion =
+                    this.queryTextDictionaryVersion;
+            if (queryTextDictionaryVersion != null
+                    && Status.fromThrowable(t).getCode() == Status.Code.NOT_FOUND) {
+                onQueryTextsNotFound(queryTextDictionaryVersion, t);
+            }
+        }
+
+        // returns false if the trace needs to be sent over the original rpc instead
+        private boolean offerToCollectorStream() {
+            CollectingStreamObserver<TraceStreamMessage> requestObserver =
+                    new CollectingStreamObserver<TraceStreamMessage>();
+            if (!writeMessages(requestObserver, true)) {
+                return false;
+            }
+            CollectItem item = CollectItem.newBuilder()
+                    .setTraceStream(TraceStream.newBuilder()
+                            .addAllMessage(requestObserver.messages))
+                    .build();
+            if (item.getSerializedSize() > STREAM_SMALL_TRACE_MAX_BYTES) {
+                return false;
+            }
+            return collectorStream.offer(new CollectorStream.Item(item) {
+                @Override
+                void onSuccess(CollectStreamResponse response) {
+                    CollectTraceGrpcCall.this.onSuccess();
+                }
+                @Override
+                void onFailure() {
+                    centralConnection.callWithAFewRetries(CollectTraceGrpcCall.this);
+                }
+            });
+        }
+
+        private void onSuccess() {
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+            QueryTextDictionary.Version.Encoder queryTextEncoder = this.queryTextEncoder;
+            if (queryTextEncoder != null) {
+                queryTextEncoder.onSuccess();
+            }
+        }
+
+        private boolean writeMessages(final StreamObserver<TraceStreamMessage> requestObserver,
+                boolean dictionaryCoded) {
+            TraceStreamHeader.Builder streamHeader = TraceStreamHeader.newBuilder()
+                    .setAgentId(agentId)
+                    .setTraceId(traceReader.traceId())
+                    .setUpdate(traceReader.update())
+                    .setPostV09(true);
+            // need to reset in case this is a retry
+            queryTextDictionaryVersion = null;
+            queryTextEncoder = null;
+            if (dictionaryCoded && queryTextDictionarySupported) {
+                queryTextDictionaryVersion = queryTextDictionary.getCurrentVersion();
+                queryTextEncoder = queryTextDictionaryVersion.newEncoder(new EntryWriter() {
+                    @Override
+                    public void write(QueryTextDictionaryEntry entry) {
+                        requestObserver.onNext(TraceStreamMessage.newBuilder()
+                                .setQueryTextDictionaryEntry(entry)
+                                .build());
+                    }
+                });
+                streamHeader.setQueryTextDictionaryVersion(
+                        queryTextDictionaryVersion.getVersionId());
+            }
             requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setStreamHeader(TraceStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setTraceId(traceReader.traceId())
-                            .setUpdate(traceReader.update())
-                            .setPostV09(true))
+                    .setStreamHeader(streamHeader)
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
-            TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
+            TraceVisitorImpl traceVisitor =
+                    new TraceVisitorImpl(requestObserver, fullTextSha1s, queryTextEncoder);
             try {
                 traceReader.accept(traceVisitor);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
-                return;
+                return false;
             }
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setEntryCount(traceVisitor.entryCount)
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
                     .build());
-            requestObserver.onCompleted();
-        }
-
-        @Override
-        public void doWithResponse(EmptyMessage response) {
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-            }
+            return true;
         }
     }
 
@@ -361,14 +742,17 @@ public class CentralCollector implements Collector {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
         private final List<String> fullTextSha1s;
+        private final QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder;
 
         private int entryCount;
         private int sharedQueryTextCount;
 
         private TraceVisitorImpl(StreamObserver<TraceStreamMessage> requestObserver,
-                List<String> fullTextSha1s) {
+                List<String> fullTextSha1s,
+                QueryTextDictionary.Version. /*@Nullable*/ Encoder queryTextEncoder) {
             this.requestObserver = requestObserver;
             this.fullTextSha1s = fullTextSha1s;
+            this.queryTextEncoder = queryTextEncoder;
         }
 
         @Override
@@ -390,11 +774,17 @@ public class CentralCollector implements Collector {
         @Override
         public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
             for (String sharedQueryText : sharedQueryTexts) {
-                Trace.SharedQueryText traceSharedQueryText = sharedQueryTextLimiter
-                        .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
-                requestObserver.onNext(TraceStreamMessage.newBuilder()
-                        .setSharedQueryText(traceSharedQueryText)
-                        .build());
+                if (queryTextEncoder == null) {
+                    Trace.SharedQueryText traceSharedQueryText = sharedQueryTextLimiter
+                            .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
+                    requestObserver.onNext(TraceStreamMessage.newBuilder()
+                            .setSharedQueryText(traceSharedQueryText)
+                            .build());
+                } else {
+                    requestObserver.onNext(TraceStreamMessage.newBuilder()
+                            .setQueryTextId(queryTextEncoder.encode(sharedQueryText))
+                            .build());
+                }
             }
             sharedQueryTextCount = sharedQueryTexts.size();
         }
@@ -420,4 +810,118 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class SpoolDrainer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                drainNext();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+
+        private void drainNext() throws Exception {
+            if (!centralConnection.isConnected() || spoolDrainInFlight.get()
+                    || System.nanoTime() - spoolDrainResumeNanos < 0) {
+                return;
+            }
+            Frame frame = spool.peek();
+            if (frame == null) {
+                return;
+            }
+            spoolDrainInFlight.set(true);
+            switch (frame.type()) {
+                case AGGREGATES:
+                    StreamObserver<AggregateStreamMessage> aggregateRequestObserver =
+                            collectorServiceStub.collectAggregateStream(
+                                    new SpoolDrainStreamObserver<AggregateResponseMessage>(frame));
+                    for (AggregateStreamMessage message : frame
+                            .parseMessages(AggregateStreamMessage.parser())) {
+                        aggregateRequestObserver.onNext(message);
+                    }
+                    aggregateRequestObserver.onCompleted();
+                    break;
+                case GAUGE_VALUES:
+                    List<GaugeValueMessage> messages =
+                            frame.parseMessages(GaugeValueMessage.parser());
+                    if (messages.size() != 1) {
+                        logger.warn("discarding spooled gauge values with unexpected number of"
+                                + " messages: {}", messages.size());
+                        spool.remove(frame);
+                        spoolDrainInFlight.set(false);
+                        break;
+                    }
+                    collectorServiceStub.collectGaugeValues(messages.get(0),
+                            new SpoolDrainStreamObserver<EmptyMessage>(frame));
+                    break;
+                case TRACE:
+                    StreamObserver<TraceStreamMessage> traceRequestObserver =
+                            collectorServiceStub.collectTraceStream(
+                                    new SpoolDrainStreamObserver<EmptyMessage>(frame));
+                    for (TraceStreamMessage message : frame
+                            .parseMessages(TraceStreamMessage.parser())) {
+                        traceRequestObserver.onNext(message);
+                    }
+                    traceRequestObserver.onCompleted();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected frame type: " + frame.type());
+            }
+        }
+    }
+
+    private class SpoolDrainStreamObserver<T extends /*@NonNull*/ Object>
+            implements StreamObserver<T> {
+
+        private final Frame frame;
+
+        private SpoolDrainStreamObserver(Frame frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(final Throwable t) {
+            // the frame stays at the head of the spool and is re-sent after backing off
+            spoolDrainResumeNanos = System.nanoTime() + SPOOL_DRAIN_ERROR_BACKOFF_NANOS;
+            spoolDrainInFlight.set(false);
+            centralConnection.suppressLogCollector(new Runnable() {
+                @Override
+                public void run() {
+                    logger.debug(t.getMessage(), t);
+                }
+            });
+        }
+
+        @Override
+        public void onCompleted() {
+            try {
+                spool.remove(frame);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+            spoolDrainInFlight.set(false);
+        }
+    }
+
+    private static class CollectingStreamObserver<T extends /*@NonNull*/ Object>
+            implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
 }
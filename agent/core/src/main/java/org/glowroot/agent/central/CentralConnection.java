@@ -33,10 +33,13 @@ import javax.net.ssl.SSLException;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.NameResolver;
+import io.grpc.Status;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
@@ -63,6 +66,11 @@ class CentralConnection {
     // back pressure on connection to the central collector
     private static final int PENDING_LIMIT = 100;
 
+    // the central collector sends this when it rejects data due to backlog (see
+    // CollectorServiceImpl in glowroot-central)
+    private static final Metadata.Key<String> RETRY_AFTER_MILLIS_KEY =
+            Metadata.Key.of("glowroot-retry-after-millis", Metadata.ASCII_STRING_MARSHALLER);
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressLogCollector = new ThreadLocal<Boolean>() {
         @Override
@@ -95,6 +103,8 @@ class CentralConnection {
             new RateLimitedLogger(CentralConnection.class);
 
     private final String collectorAddress;
+    // true when load balancing across multiple central collectors
+    private final boolean multipleCollectorAddresses;
 
     private volatile boolean initCallSucceeded;
     private volatile boolean closed;
@@ -144,6 +154,11 @@ class CentralConnection {
                 ThreadFactories.create("Glowroot-Collector-Retry"));
         this.inConnectionFailure = inConnectionFailure;
         this.collectorAddress = collectorAddress;
+        multipleCollectorAddresses = parsedCollectorAddress.addresses().size() > 1;
+    }
+
+    boolean hasMultipleCollectorAddresses() {
+        return multipleCollectorAddresses;
     }
 
     boolean suppressLogCollector() {
@@ -176,6 +191,7 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.spool();
             return;
         }
         boolean logWarningAndDoNotSend = false;
@@ -187,6 +203,9 @@ class CentralConnection {
             }
         }
         if (logWarningAndDoNotSend) {
+            if (call.spool()) {
+                return;
+            }
             // it is important not to perform logging under the above synchronized lock in order to
             // eliminate possibility of deadlock
             suppressLogCollector(new Runnable() {
@@ -233,6 +252,11 @@ class CentralConnection {
         call.call(new RetryingStreamObserver<T>(call, 15, -1, true));
     }
 
+    // data is only drained from the spool while this is true
+    boolean isConnected() {
+        return initCallSucceeded && !inConnectionFailure.get() && !closed;
+    }
+
     void suppressLogCollector(Runnable runnable) {
         boolean priorValue = suppressLogCollector.get();
         suppressLogCollector.set(true);
@@ -326,6 +350,23 @@ class CentralConnection {
         return null;
     }
 
+    // returns 0 if the error is not a rejection with a retry-after hint
+    private static long getRetryAfterMillis(Throwable t) {
+        if (Status.fromThrowable(t).getCode() != Status.Code.RESOURCE_EXHAUSTED) {
+            return 0;
+        }
+        Metadata trailers = Status.trailersFromThrowable(t);
+        if (trailers == null) {
+            return 0;
+        }
+        String retryAfterMillis = trailers.get(RETRY_AFTER_MILLIS_KEY);
+        if (retryAfterMillis == null) {
+            return 0;
+        }
+        Long value = Longs.tryParse(retryAfterMillis);
+        return value == null ? 0 : Math.max(0, value);
+    }
+
     private static @Nullable String getRootCauseMessage(Throwable t) {
         Throwable cause = t.getCause();
         if (cause == null) {
@@ -344,6 +385,13 @@ class CentralConnection {
     abstract static class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called after each failed attempt (prior to any retry)
+        void doWithError(@SuppressWarnings("unused") Throwable t) {}
+        // called instead of discarding the data when it cannot be sent to the central collector,
+        // returns true if the data was written to the spool (to be sent after reconnecting)
+        boolean spool() {
+            return false;
+        }
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -376,6 +424,7 @@ class CentralConnection {
                 decrementPendingRequestCount();
                 return;
             }
+            grpcCall.doWithError(t);
             if (init) {
                 suppressLogCollector(new Runnable() {
                     @Override
@@ -388,6 +437,9 @@ class CentralConnection {
                 });
             }
             if (inConnectionFailure.get()) {
+                if (!init) {
+                    grpcCall.spool();
+                }
                 decrementPendingRequestCount();
                 return;
             }
@@ -398,13 +450,21 @@ class CentralConnection {
                 }
             });
             if (!init && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
+                final boolean spooled = grpcCall.spool();
                 if (initCallSucceeded) {
                     suppressLogCollector(new Runnable() {
                         @Override
                         public void run() {
-                            connectionErrorLogger.warn(
-                                    "unable to send data to the central collector: {}",
-                                    getRootCauseMessage(t));
+                            if (spooled) {
+                                connectionErrorLogger.warn("unable to send data to the central"
+                                        + " collector (the data has been spooled to disk and will"
+                                        + " be sent after reconnecting): {}",
+                                        getRootCauseMessage(t));
+                            } else {
+                                connectionErrorLogger.warn(
+                                        "unable to send data to the central collector: {}",
+                                        getRootCauseMessage(t));
+                            }
                             logger.debug(t.getMessage(), t);
                         }
                     });
@@ -413,10 +473,19 @@ class CentralConnection {
                 return;
             }
 
-            // retry delay doubles on average each time, randomized +/- 50%
-            double randomizedDoubling = 0.5 + random.nextDouble();
-            long currDelay = (long) (nextDelayInSeconds * randomizedDoubling);
-            nextDelayInSeconds = Math.min(nextDelayInSeconds * 2, maxSingleDelayInSeconds);
+            long currDelayMillis;
+            long retryAfterMillis = getRetryAfterMillis(t);
+            if (retryAfterMillis > 0) {
+                // the central collector is shedding load, so wait at least as long as it asked,
+                // randomized up to +50% so that agents do not all retry at the same time
+                currDelayMillis = (long) (retryAfterMillis * (1 + random.nextDouble() / 2));
+            } else {
+                // retry delay doubles on average each time, randomized +/- 50%
+                double randomizedDoubling = 0.5 + random.nextDouble();
+                currDelayMillis = (long) (SECONDS.toMillis(nextDelayInSeconds)
+                        * randomizedDoubling);
+                nextDelayInSeconds = Math.min(nextDelayInSeconds * 2, maxSingleDelayInSeconds);
+            }
 
             // TODO revisit retry/backoff after next grpc version
             retryExecutor.schedule(new Runnable() {
@@ -435,7 +504,7 @@ class CentralConnection {
                         });
                     }
                 }
-            }, currDelay, SECONDS);
+            }, currDelayMillis, MILLISECONDS);
         }
 
         @Override
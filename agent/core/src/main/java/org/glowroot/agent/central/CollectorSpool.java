@@ -0,0 +1,427 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// bounded append-only disk spool for data that could not be sent to the central collector
+//
+// the spool is a sequence of segment files, each segment is a sequence of frames:
+//
+// [int body length][long crc32 of body][byte frame type][long spool time][delimited messages]
+//
+// frames are only ever appended to the newest segment, and are read (and removed) from the oldest
+// segment, which is deleted once it has been fully read
+//
+// the read position is not persisted, so after a restart the oldest segment is re-sent from the
+// beginning, which is ok since all of the spooled calls are idempotent
+class CollectorSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    // int body length + long crc32
+    private static final int FRAME_HEADER_SIZE = 12;
+    // byte frame type + long spool time
+    private static final int FRAME_BODY_HEADER_SIZE = 9;
+
+    private final File dir;
+    private final long maxBytes;
+    private final long segmentMaxBytes;
+    private final Clock clock;
+
+    private final RateLimitedLogger droppingDataLogger =
+            new RateLimitedLogger(CollectorSpool.class);
+
+    @GuardedBy("this")
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    // segments that exist from prior to this jvm start are never appended to (the last frame
+    // could be truncated if the jvm was terminated in the middle of writing it)
+    @GuardedBy("this")
+    private @Nullable FileOutputStream out;
+
+    @GuardedBy("this")
+    private long nextSegmentId;
+
+    @GuardedBy("this")
+    private long readPosition;
+
+    @GuardedBy("this")
+    private @Nullable Frame nextFrame;
+
+    @GuardedBy("this")
+    private long sizeBytes;
+
+    @GuardedBy("this")
+    private long spooledFrameCount;
+
+    @GuardedBy("this")
+    private long drainedFrameCount;
+
+    @GuardedBy("this")
+    private long droppedBytes;
+
+    CollectorSpool(File dir, long maxBytes, long segmentMaxBytes, Clock clock) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentMaxBytes = segmentMaxBytes;
+        this.clock = clock;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Segment> existingSegments = Lists.newArrayList();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            Long id = Longs.tryParse(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            if (id == null) {
+                continue;
+            }
+            existingSegments.add(new Segment(file, id, file.length()));
+        }
+        // sort by segment id so that frames are drained in the order they were spooled
+        Collections.sort(existingSegments);
+        synchronized (this) {
+            for (Segment segment : existingSegments) {
+                segments.add(segment);
+                sizeBytes += segment.length;
+                nextSegmentId = segment.id + 1;
+            }
+        }
+    }
+
+    // returns false if the messages could not be spooled
+    boolean append(FrameType type, List<? extends MessageLite> messages) {
+        if (maxBytes == 0) {
+            return false;
+        }
+        byte[] frame;
+        try {
+            frame = encodeFrame(type, clock.currentTimeMillis(), messages);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+        long droppedBytes;
+        try {
+            droppedBytes = appendInternal(frame);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+        if (droppedBytes > 0) {
+            // it is important not to perform logging under the spool lock in order to eliminate
+            // possibility of deadlock
+            droppingDataLogger.warn("dropped {} bytes of the oldest spooled data because the"
+                    + " spool exceeded its maximum size ({} bytes)", droppedBytes, maxBytes);
+        }
+        return true;
+    }
+
+    // returns the oldest frame without removing it, or null if the spool is empty
+    @Nullable
+    Frame peek() throws IOException {
+        List<File> corruptSegments = Lists.newArrayList();
+        Frame frame = peekInternal(corruptSegments);
+        for (File corruptSegment : corruptSegments) {
+            logger.warn("discarded spool segment with unreadable frame: {}", corruptSegment);
+        }
+        return frame;
+    }
+
+    // removes the frame returned from the prior call to peek()
+    synchronized void remove(Frame frame) throws IOException {
+        if (frame != nextFrame) {
+            // the segment containing the frame was dropped in the meantime to stay under the
+            // maximum spool size
+            return;
+        }
+        nextFrame = null;
+        readPosition += frame.length;
+        drainedFrameCount++;
+        Segment segment = segments.getFirst();
+        if (readPosition >= segment.length && segments.size() > 1) {
+            removeFirstSegment();
+        }
+    }
+
+    long getSizeBytes() {
+        synchronized (this) {
+            return sizeBytes;
+        }
+    }
+
+    int getSegmentCount() {
+        synchronized (this) {
+            return segments.size();
+        }
+    }
+
+    long getOldestFrameAgeMillis() {
+        Frame frame;
+        try {
+            frame = peek();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return 0;
+        }
+        return frame == null ? 0 : Math.max(0, clock.currentTimeMillis() - frame.spoolTime);
+    }
+
+    synchronized long getSpooledFrameCount() {
+        return spooledFrameCount;
+    }
+
+    synchronized long getDrainedFrameCount() {
+        return drainedFrameCount;
+    }
+
+    synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    @OnlyUsedByTests
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    // returns number of bytes dropped
+    private synchronized long appendInternal(byte[] frame) throws IOException {
+        Segment segment = segments.peekLast();
+        if (out == null || segment == null
+                || segment.length > 0 && segment.length + frame.length > segmentMaxBytes) {
+            segment = rollSegment();
+        }
+        checkNotNull(out).write(frame);
+        segment.length += frame.length;
+        sizeBytes += frame.length;
+        spooledFrameCount++;
+        long dropped = 0;
+        while (sizeBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            dropped += oldest.length - readPosition;
+            removeFirstSegment();
+        }
+        droppedBytes += dropped;
+        return dropped;
+    }
+
+    @GuardedBy("this")
+    private Segment rollSegment() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        long id = nextSegmentId++;
+        Segment segment = new Segment(new File(dir, id + SEGMENT_SUFFIX), id, 0);
+        out = new FileOutputStream(segment.file);
+        segments.add(segment);
+        return segment;
+    }
+
+    private synchronized @Nullable Frame peekInternal(List<File> corruptSegments)
+            throws IOException {
+        if (nextFrame != null) {
+            return nextFrame;
+        }
+        while (!segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            boolean writeSegment = out != null && segments.size() == 1;
+            if (readPosition < segment.length) {
+                Frame frame = readFrame(segment, readPosition);
+                if (frame != null) {
+                    nextFrame = frame;
+                    return frame;
+                }
+                corruptSegments.add(segment.file);
+            } else if (writeSegment) {
+                return null;
+            }
+            removeFirstSegment();
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private void removeFirstSegment() throws IOException {
+        Segment segment = segments.removeFirst();
+        if (segments.isEmpty() && out != null) {
+            // this was the segment currently being written to
+            out.close();
+            out = null;
+        }
+        sizeBytes -= segment.length;
+        readPosition = 0;
+        nextFrame = null;
+        if (!segment.file.delete() && segment.file.exists()) {
+            throw new IOException("Could not delete file: " + segment.file.getAbsolutePath());
+        }
+    }
+
+    // returns null if the frame is truncated or does not pass the crc check
+    private static @Nullable Frame readFrame(Segment segment, long position) throws IOException {
+        if (position + FRAME_HEADER_SIZE > segment.length) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            in.seek(position);
+            int bodyLength = in.readInt();
+            long crc = in.readLong();
+            if (bodyLength < FRAME_BODY_HEADER_SIZE
+                    || position + FRAME_HEADER_SIZE + bodyLength > segment.length) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            CRC32 crc32 = new CRC32();
+            crc32.update(body);
+            if (crc32.getValue() != crc) {
+                return null;
+            }
+            int typeOrdinal = body[0];
+            FrameType[] types = FrameType.values();
+            if (typeOrdinal < 0 || typeOrdinal >= types.length) {
+                return null;
+            }
+            long spoolTime = Longs.fromByteArray(Arrays.copyOfRange(body, 1, 9));
+            byte[] payload = Arrays.copyOfRange(body, FRAME_BODY_HEADER_SIZE, bodyLength);
+            return new Frame(types[typeOrdinal], spoolTime, payload,
+                    FRAME_HEADER_SIZE + bodyLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] encodeFrame(FrameType type, long spoolTime,
+            List<? extends MessageLite> messages) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(type.ordinal());
+        body.write(Longs.toByteArray(spoolTime));
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(body);
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(bodyBytes);
+        ByteArrayOutputStream frame =
+                new ByteArrayOutputStream(FRAME_HEADER_SIZE + bodyBytes.length);
+        DataOutputStream frameOut = new DataOutputStream(frame);
+        frameOut.writeInt(bodyBytes.length);
+        frameOut.writeLong(crc32.getValue());
+        frameOut.write(bodyBytes);
+        return frame.toByteArray();
+    }
+
+    // ordinals are stored in the spool, so new types must only be added at the end
+    enum FrameType {
+        AGGREGATES, GAUGE_VALUES, TRACE
+    }
+
+    static class Frame {
+
+        private final FrameType type;
+        private final long spoolTime;
+        private final byte[] payload;
+        // total length of the frame in the segment file, including frame header
+        private final int length;
+
+        private Frame(FrameType type, long spoolTime, byte[] payload, int length) {
+            this.type = type;
+            this.spoolTime = spoolTime;
+            this.payload = payload;
+            this.length = length;
+        }
+
+        FrameType type() {
+            return type;
+        }
+
+        long spoolTime() {
+            return spoolTime;
+        }
+
+        <T> List<T> parseMessages(Parser<T> parser) throws IOException {
+            List<T> messages = Lists.newArrayList();
+            ByteArrayInputStream in = new ByteArrayInputStream(payload);
+            while (in.available() > 0) {
+                T message = parser.parseDelimitedFrom(in);
+                if (message == null) {
+                    break;
+                }
+                messages.add(message);
+            }
+            return messages;
+        }
+    }
+
+    private static class Segment implements Comparable<Segment> {
+
+        private final File file;
+        private final long id;
+        private long length;
+
+        private Segment(File file, long id, long length) {
+            this.file = file;
+            this.id = id;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return Longs.compare(id, other.id);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+class CollectorSpoolStats implements CollectorSpoolStatsMXBean {
+
+    private final CollectorSpool spool;
+
+    CollectorSpoolStats(CollectorSpool spool) {
+        this.spool = spool;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return spool.getSizeBytes();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return spool.getSegmentCount();
+    }
+
+    @Override
+    public long getOldestFrameAgeMillis() {
+        return spool.getOldestFrameAgeMillis();
+    }
+
+    @Override
+    public long getSpooledFrameCount() {
+        return spool.getSpooledFrameCount();
+    }
+
+    @Override
+    public long getDrainedFrameCount() {
+        return spool.getDrainedFrameCount();
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return spool.getDroppedBytes();
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectBatch;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// long-lived bidirectional stream to the central collector that multiplexes gauge values,
+// aggregates and small traces, coalescing them into batches that are acknowledged by the central
+// collector
+//
+// batching is adaptive: while there is room in the window of unacknowledged batches, items are sent
+// after a short linger (to pick up other items collected at the same time), and once the window is
+// full (e.g. the central collector is slow), items accumulate and go out in larger batches as
+// acknowledgements come back
+//
+// items that cannot be delivered over the stream (the stream is not established, the stream fails
+// or the central collector rejects the batch) are handed back to their fallback, which sends them
+// over the original rpcs (with retries and spooling)
+class CollectorStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorStream.class);
+
+    private static final int MAX_IN_FLIGHT_BATCHES =
+            Integer.getInteger("glowroot.central.stream.max.in.flight.batches", 4);
+    // this is also the maximum size of a single item, larger items use the original rpcs
+    static final int MAX_BATCH_BYTES =
+            Integer.getInteger("glowroot.central.stream.max.batch.bytes", 1024 * 1024);
+    private static final long LINGER_MILLIS =
+            Long.getLong("glowroot.central.stream.linger.millis", 50);
+    // once this many items are pending, new items use the original rpcs
+    private static final int MAX_PENDING_ITEMS = 1000;
+
+    // the stream is re-established if a batch is not acknowledged within this time
+    private static final long ACK_TIMEOUT_NANOS = MINUTES.toNanos(1);
+
+    private final CollectorServiceStub collectorServiceStub;
+    private final String agentId;
+    private final CentralConnection centralConnection;
+    private final Ticker ticker;
+
+    private final ScheduledExecutorService executor;
+
+    private final Random random = new Random();
+
+    @GuardedBy("this")
+    private @Nullable ResponseObserver currResponseObserver;
+
+    @GuardedBy("this")
+    private final Deque<Item> pendingItems = new ArrayDeque<Item>();
+
+    @GuardedBy("this")
+    private final Map<Long, InFlightBatch> inFlightBatches =
+            new LinkedHashMap<Long, InFlightBatch>();
+
+    @GuardedBy("this")
+    private long nextBatchId = 1;
+
+    @GuardedBy("this")
+    private boolean flushScheduled;
+
+    private volatile boolean closed;
+
+    CollectorStream(CollectorServiceStub collectorServiceStub, String agentId,
+            CentralConnection centralConnection, Ticker ticker) {
+        this.collectorServiceStub = collectorServiceStub;
+        this.agentId = agentId;
+        this.centralConnection = centralConnection;
+        this.ticker = ticker;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Collector-Stream"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkAckTimeout();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, 10, 10, SECONDS);
+    }
+
+    void connectAsync() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connect();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    // returns false if the item was not accepted, in which case the caller should send it over the
+    // original rpc
+    boolean offer(Item item) {
+        if (item.message.getSerializedSize() > MAX_BATCH_BYTES) {
+            return false;
+        }
+        synchronized (this) {
+            ResponseObserver responseObserver = currResponseObserver;
+            if (responseObserver == null || !responseObserver.established
+                    || pendingItems.size() >= MAX_PENDING_ITEMS) {
+                return false;
+            }
+            pendingItems.add(item);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronized (CollectorStream.this) {
+                                flushScheduled = false;
+                                flush();
+                            }
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
+                }, LINGER_MILLIS, MILLISECONDS);
+            }
+            return true;
+        }
+    }
+
+    @OnlyUsedByTests
+    void close() {
+        closed = true;
+        // shutdownNow() so that pending reconnects and linger flushes don't delay termination
+        executor.shutdownNow();
+        ResponseObserver responseObserver;
+        synchronized (this) {
+            responseObserver = currResponseObserver;
+            currResponseObserver = null;
+        }
+        if (responseObserver != null && responseObserver.requestObserver != null) {
+            responseObserver.requestObserver.onCompleted();
+        }
+    }
+
+    @OnlyUsedByTests
+    void awaitClose() throws InterruptedException {
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private synchronized void connect() {
+        if (closed || currResponseObserver != null) {
+            return;
+        }
+        ResponseObserver responseObserver = new ResponseObserver();
+        currResponseObserver = responseObserver;
+        collectorServiceStub.collectStream(responseObserver);
+        // the central collector acknowledges the header with batch id 0
+        ClientCallStreamObserver<CollectStreamMessage> requestObserver =
+                responseObserver.requestObserver;
+        if (requestObserver != null) {
+            requestObserver.onNext(CollectStreamMessage.newBuilder()
+                    .setStreamHeader(CollectStreamHeader.newBuilder()
+                            .setAgentId(agentId))
+                    .build());
+        }
+    }
+
+    @GuardedBy("this")
+    private void flush() {
+        ResponseObserver responseObserver = currResponseObserver;
+        if (responseObserver == null || !responseObserver.established) {
+            return;
+        }
+        ClientCallStreamObserver<CollectStreamMessage> requestObserver =
+                responseObserver.requestObserver;
+        if (requestObserver == null) {
+            return;
+        }
+        while (!pendingItems.isEmpty() && inFlightBatches.size() < MAX_IN_FLIGHT_BATCHES
+                && requestObserver.isReady()) {
+            long batchId = nextBatchId++;
+            CollectBatch.Builder batch = CollectBatch.newBuilder()
+                    .setBatchId(batchId);
+            List<Item> items = Lists.newArrayList();
+            int batchBytes = 0;
+            while (!pendingItems.isEmpty()) {
+                Item item = pendingItems.getFirst();
+                int itemBytes = item.message.getSerializedSize();
+                if (!items.isEmpty() && batchBytes + itemBytes > MAX_BATCH_BYTES) {
+                    break;
+                }
+                pendingItems.removeFirst();
+                batch.addItem(item.message);
+                items.add(item);
+                batchBytes += itemBytes;
+            }
+            requestObserver.onNext(CollectStreamMessage.newBuilder()
+                    .setBatch(batch)
+                    .build());
+            inFlightBatches.put(batchId, new InFlightBatch(items, ticker.read()));
+        }
+    }
+
+    @VisibleForTesting
+    void checkAckTimeout() {
+        ClientCallStreamObserver<CollectStreamMessage> requestObserver = null;
+        synchronized (this) {
+            Iterator<InFlightBatch> i = inFlightBatches.values().iterator();
+            if (i.hasNext() && ticker.read() - i.next().sentNanoTime > ACK_TIMEOUT_NANOS
+                    && currResponseObserver != null) {
+                requestObserver = currResponseObserver.requestObserver;
+            }
+        }
+        if (requestObserver != null) {
+            // this will trigger ResponseObserver.onError(), which falls back for all in flight
+            // and pending items and then re-establishes the stream
+            requestObserver.cancel("batch acknowledgement timed out", null);
+        }
+    }
+
+    @VisibleForTesting
+    static long getReconnectDelayMillis(Throwable t) {
+        if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+            // central collector prior to 0.10.9, keep using the original rpcs but check back
+            // occasionally in case the central collector has been upgraded
+            return MINUTES.toMillis(30);
+        } else {
+            return SECONDS.toMillis(10);
+        }
+    }
+
+    private void onBatchError(final List<Item> items, long retryAfterMillis) {
+        if (retryAfterMillis <= 0 || closed) {
+            onFailure(items);
+            return;
+        }
+        // the central collector is shedding load, so wait at least as long as it asked before
+        // falling back, randomized up to +50% so that agents do not all retry at the same time
+        // (same as CentralConnection)
+        long delayMillis = (long) (retryAfterMillis * (1 + random.nextDouble() / 2));
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onFailure(items);
+                }
+            }, delayMillis, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the stream is being closed
+            logger.debug(e.getMessage(), e);
+            onFailure(items);
+        }
+    }
+
+    private void onFailure(List<Item> items) {
+        for (Item item : items) {
+            try {
+                item.onFailure();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    abstract static class Item {
+
+        private final CollectItem message;
+
+        Item(CollectItem message) {
+            this.message = message;
+        }
+
+        void onSuccess(@SuppressWarnings("unused") CollectStreamResponse response) {}
+
+        // sends the item over the original rpc
+        abstract void onFailure();
+    }
+
+    private static class InFlightBatch {
+
+        private final List<Item> items;
+        private final long sentNanoTime;
+
+        private InFlightBatch(List<Item> items, long sentNanoTime) {
+            this.items = items;
+            this.sentNanoTime = sentNanoTime;
+        }
+    }
+
+    private class ResponseObserver
+            implements ClientResponseObserver<CollectStreamMessage, CollectStreamResponse> {
+
+        private volatile @Nullable ClientCallStreamObserver<CollectStreamMessage> requestObserver;
+
+        @GuardedBy("CollectorStream.this")
+        private boolean established;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<CollectStreamMessage> requestObserver) {
+            this.requestObserver = requestObserver;
+            // transport level flow control, batches are only sent when the transport is ready
+            requestObserver.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CollectorStream.this) {
+                        if (currResponseObserver == ResponseObserver.this) {
+                            flush();
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onNext(CollectStreamResponse response) {
+            InFlightBatch batch;
+            synchronized (CollectorStream.this) {
+                if (currResponseObserver != this) {
+                    return;
+                }
+                if (response.getBatchId() == 0) {
+                    established = true;
+                    return;
+                }
+                batch = inFlightBatches.remove(response.getBatchId());
+                // acknowledgement opens up the window
+                flush();
+            }
+            if (batch == null) {
+                return;
+            }
+            if (response.getError()) {
+                // the original rpcs will retry (honoring retry after) and spool if necessary
+                onBatchError(batch.items, response.getRetryAfterMillis());
+                return;
+            }
+            for (Item item : batch.items) {
+                try {
+                    item.onSuccess(response);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            centralConnection.suppressLogCollector(new Runnable() {
+                @Override
+                public void run() {
+                    logger.debug(t.getMessage(), t);
+                }
+            });
+            onClose(getReconnectDelayMillis(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            // the central collector closed the stream (e.g. central collector shutdown)
+            onClose(SECONDS.toMillis(1));
+        }
+
+        private void onClose(long reconnectDelayMillis) {
+            List<Item> failedItems = Lists.newArrayList();
+            synchronized (CollectorStream.this) {
+                if (currResponseObserver != this) {
+                    return;
+                }
+                currResponseObserver = null;
+                for (InFlightBatch batch : inFlightBatches.values()) {
+                    failedItems.addAll(batch.items);
+                }
+                inFlightBatches.clear();
+                failedItems.addAll(pendingItems);
+                pendingItems.clear();
+            }
+            onFailure(failedItems);
+            if (closed) {
+                return;
+            }
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connect();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            }, reconnectDelayMillis, MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextDictionaryEntry;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persistent dictionary of query texts sent to the central collector, so that aggregates and
+// traces can reference query texts by (compact) id, and each query text only needs to be sent to
+// the central collector once per dictionary version, even across agent restarts
+//
+// only the sha1 of each query text is persisted (the full text is always at hand when it needs to
+// be sent), the file is the version header followed by records:
+//
+// [int magic][utf version]([byte DEFINE][int id][20 byte sha1] | [byte ACKNOWLEDGE][int id])*
+//
+// a new version is started (and the file re-written) if the file cannot be read (including if the
+// jvm was terminated in the middle of writing a record) or if the dictionary fills up, if the
+// central collector reports that it no longer has some entries (e.g. they expired), then only those
+// entries are sent again
+class QueryTextDictionary {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryTextDictionary.class);
+
+    private static final int MAGIC = 0x47515444;
+
+    private static final byte DEFINE = 1;
+    private static final byte ACKNOWLEDGE = 2;
+
+    private static final int SHA1_BYTES = 20;
+
+    private final File file;
+    private final int maxEntries;
+    private final int cacheSize;
+
+    @GuardedBy("this")
+    private Version current;
+
+    // null if the file cannot be written, in which case the dictionary is not persisted
+    @GuardedBy("this")
+    private @Nullable DataOutputStream out;
+
+    QueryTextDictionary(File file, int maxEntries, int cacheSize) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.cacheSize = cacheSize;
+        Version version = null;
+        try {
+            version = load();
+        } catch (IOException e) {
+            logger.warn("unable to read query text dictionary, starting a new one: {}",
+                    e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+        synchronized (this) {
+            if (version == null) {
+                current = startNewVersion();
+            } else {
+                current = version;
+                out = open(true);
+            }
+        }
+    }
+
+    synchronized Version getCurrentVersion() {
+        if (current.nextId > maxEntries) {
+            current = startNewVersion();
+        }
+        return current;
+    }
+
+    // called when the central collector reports that it no longer has some entries from this
+    // version, but does not report which ones
+    synchronized void reset(Version version) {
+        if (current == version) {
+            current = startNewVersion();
+        }
+    }
+
+    @OnlyUsedByTests
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private @Nullable Version load() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Version version = new Version(in.readUTF());
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    return version;
+                }
+                int id = in.readInt();
+                if (type == DEFINE) {
+                    byte[] sha1 = new byte[SHA1_BYTES];
+                    in.readFully(sha1);
+                    version.ids.put(HashCode.fromBytes(sha1), id);
+                    version.nextId = Math.max(version.nextId, id + 1);
+                } else if (type == ACKNOWLEDGE && id < version.nextId) {
+                    version.acknowledged.set(id);
+                } else {
+                    return null;
+                }
+            }
+        } catch (EOFException e) {
+            // the jvm was terminated in the middle of writing a record, and since records are
+            // only written prior to sending, it is not safe to continue using this version
+            logger.debug(e.getMessage(), e);
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private Version startNewVersion() {
+        closeQuietly();
+        Version version = new Version(UUID.randomUUID().toString());
+        out = open(false);
+        if (out != null) {
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(version.versionId);
+                out.flush();
+            } catch (IOException e) {
+                onWriteFailure(e);
+            }
+        }
+        return version;
+    }
+
+    @GuardedBy("this")
+    private @Nullable DataOutputStream open(boolean append) {
+        try {
+            return new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, append)));
+        } catch (IOException e) {
+            logger.error("unable to write query text dictionary: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // records are only written for the current version
+    @GuardedBy("this")
+    private void write(Version version, byte type, int id, byte /*@Nullable*/ [] sha1) {
+        if (version != current || out == null) {
+            return;
+        }
+        try {
+            out.writeByte(type);
+            out.writeInt(id);
+            if (sha1 != null) {
+                out.write(sha1);
+            }
+        } catch (IOException e) {
+            onWriteFailure(e);
+        }
+    }
+
+    @GuardedBy("this")
+    private void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            onWriteFailure(e);
+        }
+    }
+
+    @GuardedBy("this")
+    private void onWriteFailure(IOException e) {
+        logger.error("unable to write query text dictionary: {}", e.getMessage(), e);
+        closeQuietly();
+        // the partially written file must not be used after restart
+        if (!file.delete() && file.exists()) {
+            logger.warn("unable to delete query text dictionary file: {}", file.getPath());
+        }
+    }
+
+    @GuardedBy("this")
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        out = null;
+    }
+
+    interface EntryWriter {
+        void write(QueryTextDictionaryEntry entry);
+    }
+
+    class Version {
+
+        private final String versionId;
+
+        @GuardedBy("QueryTextDictionary.this")
+        private final Map<HashCode, Integer> ids = Maps.newHashMap();
+
+        // ids that have been sent as part of a stream that the central collector successfully
+        // processed, so no longer need to be sent
+        @GuardedBy("QueryTextDictionary.this")
+        private final BitSet acknowledged = new BitSet();
+
+        // ids start at 1, since 0 is the proto default
+        @GuardedBy("QueryTextDictionary.this")
+        private int nextId = 1;
+
+        // recently used query texts, so that the sha1 doesn't need to be computed on every
+        // reference
+        private final Cache<String, Integer> recentIds = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+
+        private Version(String versionId) {
+            this.versionId = versionId;
+        }
+
+        String getVersionId() {
+            return versionId;
+        }
+
+        Encoder newEncoder(EntryWriter entryWriter) {
+            return new Encoder(entryWriter);
+        }
+
+        // called when the central collector reports that it no longer has these entries, so that
+        // they are sent again by the next stream that references them
+        //
+        // this is not persisted, if the agent restarts before the entries are sent again, then the
+        // central collector will report them as missing again
+        void unacknowledge(List<Integer> ids) {
+            synchronized (QueryTextDictionary.this) {
+                for (int id : ids) {
+                    if (id >= 0) {
+                        acknowledged.clear(id);
+                    }
+                }
+            }
+        }
+
+        private int getOrCreateId(String fullText) {
+            Integer id = recentIds.getIfPresent(fullText);
+            if (id != null) {
+                return id;
+            }
+            HashCode sha1 = Hashing.sha1().hashString(fullText, UTF_8);
+            synchronized (QueryTextDictionary.this) {
+                id = ids.get(sha1);
+                if (id == null) {
+                    id = nextId++;
+                    ids.put(sha1, id);
+                    // flushing before the id is sent ensures that the id is never re-used for a
+                    // different query text after a restart
+                    write(this, DEFINE, id, sha1.asBytes());
+                    flush();
+                }
+            }
+            recentIds.put(fullText, id);
+            return id;
+        }
+
+        // encoder for a single stream, not thread safe
+        class Encoder {
+
+            private final EntryWriter entryWriter;
+
+            // ids whose entries have been sent in this stream
+            private final List<Integer> sentIds = Lists.newArrayList();
+            private final BitSet sent = new BitSet();
+
+            private Encoder(EntryWriter entryWriter) {
+                this.entryWriter = entryWriter;
+            }
+
+            int encode(String fullText) {
+                int id = getOrCreateId(fullText);
+                boolean needsToBeSent;
+                synchronized (QueryTextDictionary.this) {
+                    needsToBeSent = !acknowledged.get(id);
+                }
+                if (needsToBeSent && !sent.get(id)) {
+                    entryWriter.write(QueryTextDictionaryEntry.newBuilder()
+                            .setId(id)
+                            .setFullText(fullText)
+                            .build());
+                    sent.set(id);
+                    sentIds.add(id);
+                }
+                return id;
+            }
+
+            void onSuccess() {
+                synchronized (QueryTextDictionary.this) {
+                    for (int id : sentIds) {
+                        if (!acknowledged.get(id)) {
+                            acknowledged.set(id);
+                            write(Version.this, ACKNOWLEDGE, id, null);
+                        }
+                    }
+                    flush();
+                }
+            }
+        }
+    }
+}
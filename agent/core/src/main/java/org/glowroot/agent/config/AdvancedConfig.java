@@ -21,6 +21,7 @@ import org.immutables.value.Value;
 
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
 @Value.Immutable
@@ -80,6 +81,13 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    // used to limit memory requirement of transaction duration histograms (at the cost of
+    // percentile accuracy)
+    @Value.Default
+    public HistogramKind histogramKind() {
+        return HistogramKind.HDR_HISTOGRAM;
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setWeavingTimer(weavingTimer())
@@ -91,12 +99,14 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setHistogramKind(histogramKind())
                 .build();
     }
 
     public static AdvancedConfig create(AgentConfig.AdvancedConfig config) {
         ImmutableAdvancedConfig.Builder builder = ImmutableAdvancedConfig.builder()
-                .weavingTimer(config.getWeavingTimer());
+                .weavingTimer(config.getWeavingTimer())
+                .histogramKind(config.getHistogramKind());
         if (config.hasImmediatePartialStoreThresholdSeconds()) {
             builder.immediatePartialStoreThresholdSeconds(
                     config.getImmediatePartialStoreThresholdSeconds().getValue());
@@ -37,9 +37,9 @@ import org.glowroot.common.live.ImmutableThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -47,6 +47,7 @@ import org.glowroot.common.model.TransactionErrorSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
@@ -71,21 +72,22 @@ class AggregateCollector {
     private final ThreadStatsCollectorImpl auxThreadStats = new ThreadStatsCollectorImpl();
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    private final LazyHistogram durationNanosHistogram;
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
-    private @MonotonicNonNull MutableProfile mainThreadProfile;
-    private @MonotonicNonNull MutableProfile auxThreadProfile;
+    private @MonotonicNonNull CompactProfile mainThreadProfile;
+    private @MonotonicNonNull CompactProfile auxThreadProfile;
 
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
-            int maxServiceCallAggregates) {
+            int maxServiceCallAggregates, HistogramKind histogramKind) {
         this.transactionName = transactionName;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        durationNanosHistogram = new LazyHistogram(histogramKind);
     }
 
     void add(Transaction transaction) {
@@ -103,6 +105,40 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to combine the shards of an aggregate interval
+    void merge(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            collector.queries.mergeQueriesInto(getQueryCollector());
+        }
+        if (collector.serviceCalls != null) {
+            collector.serviceCalls.mergeServiceCallsInto(getServiceCallCollector());
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new CompactProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new CompactProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -117,14 +153,14 @@ class AggregateCollector {
 
     void mergeMainThreadProfile(ThreadProfile toBeMergedProfile) {
         if (mainThreadProfile == null) {
-            mainThreadProfile = new MutableProfile();
+            mainThreadProfile = new CompactProfile();
         }
         toBeMergedProfile.mergeInto(mainThreadProfile);
     }
 
     void mergeAuxThreadProfile(ThreadProfile toBeMergedProfile) {
         if (auxThreadProfile == null) {
-            auxThreadProfile = new MutableProfile();
+            auxThreadProfile = new CompactProfile();
         }
         toBeMergedProfile.mergeInto(auxThreadProfile);
     }
@@ -278,6 +314,11 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl rootTimerCollector) {
+            MutableAggregateTimer.mergeTimers(rootTimerCollector.rootMutableTimers,
+                    rootMutableTimers);
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -324,6 +365,21 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl threadStatsCollector) {
+            if (threadStatsCollector.empty) {
+                return;
+            }
+            totalCpuNanos =
+                    NotAvailableAware.add(totalCpuNanos, threadStatsCollector.totalCpuNanos);
+            totalBlockedMillis = NotAvailableAware.add(totalBlockedMillis,
+                    threadStatsCollector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, threadStatsCollector.totalWaitedMillis);
+            totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
+                    threadStatsCollector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -17,11 +17,14 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
@@ -42,8 +45,11 @@ import org.glowroot.common.model.TransactionErrorSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public class AggregateIntervalCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -52,215 +58,351 @@ public class AggregateIntervalCollector {
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
+    private final HistogramKind histogramKind;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // each shard is only added to by a single aggregate processing thread, and is guarded by its
+    // own lock so that readers only contend with the single shard that they are currently reading
+    private final Shard[] shards;
+
+    // set once the interval is complete and all of the shards have been merged, after which readers
+    // only read from the merged shard
+    //
+    // the original shards are never modified after the interval is complete (not even cleared), so
+    // a reader that is part way through iterating over the original shards still sees a
+    // consistent view
+    private volatile @MonotonicNonNull Shard mergedShard;
 
-    private final Object lock = new Object();
+    // the transaction aggregate limit applies across all shards
+    private final ConcurrentMap<String, AtomicInteger> transactionAggregateCounts =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            HistogramKind histogramKind, int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        this.histogramKind = histogramKind;
         this.clock = clock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
-        synchronized (lock) {
+    void add(Transaction transaction, int shardIndex) {
+        Shard shard = shards[shardIndex];
+        synchronized (shard.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    shard.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard[] readShards = getReadShards();
+        if (readShards.length == 1) {
+            Shard shard = readShards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getOverviewAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getOverviewAggregate(getLiveCaptureTime());
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard[] readShards = getReadShards();
+        if (readShards.length == 1) {
+            Shard shard = readShards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getPercentileAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getPercentileAggregate(getLiveCaptureTime());
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard[] readShards = getReadShards();
+        if (readShards.length == 1) {
+            Shard shard = readShards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getThroughputAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getThroughputAggregate(getLiveCaptureTime());
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                for (IntervalTypeCollector typeCollector : shard.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeQueriesInto(collector);
+                }
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeServiceCallsInto(collector);
+                }
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeMainThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : getReadShards()) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeAuxThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
     void flush(Collector collector) throws Exception {
+        mergeShards();
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                shard.typeCollectors.clear();
+            }
         }
+        Shard mergedShard = this.mergedShard;
+        if (mergedShard != null) {
+            synchronized (mergedShard.lock) {
+                mergedShard.typeCollectors.clear();
+            }
+        }
+        transactionAggregateCounts.clear();
     }
 
-    @GuardedBy("lock")
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    private Shard[] getReadShards() {
+        Shard mergedShard = this.mergedShard;
+        if (mergedShard == null) {
+            return shards;
         }
-        return typeCollector;
+        return new Shard[] {mergedShard};
     }
 
-    @GuardedBy("lock")
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+    private long getLiveCaptureTime() {
+        return Math.min(captureTime, clock.currentTimeMillis());
+    }
+
+    private @Nullable AggregateCollector getMergedAggregateCollector(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+        AggregateCollector mergedAggregateCollector = null;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            maxQueryAggregates, maxServiceCallAggregates, histogramKind);
+                }
+                mergedAggregateCollector.merge(aggregateCollector);
+            }
+        }
+        return mergedAggregateCollector;
+    }
+
+    // this is only called once the interval is complete (no more transactions will be added), and
+    // it merges all of the shards into a new shard so that the aggregates are only built once per
+    // transaction type and transaction name
+    //
+    // the original shards are left untouched (see comment on mergedShard), and transaction
+    // aggregates are shared with the merged shard instead of being copied, since they are no
+    // longer modified
+    private void mergeShards() {
+        if (mergedShard != null) {
+            return;
+        }
+        if (shards.length == 1) {
+            mergedShard = shards[0];
+            return;
+        }
+        Shard targetShard = new Shard();
+        synchronized (targetShard.lock) {
+            for (Shard shard : shards) {
+                synchronized (shard.lock) {
+                    for (Map.Entry<String, IntervalTypeCollector> entry : shard.typeCollectors
+                            .entrySet()) {
+                        targetShard.getTypeCollector(entry.getKey()).merge(entry.getValue());
+                    }
+                }
+            }
+        }
+        mergedShard = targetShard;
+    }
+
+    private class Shard {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        @GuardedBy("lock")
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector(transactionType);
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+
+        @GuardedBy("lock")
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
         }
     }
 
@@ -269,20 +411,33 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
-
-        private IntervalTypeCollector() {
-            overallAggregateCollector =
-                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+        private final AtomicInteger transactionAggregateCount;
+
+        private IntervalTypeCollector(String transactionType) {
+            overallAggregateCollector = new AggregateCollector(null, maxQueryAggregates,
+                    maxServiceCallAggregates, histogramKind);
+            AtomicInteger transactionAggregateCount =
+                    transactionAggregateCounts.get(transactionType);
+            if (transactionAggregateCount == null) {
+                transactionAggregateCount = new AtomicInteger();
+                AtomicInteger existing = transactionAggregateCounts
+                        .putIfAbsent(transactionType, transactionAggregateCount);
+                if (existing != null) {
+                    transactionAggregateCount = existing;
+                }
+            }
+            this.transactionAggregateCount = transactionAggregateCount;
         }
 
         private void add(Transaction transaction) {
             merge(transaction, overallAggregateCollector);
+            String transactionName = transaction.getTransactionName();
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
+                    transactionAggregateCollectors.get(transactionName);
             if (transactionAggregateCollector == null) {
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                if (reserveTransactionAggregate()) {
                     transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
+                            createTransactionAggregateCollector(transactionName);
                 } else {
                     transactionAggregateCollector =
                             transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
@@ -295,9 +450,46 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        private void merge(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : typeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null
+                        && !transactionName.equals(LIMIT_EXCEEDED_BUCKET)) {
+                    // transaction names are partitioned across shards, so the only transaction
+                    // aggregate that can be present in multiple shards is the limit exceeded
+                    // bucket, and the others can be shared instead of copied
+                    transactionAggregateCollectors.put(transactionName, entry.getValue());
+                } else {
+                    if (transactionAggregateCollector == null) {
+                        transactionAggregateCollector =
+                                createTransactionAggregateCollector(transactionName);
+                    }
+                    transactionAggregateCollector.merge(entry.getValue());
+                }
+            }
+        }
+
+        // the slot is reserved before the aggregate is created, since the limit applies across
+        // shards and the check and the increment would otherwise race with other shards
+        private boolean reserveTransactionAggregate() {
+            while (true) {
+                int count = transactionAggregateCount.get();
+                if (count >= maxTransactionAggregates) {
+                    return false;
+                }
+                if (transactionAggregateCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxQueryAggregates, maxServiceCallAggregates);
+                    transactionName, maxQueryAggregates, maxServiceCallAggregates, histogramKind);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
@@ -350,11 +542,14 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
+            // all shards have already been merged
+            Shard shard = checkNotNull(mergedShard);
+            synchronized (shard.lock) {
                 SharedQueryTextCollectionImpl sharedQueryTextCollector =
                         new SharedQueryTextCollectionImpl();
                 ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                for (Map.Entry<String, IntervalTypeCollector> e : shard.typeCollectors
+                        .entrySet()) {
                     String transactionType = e.getKey();
                     IntervalTypeCollector intervalTypeCollector = e.getValue();
                     Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
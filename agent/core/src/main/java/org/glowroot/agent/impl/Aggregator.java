@@ -19,11 +19,9 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import javax.annotation.concurrent.GuardedBy;
-
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,24 +29,41 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
-    private static final int TRANSACTION_PENDING_LIMIT = 1000;
+    // number of threads used to aggregate transactions, transactions are partitioned across these
+    // threads by transaction name, and each thread aggregates into its own shard of the aggregate
+    // interval collector (the shards are merged at flush time)
+    private static final int PROCESSING_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.aggregate.processing.threads", 1));
+
+    // back pressure on transaction collection (per processing thread), this is rounded up to the
+    // next power of two
+    private static final int TRANSACTION_PENDING_LIMIT =
+            Integer.getInteger("glowroot.aggregate.pending.limit", 1024);
+    // one of sleep, park or yield, used by the processing threads while waiting for transactions
+    private static final String WAIT_STRATEGY =
+            System.getProperty("glowroot.aggregate.wait.strategy", "sleep");
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // interval collectors that are still being added to by at least one processing thread (ordered
+    // by capture time), structural changes are made under intervalLock
+    private final List<AggregateIntervalCollector> activeIntervalCollectors =
+            Lists.newCopyOnWriteArrayList();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
+    private final Object intervalLock = new Object();
+
+    private final TransactionProcessor[] processors;
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
@@ -58,35 +73,41 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
-
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, PROCESSING_THREADS, clock);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            int processingThreads, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        processors = new TransactionProcessor[processingThreads];
+        if (processingThreads == 1) {
+            processingExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        } else {
+            processingExecutor = Executors.newFixedThreadPool(processingThreads,
+                    ThreadFactories.create("Glowroot-Aggregate-Processing-%d"));
+        }
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        AggregateIntervalCollector initialIntervalCollector =
+                createIntervalCollector(clock.currentTimeMillis());
+        activeIntervalCollectors.add(initialIntervalCollector);
+        for (int i = 0; i < processingThreads; i++) {
+            processors[i] = new TransactionProcessor(i, initialIntervalCollector);
+        }
+        for (TransactionProcessor processor : processors) {
+            processingExecutor.execute(processor);
+        }
     }
 
     // from is non-inclusive
@@ -103,46 +124,132 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+            intervalCollector.clear();
+        }
+    }
+
+    public int getPendingTransactionCapacity() {
+        int capacity = 0;
+        for (TransactionProcessor processor : processors) {
+            capacity += processor.ringBuffer.getCapacity();
+        }
+        return capacity;
+    }
+
+    public long getPendingTransactionCount() {
+        long count = 0;
+        for (TransactionProcessor processor : processors) {
+            count += processor.ringBuffer.getBacklog();
+        }
+        return count;
+    }
+
+    public long getDroppedTransactionCount() {
+        long count = 0;
+        for (TransactionProcessor processor : processors) {
+            count += processor.ringBuffer.getDroppedCount();
+        }
+        return count;
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-            } else {
-                newTail.captureTime = captureTime;
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            }
+        TransactionProcessor processor;
+        if (processors.length == 1) {
+            processor = processors[0];
+        } else {
+            int hash = transaction.getTransactionName().hashCode() & Integer.MAX_VALUE;
+            processor = processors[hash % processors.length];
         }
-        return captureTime;
+        return processor.add(transaction);
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        List<AggregateIntervalCollector> activeIntervalCollectors =
+                ImmutableList.copyOf(this.activeIntervalCollectors);
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
         if (intervalCollectors.isEmpty()) {
             // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+            return activeIntervalCollectors;
         }
+        for (AggregateIntervalCollector activeIntervalCollector : activeIntervalCollectors) {
+            if (!intervalCollectors.contains(activeIntervalCollector)) {
+                intervalCollectors.add(activeIntervalCollector);
+            }
+        }
+        return intervalCollectors;
+    }
+
+    private AggregateIntervalCollector getOrCreateIntervalCollector(long captureTime) {
+        long rollupCaptureTime = CaptureTimes.getRollup(captureTime, aggregateIntervalMillis);
+        synchronized (intervalLock) {
+            int index = 0;
+            for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+                long intervalCaptureTime = intervalCollector.getCaptureTime();
+                if (intervalCaptureTime == rollupCaptureTime) {
+                    return intervalCollector;
+                }
+                if (intervalCaptureTime > rollupCaptureTime) {
+                    break;
+                }
+                index++;
+            }
+            AggregateIntervalCollector intervalCollector = createIntervalCollector(captureTime);
+            activeIntervalCollectors.add(index, intervalCollector);
+            return intervalCollector;
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(),
+                configService.getAdvancedConfig().histogramKind(), processors.length, clock);
+    }
+
+    // flushes all interval collectors that no processing thread can add to anymore
+    private void maybeFlushIntervalCollectors() {
+        synchronized (intervalLock) {
+            long watermark = Long.MAX_VALUE;
+            for (TransactionProcessor processor : processors) {
+                watermark = Math.min(watermark, processor.watermark);
+            }
+            while (!activeIntervalCollectors.isEmpty()
+                    && activeIntervalCollectors.get(0).getCaptureTime() <= watermark) {
+                flushIntervalCollector(activeIntervalCollectors.get(0));
+                activeIntervalCollectors.remove(0);
+            }
+            if (activeIntervalCollectors.isEmpty()) {
+                // there is always an active interval collector, which is needed so that empty
+                // intervals are still flushed
+                activeIntervalCollectors.add(createIntervalCollector(clock.currentTimeMillis()));
+            }
+        }
+    }
+
+    private void flushIntervalCollector(final AggregateIntervalCollector intervalCollector) {
+        if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            return;
+        }
+        pendingIntervalCollectors.add(intervalCollector);
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
     }
 
     @OnlyUsedByTests
@@ -160,6 +267,46 @@ public class Aggregator {
 
     private class TransactionProcessor implements Runnable {
 
+        private final int shardIndex;
+
+        private final TransactionRingBuffer ringBuffer;
+
+        // the interval collector that this processing thread is currently adding to
+        private AggregateIntervalCollector intervalCollector;
+
+        // no transactions with capture time less than or equal to the watermark will be added by
+        // this processing thread anymore
+        private volatile long watermark;
+
+        private TransactionProcessor(int shardIndex, AggregateIntervalCollector intervalCollector) {
+            this.shardIndex = shardIndex;
+            this.intervalCollector = intervalCollector;
+            ringBuffer = new TransactionRingBuffer(TRANSACTION_PENDING_LIMIT,
+                    TransactionRingBuffer.WaitStrategy.fromName(WAIT_STRATEGY), clock);
+        }
+
+        private long add(Transaction transaction) {
+            // the ring buffer ensures that transactions are consumed in (non-decreasing) order of
+            // captureTime (so that the consumer can assume if captureTime indicates time to flush,
+            // then no new transactions will come in with prior captureTime)
+            //
+            // the returned captureTime (used as the trace capture time) is the raw clock value,
+            // while the aggregate uses the clamped value from getLastCaptureTime(), so when
+            // producers race, the trace capture time can be a few milliseconds earlier than the
+            // capture time used for aggregation (and so, right at an interval boundary, the trace
+            // can fall in the prior interval from the one that it was aggregated into)
+            long captureTime = ringBuffer.offer(transaction);
+            if (captureTime == -1) {
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        ringBuffer.getCapacity());
+                transaction.removeFromActiveTransactions();
+                transaction.releaseTimersIfReusable();
+                return clock.currentTimeMillis();
+            }
+            return captureTime;
+        }
+
         @Override
         public void run() {
             while (!closed) {
@@ -173,99 +320,51 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
-            if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+            // the clock must be read prior to checking if the ring buffer is idle, see
+            // TransactionRingBuffer.offer()
+            long currentTime = clock.currentTimeMillis();
+            Transaction transaction = ringBuffer.poll();
+            if (transaction == null) {
+                if (currentTime > intervalCollector.getCaptureTime() && ringBuffer.isIdle()) {
+                    endOfInterval(currentTime);
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    ringBuffer.await();
                 }
                 return;
             }
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            long captureTime = ringBuffer.getLastCaptureTime();
+            if (captureTime > intervalCollector.getCaptureTime()) {
+                // no new transactions can come out of the ring buffer with prior captureTime
+                watermark = captureTime - 1;
+                maybeFlushIntervalCollectors();
+                intervalCollector = getOrCreateIntervalCollector(captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-            }
-            activeIntervalCollector.add(transaction);
+            intervalCollector.add(transaction, shardIndex);
+            transaction.releaseTimersIfReusable();
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        private void endOfInterval(long currentTime) throws InterruptedException {
+            // no pending transactions can come out of the ring buffer with prior time
+            watermark = currentTime - 1;
+            maybeFlushIntervalCollectors();
+            AggregateIntervalCollector latestIntervalCollector = getLatestIntervalCollector();
+            if (latestIntervalCollector.getCaptureTime() > intervalCollector.getCaptureTime()) {
+                intervalCollector = latestIntervalCollector;
+            } else {
+                // waiting on other processing threads to finish the interval
+                ringBuffer.await();
             }
         }
 
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
+        private AggregateIntervalCollector getLatestIntervalCollector() {
+            synchronized (intervalLock) {
+                return activeIntervalCollectors.get(activeIntervalCollectors.size() - 1);
             }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
-        }
-    }
-
-    private static class PendingTransaction {
-
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
-
-        private PendingTransaction(@Nullable Transaction transaction) {
-            this.transaction = transaction;
         }
     }
 }
@@ -15,132 +15,72 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 // micro-optimized map for nested timers
+//
+// timer name ids are dense (see TimerNameCache), and timer names that are nested under a given
+// timer tend to have ids that are close together (e.g. created by the same plugin), so the map is
+// a plain array covering the range of ids that have been put, which makes lookup a single (bounds
+// checked) array load
+//
+// the array size is bounded by the total number of timer names, which is small
 class NestedTimerMap {
 
-    private static final Object CHAINED_KEY = new Object();
+    private static final int INITIAL_CAPACITY = 4;
 
-    // capacity must always be a power of 2, see comments in get() and put()
-    private int capacity = 4;
-    private @Nullable Object[] table = new Object[capacity << 1];
+    private static final TimerImpl[] EMPTY_TABLE = new TimerImpl[0];
 
-    private int size = 0;
-    private int threshold = 3; // 0.75 * capacity
+    // table[i] holds the timer for id baseId + i
+    private int baseId;
+    private @Nullable TimerImpl[] table = EMPTY_TABLE;
 
     @Nullable
     TimerImpl get(TimerNameImpl key) {
-        // this mask requires capacity to be a power of 2
-        int bucket = (key.specialHashCode() & (capacity - 1)) << 1;
-        Object keyAtBucket = table[bucket];
-        Object value = table[bucket + 1];
-        // ok to use "==" because TimerNameImpl instances are always unique
-        if (keyAtBucket == key) {
-            return (TimerImpl) value;
+        int index = key.id() - baseId;
+        if (index < 0 || index >= table.length) {
+            return null;
         }
-        if (keyAtBucket == CHAINED_KEY) {
-            return getChained(key, checkNotNull(value));
-        }
-        return null;
+        return table[index];
     }
 
     // IMPORTANT put assumes get was already called and key is not present in this map
     void put(TimerNameImpl key, TimerImpl value) {
-        if (size++ > threshold) {
-            rehash();
+        int id = key.id();
+        if (table.length == 0) {
+            baseId = id;
+            table = new TimerImpl[INITIAL_CAPACITY];
+        } else if (id < baseId) {
+            growDown(id);
+        } else if (id >= baseId + table.length) {
+            growUp(id);
         }
-        putWithoutRehashCheck(key, value);
+        table[id - baseId] = value;
     }
 
-    private void putWithoutRehashCheck(TimerNameImpl key, @Nullable Object value) {
-        // this mask requires capacity to be a power of 2
-        int bucket = (key.specialHashCode() & (capacity - 1)) << 1;
-        Object keyAtBucket = table[bucket];
-        if (keyAtBucket == null) {
-            table[bucket] = key;
-            table[bucket + 1] = value;
-            return;
-        }
-        putChained(key, value, bucket, keyAtBucket);
+    // retains the current capacity
+    void clear() {
+        Arrays.fill(table, null);
     }
 
-    private void putChained(TimerNameImpl key, @Nullable Object value, int bucket,
-            Object keyAtBucket) {
-        if (keyAtBucket == CHAINED_KEY) {
-            @Nullable
-            Object[] chain = (/*@Nullable*/ Object[]) checkNotNull(table[bucket + 1]);
-            int chainLength = chain.length;
-            for (int i = 0; i < chainLength; i += 2) {
-                if (chain[i] == null) {
-                    chain[i] = key;
-                    chain[i + 1] = value;
-                    return;
-                }
-            }
-            @Nullable
-            Object[] newChain = new Object[chainLength << 1];
-            System.arraycopy(chain, 0, newChain, 0, chainLength);
-            newChain[chainLength] = key;
-            newChain[chainLength + 1] = value;
-            table[bucket + 1] = newChain;
-            return;
-        }
-        @Nullable
-        Object[] chain = new Object[4];
-        chain[0] = keyAtBucket;
-        chain[1] = table[bucket + 1];
-        chain[2] = key;
-        chain[3] = value;
-        table[bucket] = CHAINED_KEY;
-        table[bucket + 1] = chain;
+    private void growUp(int id) {
+        int newLength = Math.max(table.length << 1, id - baseId + 1);
+        table = Arrays.copyOf(table, newLength);
     }
 
-    private void rehash() {
+    private void growDown(int id) {
+        int end = baseId + table.length;
+        int newLength = Math.max(table.length << 1, end - id);
+        // new slack goes below the requested id, but ids are never negative
+        int newBaseId = Math.max(0, end - newLength);
         @Nullable
-        Object[] existingTable = table;
-        capacity <<= 1;
-        threshold <<= 1;
-        table = new Object[capacity << 1];
-
-        for (int i = 0; i < existingTable.length; i += 2) {
-            Object key = existingTable[i];
-            if (key == null) {
-                continue;
-            }
-            if (key == CHAINED_KEY) {
-                @Nullable
-                Object[] values = (/*@Nullable*/ Object[]) checkNotNull(existingTable[i + 1]);
-                putChainedValues(values);
-            } else {
-                putWithoutRehashCheck((TimerNameImpl) key, existingTable[i + 1]);
-            }
-        }
-    }
-
-    private void putChainedValues(/*@Nullable*/ Object[] values) {
-        for (int j = 0; j < values.length; j += 2) {
-            Object chainedKey = values[j];
-            if (chainedKey == null) {
-                break;
-            }
-            putWithoutRehashCheck((TimerNameImpl) chainedKey, values[j + 1]);
-        }
-    }
-
-    private static @Nullable TimerImpl getChained(TimerNameImpl key, Object value) {
-        @Nullable
-        Object[] chainedTable = (/*@Nullable*/ Object[]) value;
-        for (int i = 0; i < chainedTable.length; i += 2) {
-            // ok to use "==" because TimerNameImpl instances are always unique
-            if (chainedTable[i] == key) {
-                return (TimerImpl) chainedTable[i + 1];
-            }
-        }
-        return null;
+        TimerImpl[] newTable = new TimerImpl[end - newBaseId];
+        System.arraycopy(table, 0, newTable, baseId - newBaseId, table.length);
+        baseId = newBaseId;
+        table = newTable;
     }
 }
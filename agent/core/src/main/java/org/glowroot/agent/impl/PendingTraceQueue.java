@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// pending traces are processed in priority order (and FIFO within the same priority), and once
+// the size limit is reached, newer low priority traces are evicted to make room for higher
+// priority traces
+class PendingTraceQueue {
+
+    private final long limitBytes;
+
+    private final Object lock = new Object();
+    // indexed by priority
+    @GuardedBy("lock")
+    private final List<Deque<PendingTrace>> queues;
+    // includes the size of traces that have been polled but not yet released
+    @GuardedBy("lock")
+    private long sizeBytes;
+    @GuardedBy("lock")
+    private int size;
+
+    PendingTraceQueue(long limitBytes) {
+        this.limitBytes = limitBytes;
+        List<Deque<PendingTrace>> queues = Lists.newArrayList();
+        for (int i = 0; i <= PendingTrace.PRIORITY_PARTIALLY_STORED; i++) {
+            queues.add(new ArrayDeque<PendingTrace>());
+        }
+        this.queues = queues;
+    }
+
+    // returns the traces that were not added or were evicted (which can include the trace that was
+    // passed in)
+    List<PendingTrace> offer(PendingTrace pendingTrace) {
+        synchronized (lock) {
+            if (pendingTrace.priority == PendingTrace.PRIORITY_PARTIALLY_STORED
+                    || sizeBytes + pendingTrace.estimatedSizeBytes <= limitBytes) {
+                add(pendingTrace);
+                return ImmutableList.of();
+            }
+            // find enough lower priority traces to evict, starting with the newest
+            long neededBytes = sizeBytes + pendingTrace.estimatedSizeBytes - limitBytes;
+            List<PendingTrace> evictableTraces = Lists.newArrayList();
+            for (int i = 0; i < pendingTrace.priority && neededBytes > 0; i++) {
+                Iterator<PendingTrace> j = queues.get(i).descendingIterator();
+                while (j.hasNext() && neededBytes > 0) {
+                    PendingTrace evictableTrace = j.next();
+                    evictableTraces.add(evictableTrace);
+                    neededBytes -= evictableTrace.estimatedSizeBytes;
+                }
+            }
+            if (neededBytes > 0) {
+                return ImmutableList.of(pendingTrace);
+            }
+            for (PendingTrace evictableTrace : evictableTraces) {
+                queues.get(evictableTrace.priority).remove(evictableTrace);
+                sizeBytes -= evictableTrace.estimatedSizeBytes;
+                size--;
+            }
+            add(pendingTrace);
+            return evictableTraces;
+        }
+    }
+
+    @Nullable
+    PendingTrace poll() {
+        synchronized (lock) {
+            for (int i = queues.size() - 1; i >= 0; i--) {
+                PendingTrace pendingTrace = queues.get(i).poll();
+                if (pendingTrace != null) {
+                    return pendingTrace;
+                }
+            }
+            return null;
+        }
+    }
+
+    void release(PendingTrace pendingTrace) {
+        synchronized (lock) {
+            sizeBytes -= pendingTrace.estimatedSizeBytes;
+            size--;
+        }
+    }
+
+    int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    long getSizeBytes() {
+        synchronized (lock) {
+            return sizeBytes;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void add(PendingTrace pendingTrace) {
+        queues.get(pendingTrace.priority).add(pendingTrace);
+        sizeBytes += pendingTrace.estimatedSizeBytes;
+        size++;
+    }
+
+    static class PendingTrace {
+
+        static final int PRIORITY_LOW = 0;
+        static final int PRIORITY_HIGH = 1;
+        // the pending limit doesn't apply to these
+        static final int PRIORITY_PARTIALLY_STORED = 2;
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final int priority;
+        private final long estimatedSizeBytes;
+
+        PendingTrace(Transaction transaction, boolean slow, int priority,
+                long estimatedSizeBytes) {
+            this.transaction = transaction;
+            this.slow = slow;
+            this.priority = priority;
+            this.estimatedSizeBytes = estimatedSizeBytes;
+        }
+
+        Transaction getTransaction() {
+            return transaction;
+        }
+
+        boolean isSlow() {
+            return slow;
+        }
+    }
+}
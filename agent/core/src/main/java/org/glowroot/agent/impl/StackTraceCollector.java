@@ -18,15 +18,17 @@ package org.glowroot.agent.impl;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.StackTraceSampler.Mode;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
@@ -36,19 +38,35 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    private static final String SAMPLER_MODE =
+            System.getProperty("glowroot.profiling.sampler", "default");
+
+    // the remaining properties only apply to the adaptive sampler
+    private static final int MAX_THREADS_PER_TICK =
+            Integer.getInteger("glowroot.profiling.thread.limit.per.tick", 64);
+    private static final int MAX_OVERHEAD_PERCENT =
+            Integer.getInteger("glowroot.profiling.max.overhead.percent", 1);
+    private static final int MAX_INTERVAL_MULTIPLIER =
+            Integer.getInteger("glowroot.profiling.max.interval.multiplier", 10);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
 
+    private final StackTraceSampler sampler;
+
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            final ConfigService configService, Random random, Ticker ticker) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
 
+        sampler = new StackTraceSampler(Mode.fromName(SAMPLER_MODE), MAX_THREADS_PER_TICK,
+                MAX_OVERHEAD_PERCENT, MAX_INTERVAL_MULTIPLIER, ticker);
+
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
         // this is important for unit tests, but seems good for real usage as well
@@ -70,6 +88,38 @@ public class StackTraceCollector {
         });
     }
 
+    public String getSamplerMode() {
+        return sampler.getMode().name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public long getCaptureCount() {
+        return sampler.getCaptureCount();
+    }
+
+    public long getTotalCaptureNanos() {
+        return sampler.getTotalCaptureNanos();
+    }
+
+    public long getLastCaptureNanos() {
+        return sampler.getLastCaptureNanos();
+    }
+
+    public long getAverageCaptureNanos() {
+        return sampler.getAverageCaptureNanos();
+    }
+
+    public long getSampledThreadCount() {
+        return sampler.getSampledThreadCount();
+    }
+
+    public long getSkippedThreadCount() {
+        return sampler.getSkippedThreadCount();
+    }
+
+    public long getIntervalMillis() {
+        return sampler.getIntervalMillis();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         runnable.closed = true;
@@ -121,8 +171,9 @@ public class StackTraceCollector {
                         continue;
                     }
                 }
-                long randomDelayFromIntervalStart =
-                        (long) (random.nextFloat() * currIntervalMillis);
+                // the adaptive sampler may stretch the interval beyond the configured interval
+                long intervalMillis = sampler.getIntervalMillis(currIntervalMillis);
+                long randomDelayFromIntervalStart = (long) (random.nextFloat() * intervalMillis);
                 try {
                     Thread.sleep(remainingInInterval + randomDelayFromIntervalStart);
                 } catch (InterruptedException e) {
@@ -132,7 +183,7 @@ public class StackTraceCollector {
                     remainingInInterval = 0;
                     continue;
                 }
-                remainingInInterval = currIntervalMillis - randomDelayFromIntervalStart;
+                remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
                 try {
                     runInternal();
                 } catch (Throwable t) {
@@ -142,22 +193,19 @@ public class StackTraceCollector {
         }
 
         private void runInternal() {
-            List<Transaction> transactions =
-                    ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
-                return;
-            }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
+            // iterating directly over the (weakly consistent) registry instead of copying it first
+            List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
+            for (Transaction transaction : transactionRegistry.getTransactions()) {
                 ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
                 if (mainThreadContext.isActive()) {
                     activeThreadContexts.add(mainThreadContext);
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            captureStackTraces(activeThreadContexts);
+            if (activeThreadContexts.isEmpty()) {
+                return;
+            }
+            sampler.sample(activeThreadContexts);
         }
     }
 }
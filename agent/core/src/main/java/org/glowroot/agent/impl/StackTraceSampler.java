@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// ThreadMXBean.getThreadInfo() brings all application threads to a global safepoint, so the time
+// spent capturing is paid by every application thread, not just by the stack trace collector
+//
+// the adaptive mode caps the number of threads captured per tick (rotating through the remaining
+// threads on subsequent ticks) and stretches the interval when capture itself becomes expensive,
+// in both cases all of the threads captured in a tick are still captured in a single batch
+//
+// only accessed by the stack trace collector thread, except for the stats getters
+class StackTraceSampler {
+
+    // weight given to the latest capture time in the moving average
+    private static final double AVERAGE_WEIGHT = 0.1;
+
+    private final Mode mode;
+    private final int maxThreadsPerTick;
+    private final int maxOverheadPercent;
+    private final int maxIntervalMultiplier;
+    private final Ticker ticker;
+
+    // round robin start index when there are more threads than maxThreadsPerTick
+    private int nextStartIndex;
+
+    // single writer, volatile for visibility to the stats getters
+    private volatile long captureCount;
+    private volatile long totalCaptureNanos;
+    private volatile long lastCaptureNanos;
+    private volatile double averageCaptureNanos;
+    private volatile long sampledThreadCount;
+    private volatile long skippedThreadCount;
+    private volatile long intervalMillis;
+
+    StackTraceSampler(Mode mode, int maxThreadsPerTick, int maxOverheadPercent,
+            int maxIntervalMultiplier, Ticker ticker) {
+        this.mode = mode;
+        this.maxThreadsPerTick = Math.max(1, maxThreadsPerTick);
+        this.maxOverheadPercent = Math.max(1, maxOverheadPercent);
+        this.maxIntervalMultiplier = Math.max(1, maxIntervalMultiplier);
+        this.ticker = ticker;
+    }
+
+    void sample(List<ThreadContextImpl> activeThreadContexts) {
+        List<ThreadContextImpl> threadContexts = select(activeThreadContexts);
+        long startTick = ticker.read();
+        StackTraceCollector.captureStackTraces(threadContexts);
+        long captureNanos = ticker.read() - startTick;
+        if (captureCount == 0) {
+            averageCaptureNanos = captureNanos;
+        } else {
+            averageCaptureNanos = AVERAGE_WEIGHT * captureNanos
+                    + (1 - AVERAGE_WEIGHT) * averageCaptureNanos;
+        }
+        lastCaptureNanos = captureNanos;
+        totalCaptureNanos += captureNanos;
+        captureCount++;
+        sampledThreadCount += threadContexts.size();
+        skippedThreadCount += activeThreadContexts.size() - threadContexts.size();
+    }
+
+    long getIntervalMillis(int configuredIntervalMillis) {
+        long intervalMillis;
+        if (mode == Mode.ADAPTIVE) {
+            // keep the time spent capturing (at a safepoint) under maxOverheadPercent of the
+            // interval, but never stretch the interval more than maxIntervalMultiplier
+            long minIntervalMillis =
+                    NANOSECONDS.toMillis((long) (averageCaptureNanos * 100 / maxOverheadPercent));
+            intervalMillis = Math.min(Math.max(configuredIntervalMillis, minIntervalMillis),
+                    configuredIntervalMillis * (long) maxIntervalMultiplier);
+        } else {
+            intervalMillis = configuredIntervalMillis;
+        }
+        this.intervalMillis = intervalMillis;
+        return intervalMillis;
+    }
+
+    private List<ThreadContextImpl> select(List<ThreadContextImpl> activeThreadContexts) {
+        int size = activeThreadContexts.size();
+        if (mode != Mode.ADAPTIVE || size <= maxThreadsPerTick) {
+            return activeThreadContexts;
+        }
+        int startIndex = nextStartIndex % size;
+        nextStartIndex = startIndex + maxThreadsPerTick;
+        int endIndex = startIndex + maxThreadsPerTick;
+        if (endIndex <= size) {
+            return activeThreadContexts.subList(startIndex, endIndex);
+        }
+        List<ThreadContextImpl> threadContexts =
+                Lists.newArrayListWithCapacity(maxThreadsPerTick);
+        threadContexts.addAll(activeThreadContexts.subList(startIndex, size));
+        threadContexts.addAll(activeThreadContexts.subList(0, endIndex - size));
+        return threadContexts;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getCaptureCount() {
+        return captureCount;
+    }
+
+    long getTotalCaptureNanos() {
+        return totalCaptureNanos;
+    }
+
+    long getLastCaptureNanos() {
+        return lastCaptureNanos;
+    }
+
+    long getAverageCaptureNanos() {
+        return (long) averageCaptureNanos;
+    }
+
+    long getSampledThreadCount() {
+        return sampledThreadCount;
+    }
+
+    long getSkippedThreadCount() {
+        return skippedThreadCount;
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    enum Mode {
+
+        // captures all active threads each tick, at the configured profiling interval
+        DEFAULT,
+        // caps the threads captured per tick and stretches the interval based on capture time
+        ADAPTIVE;
+
+        static Mode fromName(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return DEFAULT;
+            }
+        }
+    }
+}
@@ -148,7 +148,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
             @Nullable ServletRequestInfo servletRequestInfo) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
-        rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
+        // timer pooling is only used for the main thread context, since the aux thread contexts
+        // can outlive the transaction
+        TimerArena timerArena =
+                parentTraceEntry == null ? TimerArena.getForCurrentThreadIfEnabled() : null;
+        rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName,
+                timerArena);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
@@ -186,6 +191,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return rootTimer;
     }
 
+    // the timers must no longer be accessed after this call
+    void releaseTimers() {
+        TimerArena timerArena = rootTimer.getArena();
+        if (timerArena != null) {
+            timerArena.release(rootTimer);
+        }
+    }
+
     ThreadStats getThreadStats() {
         if (threadStatsComponent == null) {
             return ThreadStats.NA;
@@ -1056,7 +1069,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (currentTimer == null) {
             // this really shouldn't happen as current timer should be non-null unless transaction
             // has completed
-            return TimerImpl.createRootTimer(this, (TimerNameImpl) timerName);
+            return TimerImpl.createRootTimer(this, (TimerNameImpl) timerName, null);
         }
         return currentTimer.startNestedTimer(timerName, startTick);
     }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.TimerNameImpl;
+
+// experimental (opt-in) per-thread pool of TimerImpl instances, so that transactions with many
+// timers do not allocate a new timer tree on every transaction
+//
+// timers are only acquired from the pool by the thread that owns the pool (the transaction
+// thread), and are returned to the pool (as an entire tree) by the aggregate processing thread
+// once the aggregator is done reading them, see Transaction.releaseTimersIfReusable()
+//
+// timers from transactions that store a trace are never returned to the pool, since trace readers
+// can read them at any point later (e.g. retries when sending the trace to the central collector)
+//
+// live readers (e.g. the UI reading an active transaction, or partial trace storage) can still
+// hold a transaction after it has been aggregated, so they retain the timers while reading them,
+// and the tree is only returned to the pool once no reader holds it, see Transaction.retainTimers()
+class TimerArena {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.experimental.timerPooling");
+
+    // bound the pool so that it does not retain excessive memory after an unusually large
+    // transaction
+    private static final int MAX_POOLED_TIMERS =
+            Integer.getInteger("glowroot.experimental.timerPooling.maxTimersPerThread", 1000);
+
+    private static final ThreadLocal<TimerArena> arenas = new ThreadLocal<TimerArena>() {
+        @Override
+        protected TimerArena initialValue() {
+            return new TimerArena();
+        }
+    };
+
+    // free list is only accessed by the owning thread
+    private @Nullable TimerImpl freeHead;
+    private int freeCount;
+
+    // root timers returned by other threads (linked via TimerImpl.nextFree)
+    private final AtomicReference</*@Nullable*/ TimerImpl> returnedHead =
+            new AtomicReference</*@Nullable*/ TimerImpl>();
+
+    static @Nullable TimerArena getForCurrentThreadIfEnabled() {
+        return ENABLED ? arenas.get() : null;
+    }
+
+    // only called by the owning thread
+    TimerImpl acquire(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        if (freeHead == null) {
+            reclaimReturned();
+        }
+        TimerImpl timer = freeHead;
+        if (timer == null) {
+            return new TimerImpl(threadContext, parent, nextSibling, timerName, this);
+        }
+        freeHead = timer.nextFree;
+        freeCount--;
+        timer.reset(threadContext, parent, nextSibling, timerName);
+        return timer;
+    }
+
+    // can be called by any thread, the timer tree must no longer be accessed by the caller
+    void release(TimerImpl rootTimer) {
+        TimerImpl head;
+        do {
+            head = returnedHead.get();
+            rootTimer.nextFree = head;
+        } while (!returnedHead.compareAndSet(head, rootTimer));
+    }
+
+    private void reclaimReturned() {
+        TimerImpl rootTimer = returnedHead.getAndSet(null);
+        while (rootTimer != null && freeCount < MAX_POOLED_TIMERS) {
+            TimerImpl next = rootTimer.nextFree;
+            free(rootTimer);
+            rootTimer = next;
+        }
+        // any remaining returned timers are left to the garbage collector
+    }
+
+    private void free(TimerImpl timer) {
+        TimerImpl child = timer.getHeadChild();
+        while (child != null) {
+            // read next sibling before freeing, since freeing clears it
+            TimerImpl nextSibling = child.getNextSibling();
+            free(child);
+            child = nextSibling;
+        }
+        if (freeCount < MAX_POOLED_TIMERS) {
+            timer.clear();
+            timer.nextFree = freeHead;
+            freeHead = timer;
+            freeCount++;
+        }
+    }
+}
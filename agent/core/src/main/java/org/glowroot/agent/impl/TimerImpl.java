@@ -21,7 +21,6 @@ import java.util.List;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +53,9 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 // in-flight (e.g. partial traces and active traces displayed in the UI) may not be visible
 //
 // all timing data is in nanoseconds
+//
+// instances can be reused across transactions on the same thread when timer pooling is enabled,
+// see TimerArena
 @Styles.Private
 public class TimerImpl implements Timer, CommonTimerImpl {
 
@@ -61,9 +63,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
-    private final TimerNameImpl timerName;
+    // these fields are only non-final in order to support reuse, see TimerArena
+    private ThreadContextImpl threadContext;
+    private @Nullable TimerImpl parent;
+    private TimerNameImpl timerName;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -76,23 +79,79 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     // synchronized access during timer capture which is important
     //
     // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
+    private @Nullable NestedTimerMap nestedTimers;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
+    private @Nullable TimerImpl headChild;
+    private @Nullable TimerImpl nextSibling;
+
+    // null when timer pooling is not enabled (or not enabled for this thread context)
+    private final @Nullable TimerArena arena;
+
+    // only used while the timer is in (or is being returned to) the arena
+    @Nullable
+    TimerImpl nextFree;
 
-    static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+    static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName,
+            @Nullable TimerArena arena) {
+        if (arena == null) {
+            return new TimerImpl(threadContext, null, null, timerName, null);
+        }
+        return arena.acquire(threadContext, null, null, timerName);
     }
 
-    private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
-            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+    TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName, @Nullable TimerArena arena) {
         this.timerName = timerName;
         this.parent = parent;
         this.nextSibling = nextSibling;
         this.threadContext = threadContext;
+        this.arena = arena;
+    }
+
+    // only called by TimerArena, when acquired from the pool
+    void reset(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        this.threadContext = threadContext;
+        this.parent = parent;
+        this.nextSibling = nextSibling;
+        this.timerName = timerName;
+        nextFree = null;
+    }
+
+    // only called by TimerArena, when returned to the pool
+    //
+    // references are cleared so that pooled timers don't retain the prior transaction
+    @SuppressWarnings("nullness:assignment.type.incompatible")
+    void clear() {
+        totalNanos = 0;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+        if (nestedTimers != null) {
+            // retain the (already sized) map since the same timers are likely to be nested again
+            nestedTimers.clear();
+        }
+        headChild = null;
+        nextSibling = null;
+        parent = null;
+        threadContext = null;
+    }
+
+    @Nullable
+    TimerArena getArena() {
+        return arena;
+    }
+
+    @Nullable
+    TimerImpl getHeadChild() {
+        return headChild;
+    }
+
+    @Nullable
+    TimerImpl getNextSibling() {
+        return nextSibling;
     }
 
     // safe to be called from another thread when transaction is still active transaction
@@ -299,7 +358,11 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        if (arena == null) {
+            nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl, null);
+        } else {
+            nestedTimer = arena.acquire(threadContext, this, headChild, timerNameImpl);
+        }
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
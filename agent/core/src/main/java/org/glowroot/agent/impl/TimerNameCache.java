@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,6 +29,9 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 // used to ensure one instance per name so that pointer equality can be used instead of String
 // equality
 //
+// this also means that TimerNameImpl ids are dense, since exactly one instance is created per name
+// (plus one for its extended timer), which allows NestedTimerMap to index directly by id
+//
 // also used to ensure @Pointcut timer name matches the timer name passed to TransactionService
 public class TimerNameCache {
 
@@ -163,14 +163,23 @@ public class TraceCreator {
             }
             errorBuilder.build();
         }
-        TimerImpl mainThreadRootTimer = transaction.getMainThreadRootTimer();
-        builder.setMainThreadRootTimer(mainThreadRootTimer.toProto());
-        RootTimerCollectorImpl auxThreadRootTimers = new RootTimerCollectorImpl();
-        transaction.mergeAuxThreadTimersInto(auxThreadRootTimers);
-        builder.addAllAuxThreadRootTimer(auxThreadRootTimers.toProto());
-        RootTimerCollectorImpl asyncTimers = new RootTimerCollectorImpl();
-        transaction.mergeAsyncTimersInto(asyncTimers);
-        builder.addAllAsyncTimer(asyncTimers.toProto());
+        // the timers can only fail to be retained if the transaction has completed, has already
+        // been aggregated, and is not being stored as a trace (so its timers have been returned to
+        // the TimerArena), which can happen when it is read concurrently by a live trace reader
+        if (transaction.retainTimers()) {
+            try {
+                TimerImpl mainThreadRootTimer = transaction.getMainThreadRootTimer();
+                builder.setMainThreadRootTimer(mainThreadRootTimer.toProto());
+                RootTimerCollectorImpl auxThreadRootTimers = new RootTimerCollectorImpl();
+                transaction.mergeAuxThreadTimersInto(auxThreadRootTimers);
+                builder.addAllAuxThreadRootTimer(auxThreadRootTimers.toProto());
+                RootTimerCollectorImpl asyncTimers = new RootTimerCollectorImpl();
+                transaction.mergeAsyncTimersInto(asyncTimers);
+                builder.addAllAsyncTimer(asyncTimers.toProto());
+            } finally {
+                transaction.releaseTimers();
+            }
+        }
         ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
         mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
         if (!mainThreadStats.isNA()) {
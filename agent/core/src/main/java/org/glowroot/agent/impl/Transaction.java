@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -54,6 +55,7 @@ import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.collector.Collector.EntryVisitor;
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TransactionRegistry.TransactionEntry;
 import org.glowroot.agent.model.AsyncQueryData;
 import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.model.CommonTimerImpl;
@@ -68,7 +70,6 @@ import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext.ServletRequestInfo;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
-import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Cancellable;
 import org.glowroot.common.util.NotAvailableAware;
@@ -102,6 +103,11 @@ public class Transaction {
     private static final int TRANSACTION_AUX_THREAD_CONTEXT_LIMIT =
             Integer.getInteger("glowroot.transaction.aux.thread.context.limit", 1000);
 
+    // these are only used for estimating the memory retained by traces waiting to be stored
+    private static final long ESTIMATED_TRACE_BASE_BYTES = 4096;
+    private static final long ESTIMATED_TRACE_ENTRY_BYTES = 512;
+    private static final long ESTIMATED_PROFILE_SAMPLE_BYTES = 64;
+
     private static final Random random = new Random();
 
     private volatile @Nullable String traceId;
@@ -176,6 +182,19 @@ public class Transaction {
 
     private final ThreadContextImpl mainThreadContext;
 
+    private static final AtomicIntegerFieldUpdater<Transaction> timerReferenceCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "timerReferenceCount");
+
+    // visibility to the aggregate processing thread is guaranteed by the ordered write when
+    // passing the transaction to the aggregator
+    private boolean timersReusable;
+
+    // the aggregate processing thread holds the initial reference, and other threads that read the
+    // timers (e.g. live trace readers) hold a reference while reading them, reusable timers are
+    // only returned to the TimerArena once the count reaches zero, after which they can no longer
+    // be retained (using a field updater to avoid allocating an AtomicInteger per transaction)
+    private volatile int timerReferenceCount = 1;
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
     @GuardedBy("mainThreadContext")
@@ -197,7 +216,7 @@ public class Transaction {
 
     private final UserProfileScheduler userProfileScheduler;
 
-    private @Nullable SelfRemovableEntry transactionEntry;
+    private volatile @Nullable TransactionEntry transactionEntry;
 
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull RootTimerCollectorImpl alreadyMergedAuxThreadTimers;
@@ -601,6 +620,11 @@ public class Transaction {
         if (priority > transactionTypePriority && !transactionType.isEmpty()) {
             this.transactionType = transactionType;
             transactionTypePriority = priority;
+            TransactionEntry transactionEntry = this.transactionEntry;
+            if (transactionEntry != null) {
+                // keep the transaction type index in the transaction registry up to date
+                transactionEntry.updateTransactionType(this);
+            }
         }
     }
 
@@ -670,7 +694,7 @@ public class Transaction {
         partiallyStored = true;
     }
 
-    void setTransactionEntry(SelfRemovableEntry transactionEntry) {
+    void setTransactionEntry(TransactionEntry transactionEntry) {
         this.transactionEntry = transactionEntry;
     }
 
@@ -678,6 +702,43 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    // called by the transaction thread prior to passing the transaction to the aggregator, when
+    // the transaction will not be stored as a trace (see TimerArena)
+    void markTimersReusable() {
+        timersReusable = true;
+    }
+
+    // called by the aggregate processing thread once it is done reading the transaction
+    void releaseTimersIfReusable() {
+        if (timersReusable) {
+            releaseTimers();
+        }
+    }
+
+    // must be called (and must return true) before reading the timers from any thread other than
+    // the transaction thread and the aggregate processing thread, and must then be followed by
+    // releaseTimers() once done reading them
+    boolean retainTimers() {
+        while (true) {
+            int count = timerReferenceCount;
+            if (count == 0) {
+                // the timers have already been returned to the TimerArena
+                return false;
+            }
+            if (timerReferenceCountUpdater.compareAndSet(this, count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void releaseTimers() {
+        // the count can only reach zero after the aggregate processing thread has released its
+        // reference, which it only does when the timers are reusable
+        if (timerReferenceCountUpdater.decrementAndGet(this) == 0) {
+            mainThreadContext.releaseTimers();
+        }
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
@@ -760,6 +821,16 @@ public class Transaction {
                 messageSupplier, timerName, threadContextHolder);
     }
 
+    // rough estimate of the memory retained by this transaction's trace data (entries, queries and
+    // profile samples), used to bound the memory held by traces that are waiting to be stored
+    long getEstimatedTraceSizeBytes() {
+        long entryCount = Math.min(entryLimitCounter, maxTraceEntries)
+                + Math.min(extraErrorEntryLimitCounter, maxTraceEntries);
+        return ESTIMATED_TRACE_BASE_BYTES + entryCount * ESTIMATED_TRACE_ENTRY_BYTES
+                + (getMainThreadProfileSampleCount() + getAuxThreadProfileSampleCount())
+                        * ESTIMATED_PROFILE_SAMPLE_BYTES;
+    }
+
     boolean isEntryLimitExceeded(int entryCount) {
         return entryCount >= maxTraceEntries && entryLimitCounter > maxTraceEntries;
     }
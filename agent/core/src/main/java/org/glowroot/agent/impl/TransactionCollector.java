@@ -16,10 +16,12 @@
 package org.glowroot.agent.impl;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
@@ -35,6 +37,7 @@ import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.TransactionConfig;
 import org.glowroot.agent.config.TransactionConfig.SlowThreshold;
+import org.glowroot.agent.impl.PendingTraceQueue.PendingTrace;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
@@ -48,15 +51,32 @@ public class TransactionCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
-    // back pressure on trace collection
-    private static final int PENDING_LIMIT = 100;
+    // number of threads used to create and collect traces
+    private static final int COLLECTOR_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.trace.collector.threads", 1));
+
+    // back pressure on trace collection, based on estimated memory retained by pending traces
+    private static final long PENDING_LIMIT_BYTES =
+            Long.getLong("glowroot.trace.pending.limit.bytes", 32 * 1024 * 1024);
+
+    // slow traces with duration at least this multiple of the slow threshold are given the same
+    // (higher) priority as error traces when the pending limit is reached
+    private static final int VERY_SLOW_THRESHOLD_MULTIPLIER =
+            Integer.getInteger("glowroot.trace.very.slow.threshold.multiplier", 5);
 
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    private final Set<Transaction> pendingTransactions =
+            Sets.newSetFromMap(Maps.<Transaction, Boolean>newConcurrentMap());
+
+    private final PendingTraceQueue pendingTraceQueue = new PendingTraceQueue(PENDING_LIMIT_BYTES);
+
+    private final AtomicLong queuedTraceCount = new AtomicLong();
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong storedTraceCount = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -72,8 +92,13 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        if (COLLECTOR_THREADS == 1) {
+            dedicatedExecutor = Executors
+                    .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        } else {
+            dedicatedExecutor = Executors.newFixedThreadPool(COLLECTOR_THREADS,
+                    ThreadFactories.create("Glowroot-Trace-Collector-%d"));
+        }
         configService.addConfigListener(new UpdateSlowThresholds(configService));
     }
 
@@ -81,30 +106,7 @@ public class TransactionCollector {
         if (transaction.isPartiallyStored()) {
             return true;
         }
-        long durationNanos = transaction.getDurationNanos();
-        // check if trace-specific store threshold was set
-        long slowThresholdMillis = transaction.getSlowThresholdMillisOverride();
-        if (slowThresholdMillis != Transaction.USE_GENERAL_STORE_THRESHOLD) {
-            return durationNanos >= MILLISECONDS.toNanos(slowThresholdMillis);
-        }
-        // check if there is a matching transaction type / transaction name specific slow threshold
-        if (!slowThresholds.isEmpty()) {
-            SlowThresholdsForType slowThresholdForType =
-                    slowThresholds.get(transaction.getTransactionType());
-            if (slowThresholdForType != null) {
-                Long slowThresholdNanos =
-                        slowThresholdForType.thresholdNanos().get(transaction.getTransactionName());
-                if (slowThresholdNanos != null) {
-                    return durationNanos >= slowThresholdNanos;
-                }
-                slowThresholdNanos = slowThresholdForType.defaultThresholdNanos();
-                if (slowThresholdNanos != null) {
-                    return durationNanos >= slowThresholdNanos;
-                }
-            }
-        }
-        // fall back to default slow trace threshold
-        return durationNanos >= defaultSlowThresholdNanos;
+        return transaction.getDurationNanos() >= getSlowThresholdNanos(transaction);
     }
 
     public boolean shouldStoreError(Transaction transaction) {
@@ -115,6 +117,30 @@ public class TransactionCollector {
         return pendingTransactions;
     }
 
+    public long getPendingTraceCount() {
+        return pendingTraceQueue.size();
+    }
+
+    public long getPendingTraceBytes() {
+        return pendingTraceQueue.getSizeBytes();
+    }
+
+    public long getPendingTraceBytesLimit() {
+        return PENDING_LIMIT_BYTES;
+    }
+
+    public long getQueuedTraceCount() {
+        return queuedTraceCount.get();
+    }
+
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    public long getStoredTraceCount() {
+        return storedTraceCount.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         dedicatedExecutor.shutdown();
@@ -123,40 +149,67 @@ public class TransactionCollector {
         }
     }
 
-    void onCompletedTransaction(final Transaction transaction) {
+    void onCompletedTransaction(Transaction transaction) {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
+        boolean slow = shouldStoreSlow(transaction);
+        boolean error = shouldStoreError(transaction);
+        if (!slow && !error) {
+            // the timers are not needed once the transaction has been aggregated
+            transaction.markTimersReusable();
+        }
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        if (!slow && !error) {
             return;
         }
+        // this need to be called inside the transaction thread, and before the trace is offered
+        // to the queue, since a collector thread can poll the trace as soon as it is offered
+        transaction.onCompleteWillStoreTrace(captureTime);
+        // similarly, the transaction is added to pending transactions before the trace is offered
+        // to the queue, otherwise a collector thread could process the trace and remove the
+        // transaction from pending transactions before it is added (leaving it there forever)
+        pendingTransactions.add(transaction);
+
+        PendingTrace pendingTrace = new PendingTrace(transaction, slow, getPriority(transaction,
+                error), transaction.getEstimatedTraceSizeBytes());
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+        List<PendingTrace> evictedTraces = pendingTraceQueue.offer(pendingTrace);
+        for (PendingTrace evictedTrace : evictedTraces) {
+            // either evicted to make room for a higher priority trace, or (if it is the trace that
+            // was just offered) rejected
+            pendingTransactions.remove(evictedTrace.getTransaction());
+            logTraceDropped();
+        }
+        if (evictedTraces.contains(pendingTrace)) {
             return;
         }
-        pendingTransactions.add(transaction);
-
-        // this need to be called inside the transaction thread
-        transaction.onCompleteWillStoreTrace(captureTime);
+        queuedTraceCount.incrementAndGet();
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
+        //
+        // the runnable does not necessarily process the trace that was just added, instead it
+        // processes the highest priority pending trace
         dedicatedExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                PendingTrace pendingTrace = pendingTraceQueue.poll();
+                if (pendingTrace == null) {
+                    // trace was evicted
+                    return;
+                }
                 try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
+                    TraceReader traceReader = TraceCreator.createTraceReaderForCompleted(
+                            pendingTrace.getTransaction(), pendingTrace.isSlow());
                     collector.collectTrace(traceReader);
+                    storedTraceCount.incrementAndGet();
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 } finally {
-                    pendingTransactions.remove(transaction);
+                    pendingTransactions.remove(pendingTrace.getTransaction());
+                    pendingTraceQueue.release(pendingTrace);
                 }
             }
         });
@@ -178,6 +231,52 @@ public class TransactionCollector {
         }
     }
 
+    private long getSlowThresholdNanos(Transaction transaction) {
+        // check if trace-specific store threshold was set
+        long slowThresholdMillis = transaction.getSlowThresholdMillisOverride();
+        if (slowThresholdMillis != Transaction.USE_GENERAL_STORE_THRESHOLD) {
+            return MILLISECONDS.toNanos(slowThresholdMillis);
+        }
+        // check if there is a matching transaction type / transaction name specific slow threshold
+        if (!slowThresholds.isEmpty()) {
+            SlowThresholdsForType slowThresholdForType =
+                    slowThresholds.get(transaction.getTransactionType());
+            if (slowThresholdForType != null) {
+                Long slowThresholdNanos =
+                        slowThresholdForType.thresholdNanos().get(transaction.getTransactionName());
+                if (slowThresholdNanos != null) {
+                    return slowThresholdNanos;
+                }
+                slowThresholdNanos = slowThresholdForType.defaultThresholdNanos();
+                if (slowThresholdNanos != null) {
+                    return slowThresholdNanos;
+                }
+            }
+        }
+        // fall back to default slow trace threshold
+        return defaultSlowThresholdNanos;
+    }
+
+    private int getPriority(Transaction transaction, boolean error) {
+        if (transaction.isPartiallyStored()) {
+            return PendingTrace.PRIORITY_PARTIALLY_STORED;
+        }
+        if (error) {
+            return PendingTrace.PRIORITY_HIGH;
+        }
+        long slowThresholdNanos = getSlowThresholdNanos(transaction);
+        if (transaction.getDurationNanos() >= slowThresholdNanos * VERY_SLOW_THRESHOLD_MULTIPLIER) {
+            return PendingTrace.PRIORITY_HIGH;
+        }
+        return PendingTrace.PRIORITY_LOW;
+    }
+
+    private void logTraceDropped() {
+        droppedTraceCount.incrementAndGet();
+        backPressureLogger.warn("not storing a trace because of an excessive backlog of traces"
+                + " already waiting to be stored (estimated {} bytes)", PENDING_LIMIT_BYTES);
+    }
+
     private class UpdateSlowThresholds implements ConfigListener {
 
         private final ConfigService configService;
@@ -15,6 +15,14 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
@@ -23,9 +31,18 @@ import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEnt
 
 public class TransactionRegistry {
 
+    // active transactions are striped (by the thread that starts the transaction) so that
+    // transaction threads starting and completing transactions don't all contend on a single lock
+    private static final int STRIPE_COUNT = roundUpToPowerOfTwo(Integer.getInteger(
+            "glowroot.transaction.registry.stripes",
+            2 * Runtime.getRuntime().availableProcessors()));
+
     // collection of active running transactions
-    private final IterableWithSelfRemovableEntries<Transaction> transactions =
-            new IterableWithSelfRemovableEntries<Transaction>();
+    private final Stripes transactions = new Stripes();
+
+    // active running transactions indexed by transaction type, so that live queries for a single
+    // transaction type don't need to iterate over all active running transactions
+    private final ConcurrentMap<String, Stripes> transactionsByType = Maps.newConcurrentMap();
 
     // active thread context being executed by the current thread
     private final ThreadContextThreadLocal currentThreadContext =
@@ -44,11 +61,109 @@ public class TransactionRegistry {
         return currentThreadContext.getHolder();
     }
 
-    SelfRemovableEntry addTransaction(Transaction transaction) {
-        return transactions.add(transaction);
+    TransactionEntry addTransaction(Transaction transaction) {
+        int stripeIndex = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+        String transactionType = transaction.getTransactionType();
+        SelfRemovableEntry entry = transactions.add(transaction, stripeIndex);
+        SelfRemovableEntry typeEntry =
+                getTransactionsForType(transactionType).add(transaction, stripeIndex);
+        return new TransactionEntry(stripeIndex, entry, transactionType, typeEntry);
     }
 
+    // iteration is weakly consistent, it does not block (or copy) and may or may not reflect
+    // transactions that are started or completed during the iteration
     public Iterable<Transaction> getTransactions() {
-        return transactions;
+        return transactions.iterable;
+    }
+
+    // iteration is weakly consistent (see above), and since the transaction type can change while
+    // a transaction is running, callers still need to check the transaction type of each element
+    public Iterable<Transaction> getTransactions(String transactionType) {
+        Stripes transactionsForType = transactionsByType.get(transactionType);
+        if (transactionsForType == null) {
+            return ImmutableList.of();
+        }
+        return transactionsForType.iterable;
+    }
+
+    private Stripes getTransactionsForType(String transactionType) {
+        Stripes transactionsForType = transactionsByType.get(transactionType);
+        if (transactionsForType == null) {
+            transactionsForType = new Stripes();
+            Stripes existing = transactionsByType.putIfAbsent(transactionType, transactionsForType);
+            if (existing != null) {
+                transactionsForType = existing;
+            }
+        }
+        return transactionsForType;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    class TransactionEntry implements SelfRemovableEntry {
+
+        private final int stripeIndex;
+        private final SelfRemovableEntry entry;
+
+        @GuardedBy("this")
+        private String transactionType;
+        @GuardedBy("this")
+        private SelfRemovableEntry typeEntry;
+        @GuardedBy("this")
+        private boolean removed;
+
+        private TransactionEntry(int stripeIndex, SelfRemovableEntry entry,
+                String transactionType, SelfRemovableEntry typeEntry) {
+            this.stripeIndex = stripeIndex;
+            this.entry = entry;
+            this.transactionType = transactionType;
+            this.typeEntry = typeEntry;
+        }
+
+        // called after the transaction type of an active transaction changes
+        synchronized void updateTransactionType(Transaction transaction) {
+            if (removed) {
+                return;
+            }
+            String newTransactionType = transaction.getTransactionType();
+            if (newTransactionType.equals(transactionType)) {
+                return;
+            }
+            typeEntry.remove();
+            transactionType = newTransactionType;
+            typeEntry = getTransactionsForType(newTransactionType).add(transaction, stripeIndex);
+        }
+
+        @Override
+        public synchronized void remove() {
+            removed = true;
+            entry.remove();
+            typeEntry.remove();
+        }
+    }
+
+    private static class Stripes {
+
+        private final List<IterableWithSelfRemovableEntries<Transaction>> stripes;
+        private final Iterable<Transaction> iterable;
+
+        private Stripes() {
+            ImmutableList.Builder<IterableWithSelfRemovableEntries<Transaction>> builder =
+                    ImmutableList.builder();
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                builder.add(new IterableWithSelfRemovableEntries<Transaction>());
+            }
+            stripes = builder.build();
+            iterable = Iterables.concat(stripes);
+        }
+
+        private SelfRemovableEntry add(Transaction transaction, int stripeIndex) {
+            return stripes.get(stripeIndex).add(transaction);
+        }
     }
 }
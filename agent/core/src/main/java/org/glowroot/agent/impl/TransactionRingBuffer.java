@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.util.Clock;
+
+// bounded multi-producer/single-consumer ring buffer of completed transactions
+//
+// slots are preallocated and claimed by producers (transaction threads) by incrementing the
+// producer sequence, so there is no lock and no per-transaction allocation on the transaction path
+class TransactionRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+
+    // a null slot means that the slot has not been published yet (or has already been consumed)
+    private final AtomicReferenceArray</*@Nullable*/ Transaction> transactions;
+    // written before the corresponding transaction slot is published
+    private final long[] captureTimes;
+
+    // next sequence to be claimed by a producer
+    private final AtomicLong producerSequence = new AtomicLong();
+    // next sequence to be consumed, only written by the consumer
+    private volatile long consumerSequence;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final WaitStrategy waitStrategy;
+    private final Clock clock;
+
+    // only accessed by the consumer
+    private long lastCaptureTime;
+
+    TransactionRingBuffer(int minCapacity, WaitStrategy waitStrategy, Clock clock) {
+        capacity = roundUpToPowerOfTwo(minCapacity);
+        mask = capacity - 1;
+        transactions = new AtomicReferenceArray</*@Nullable*/ Transaction>(capacity);
+        captureTimes = new long[capacity];
+        this.waitStrategy = waitStrategy;
+        this.clock = clock;
+    }
+
+    // returns capture time, or -1 if the buffer is full and the transaction was not added
+    //
+    // the capture time is read after the slot is claimed, which (together with the consumer
+    // reading the clock prior to checking for unclaimed slots in isIdle()) guarantees that the
+    // consumer never sees a transaction with capture time earlier than a time at which it
+    // previously observed the buffer to be idle
+    //
+    // the returned capture time is not clamped (see poll()), so it can be slightly earlier than
+    // the capture time that the consumer sees for the same transaction
+    long offer(Transaction transaction) {
+        long sequence;
+        do {
+            sequence = producerSequence.get();
+            if (sequence - consumerSequence >= capacity) {
+                droppedCount.incrementAndGet();
+                return -1;
+            }
+        } while (!producerSequence.compareAndSet(sequence, sequence + 1));
+        long captureTime = clock.currentTimeMillis();
+        int index = (int) sequence & mask;
+        captureTimes[index] = captureTime;
+        // publish (this is an ordered write, so captureTimes[index] is visible to the consumer
+        // once the transaction is visible)
+        transactions.lazySet(index, transaction);
+        return captureTime;
+    }
+
+    // only called by the consumer
+    @Nullable
+    Transaction poll() {
+        long sequence = consumerSequence;
+        int index = (int) sequence & mask;
+        Transaction transaction = transactions.get(index);
+        if (transaction == null) {
+            // either empty, or slot has been claimed but not yet published
+            return null;
+        }
+        // multiple producers can publish out of order relative to the clock (by a tiny amount),
+        // so capture times are clamped to be non-decreasing, which is what the aggregator needs
+        lastCaptureTime = Math.max(lastCaptureTime, captureTimes[index]);
+        transactions.lazySet(index, null);
+        consumerSequence = sequence + 1;
+        return transaction;
+    }
+
+    // only called by the consumer, returns the capture time of the last polled transaction
+    long getLastCaptureTime() {
+        return lastCaptureTime;
+    }
+
+    // only called by the consumer, true if there are no claimed slots that have not been consumed
+    boolean isIdle() {
+        return producerSequence.get() == consumerSequence;
+    }
+
+    // only called by the consumer
+    void await() throws InterruptedException {
+        waitStrategy.await();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getBacklog() {
+        return producerSequence.get() - consumerSequence;
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    enum WaitStrategy {
+
+        // lowest cpu usage, adds up to ~1 millisecond of latency between transaction completion
+        // and aggregation, which is not important for aggregates
+        SLEEP {
+            @Override
+            void await() throws InterruptedException {
+                Thread.sleep(1);
+            }
+        },
+        PARK {
+            @Override
+            void await() {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        },
+        // highest cpu usage, only recommended when there are spare cores
+        YIELD {
+            @Override
+            void await() {
+                Thread.yield();
+            }
+        };
+
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        abstract void await() throws InterruptedException;
+
+        static WaitStrategy fromName(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return SLEEP;
+            }
+        }
+    }
+}
@@ -23,11 +23,11 @@ import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.impl.TransactionRegistry.TransactionEntry;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext.ServletRequestInfo;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
-import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Clock;
 
@@ -95,7 +95,7 @@ public class TransactionService implements ConfigListener {
                 maxTraceEntries, maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples,
                 threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
                 this, configService, userProfileScheduler, threadContextHolder);
-        SelfRemovableEntry transactionEntry = transactionRegistry.addTransaction(transaction);
+        TransactionEntry transactionEntry = transactionRegistry.addTransaction(transaction);
         transaction.setTransactionEntry(transactionEntry);
         threadContextHolder.set(transaction.getMainThreadContext());
         return transaction.getMainThreadContext().getRootEntry();
@@ -276,6 +276,11 @@ public class AgentModule {
                 lazyPlatformMBeanServer.setPlatformMBeanServerAvailable();
             }
         });
+        lazyPlatformMBeanServer.lazyRegisterMBean(new AggregatorStats(aggregator),
+                "org.glowroot:type=Aggregator");
+        lazyPlatformMBeanServer.lazyRegisterMBean(
+                new TransactionCollectorStats(transactionCollector),
+                "org.glowroot:type=TransactionCollector");
         File[] roots = File.listRoots();
         if (roots != null) {
             for (File root : roots) {
@@ -293,7 +298,10 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, random, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(new StackTraceCollectorStats(stackTraceCollector),
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
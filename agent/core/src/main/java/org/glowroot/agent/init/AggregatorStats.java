@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.glowroot.agent.impl.Aggregator;
+
+class AggregatorStats implements AggregatorStatsMXBean {
+
+    private final Aggregator aggregator;
+
+    AggregatorStats(Aggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    public int getPendingTransactionCapacity() {
+        return aggregator.getPendingTransactionCapacity();
+    }
+
+    @Override
+    public long getPendingTransactionCount() {
+        return aggregator.getPendingTransactionCount();
+    }
+
+    @Override
+    public long getDroppedTransactionCount() {
+        return aggregator.getDroppedTransactionCount();
+    }
+}
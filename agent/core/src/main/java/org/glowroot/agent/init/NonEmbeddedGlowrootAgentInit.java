@@ -78,7 +78,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
 
     @Override
     public void init(@Nullable File pluginsDir, final File confDir,
-            final @Nullable File sharedConfDir, File logDir, File tmpDir,
+            final @Nullable File sharedConfDir, File logDir, final File tmpDir,
             final @Nullable File glowrootJarFile, final Map<String, String> properties,
             final @Nullable Instrumentation instrumentation,
             @Nullable PreCheckClassFileTransformer preCheckClassFileTransformer,
@@ -134,9 +134,12 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                 } else {
                     centralCollector = new CentralCollector(properties,
                             checkNotNull(collectorAddress), collectorAuthority, confDir,
-                            sharedConfDir, agentModule.getLiveJvmService(),
+                            sharedConfDir, tmpDir, agentModule.getLiveJvmService(),
                             agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater);
+                    agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(
+                            centralCollector.getSpoolStats(),
+                            "org.glowroot:type=CollectorSpool");
                     if (collectorProxyConstructor == null) {
                         collector = centralCollector;
                     } else {
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.glowroot.agent.impl.StackTraceCollector;
+
+class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    private final StackTraceCollector stackTraceCollector;
+
+    StackTraceCollectorStats(StackTraceCollector stackTraceCollector) {
+        this.stackTraceCollector = stackTraceCollector;
+    }
+
+    @Override
+    public String getSamplerMode() {
+        return stackTraceCollector.getSamplerMode();
+    }
+
+    @Override
+    public long getCaptureCount() {
+        return stackTraceCollector.getCaptureCount();
+    }
+
+    @Override
+    public double getTotalCaptureTimeMillis() {
+        return stackTraceCollector.getTotalCaptureNanos() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getLastCaptureTimeMillis() {
+        return stackTraceCollector.getLastCaptureNanos() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getAverageCaptureTimeMillis() {
+        return stackTraceCollector.getAverageCaptureNanos() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public long getSampledThreadCount() {
+        return stackTraceCollector.getSampledThreadCount();
+    }
+
+    @Override
+    public long getSkippedThreadCount() {
+        return stackTraceCollector.getSkippedThreadCount();
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return stackTraceCollector.getIntervalMillis();
+    }
+}
@@ -167,7 +167,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         // include active traces, this is mostly for the case where there is just a single very
         // long running active trace and it would be misleading to display Traces (0) on the tab
         int count = 0;
-        for (Transaction transaction : transactionRegistry.getTransactions()) {
+        for (Transaction transaction : transactionRegistry.getTransactions(transactionType)) {
             // don't include partially stored traces since those are already counted above
             if (matchesActive(transaction, transactionType, transactionName)
                     && !transaction.isPartiallyStored()) {
@@ -182,7 +182,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             String transactionType, @Nullable String transactionName, TracePointFilter filter,
             int limit, long captureTime, long captureTick) {
         List<TracePoint> activeTracePoints = Lists.newArrayList();
-        for (Transaction transaction : transactionRegistry.getTransactions()) {
+        for (Transaction transaction : transactionRegistry.getTransactions(transactionType)) {
             long startTick = transaction.getStartTick();
             if (matches(transaction, traceKind, transactionType, transactionName, filter)
                     && startTick < captureTick) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -59,6 +59,12 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        mergeTimers(timer.childTimers, childTimers);
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -70,4 +76,24 @@ public class MutableAggregateTimer {
         }
         return builder.build();
     }
+
+    public static void mergeTimers(List<MutableAggregateTimer> toBeMergedTimers,
+            List<MutableAggregateTimer> timers) {
+        for (MutableAggregateTimer toBeMergedTimer : toBeMergedTimers) {
+            MutableAggregateTimer matchingTimer = null;
+            for (MutableAggregateTimer timer : timers) {
+                if (toBeMergedTimer.name.equals(timer.name)
+                        && toBeMergedTimer.extended == timer.extended) {
+                    matchingTimer = timer;
+                    break;
+                }
+            }
+            if (matchingTimer == null) {
+                matchingTimer = new MutableAggregateTimer(toBeMergedTimer.name,
+                        toBeMergedTimer.extended, 0, 0, new ArrayList<MutableAggregateTimer>());
+                timers.add(matchingTimer);
+            }
+            matchingTimer.merge(toBeMergedTimer);
+        }
+    }
 }
@@ -25,7 +25,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
-import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.CompactProfile;
 
 public class ThreadProfile {
 
@@ -36,7 +36,7 @@ public class ThreadProfile {
     @GuardedBy("lock")
     private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private @MonotonicNonNull CompactProfile profile;
     @GuardedBy("lock")
     private long sampleCount;
 
@@ -45,7 +45,7 @@ public class ThreadProfile {
         this.maxSamples = maxSamples;
     }
 
-    public void mergeInto(MutableProfile profile) {
+    public void mergeInto(CompactProfile profile) {
         synchronized (lock) {
             if (this.profile == null) {
                 mergeTheUnmergedInto(profile);
@@ -58,7 +58,7 @@ public class ThreadProfile {
     public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
             if (profile == null) {
-                profile = new MutableProfile();
+                profile = new CompactProfile();
                 mergeTheUnmergedInto(profile);
                 unmergedStackTraces.clear();
                 unmergedStackTraceThreadStates.clear();
@@ -95,7 +95,7 @@ public class ThreadProfile {
                 unmergedStackTraceThreadStates.add(threadState);
                 if (unmergedStackTraces.size() >= 10) {
                     // merged stack tree takes up less memory
-                    profile = new MutableProfile();
+                    profile = new CompactProfile();
                     mergeTheUnmergedInto(profile);
                     unmergedStackTraces.clear();
                     unmergedStackTraceThreadStates.clear();
@@ -107,7 +107,7 @@ public class ThreadProfile {
     }
 
     @GuardedBy("lock")
-    private void mergeTheUnmergedInto(MutableProfile profile) {
+    private void mergeTheUnmergedInto(CompactProfile profile) {
         for (int i = 0; i < unmergedStackTraces.size(); i++) {
             List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
             Thread.State threadState = unmergedStackTraceThreadStates.get(i);
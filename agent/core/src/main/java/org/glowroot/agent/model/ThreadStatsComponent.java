@@ -21,27 +21,51 @@ import java.lang.management.ThreadMXBean;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.util.ThreadAllocatedBytes;
+import org.glowroot.agent.util.Tickers;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public class ThreadStatsComponent {
 
+    private static final Logger logger = LoggerFactory.getLogger(ThreadStatsComponent.class);
+
     private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
-    private static final boolean IS_THREAD_CPU_TIME_SUPPORTED =
-            threadMXBean.isThreadCpuTimeSupported();
+    static final boolean IS_THREAD_CPU_TIME_SUPPORTED = threadMXBean.isThreadCpuTimeSupported();
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // thread contexts shorter than this don't capture thread stats at all (their thread stats
+    // are reported as zero), and the starting thread stats of longer thread contexts are captured
+    // in bulk by the sampler once they reach this duration (so their thread stats don't include
+    // the first part of the thread context), zero means capture at start of every thread context
+    private static final long MIN_DURATION_MILLIS =
+            Long.getLong("glowroot.thread.stats.min.duration.millis", 0);
+
+    private static final @Nullable ThreadStatsSampler sampler = createSampler();
+
     private final long threadId;
-    private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
-    private final long startingAllocatedBytes;
+    // only used when the starting thread stats are captured by the sampler
+    private final long startTick;
+
+    // these are only non-final in order to support capturing them later by the sampler
+    @GuardedBy("lock")
+    private long startingCpuNanos;
+    @GuardedBy("lock")
+    private long startingBlockedMillis;
+    @GuardedBy("lock")
+    private long startingWaitedMillis;
+    @GuardedBy("lock")
+    private long startingAllocatedBytes;
+    @GuardedBy("lock")
+    private boolean started;
 
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
@@ -51,7 +75,26 @@ public class ThreadStatsComponent {
     private final Object lock = new Object();
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        this(threadAllocatedBytes, sampler);
+    }
+
+    @VisibleForTesting
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            @Nullable ThreadStatsSampler threadStatsSampler) {
         threadId = Thread.currentThread().getId();
+        this.threadAllocatedBytes = threadAllocatedBytes;
+        if (threadStatsSampler == null) {
+            startTick = 0;
+            captureStartingThreadStats();
+        } else {
+            startTick = threadStatsSampler.currentTick();
+            threadStatsSampler.register(this);
+        }
+    }
+
+    // must be called from transaction thread
+    @SuppressWarnings("method.invocation.invalid")
+    private void captureStartingThreadStats() {
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
         // thread info for current thread cannot be null
         checkNotNull(threadInfo);
@@ -72,7 +115,47 @@ public class ThreadStatsComponent {
         } else {
             startingAllocatedBytes = -1;
         }
-        this.threadAllocatedBytes = threadAllocatedBytes;
+        started = true;
+    }
+
+    // called by the sampler, with values captured in bulk
+    void captureStartingThreadStats(long cpuNanos, @Nullable ThreadInfo threadInfo,
+            long allocatedBytes) {
+        synchronized (lock) {
+            if (completedThreadStats != null || threadInfo == null) {
+                // the bulk values may have been captured after the thread context completed
+                return;
+            }
+            startingCpuNanos = cpuNanos;
+            if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+                startingBlockedMillis = threadInfo.getBlockedTime();
+                startingWaitedMillis = threadInfo.getWaitedTime();
+            } else {
+                startingBlockedMillis = -1;
+                startingWaitedMillis = -1;
+            }
+            startingAllocatedBytes = allocatedBytes;
+            started = true;
+        }
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    long getStartTick() {
+        return startTick;
+    }
+
+    @Nullable
+    ThreadAllocatedBytes getThreadAllocatedBytes() {
+        return threadAllocatedBytes;
+    }
+
+    boolean isCompleted() {
+        synchronized (lock) {
+            return completedThreadStats != null;
+        }
     }
 
     // must be called from transaction thread
@@ -86,6 +169,9 @@ public class ThreadStatsComponent {
     public ThreadStats getThreadStats() {
         synchronized (lock) {
             if (completedThreadStats == null) {
+                if (!started) {
+                    return getSkippedThreadStats();
+                }
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
@@ -104,7 +190,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getTotalCpuNanosInternal();
+                    return started ? getTotalCpuNanosInternal() : 0;
                 } else {
                     return -1;
                 }
@@ -114,6 +200,14 @@ public class ThreadStatsComponent {
         }
     }
 
+    private ThreadStats getSkippedThreadStats() {
+        return new ThreadStats(IS_THREAD_CPU_TIME_SUPPORTED ? 0 : -1,
+                IS_THREAD_CONTENTION_MONITORING_SUPPORTED ? 0 : -1,
+                IS_THREAD_CONTENTION_MONITORING_SUPPORTED ? 0 : -1,
+                threadAllocatedBytes == null ? -1 : 0);
+    }
+
+    @GuardedBy("lock")
     private ThreadStats getThreadStatsInternal() {
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
         if (threadInfo == null) {
@@ -137,7 +231,7 @@ public class ThreadStatsComponent {
         }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
-            totalAllocatedBytes = getThreadAllocatedBytes();
+            totalAllocatedBytes = getTotalAllocatedBytes();
         } else {
             totalAllocatedBytes = -1;
         }
@@ -145,6 +239,7 @@ public class ThreadStatsComponent {
                 totalAllocatedBytes);
     }
 
+    @GuardedBy("lock")
     private long getTotalCpuNanosInternal() {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
@@ -156,6 +251,7 @@ public class ThreadStatsComponent {
         }
     }
 
+    @GuardedBy("lock")
     private long getTotalBlockedMillis(ThreadInfo threadInfo) {
         // getBlockedTime() return -1 if thread contention monitoring is disabled (which is
         // different than whether or not it is supported)
@@ -167,6 +263,7 @@ public class ThreadStatsComponent {
         }
     }
 
+    @GuardedBy("lock")
     private long getTotalWaitedMillis(ThreadInfo threadInfo) {
         // getWaitedTime() returns -1 if thread contention monitoring is disabled (which is
         // different than whether or not it is supported)
@@ -178,8 +275,9 @@ public class ThreadStatsComponent {
         }
     }
 
+    @GuardedBy("lock")
     @RequiresNonNull("threadAllocatedBytes")
-    private long getThreadAllocatedBytes() {
+    private long getTotalAllocatedBytes() {
         long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
             return allocatedBytes - startingAllocatedBytes;
@@ -187,4 +285,13 @@ public class ThreadStatsComponent {
             return -1;
         }
     }
+
+    private static @Nullable ThreadStatsSampler createSampler() {
+        if (MIN_DURATION_MILLIS <= 0) {
+            return null;
+        }
+        logger.debug("capturing thread stats only for thread contexts longer than {} millis",
+                MIN_DURATION_MILLIS);
+        return ThreadStatsSampler.start(MIN_DURATION_MILLIS, Tickers.getTicker());
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadAllocatedBytes;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// captures the starting thread stats of thread contexts that have been running for at least the
+// min duration, using the array variants of the ThreadMXBean methods (one call per tick for all of
+// those threads), so that thread contexts shorter than the min duration don't call ThreadMXBean at
+// all
+class ThreadStatsSampler implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadStatsSampler.class);
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private static final @Nullable Method getThreadCpuTimeArrayMethod =
+            getThreadCpuTimeArrayMethod();
+
+    private final long minDurationNanos;
+    private final long intervalMillis;
+    private final Ticker ticker;
+
+    // in registration order, which is (close enough to) the order that they become due
+    private final ConcurrentLinkedQueue<ThreadStatsComponent> pendingComponents =
+            new ConcurrentLinkedQueue<ThreadStatsComponent>();
+
+    static ThreadStatsSampler start(long minDurationMillis, Ticker ticker) {
+        ThreadStatsSampler sampler = new ThreadStatsSampler(minDurationMillis, ticker);
+        Thread thread = new Thread(sampler);
+        thread.setDaemon(true);
+        thread.setName("Glowroot-Thread-Stats-Sampler");
+        thread.start();
+        return sampler;
+    }
+
+    ThreadStatsSampler(long minDurationMillis, Ticker ticker) {
+        minDurationNanos = MILLISECONDS.toNanos(minDurationMillis);
+        // sampling at half the min duration, so that the starting thread stats are captured
+        // between the min duration and 1.5x the min duration
+        intervalMillis = Math.max(1, minDurationMillis / 2);
+        this.ticker = ticker;
+    }
+
+    long currentTick() {
+        return ticker.read();
+    }
+
+    void register(ThreadStatsComponent component) {
+        pendingComponents.add(component);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                logger.debug(e.getMessage(), e);
+                return;
+            }
+            try {
+                sample();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    void sample() {
+        long currentTick = ticker.read();
+        List<ThreadStatsComponent> components = Lists.newArrayList();
+        ThreadStatsComponent component;
+        while ((component = pendingComponents.peek()) != null
+                && currentTick - component.getStartTick() >= minDurationNanos) {
+            pendingComponents.poll();
+            // completed thread contexts are simply dropped, these are the ones being skipped
+            if (!component.isCompleted()) {
+                components.add(component);
+            }
+        }
+        if (components.isEmpty()) {
+            return;
+        }
+        long[] threadIds = new long[components.size()];
+        for (int i = 0; i < components.size(); i++) {
+            threadIds[i] = components.get(i).getThreadId();
+        }
+        long[] cpuNanos = getThreadCpuNanos(threadIds);
+        @Nullable
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds, 0);
+        // all thread stats components share the agent's single ThreadAllocatedBytes instance
+        ThreadAllocatedBytes threadAllocatedBytes = components.get(0).getThreadAllocatedBytes();
+        long[] allocatedBytes = threadAllocatedBytes == null ? null
+                : threadAllocatedBytes.getThreadAllocatedBytesSafely(threadIds);
+        for (int i = 0; i < components.size(); i++) {
+            components.get(i).captureStartingThreadStats(cpuNanos == null ? -1 : cpuNanos[i],
+                    threadInfos[i], allocatedBytes == null ? -1 : allocatedBytes[i]);
+        }
+    }
+
+    private static long /*@Nullable*/ [] getThreadCpuNanos(long[] threadIds) {
+        if (!ThreadStatsComponent.IS_THREAD_CPU_TIME_SUPPORTED) {
+            return null;
+        }
+        if (getThreadCpuTimeArrayMethod != null) {
+            try {
+                return (long[]) getThreadCpuTimeArrayMethod.invoke(threadMXBean,
+                        (Object) threadIds);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        long[] cpuNanos = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            cpuNanos[i] = threadMXBean.getThreadCpuTime(threadIds[i]);
+        }
+        return cpuNanos;
+    }
+
+    private static @Nullable Method getThreadCpuTimeArrayMethod() {
+        try {
+            Class<?> sunThreadMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreadMXBeanClass.isInstance(threadMXBean)) {
+                return null;
+            }
+            return sunThreadMXBeanClass.getMethod("getThreadCpuTime", long[].class);
+        } catch (Exception e) {
+            // e.g. IBM J9
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+}
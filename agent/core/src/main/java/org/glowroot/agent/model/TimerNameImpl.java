@@ -28,7 +28,8 @@ import org.glowroot.common.util.Styles;
 @Styles.AllParameters
 public abstract class TimerNameImpl implements TimerName {
 
-    private static final AtomicInteger nextSpecialHashCode = new AtomicInteger();
+    // instances are only created by TimerNameCache (one instance per name), so ids are dense
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     @VisibleForTesting
     public abstract String name();
@@ -43,8 +44,9 @@ public abstract class TimerNameImpl implements TimerName {
         return ImmutableTimerNameImpl.of(name(), true);
     }
 
+    // used as a direct index into NestedTimerMap
     @Value.Derived
-    public int specialHashCode() {
-        return nextSpecialHashCode.getAndIncrement();
+    public int id() {
+        return nextId.getAndIncrement();
     }
 }
@@ -17,6 +17,7 @@ package org.glowroot.agent.util;
 
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -28,6 +29,7 @@ public class ThreadAllocatedBytes {
     private static final Logger logger = LoggerFactory.getLogger(ThreadAllocatedBytes.class);
 
     private final Method getThreadAllocatedBytesMethod;
+    private final Method getThreadAllocatedBytesArrayMethod;
     private volatile boolean disabledDueToError;
 
     public static OptionalService<ThreadAllocatedBytes> create() {
@@ -68,11 +70,17 @@ public class ThreadAllocatedBytes {
         }
         Method getThreadAllocatedBytesMethod =
                 sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
-        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod));
+        // the array variant was introduced at the same time (Oracle Java SE 6u25)
+        Method getThreadAllocatedBytesArrayMethod =
+                sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long[].class);
+        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod,
+                getThreadAllocatedBytesArrayMethod));
     }
 
-    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod) {
+    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod,
+            Method getThreadAllocatedBytesArrayMethod) {
         this.getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod;
+        this.getThreadAllocatedBytesArrayMethod = getThreadAllocatedBytesArrayMethod;
     }
 
     public long getThreadAllocatedBytesSafely(long threadId) {
@@ -96,4 +104,33 @@ public class ThreadAllocatedBytes {
             return -1;
         }
     }
+
+    // single MXBean call for all of the threads, returns -1 for any thread that is not alive
+    public long[] getThreadAllocatedBytesSafely(long[] threadIds) {
+        if (disabledDueToError) {
+            // prevent excessive error logging in case there is a problem
+            return notAvailable(threadIds.length);
+        }
+        try {
+            long[] threadAllocatedBytes = (long[]) getThreadAllocatedBytesArrayMethod
+                    .invoke(ManagementFactory.getThreadMXBean(), (Object) threadIds);
+            if (threadAllocatedBytes == null) {
+                logger.error("method unexpectedly returned null:"
+                        + " com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long[])");
+                disabledDueToError = true;
+                return notAvailable(threadIds.length);
+            }
+            return threadAllocatedBytes;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            disabledDueToError = true;
+            return notAvailable(threadIds.length);
+        }
+    }
+
+    private static long[] notAvailable(int length) {
+        long[] values = new long[length];
+        Arrays.fill(values, -1);
+        return values;
+    }
 }
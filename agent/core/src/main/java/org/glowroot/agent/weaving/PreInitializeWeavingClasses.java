@@ -258,6 +258,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.config.InstrumentationConfig");
         types.add("org.glowroot.agent.impl.NestedTimerMap");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
+        types.add("org.glowroot.agent.impl.TimerArena");
+        types.add("org.glowroot.agent.impl.TimerArena$1");
         types.add("org.glowroot.agent.impl.TimerImpl");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.model.CommonTimerImpl");
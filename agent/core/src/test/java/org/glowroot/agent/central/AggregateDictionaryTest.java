@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.DictionaryEntry;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryTest {
+
+    @Test
+    public void shouldSendEntryOncePerStream() {
+        // given
+        AggregateDictionary dictionary = new AggregateDictionary();
+        CollectingStreamObserver requestObserver = new CollectingStreamObserver();
+        AggregateDictionary.Encoder encoder = dictionary.newEncoder(requestObserver);
+
+        // when
+        int id1 = encoder.encode("abc");
+        int id2 = encoder.encode("xyz");
+        int id3 = encoder.encode("abc");
+
+        // then
+        assertThat(id1).isEqualTo(1);
+        assertThat(id2).isEqualTo(2);
+        assertThat(id3).isEqualTo(1);
+        assertThat(requestObserver.entries()).containsExactly(
+                DictionaryEntry.newBuilder().setId(1).setText("abc").build(),
+                DictionaryEntry.newBuilder().setId(2).setText("xyz").build());
+    }
+
+    @Test
+    public void shouldResendUntilAcknowledged() {
+        // given
+        AggregateDictionary dictionary = new AggregateDictionary();
+        CollectingStreamObserver requestObserver1 = new CollectingStreamObserver();
+        dictionary.newEncoder(requestObserver1).encode("abc");
+        CollectingStreamObserver requestObserver2 = new CollectingStreamObserver();
+        AggregateDictionary.Encoder encoder2 = dictionary.newEncoder(requestObserver2);
+        encoder2.encode("abc");
+        encoder2.onSuccess();
+
+        // when
+        CollectingStreamObserver requestObserver3 = new CollectingStreamObserver();
+        int id = dictionary.newEncoder(requestObserver3).encode("abc");
+
+        // then
+        assertThat(id).isEqualTo(1);
+        assertThat(requestObserver1.entries()).hasSize(1);
+        assertThat(requestObserver2.entries()).hasSize(1);
+        assertThat(requestObserver3.entries()).isEmpty();
+    }
+
+    @Test
+    public void shouldEncodeAggregate() {
+        // given
+        AggregateDictionary dictionary = new AggregateDictionary();
+        CollectingStreamObserver requestObserver = new CollectingStreamObserver();
+        AggregateDictionary.Encoder encoder = dictionary.newEncoder(requestObserver);
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")))
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType("HTTP")
+                        .setText("GET http://example.org"))
+                .setMainThreadProfile(Profile.newBuilder()
+                        .addPackageName("java.lang")
+                        .addClassName("Thread")
+                        .addMethodName("sleep")
+                        .addFileName("Thread.java")
+                        .addNode(Profile.ProfileNode.newBuilder()
+                                .setSampleCount(1)))
+                .build();
+
+        // when
+        Aggregate encoded = encoder.encode(aggregate);
+
+        // then
+        Aggregate.Timer rootTimer = encoded.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEmpty();
+        assertThat(rootTimer.getNameId()).isEqualTo(1);
+        assertThat(rootTimer.getChildTimer(0).getName()).isEmpty();
+        assertThat(rootTimer.getChildTimer(0).getNameId()).isEqualTo(2);
+        assertThat(encoded.getServiceCall(0).getType()).isEqualTo("HTTP");
+        assertThat(encoded.getServiceCall(0).getText()).isEmpty();
+        assertThat(encoded.getServiceCall(0).getTextId()).isEqualTo(3);
+        Profile profile = encoded.getMainThreadProfile();
+        assertThat(profile.getPackageNameList()).isEmpty();
+        assertThat(profile.getPackageNameIdList()).containsExactly(4);
+        assertThat(profile.getClassNameIdList()).containsExactly(5);
+        assertThat(profile.getMethodNameIdList()).containsExactly(6);
+        assertThat(profile.getFileNameIdList()).containsExactly(7);
+        assertThat(profile.getNodeList()).isEqualTo(aggregate.getMainThreadProfile().getNodeList());
+        assertThat(requestObserver.entries()).hasSize(7);
+    }
+
+    private static class CollectingStreamObserver
+            implements StreamObserver<AggregateStreamMessage> {
+
+        private final List<AggregateStreamMessage> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(AggregateStreamMessage value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private List<DictionaryEntry> entries() {
+            List<DictionaryEntry> entries = Lists.newArrayList();
+            for (AggregateStreamMessage message : messages) {
+                entries.add(message.getDictionaryEntry());
+            }
+            return entries;
+        }
+    }
+}
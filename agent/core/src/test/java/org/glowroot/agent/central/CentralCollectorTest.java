@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.central;
 
+import io.grpc.Metadata;
+import io.grpc.Status;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -35,4 +37,16 @@ public class CentralCollectorTest {
 
         assertThat(CentralCollector.escapeHostName("a\\b\\c")).isEqualTo("a\\\\b\\\\c");
     }
+
+    @Test
+    public void shouldReadMissingQueryTextIds() {
+        Metadata trailers = new Metadata();
+        trailers.put(Metadata.Key.of("glowroot-missing-query-text-ids",
+                Metadata.ASCII_STRING_MARSHALLER), "3,7,x");
+        assertThat(CentralCollector
+                .getMissingQueryTextIds(Status.NOT_FOUND.asRuntimeException(trailers)))
+                        .containsExactly(3, 7);
+        assertThat(CentralCollector
+                .getMissingQueryTextIds(Status.NOT_FOUND.asRuntimeException())).isEmpty();
+    }
 }
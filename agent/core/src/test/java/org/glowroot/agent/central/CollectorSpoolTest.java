@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CollectorSpool.Frame;
+import org.glowroot.agent.central.CollectorSpool.FrameType;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldDrainInOrderAcrossSegments() throws Exception {
+        // given
+        CollectorSpool spool = new CollectorSpool(dir, 1000000, 100, Clock.systemClock());
+        for (int i = 0; i < 10; i++) {
+            spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("agent" + i)));
+        }
+
+        // when
+        assertThat(spool.getSegmentCount()).isGreaterThan(1);
+        for (int i = 0; i < 10; i++) {
+            Frame frame = spool.peek();
+            assertThat(frame).isNotNull();
+            assertThat(frame.type()).isEqualTo(FrameType.GAUGE_VALUES);
+            assertThat(getAgentId(frame)).isEqualTo("agent" + i);
+            spool.remove(frame);
+        }
+
+        // then
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.getSegmentCount()).isEqualTo(1);
+        assertThat(spool.getSpooledFrameCount()).isEqualTo(10);
+        assertThat(spool.getDrainedFrameCount()).isEqualTo(10);
+        spool.close();
+    }
+
+    @Test
+    public void shouldReadSpoolAfterRestart() throws Exception {
+        // given
+        CollectorSpool spool = new CollectorSpool(dir, 1000000, 100, Clock.systemClock());
+        spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("a")));
+        spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("b")));
+        spool.close();
+
+        // when
+        spool = new CollectorSpool(dir, 1000000, 100, Clock.systemClock());
+        spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("c")));
+
+        // then
+        assertThat(getAgentIdAndRemove(spool)).isEqualTo("a");
+        assertThat(getAgentIdAndRemove(spool)).isEqualTo("b");
+        assertThat(getAgentIdAndRemove(spool)).isEqualTo("c");
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void shouldSkipCorruptSegment() throws Exception {
+        // given
+        CollectorSpool spool = new CollectorSpool(dir, 1000000, 1000000, Clock.systemClock());
+        spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("a")));
+        spool.close();
+        spool = new CollectorSpool(dir, 1000000, 1000000, Clock.systemClock());
+        spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("b")));
+        spool.close();
+        RandomAccessFile out = new RandomAccessFile(new File(dir, "0.spool"), "rw");
+        out.seek(out.length() - 1);
+        int lastByte = out.read();
+        out.seek(out.length() - 1);
+        out.write(lastByte + 1);
+        out.close();
+
+        // when
+        spool = new CollectorSpool(dir, 1000000, 1000000, Clock.systemClock());
+
+        // then
+        assertThat(getAgentIdAndRemove(spool)).isEqualTo("b");
+        assertThat(new File(dir, "0.spool").exists()).isFalse();
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestSegmentsWhenFull() throws Exception {
+        // given
+        CollectorSpool spool = new CollectorSpool(dir, 200, 100, Clock.systemClock());
+
+        // when
+        for (int i = 0; i < 20; i++) {
+            spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("agent" + i)));
+        }
+
+        // then
+        assertThat(spool.getSizeBytes()).isLessThanOrEqualTo(200);
+        assertThat(spool.getDroppedBytes()).isGreaterThan(0);
+        assertThat(getAgentIdAndRemove(spool)).isNotEqualTo("agent0");
+        spool.close();
+    }
+
+    @Test
+    public void shouldNotSpoolWhenDisabled() throws Exception {
+        // given
+        CollectorSpool spool = new CollectorSpool(dir, 0, 100, Clock.systemClock());
+
+        // when
+        boolean spooled =
+                spool.append(FrameType.GAUGE_VALUES, ImmutableList.of(createMessage("a")));
+
+        // then
+        assertThat(spooled).isFalse();
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    private static GaugeValueMessage createMessage(String agentId) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .setPostV09(true)
+                .build();
+    }
+
+    private static String getAgentId(Frame frame) throws Exception {
+        return frame.parseMessages(GaugeValueMessage.parser()).get(0).getAgentId();
+    }
+
+    private static String getAgentIdAndRemove(CollectorSpool spool) throws Exception {
+        Frame frame = spool.peek();
+        assertThat(frame).isNotNull();
+        String agentId = getAgentId(frame);
+        spool.remove(frame);
+        return agentId;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectBatch;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class CollectorStreamTest {
+
+    private FakeChannel channel;
+    private FakeTicker ticker;
+    private CollectorStream collectorStream;
+    private FakeCall call;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        channel = new FakeChannel();
+        ticker = new FakeTicker();
+        collectorStream = new CollectorStream(CollectorServiceGrpc.newStub(channel), "xyz",
+                mock(CentralConnection.class), ticker);
+        collectorStream.connectAsync();
+        call = channel.calls.poll(10, SECONDS);
+        assertThat(call).isNotNull();
+        CollectStreamMessage header = call.sent.poll(10, SECONDS);
+        assertThat(header).isNotNull();
+        assertThat(header.getStreamHeader().getAgentId()).isEqualTo("xyz");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        collectorStream.close();
+        collectorStream.awaitClose();
+    }
+
+    @Test
+    public void shouldNotAcceptItemsUntilEstablished() throws Exception {
+        // given
+        TestItem item = new TestItem(10);
+
+        // when
+        boolean offered = collectorStream.offer(item);
+
+        // then
+        assertThat(offered).isFalse();
+    }
+
+    @Test
+    public void shouldCoalesceItemsDuringLinger() throws Exception {
+        // given
+        establish();
+        TestItem item1 = new TestItem(10);
+        TestItem item2 = new TestItem(10);
+        TestItem item3 = new TestItem(10);
+
+        // when
+        assertThat(collectorStream.offer(item1)).isTrue();
+        assertThat(collectorStream.offer(item2)).isTrue();
+        assertThat(collectorStream.offer(item3)).isTrue();
+
+        // then
+        CollectBatch batch = nextBatch();
+        assertThat(batch.getBatchId()).isEqualTo(1);
+        assertThat(batch.getItemCount()).isEqualTo(3);
+        ack(1, false);
+        assertThat(item1.successCount.get()).isEqualTo(1);
+        assertThat(item2.successCount.get()).isEqualTo(1);
+        assertThat(item3.successCount.get()).isEqualTo(1);
+        assertThat(item1.failureCount.get()).isZero();
+    }
+
+    @Test
+    public void shouldSplitBatchesAtMaxBatchBytes() throws Exception {
+        // given
+        establish();
+        TestItem item1 = new TestItem(CollectorStream.MAX_BATCH_BYTES * 2 / 3);
+        TestItem item2 = new TestItem(CollectorStream.MAX_BATCH_BYTES * 2 / 3);
+
+        // when
+        assertThat(collectorStream.offer(item1)).isTrue();
+        assertThat(collectorStream.offer(item2)).isTrue();
+
+        // then
+        assertThat(nextBatch().getItemCount()).isEqualTo(1);
+        assertThat(nextBatch().getItemCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotAcceptItemLargerThanMaxBatchBytes() throws Exception {
+        // given
+        establish();
+        TestItem item = new TestItem(CollectorStream.MAX_BATCH_BYTES + 1);
+
+        // when
+        boolean offered = collectorStream.offer(item);
+
+        // then
+        assertThat(offered).isFalse();
+    }
+
+    @Test
+    public void shouldLimitUnacknowledgedBatches() throws Exception {
+        // given
+        establish();
+        for (int i = 0; i < 6; i++) {
+            // each item needs its own batch
+            assertThat(collectorStream.offer(new TestItem(CollectorStream.MAX_BATCH_BYTES * 2 / 3)))
+                    .isTrue();
+        }
+
+        // when
+        for (int i = 1; i <= 4; i++) {
+            assertThat(nextBatch().getBatchId()).isEqualTo(i);
+        }
+
+        // then
+        assertThat(call.sent.poll(200, MILLISECONDS)).isNull();
+        // acknowledgement opens up the window
+        ack(1, false);
+        assertThat(nextBatch().getBatchId()).isEqualTo(5);
+        assertThat(call.sent.poll(200, MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void shouldWaitForTransportReady() throws Exception {
+        // given
+        establish();
+        call.ready = false;
+
+        // when
+        assertThat(collectorStream.offer(new TestItem(10))).isTrue();
+
+        // then
+        assertThat(call.sent.poll(200, MILLISECONDS)).isNull();
+        call.ready = true;
+        call.listener().onReady();
+        assertThat(nextBatch().getItemCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFallBackOnBatchError() throws Exception {
+        // given
+        establish();
+        TestItem item1 = new TestItem(10);
+        TestItem item2 = new TestItem(10);
+        assertThat(collectorStream.offer(item1)).isTrue();
+        assertThat(collectorStream.offer(item2)).isTrue();
+        nextBatch();
+
+        // when
+        ack(1, true);
+
+        // then
+        assertThat(item1.failureCount.get()).isEqualTo(1);
+        assertThat(item2.failureCount.get()).isEqualTo(1);
+        assertThat(item1.successCount.get()).isZero();
+        // the stream itself is still usable
+        assertThat(collectorStream.offer(new TestItem(10))).isTrue();
+    }
+
+    @Test
+    public void shouldDelayFallBackOnBatchErrorWithRetryAfter() throws Exception {
+        // given
+        establish();
+        TestItem item = new TestItem(10);
+        assertThat(collectorStream.offer(item)).isTrue();
+        nextBatch();
+
+        // when
+        long startNanos = System.nanoTime();
+        ack(1, true, 500);
+
+        // then
+        assertThat(item.failureCount.get()).isZero();
+        long deadlineNanos = startNanos + SECONDS.toNanos(10);
+        while (item.failureCount.get() == 0 && System.nanoTime() < deadlineNanos) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(item.failureCount.get()).isEqualTo(1);
+        assertThat(System.nanoTime() - startNanos).isGreaterThanOrEqualTo(
+                MILLISECONDS.toNanos(500));
+        assertThat(item.successCount.get()).isZero();
+    }
+
+    @Test
+    public void shouldFallBackOnAckTimeout() throws Exception {
+        // given
+        establish();
+        TestItem item = new TestItem(10);
+        assertThat(collectorStream.offer(item)).isTrue();
+        nextBatch();
+
+        // when
+        collectorStream.checkAckTimeout();
+
+        // then
+        assertThat(call.cancelMessage).isNull();
+        assertThat(item.failureCount.get()).isZero();
+
+        // when
+        ticker.advance(MINUTES.toNanos(2));
+        collectorStream.checkAckTimeout();
+
+        // then
+        assertThat(call.cancelMessage).isEqualTo("batch acknowledgement timed out");
+        assertThat(item.failureCount.get()).isEqualTo(1);
+        assertThat(collectorStream.offer(new TestItem(10))).isFalse();
+        // late acknowledgement is ignored
+        ack(1, false);
+        assertThat(item.successCount.get()).isZero();
+    }
+
+    @Test
+    public void shouldFallBackPendingItemsOnStreamFailure() throws Exception {
+        // given
+        establish();
+        call.ready = false;
+        TestItem item = new TestItem(10);
+        assertThat(collectorStream.offer(item)).isTrue();
+
+        // when
+        call.listener().onClose(Status.UNAVAILABLE, new Metadata());
+
+        // then
+        assertThat(item.failureCount.get()).isEqualTo(1);
+        assertThat(collectorStream.offer(new TestItem(10))).isFalse();
+    }
+
+    @Test
+    public void shouldBackOffWhenUnimplemented() {
+        assertThat(CollectorStream
+                .getReconnectDelayMillis(Status.UNIMPLEMENTED.asRuntimeException()))
+                        .isEqualTo(MINUTES.toMillis(30));
+        assertThat(CollectorStream.getReconnectDelayMillis(Status.UNAVAILABLE.asRuntimeException()))
+                .isEqualTo(SECONDS.toMillis(10));
+    }
+
+    private void establish() {
+        call.listener().onMessage(CollectStreamResponse.newBuilder()
+                .setBatchId(0)
+                .build());
+    }
+
+    private CollectBatch nextBatch() throws InterruptedException {
+        CollectStreamMessage message = call.sent.poll(10, SECONDS);
+        assertThat(message).isNotNull();
+        assertThat(message.hasBatch()).isTrue();
+        return message.getBatch();
+    }
+
+    private void ack(long batchId, boolean error) {
+        ack(batchId, error, 0);
+    }
+
+    private void ack(long batchId, boolean error, long retryAfterMillis) {
+        call.listener().onMessage(CollectStreamResponse.newBuilder()
+                .setBatchId(batchId)
+                .setError(error)
+                .setRetryAfterMillis(retryAfterMillis)
+                .build());
+    }
+
+    private static class TestItem extends CollectorStream.Item {
+
+        private final AtomicInteger successCount = new AtomicInteger();
+        private final AtomicInteger failureCount = new AtomicInteger();
+
+        private TestItem(int approxBytes) {
+            super(CollectItem.newBuilder()
+                    .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                            .addGaugeValues(GaugeValue.newBuilder()
+                                    .setGaugeName(Strings.repeat("x", approxBytes))))
+                    .build());
+        }
+
+        @Override
+        void onSuccess(CollectStreamResponse response) {
+            successCount.getAndIncrement();
+        }
+
+        @Override
+        void onFailure() {
+            failureCount.getAndIncrement();
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        private void advance(long nanos) {
+            this.nanos.addAndGet(nanos);
+        }
+    }
+
+    private static class FakeChannel extends Channel {
+
+        private final BlockingQueue<FakeCall> calls = new LinkedBlockingQueue<FakeCall>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+                MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+            FakeCall call = new FakeCall();
+            calls.add(call);
+            return (ClientCall<ReqT, RespT>) call;
+        }
+
+        @Override
+        public String authority() {
+            return "localhost";
+        }
+    }
+
+    private static class FakeCall extends ClientCall<CollectStreamMessage, CollectStreamResponse> {
+
+        private final BlockingQueue<CollectStreamMessage> sent =
+                new LinkedBlockingQueue<CollectStreamMessage>();
+
+        private volatile @Nullable Listener<CollectStreamResponse> listener;
+        private volatile boolean ready = true;
+        private volatile @Nullable String cancelMessage;
+
+        @Override
+        public void start(Listener<CollectStreamResponse> listener, Metadata headers) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void request(int numMessages) {}
+
+        @Override
+        public void cancel(@Nullable String message, @Nullable Throwable cause) {
+            cancelMessage = message;
+            listener().onClose(Status.CANCELLED.withDescription(message), new Metadata());
+        }
+
+        @Override
+        public void halfClose() {}
+
+        @Override
+        public void sendMessage(CollectStreamMessage message) {
+            sent.add(message);
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        private Listener<CollectStreamResponse> listener() {
+            return checkNotNull(listener);
+        }
+    }
+}
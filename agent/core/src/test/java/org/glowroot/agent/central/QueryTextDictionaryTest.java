@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.QueryTextDictionary.EntryWriter;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextDictionaryEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextDictionaryTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+        file = new File(dir, "query-text-dictionary");
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void shouldNotResendAcknowledgedEntriesAfterReopen() throws Exception {
+        // given
+        QueryTextDictionary dictionary = new QueryTextDictionary(file, 100, 10);
+        String versionId = dictionary.getCurrentVersion().getVersionId();
+        CollectingEntryWriter entryWriter1 = new CollectingEntryWriter();
+        QueryTextDictionary.Version.Encoder encoder1 =
+                dictionary.getCurrentVersion().newEncoder(entryWriter1);
+        int id1 = encoder1.encode("select 1");
+        int id2 = encoder1.encode("select 2");
+        encoder1.onSuccess();
+        dictionary.getCurrentVersion().newEncoder(new CollectingEntryWriter()).encode("select 3");
+        dictionary.close();
+
+        // when
+        dictionary = new QueryTextDictionary(file, 100, 10);
+        CollectingEntryWriter entryWriter2 = new CollectingEntryWriter();
+        QueryTextDictionary.Version.Encoder encoder2 =
+                dictionary.getCurrentVersion().newEncoder(entryWriter2);
+        int id1b = encoder2.encode("select 1");
+        int id3 = encoder2.encode("select 3");
+        int id4 = encoder2.encode("select 4");
+        dictionary.close();
+
+        // then
+        assertThat(entryWriter1.entries).hasSize(2);
+        assertThat(dictionary.getCurrentVersion().getVersionId()).isEqualTo(versionId);
+        assertThat(id1b).isEqualTo(id1);
+        assertThat(id2).isEqualTo(2);
+        assertThat(id3).isEqualTo(3);
+        assertThat(id4).isEqualTo(4);
+        assertThat(entryWriter2.entries).containsExactly(
+                QueryTextDictionaryEntry.newBuilder().setId(3).setFullText("select 3").build(),
+                QueryTextDictionaryEntry.newBuilder().setId(4).setFullText("select 4").build());
+    }
+
+    @Test
+    public void shouldStartNewVersionOnReset() throws Exception {
+        // given
+        QueryTextDictionary dictionary = new QueryTextDictionary(file, 100, 10);
+        QueryTextDictionary.Version version = dictionary.getCurrentVersion();
+        QueryTextDictionary.Version.Encoder encoder =
+                version.newEncoder(new CollectingEntryWriter());
+        encoder.encode("select 1");
+        encoder.onSuccess();
+
+        // when
+        dictionary.reset(version);
+        CollectingEntryWriter entryWriter = new CollectingEntryWriter();
+        int id = dictionary.getCurrentVersion().newEncoder(entryWriter).encode("select 1");
+        dictionary.close();
+
+        // then
+        assertThat(dictionary.getCurrentVersion().getVersionId())
+                .isNotEqualTo(version.getVersionId());
+        assertThat(id).isEqualTo(1);
+        assertThat(entryWriter.entries).hasSize(1);
+    }
+
+    @Test
+    public void shouldResendOnlyUnacknowledgedEntries() throws Exception {
+        // given
+        QueryTextDictionary dictionary = new QueryTextDictionary(file, 100, 10);
+        QueryTextDictionary.Version version = dictionary.getCurrentVersion();
+        QueryTextDictionary.Version.Encoder encoder =
+                version.newEncoder(new CollectingEntryWriter());
+        int id1 = encoder.encode("select 1");
+        int id2 = encoder.encode("select 2");
+        encoder.onSuccess();
+
+        // when
+        version.unacknowledge(ImmutableList.of(id2));
+        CollectingEntryWriter entryWriter = new CollectingEntryWriter();
+        QueryTextDictionary.Version.Encoder encoder2 =
+                dictionary.getCurrentVersion().newEncoder(entryWriter);
+        int id1b = encoder2.encode("select 1");
+        int id2b = encoder2.encode("select 2");
+        dictionary.close();
+
+        // then
+        assertThat(dictionary.getCurrentVersion().getVersionId())
+                .isEqualTo(version.getVersionId());
+        assertThat(id1b).isEqualTo(id1);
+        assertThat(id2b).isEqualTo(id2);
+        assertThat(entryWriter.entries).containsExactly(
+                QueryTextDictionaryEntry.newBuilder().setId(id2).setFullText("select 2").build());
+    }
+
+    @Test
+    public void shouldStartNewVersionWhenFull() throws Exception {
+        // given
+        QueryTextDictionary dictionary = new QueryTextDictionary(file, 2, 10);
+        QueryTextDictionary.Version version = dictionary.getCurrentVersion();
+        QueryTextDictionary.Version.Encoder encoder =
+                version.newEncoder(new CollectingEntryWriter());
+        encoder.encode("select 1");
+        encoder.encode("select 2");
+
+        // when
+        String versionId = dictionary.getCurrentVersion().getVersionId();
+        dictionary.close();
+
+        // then
+        assertThat(versionId).isNotEqualTo(version.getVersionId());
+    }
+
+    private static class CollectingEntryWriter implements EntryWriter {
+
+        private final List<QueryTextDictionaryEntry> entries = Lists.newArrayList();
+
+        @Override
+        public void write(QueryTextDictionaryEntry entry) {
+            entries.add(entry);
+        }
+    }
+}
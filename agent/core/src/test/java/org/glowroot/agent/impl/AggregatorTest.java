@@ -43,26 +43,57 @@ public class AggregatorTest {
     public void shouldFlushWithTrace() throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, mockConfigService(), 1000, Clock.systemClock());
+
+        // when
+        int count = addTransactionsUntilNextInterval(aggregator, 1);
+
+        // then
+        assertTotalDurationNanos(aggregateCollector, count);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldFlushWithTraceUsingMultipleProcessingThreads() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        Aggregator aggregator = new Aggregator(aggregateCollector, mockConfigService(), 1000, 4,
+                Clock.systemClock());
+
+        // when
+        int count = addTransactionsUntilNextInterval(aggregator, 10);
+
+        // then
+        assertTotalDurationNanos(aggregateCollector, count);
+        aggregator.close();
+    }
+
+    private static ConfigService mockConfigService() {
         ConfigService configService = mock(ConfigService.class);
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        return configService;
+    }
 
-        // when
+    private static int addTransactionsUntilNextInterval(Aggregator aggregator,
+            int transactionNameCount) throws InterruptedException {
         int count = 0;
-        long firstCaptureTime = aggregator.add(buildTransaction());
+        long firstCaptureTime = aggregator.add(buildTransaction("a name"));
         long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
         while (true) {
-            long captureTime = aggregator.add(buildTransaction());
+            long captureTime =
+                    aggregator.add(buildTransaction("a name " + count % transactionNameCount));
             count++;
             if (captureTime > aggregateCaptureTime) {
                 break;
             }
             Thread.sleep(1);
         }
+        return count;
+    }
 
-        // then
+    private static void assertTotalDurationNanos(MockCollector aggregateCollector, int count) {
         // aggregation is done in a separate thread, so give it a little time to complete
         long start = System.currentTimeMillis();
         while (System.currentTimeMillis() - start < 5000) {
@@ -71,15 +102,14 @@ public class AggregatorTest {
             }
         }
         assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(count * 123 * 1000000.0);
-        aggregator.close();
     }
 
-    private static Transaction buildTransaction() {
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
@@ -15,8 +15,10 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.junit.Test;
 
@@ -29,7 +31,7 @@ import static org.mockito.Mockito.mock;
 public class NestedTimerMapTest {
 
     @Test
-    public void testBucketCollision() {
+    public void testManyTimerNames() {
         // given
         NestedTimerMap map = new NestedTimerMap();
         Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
@@ -45,4 +47,58 @@ public class NestedTimerMapTest {
             assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testClear() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
+        for (int i = 0; i < 100; i++) {
+            uniqueTimers.put(ImmutableTimerNameImpl.of("timer-" + i, false), mock(TimerImpl.class));
+        }
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        // when
+        map.clear();
+        // then
+        for (TimerNameImpl timerName : uniqueTimers.keySet()) {
+            assertThat(map.get(timerName)).isNull();
+        }
+    }
+
+    @Test
+    public void testPutInDescendingIdOrder() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        List<TimerNameImpl> timerNames = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            timerNames.add(ImmutableTimerNameImpl.of("timer-" + i, false));
+        }
+        Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
+        // when
+        for (TimerNameImpl timerName : Lists.reverse(timerNames)) {
+            TimerImpl timer = mock(TimerImpl.class);
+            map.put(timerName, timer);
+            uniqueTimers.put(timerName, timer);
+        }
+        // then
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+        }
+    }
+
+    @Test
+    public void testGetOutsideOfRange() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("timer-1", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("timer-2", false);
+        TimerNameImpl timerName3 = ImmutableTimerNameImpl.of("timer-3", false);
+        // when
+        map.put(timerName2, mock(TimerImpl.class));
+        // then
+        assertThat(map.get(timerName1)).isNull();
+        assertThat(map.get(timerName3)).isNull();
+    }
 }
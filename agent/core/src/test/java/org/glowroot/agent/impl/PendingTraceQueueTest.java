@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.PendingTraceQueue.PendingTrace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class PendingTraceQueueTest {
+
+    @Test
+    public void shouldPollInPriorityOrder() {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(1000);
+        PendingTrace low1 = createPendingTrace(PendingTrace.PRIORITY_LOW, 10);
+        PendingTrace high = createPendingTrace(PendingTrace.PRIORITY_HIGH, 10);
+        PendingTrace low2 = createPendingTrace(PendingTrace.PRIORITY_LOW, 10);
+        PendingTrace partiallyStored =
+                createPendingTrace(PendingTrace.PRIORITY_PARTIALLY_STORED, 10);
+
+        // when
+        queue.offer(low1);
+        queue.offer(high);
+        queue.offer(low2);
+        queue.offer(partiallyStored);
+
+        // then
+        assertThat(queue.size()).isEqualTo(4);
+        assertThat(queue.getSizeBytes()).isEqualTo(40);
+        assertThat(queue.poll()).isSameAs(partiallyStored);
+        assertThat(queue.poll()).isSameAs(high);
+        assertThat(queue.poll()).isSameAs(low1);
+        assertThat(queue.poll()).isSameAs(low2);
+        assertThat(queue.poll()).isNull();
+        // polled traces count against the limit until they are released
+        assertThat(queue.size()).isEqualTo(4);
+        assertThat(queue.getSizeBytes()).isEqualTo(40);
+    }
+
+    @Test
+    public void shouldEvictNewestLowerPriorityTracesAtCapacity() {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(100);
+        PendingTrace low1 = createPendingTrace(PendingTrace.PRIORITY_LOW, 40);
+        PendingTrace low2 = createPendingTrace(PendingTrace.PRIORITY_LOW, 40);
+        PendingTrace low3 = createPendingTrace(PendingTrace.PRIORITY_LOW, 20);
+        queue.offer(low1);
+        queue.offer(low2);
+        queue.offer(low3);
+        PendingTrace high = createPendingTrace(PendingTrace.PRIORITY_HIGH, 50);
+
+        // when
+        Iterable<PendingTrace> evictedTraces = queue.offer(high);
+
+        // then
+        assertThat(evictedTraces).containsExactly(low3, low2);
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.getSizeBytes()).isEqualTo(90);
+        assertThat(queue.poll()).isSameAs(high);
+        assertThat(queue.poll()).isSameAs(low1);
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldRejectWhenNotEnoughLowerPriorityTracesToEvict() {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(100);
+        PendingTrace high1 = createPendingTrace(PendingTrace.PRIORITY_HIGH, 60);
+        PendingTrace low = createPendingTrace(PendingTrace.PRIORITY_LOW, 20);
+        queue.offer(high1);
+        queue.offer(low);
+        PendingTrace high2 = createPendingTrace(PendingTrace.PRIORITY_HIGH, 50);
+        PendingTrace low2 = createPendingTrace(PendingTrace.PRIORITY_LOW, 30);
+
+        // when
+        Iterable<PendingTrace> rejectedHigh = queue.offer(high2);
+        Iterable<PendingTrace> rejectedLow = queue.offer(low2);
+
+        // then
+        assertThat(rejectedHigh).containsExactly(high2);
+        assertThat(rejectedLow).containsExactly(low2);
+        // nothing is evicted when the offered trace is rejected
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.getSizeBytes()).isEqualTo(80);
+        assertThat(queue.poll()).isSameAs(high1);
+        assertThat(queue.poll()).isSameAs(low);
+    }
+
+    @Test
+    public void shouldNotApplyLimitToPartiallyStoredTraces() {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(100);
+        queue.offer(createPendingTrace(PendingTrace.PRIORITY_HIGH, 100));
+        PendingTrace partiallyStored =
+                createPendingTrace(PendingTrace.PRIORITY_PARTIALLY_STORED, 50);
+
+        // when
+        Iterable<PendingTrace> evictedTraces = queue.offer(partiallyStored);
+
+        // then
+        assertThat(evictedTraces).isEmpty();
+        assertThat(queue.getSizeBytes()).isEqualTo(150);
+    }
+
+    @Test
+    public void shouldReleaseCapacity() {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(100);
+        queue.offer(createPendingTrace(PendingTrace.PRIORITY_HIGH, 100));
+        PendingTrace polled = queue.poll();
+
+        // when
+        queue.release(polled);
+
+        // then
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(queue.getSizeBytes()).isEqualTo(0);
+        assertThat(queue.offer(createPendingTrace(PendingTrace.PRIORITY_LOW, 100))).isEmpty();
+    }
+
+    private static PendingTrace createPendingTrace(int priority, long estimatedSizeBytes) {
+        return new PendingTrace(mock(Transaction.class), true, priority, estimatedSizeBytes);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.StackTraceSampler.Mode;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceSamplerTest {
+
+    @Test
+    public void shouldSampleAllThreadsInDefaultMode() {
+        // given
+        StackTraceSampler sampler =
+                new StackTraceSampler(Mode.DEFAULT, 2, 1, 10, Ticker.systemTicker());
+        List<ThreadContextImpl> threadContexts = createThreadContexts(5);
+
+        // when
+        sampler.sample(threadContexts);
+
+        // then
+        for (ThreadContextImpl threadContext : threadContexts) {
+            verify(threadContext).captureStackTrace(any(ThreadInfo.class));
+        }
+        assertThat(sampler.getCaptureCount()).isEqualTo(1);
+        assertThat(sampler.getSampledThreadCount()).isEqualTo(5);
+        assertThat(sampler.getSkippedThreadCount()).isEqualTo(0);
+        assertThat(sampler.getIntervalMillis(10)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldRotateThroughThreadsInAdaptiveMode() {
+        // given
+        StackTraceSampler sampler =
+                new StackTraceSampler(Mode.ADAPTIVE, 2, 1, 10, Ticker.systemTicker());
+        List<ThreadContextImpl> threadContexts = createThreadContexts(5);
+
+        // when
+        sampler.sample(threadContexts);
+        sampler.sample(threadContexts);
+        sampler.sample(threadContexts);
+
+        // then
+        verify(threadContexts.get(0), times(2)).captureStackTrace(any(ThreadInfo.class));
+        for (int i = 1; i < 5; i++) {
+            verify(threadContexts.get(i)).captureStackTrace(any(ThreadInfo.class));
+        }
+        assertThat(sampler.getCaptureCount()).isEqualTo(3);
+        assertThat(sampler.getSampledThreadCount()).isEqualTo(6);
+        assertThat(sampler.getSkippedThreadCount()).isEqualTo(9);
+    }
+
+    @Test
+    public void shouldStretchIntervalInAdaptiveMode() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L, MILLISECONDS.toNanos(5));
+        StackTraceSampler sampler = new StackTraceSampler(Mode.ADAPTIVE, 64, 1, 10, ticker);
+        StackTraceSampler uncappedSampler =
+                new StackTraceSampler(Mode.ADAPTIVE, 64, 1, 1000, ticker);
+
+        // when
+        sampler.sample(createThreadContexts(1));
+        when(ticker.read()).thenReturn(0L, MILLISECONDS.toNanos(5));
+        uncappedSampler.sample(createThreadContexts(1));
+
+        // then
+        assertThat(sampler.getLastCaptureNanos()).isEqualTo(MILLISECONDS.toNanos(5));
+        // 5 milliseconds at 1% overhead would be 500 milliseconds, capped at 10 x 10 milliseconds
+        assertThat(sampler.getIntervalMillis(10)).isEqualTo(100);
+        assertThat(uncappedSampler.getIntervalMillis(10)).isEqualTo(500);
+        // never shorter than the configured interval
+        assertThat(sampler.getIntervalMillis(1000)).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldDefaultToDefaultMode() {
+        assertThat(Mode.fromName("adaptive")).isEqualTo(Mode.ADAPTIVE);
+        assertThat(Mode.fromName("unknown")).isEqualTo(Mode.DEFAULT);
+    }
+
+    private static List<ThreadContextImpl> createThreadContexts(int count) {
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+            when(threadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+            threadContexts.add(threadContext);
+        }
+        return threadContexts;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TimerArenaTest {
+
+    private static final TimerNameImpl ROOT_TIMER_NAME = ImmutableTimerNameImpl.of("root", false);
+    private static final TimerNameImpl CHILD_TIMER_NAME =
+            ImmutableTimerNameImpl.of("child", false);
+
+    @Test
+    public void shouldReuseReleasedTimers() {
+        // given
+        TimerArena arena = new TimerArena();
+        TimerImpl rootTimer = createAndRunTimers(arena);
+        TimerImpl childTimer = rootTimer.getHeadChild();
+        // when
+        arena.release(rootTimer);
+        TimerImpl rootTimer2 = createAndRunTimers(arena);
+        // then
+        assertThat(rootTimer2).isSameAs(rootTimer);
+        assertThat(rootTimer2.getHeadChild()).isSameAs(childTimer);
+        assertThat(rootTimer2.getTotalNanos()).isEqualTo(100);
+        assertThat(rootTimer2.getCount()).isEqualTo(1);
+        assertThat(childTimer.getTotalNanos()).isEqualTo(10);
+        assertThat(childTimer.getCount()).isEqualTo(1);
+        assertThat(childTimer.getNextSibling()).isNull();
+    }
+
+    @Test
+    public void shouldNotReuseTimersThatWereNotReleased() {
+        // given
+        TimerArena arena = new TimerArena();
+        TimerImpl rootTimer = createAndRunTimers(arena);
+        // when
+        TimerImpl rootTimer2 = createAndRunTimers(arena);
+        // then
+        assertThat(rootTimer2).isNotSameAs(rootTimer);
+        assertThat(rootTimer2.getHeadChild()).isNotSameAs(rootTimer.getHeadChild());
+    }
+
+    private static TimerImpl createAndRunTimers(TimerArena arena) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT_TIMER_NAME, arena);
+        rootTimer.start(0);
+        TimerImpl childTimer = rootTimer.startNestedTimer(CHILD_TIMER_NAME, 20);
+        childTimer.end(30);
+        rootTimer.end(100);
+        return rootTimer;
+    }
+}
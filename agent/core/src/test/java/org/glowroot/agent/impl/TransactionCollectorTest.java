@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionCollectorTest {
+
+    private Collector collector;
+    private TransactionCollector transactionCollector;
+
+    @Before
+    public void beforeEachTest() {
+        collector = mock(Collector.class);
+        Aggregator aggregator = mock(Aggregator.class);
+        transactionCollector = new TransactionCollector(mock(ConfigService.class), collector,
+                aggregator, Clock.systemClock(), Ticker.systemTicker());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        transactionCollector.close();
+    }
+
+    @Test
+    public void shouldNotLeaveRejectedTransactionPending() throws Exception {
+        // given
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getSlowThresholdMillisOverride()).thenReturn(0);
+        // larger than the pending limit, and there is nothing to evict
+        when(transaction.getEstimatedTraceSizeBytes())
+                .thenReturn(transactionCollector.getPendingTraceBytesLimit() + 1);
+
+        // when
+        transactionCollector.onCompletedTransaction(transaction);
+
+        // then
+        assertThat(transactionCollector.getPendingTransactions()).isEmpty();
+        assertThat(transactionCollector.getPendingTraceCount()).isEqualTo(0);
+        assertThat(transactionCollector.getQueuedTraceCount()).isEqualTo(0);
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(1);
+        verify(transaction).onCompleteWillStoreTrace(anyLong());
+    }
+}
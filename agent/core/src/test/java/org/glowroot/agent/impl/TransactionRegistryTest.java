@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.TransactionRegistry.TransactionEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionRegistryTest {
+
+    @Test
+    public void shouldIndexByTransactionType() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        Transaction transaction1 = mockTransaction("Web");
+        Transaction transaction2 = mockTransaction("Background");
+        Transaction transaction3 = mockTransaction("Web");
+
+        // when
+        transactionRegistry.addTransaction(transaction1);
+        transactionRegistry.addTransaction(transaction2);
+        transactionRegistry.addTransaction(transaction3);
+
+        // then
+        assertThat(transactionRegistry.getTransactions()).containsOnly(transaction1,
+                transaction2, transaction3);
+        assertThat(transactionRegistry.getTransactions("Web")).containsOnly(transaction1,
+                transaction3);
+        assertThat(transactionRegistry.getTransactions("Background"))
+                .containsOnly(transaction2);
+        assertThat(transactionRegistry.getTransactions("Other")).isEmpty();
+    }
+
+    @Test
+    public void shouldRemove() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        Transaction transaction1 = mockTransaction("Web");
+        Transaction transaction2 = mockTransaction("Web");
+        TransactionEntry entry1 = transactionRegistry.addTransaction(transaction1);
+        transactionRegistry.addTransaction(transaction2);
+
+        // when
+        entry1.remove();
+        entry1.remove();
+
+        // then
+        assertThat(transactionRegistry.getTransactions()).containsOnly(transaction2);
+        assertThat(transactionRegistry.getTransactions("Web")).containsOnly(transaction2);
+    }
+
+    @Test
+    public void shouldUpdateTransactionType() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        Transaction transaction = mockTransaction("Web");
+        TransactionEntry entry = transactionRegistry.addTransaction(transaction);
+
+        // when
+        when(transaction.getTransactionType()).thenReturn("Background");
+        entry.updateTransactionType(transaction);
+
+        // then
+        assertThat(transactionRegistry.getTransactions()).containsOnly(transaction);
+        assertThat(transactionRegistry.getTransactions("Web")).isEmpty();
+        assertThat(transactionRegistry.getTransactions("Background")).containsOnly(transaction);
+    }
+
+    @Test
+    public void shouldNotUpdateTransactionTypeAfterRemove() {
+        // given
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        Transaction transaction = mockTransaction("Web");
+        TransactionEntry entry = transactionRegistry.addTransaction(transaction);
+        entry.remove();
+
+        // when
+        when(transaction.getTransactionType()).thenReturn("Background");
+        entry.updateTransactionType(transaction);
+
+        // then
+        assertThat(transactionRegistry.getTransactions()).isEmpty();
+        assertThat(transactionRegistry.getTransactions("Web")).isEmpty();
+        assertThat(transactionRegistry.getTransactions("Background")).isEmpty();
+    }
+
+    private static Transaction mockTransaction(String transactionType) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn(transactionType);
+        return transaction;
+    }
+}
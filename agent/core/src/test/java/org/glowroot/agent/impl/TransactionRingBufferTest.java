@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.TransactionRingBuffer.WaitStrategy;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionRingBufferTest {
+
+    @Test
+    public void shouldRoundUpCapacity() {
+        assertThat(new TransactionRingBuffer(1000, WaitStrategy.SLEEP, Clock.systemClock())
+                .getCapacity()).isEqualTo(1024);
+        assertThat(new TransactionRingBuffer(1024, WaitStrategy.SLEEP, Clock.systemClock())
+                .getCapacity()).isEqualTo(1024);
+    }
+
+    @Test
+    public void shouldPollInOrder() {
+        // given
+        TransactionRingBuffer ringBuffer =
+                new TransactionRingBuffer(4, WaitStrategy.SLEEP, Clock.systemClock());
+        Transaction transaction1 = mock(Transaction.class);
+        Transaction transaction2 = mock(Transaction.class);
+
+        // when
+        ringBuffer.offer(transaction1);
+        ringBuffer.offer(transaction2);
+
+        // then
+        assertThat(ringBuffer.isIdle()).isFalse();
+        assertThat(ringBuffer.getBacklog()).isEqualTo(2);
+        assertThat(ringBuffer.poll()).isSameAs(transaction1);
+        assertThat(ringBuffer.poll()).isSameAs(transaction2);
+        assertThat(ringBuffer.poll()).isNull();
+        assertThat(ringBuffer.isIdle()).isTrue();
+    }
+
+    @Test
+    public void shouldDropWhenFull() {
+        // given
+        TransactionRingBuffer ringBuffer =
+                new TransactionRingBuffer(2, WaitStrategy.SLEEP, Clock.systemClock());
+
+        // when
+        ringBuffer.offer(mock(Transaction.class));
+        ringBuffer.offer(mock(Transaction.class));
+        long captureTime = ringBuffer.offer(mock(Transaction.class));
+
+        // then
+        assertThat(captureTime).isEqualTo(-1);
+        assertThat(ringBuffer.getDroppedCount()).isEqualTo(1);
+        ringBuffer.poll();
+        assertThat(ringBuffer.offer(mock(Transaction.class))).isNotEqualTo(-1);
+    }
+
+    @Test
+    public void shouldClampCaptureTimes() {
+        // given
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(2000L, 1000L);
+        TransactionRingBuffer ringBuffer = new TransactionRingBuffer(4, WaitStrategy.SLEEP, clock);
+        ringBuffer.offer(mock(Transaction.class));
+        ringBuffer.offer(mock(Transaction.class));
+
+        // when
+        ringBuffer.poll();
+        long captureTime1 = ringBuffer.getLastCaptureTime();
+        ringBuffer.poll();
+        long captureTime2 = ringBuffer.getLastCaptureTime();
+
+        // then
+        assertThat(captureTime1).isEqualTo(2000);
+        assertThat(captureTime2).isEqualTo(2000);
+    }
+}
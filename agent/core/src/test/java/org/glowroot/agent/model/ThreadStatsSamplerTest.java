@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThreadStatsSamplerTest {
+
+    private Ticker ticker;
+    private ThreadStatsSampler sampler;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = mock(Ticker.class);
+        sampler = new ThreadStatsSampler(100, ticker);
+    }
+
+    @Test
+    public void shouldSkipShortThreadContext() {
+        // given
+        when(ticker.read()).thenReturn(0L);
+        ThreadStatsComponent component = new ThreadStatsComponent(null, sampler);
+
+        // when
+        component.onComplete();
+        when(ticker.read()).thenReturn(MILLISECONDS.toNanos(100));
+        sampler.sample();
+
+        // then
+        ThreadStats threadStats = component.getThreadStats();
+        assertThat(threadStats.getTotalCpuNanos()).isIn(0L, -1L);
+        assertThat(threadStats.getTotalBlockedMillis()).isIn(0L, -1L);
+        assertThat(threadStats.getTotalWaitedMillis()).isIn(0L, -1L);
+        assertThat(threadStats.getTotalAllocatedBytes()).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldNotCaptureBeforeMinDuration() {
+        // given
+        when(ticker.read()).thenReturn(0L);
+        ThreadStatsComponent component = new ThreadStatsComponent(null, sampler);
+
+        // when
+        when(ticker.read()).thenReturn(MILLISECONDS.toNanos(99));
+        sampler.sample();
+        burnCpu();
+        component.onComplete();
+
+        // then
+        assertThat(component.getThreadStats().getTotalCpuNanos()).isIn(0L, -1L);
+    }
+
+    @Test
+    public void shouldCaptureLongThreadContext() {
+        // given
+        when(ticker.read()).thenReturn(0L);
+        ThreadStatsComponent component = new ThreadStatsComponent(null, sampler);
+
+        // when
+        when(ticker.read()).thenReturn(MILLISECONDS.toNanos(100));
+        sampler.sample();
+        burnCpu();
+        component.onComplete();
+
+        // then
+        if (ThreadStatsComponent.IS_THREAD_CPU_TIME_SUPPORTED) {
+            assertThat(component.getThreadStats().getTotalCpuNanos()).isGreaterThan(0);
+        }
+    }
+
+    private static void burnCpu() {
+        long end = System.nanoTime() + MILLISECONDS.toNanos(20);
+        while (System.nanoTime() < end) {
+        }
+    }
+}
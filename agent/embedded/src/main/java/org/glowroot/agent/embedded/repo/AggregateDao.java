@@ -20,16 +20,32 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
@@ -40,21 +56,30 @@ import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.QueryResultCache;
+import org.glowroot.agent.embedded.util.QueryResultCache.RangeQuery;
 import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
+import org.glowroot.agent.embedded.util.TimePartitionedTable.PartitionQuery;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
@@ -64,10 +89,13 @@ import org.glowroot.common.model.TransactionErrorSummaryCollector;
 import org.glowroot.common.model.TransactionErrorSummaryCollector.ErrorSummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.util.NotAvailableAware;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.MutableThreadStats;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.common2.repo.util.ThreadStatsCreator;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -75,12 +103,40 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class AggregateDao implements AggregateRepository {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
+
     private static final String AGENT_ID = "";
 
+    // when greater than zero, rollups are performed off of the aggregate collection thread by a
+    // dedicated rollup thread, with the transaction types of each rollup interval being rolled up
+    // in parallel by this many worker threads (when zero, rollups are performed inside store())
+    private static final int ROLLUP_THREADS =
+            Integer.getInteger("glowroot.aggregate.rollup.threads", 2);
+    // upper bound on the estimated memory held by all of the (not yet rolled up) partial rollups
+    // combined, past which the partial rollup that is being merged into is discarded and its
+    // rollup interval is instead rolled up from disk
+    private static final long PARTIAL_ROLLUP_MAX_BYTES =
+            Long.getLong("glowroot.aggregate.rollup.partial.max.bytes", 16 * 1024 * 1024);
+
+    // rough per-item memory estimates used to enforce PARTIAL_ROLLUP_MAX_BYTES (timers, thread
+    // stats and histogram are lumped into the base aggregate estimate)
+    private static final int ESTIMATED_AGGREGATE_BYTES = 4096;
+    private static final int ESTIMATED_QUERY_BYTES = 512;
+    private static final int ESTIMATED_SERVICE_CALL_BYTES = 512;
+    private static final int ESTIMATED_PROFILE_NODE_BYTES = 64;
+
+    // chart query results are cached in buckets of this many rollup intervals
+    private static final int QUERY_RESULT_CACHE_BUCKET_INTERVALS = 30;
+
+    // each partition holds this many rollup intervals (e.g. one day for the 1 minute rollup level),
+    // same as GaugeValueDao
+    private static final int ROLLUP_INTERVALS_PER_PARTITION = 1440;
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -151,42 +207,105 @@ public class AggregateDao implements AggregateRepository {
     private final ConfigRepositoryImpl configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final QueryResultCache queryResultCache;
 
+    // index is rollup level
+    private final ImmutableList<TimePartitionedTable> overallTables;
+    private final ImmutableList<TimePartitionedTable> transactionTables;
+
+    // index 0 is the last capture time stored at rollup level 0
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
+    private final @Nullable ExecutorService rollupExecutor;
+    private final @Nullable ExecutorService rollupWorkerExecutor;
+    private final AtomicLong pendingRollupCaptureTime = new AtomicLong();
+    private final AtomicBoolean rollupPending = new AtomicBoolean();
+
+    // partial rollups hold the aggregates of rollup intervals that have not been rolled up yet, so
+    // that rolling up an interval does not need to re-read the lower rollup level from disk
+    //
+    // list index is the rollup level being rolled up into (index 0 is unused), map key is the
+    // rollup capture time
+    private final Object partialRollupLock = new Object();
+    @GuardedBy("partialRollupLock")
+    private final List<SortedMap<Long, PartialRollup>> partialRollups;
+    // max capture time (of the lower rollup level) that has been seen for each rollup level, which
+    // is used to determine whether a new partial rollup has seen all of its source data
+    @GuardedBy("partialRollupLock")
+    private final long[] partialRollupSourceTimes;
+    // sum of the estimated bytes of all partial rollups
+    @GuardedBy("partialRollupLock")
+    private long partialRollupBytes;
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) throws Exception {
+            FullQueryTextDao fullQueryTextDao, QueryResultCache queryResultCache)
+            throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.queryResultCache = queryResultCache;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<TimePartitionedTable> overallTables = Lists.newArrayList();
+        List<TimePartitionedTable> transactionTables = Lists.newArrayList();
         for (int i = 0; i < rollupConfigs.size(); i++) {
-            String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
-            String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
-        }
+            // with the default rollup configs, each partition covers a whole number of intervals
+            // of the next rollup level, so rolling up a given capture time only reads from a single
+            // partition
+            long partitionMillis =
+                    rollupConfigs.get(i).intervalMillis() * ROLLUP_INTERVALS_PER_PARTITION;
+            @Untainted String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
+            TimePartitionedTable overallTable = new TimePartitionedTable(dataSource,
+                    overallTableName, overallAggregatePointColumns,
+                    ImmutableList.<Index>of(
+                            ImmutableIndex.of("idx", overallAggregateIndexColumns)),
+                    partitionMillis);
+            overallTable.migrateFrom(overallTableName);
+            overallTables.add(overallTable);
+            @Untainted String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
+            TimePartitionedTable transactionTable = new TimePartitionedTable(dataSource,
+                    transactionTableName, transactionAggregateColumns,
+                    ImmutableList.<Index>of(
+                            ImmutableIndex.of("idx", transactionAggregateIndexColumns)),
+                    partitionMillis);
+            transactionTable.migrateFrom(transactionTableName);
+            transactionTables.add(transactionTable);
+        }
+        this.overallTables = ImmutableList.copyOf(overallTables);
+        this.transactionTables = ImmutableList.copyOf(transactionTables);
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
         // on capture_time so these queries are relatively fast
         long[] lastRollupTimes = new long[rollupConfigs.size()];
-        lastRollupTimes[0] = 0;
-        for (int i = 1; i < lastRollupTimes.length; i++) {
-            lastRollupTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
-                    + " from aggregate_tt_rollup_" + castUntainted(i));
+        for (int i = 0; i < lastRollupTimes.length; i++) {
+            lastRollupTimes[i] = readMaxCaptureTime(dataSource, overallTables.get(i));
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        partialRollups = Lists.newArrayList();
+        partialRollupSourceTimes = new long[rollupConfigs.size()];
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            partialRollups.add(Maps.<Long, PartialRollup>newTreeMap());
+            if (i > 0) {
+                partialRollupSourceTimes[i] = lastRollupTimes[i - 1];
+            }
+        }
+
+        if (ROLLUP_THREADS > 0) {
+            rollupExecutor = Executors
+                    .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Rollup"));
+            rollupWorkerExecutor = Executors.newFixedThreadPool(ROLLUP_THREADS,
+                    ThreadFactories.create("Glowroot-Aggregate-Rollup-Worker-%d"));
+        } else {
+            rollupExecutor = null;
+            rollupWorkerExecutor = null;
+        }
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -202,8 +321,11 @@ public class AggregateDao implements AggregateRepository {
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                        overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        overallAggregate, truncatedQueryTexts,
+                        getPartitionTableName(null, 0, captureTime), cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
+                mergeIntoPartialRollup(transactionType, null, captureTime, overallAggregate,
+                        truncatedQueryTexts);
             }
             @Override
             public void visitTransactionAggregate(String transactionType, String transactionName,
@@ -211,7 +333,10 @@ public class AggregateDao implements AggregateRepository {
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
-                        transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        transactionAggregate, truncatedQueryTexts,
+                        getPartitionTableName(transactionName, 0, captureTime), cappedDatabase));
+                mergeIntoPartialRollup(transactionType, transactionName, captureTime,
+                        transactionAggregate, truncatedQueryTexts);
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -232,72 +357,152 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
+        // level 0 query results up to and including this capture time can now be cached
+        lastRollupTimes.set(0, captureTime);
+        if (partialRollupSourceTimes.length > 1) {
+            synchronized (partialRollupLock) {
+                partialRollupSourceTimes[1] = Math.max(partialRollupSourceTimes[1], captureTime);
             }
         }
+        if (rollupExecutor == null) {
+            rollup(captureTime);
+        } else {
+            scheduleRollup(rollupExecutor, captureTime);
+        }
     }
 
     // query.from() is non-inclusive
     @Override
-    public void mergeOverallSummaryInto(String agentRollupId, OverallQuery query,
-            OverallSummaryCollector collector) throws Exception {
-        dataSource.query(new OverallSummaryQuery(collector, query));
+    public void mergeOverallSummaryInto(String agentRollupId, final OverallQuery query,
+            final OverallSummaryCollector collector) throws Exception {
+        overallTables.get(query.rollupLevel()).query(query.from() + 1, query.to(),
+                new PartitionQuery</*@Nullable*/ Void>() {
+                    @Override
+                    public @Nullable Void query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (!tableNames.isEmpty()) {
+                            dataSource.query(
+                                    new OverallSummaryQuery(collector, query, tableNames));
+                        }
+                        return null;
+                    }
+                });
     }
 
     // query.from() is non-inclusive
     @Override
-    public void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
-            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
-            throws Exception {
-        dataSource.query(
-                new TransactionSummaryQuery(query, sortOrder, limit, collector));
+    public void mergeTransactionSummariesInto(String agentRollupId, final OverallQuery query,
+            final SummarySortOrder sortOrder, final int limit,
+            final TransactionSummaryCollector collector) throws Exception {
+        transactionTables.get(query.rollupLevel()).query(query.from() + 1, query.to(),
+                new PartitionQuery</*@Nullable*/ Void>() {
+                    @Override
+                    public @Nullable Void query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (!tableNames.isEmpty()) {
+                            dataSource.query(new TransactionSummaryQuery(query, sortOrder, limit,
+                                    collector, tableNames));
+                        }
+                        return null;
+                    }
+                });
     }
 
     // query.from() is non-inclusive
     @Override
-    public void mergeOverallErrorSummaryInto(String agentRollupId, OverallQuery query,
-            OverallErrorSummaryCollector collector) throws Exception {
-        dataSource.query(new OverallErrorSummaryQuery(collector, query));
+    public void mergeOverallErrorSummaryInto(String agentRollupId, final OverallQuery query,
+            final OverallErrorSummaryCollector collector) throws Exception {
+        overallTables.get(query.rollupLevel()).query(query.from() + 1, query.to(),
+                new PartitionQuery</*@Nullable*/ Void>() {
+                    @Override
+                    public @Nullable Void query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (!tableNames.isEmpty()) {
+                            dataSource.query(
+                                    new OverallErrorSummaryQuery(collector, query, tableNames));
+                        }
+                        return null;
+                    }
+                });
     }
 
     // query.from() is non-inclusive
     @Override
-    public void mergeTransactionErrorSummariesInto(String agentRollupId, OverallQuery query,
-            ErrorSummarySortOrder sortOrder, int limit, TransactionErrorSummaryCollector collector)
-            throws Exception {
-        dataSource.query(new TransactionErrorSummaryQuery(query, sortOrder, limit,
-                collector));
+    public void mergeTransactionErrorSummariesInto(String agentRollupId, final OverallQuery query,
+            final ErrorSummarySortOrder sortOrder, final int limit,
+            final TransactionErrorSummaryCollector collector) throws Exception {
+        transactionTables.get(query.rollupLevel()).query(query.from() + 1, query.to(),
+                new PartitionQuery</*@Nullable*/ Void>() {
+                    @Override
+                    public @Nullable Void query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (!tableNames.isEmpty()) {
+                            dataSource.query(new TransactionErrorSummaryQuery(query, sortOrder,
+                                    limit, collector, tableNames));
+                        }
+                        return null;
+                    }
+                });
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
-            TransactionQuery query) throws Exception {
-        return dataSource.query(new OverviewAggregateQuery(query));
+            final TransactionQuery query) throws Exception {
+        return queryCached("overview", query, new RangeQuery<OverviewAggregate>() {
+            @Override
+            public List<OverviewAggregate> query(long from, long to) throws Exception {
+                return queryRows(ImmutableTransactionQuery.copyOf(query).withFrom(from).withTo(to),
+                        new RowQueryFactory<OverviewAggregate>() {
+                            @Override
+                            public JdbcRowQuery<OverviewAggregate> create(TransactionQuery query,
+                                    List</*@Untainted*/ String> tableNames) {
+                                return new OverviewAggregateQuery(query, tableNames);
+                            }
+                        });
+            }
+            @Override
+            public long getCaptureTime(OverviewAggregate overviewAggregate) {
+                return overviewAggregate.captureTime();
+            }
+        });
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
-            TransactionQuery query) throws Exception {
-        return dataSource.query(new PercentileAggregateQuery(query));
+            final TransactionQuery query) throws Exception {
+        return queryCached("percentile", query, new RangeQuery<PercentileAggregate>() {
+            @Override
+            public List<PercentileAggregate> query(long from, long to) throws Exception {
+                return queryRows(ImmutableTransactionQuery.copyOf(query).withFrom(from).withTo(to),
+                        new RowQueryFactory<PercentileAggregate>() {
+                            @Override
+                            public JdbcRowQuery<PercentileAggregate> create(
+                                    TransactionQuery query,
+                                    List</*@Untainted*/ String> tableNames) {
+                                return new PercentileAggregateQuery(query, tableNames);
+                            }
+                        });
+            }
+            @Override
+            public long getCaptureTime(PercentileAggregate percentileAggregate) {
+                return percentileAggregate.captureTime();
+            }
+        });
     }
 
     // query.from() is INCLUSIVE
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new ThroughputAggregateQuery(query));
+        return queryRows(query, new RowQueryFactory<ThroughputAggregate>() {
+            @Override
+            public JdbcRowQuery<ThroughputAggregate> create(TransactionQuery query,
+                    List</*@Untainted*/ String> tableNames) {
+                return new ThroughputAggregateQuery(query, tableNames);
+            }
+        });
     }
 
     @Override
@@ -313,7 +518,7 @@ public class AggregateDao implements AggregateRepository {
         // get list of capped ids first since that is done under the data source lock
         // then do the expensive part of reading and constructing the protobuf messages outside of
         // the data source lock
-        List<CappedId> cappedIds = dataSource.query(new CappedIdQuery("queries_capped_id", query));
+        List<CappedId> cappedIds = readCappedIds(query, "queries_capped_id");
         long captureTime = Long.MIN_VALUE;
         for (CappedId cappedId : cappedIds) {
             captureTime = Math.max(captureTime, cappedId.captureTime());
@@ -340,8 +545,7 @@ public class AggregateDao implements AggregateRepository {
         // get list of capped ids first since that is done under the data source lock
         // then do the expensive part of reading and constructing the protobuf messages outside of
         // the data source lock
-        List<CappedId> cappedIds =
-                dataSource.query(new CappedIdQuery("service_calls_capped_id", query));
+        List<CappedId> cappedIds = readCappedIds(query, "service_calls_capped_id");
         long captureTime = Long.MIN_VALUE;
         for (CappedId cappedId : cappedIds) {
             captureTime = Math.max(captureTime, cappedId.captureTime());
@@ -378,71 +582,481 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public boolean hasMainThreadProfile(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return !dataSource.query(new CappedIdQuery("main_thread_profile_capped_id", query))
-                .isEmpty();
+        return !readCappedIds(query, "main_thread_profile_capped_id").isEmpty();
     }
 
     // query.from() is non-inclusive
     @Override
     public boolean hasAuxThreadProfile(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return !dataSource.query(new CappedIdQuery("aux_thread_profile_capped_id", query))
-                .isEmpty();
+        return !readCappedIds(query, "aux_thread_profile_capped_id").isEmpty();
     }
 
     // query.from() is non-inclusive
     @Override
     public boolean shouldHaveMainThreadProfile(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return dataSource
-                .query(new ShouldHaveSomethingQuery(query, "main_thread_profile_capped_id"));
+        return shouldHaveSomething(query, "main_thread_profile_capped_id");
     }
 
     // query.from() is non-inclusive
     @Override
     public boolean shouldHaveAuxThreadProfile(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return dataSource
-                .query(new ShouldHaveSomethingQuery(query, "aux_thread_profile_capped_id"));
+        return shouldHaveSomething(query, "aux_thread_profile_capped_id");
     }
 
     // query.from() is non-inclusive
     @Override
     public boolean shouldHaveQueries(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return dataSource.query(new ShouldHaveSomethingQuery(query, "queries_capped_id"));
+        return shouldHaveSomething(query, "queries_capped_id");
     }
 
     // query.from() is non-inclusive
     @Override
     public boolean shouldHaveServiceCalls(String agentRollupId, TransactionQuery query)
             throws Exception {
-        return dataSource.query(new ShouldHaveSomethingQuery(query, "service_calls_capped_id"));
+        return shouldHaveSomething(query, "service_calls_capped_id");
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        // this drops entire partitions, and only deletes individual rows from (at most) one
+        // partition
+        overallTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionTables.get(rollupLevel).deleteBefore(captureTime);
+        queryResultCache.invalidateAll();
+    }
+
+    long countOverallAggregates(final long from, final long to) throws Exception {
+        return overallTables.get(0).query(from, to, new PartitionQuery<Long>() {
+            @Override
+            public Long query(List</*@Untainted*/ String> tableNames) throws Exception {
+                long count = 0;
+                for (String tableName : tableNames) {
+                    count += dataSource.queryForLong("select count(*) from " + tableName
+                            + " where capture_time > ? and capture_time < ?", from, to);
+                }
+                return count;
+            }
+        });
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (rollupLock) {
+            for (int i = 0; i < overallTables.size(); i++) {
+                lastRollupTimes.set(i, readMaxCaptureTime(dataSource, overallTables.get(i)));
+            }
+            synchronized (partialRollupLock) {
+                // the partial rollups hold aggregates that have just been deleted
+                for (int i = 0; i < partialRollups.size(); i++) {
+                    partialRollups.get(i).clear();
+                    if (i > 0) {
+                        partialRollupSourceTimes[i] = lastRollupTimes.get(i - 1);
+                    }
+                }
+                partialRollupBytes = 0;
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        if (rollupExecutor != null) {
+            rollupExecutor.shutdown();
+            if (!rollupExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        if (rollupWorkerExecutor != null) {
+            rollupWorkerExecutor.shutdown();
+            if (!rollupWorkerExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+    }
+
+    // query.from() is INCLUSIVE
+    private <T extends /*@NonNull*/ Object> List<T> queryRows(final TransactionQuery query,
+            final RowQueryFactory<T> rowQueryFactory) throws Exception {
+        return getTable(query).query(query.from(), query.to(), new PartitionQuery<List<T>>() {
+            @Override
+            public List<T> query(List</*@Untainted*/ String> tableNames) throws Exception {
+                if (tableNames.isEmpty()) {
+                    return ImmutableList.of();
+                }
+                return dataSource.query(rowQueryFactory.create(query, tableNames));
+            }
+        });
+    }
+
+    // query.from() is non-inclusive
+    private List<CappedId> readCappedIds(final TransactionQuery query,
+            final @Untainted String cappedIdColumnName) throws Exception {
+        return getTable(query).query(query.from() + 1, query.to(),
+                new PartitionQuery<List<CappedId>>() {
+                    @Override
+                    public List<CappedId> query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (tableNames.isEmpty()) {
+                            return ImmutableList.of();
+                        }
+                        return dataSource
+                                .query(new CappedIdQuery(cappedIdColumnName, query, tableNames));
+                    }
+                });
+    }
+
+    // query.from() is non-inclusive
+    private boolean shouldHaveSomething(final TransactionQuery query,
+            final @Untainted String cappedIdColumnName) throws Exception {
+        return getTable(query).query(query.from() + 1, query.to(), new PartitionQuery<Boolean>() {
+            @Override
+            public Boolean query(List</*@Untainted*/ String> tableNames) throws Exception {
+                for (String tableName : tableNames) {
+                    if (dataSource.query(
+                            new ShouldHaveSomethingQuery(query, cappedIdColumnName, tableName))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    private TimePartitionedTable getTable(TransactionQuery query) {
+        return getTable(query.transactionName(), query.rollupLevel());
+    }
+
+    private TimePartitionedTable getTable(@Nullable String transactionName, int rollupLevel) {
+        if (transactionName == null) {
+            return overallTables.get(rollupLevel);
+        } else {
+            return transactionTables.get(rollupLevel);
+        }
+    }
+
+    private @Untainted String getPartitionTableName(@Nullable String transactionName,
+            int rollupLevel, long captureTime) throws SQLException {
+        return getTable(transactionName, rollupLevel).getPartitionTableName(captureTime);
+    }
+
+    // query.from() is INCLUSIVE
+    private <T extends /*@NonNull*/ Object> List<T> queryCached(String queryName,
+            TransactionQuery query, RangeQuery<T> rangeQuery) throws Exception {
+        int rollupLevel = query.rollupLevel();
+        long bucketMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * QUERY_RESULT_CACHE_BUCKET_INTERVALS;
+        // transaction name is null for overall queries, which use a different table
+        String transactionName = query.transactionName();
+        List<String> queryArgs;
+        if (transactionName == null) {
+            queryArgs = ImmutableList.of(query.transactionType());
+        } else {
+            queryArgs = ImmutableList.of(query.transactionType(), transactionName);
+        }
+        return queryResultCache.query(queryName, queryArgs, rollupLevel, bucketMillis,
+                query.from(), query.to(), lastRollupTimes.get(rollupLevel), rangeQuery);
+    }
+
+    private void scheduleRollup(ExecutorService rollupExecutor, long captureTime) {
+        // a single rollup catches up all rollup levels to the latest capture time, so there is
+        // never a need to queue up more than one rollup behind the one that is currently running
+        pendingRollupCaptureTime.set(captureTime);
+        if (!rollupPending.compareAndSet(false, true)) {
+            return;
+        }
+        rollupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                rollupPending.set(false);
+                try {
+                    rollup(pendingRollupCaptureTime.get());
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    private void rollup(long captureTime) throws Exception {
+        synchronized (rollupLock) {
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                RollupConfig rollupConfig = rollupConfigs.get(i);
+                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
+                        rollupConfig.intervalMillis());
+                long lastRollupTime = lastRollupTimes.get(i);
+                if (safeRollupTime > lastRollupTime) {
+                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
+                    lastRollupTimes.set(i, safeRollupTime);
+                }
+            }
+        }
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
-        List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
-                fixedIntervalMillis, lastRollupTime, curentRollupTime));
+        Set<Long> rollupTimes = readRollupTimes(lastRollupTime, curentRollupTime,
+                fixedIntervalMillis, fromRollupLevel);
+        Map<Long, PartialRollup> partialRollups;
+        synchronized (partialRollupLock) {
+            SortedMap<Long, PartialRollup> headMap =
+                    this.partialRollups.get(toRollupLevel).headMap(curentRollupTime + 1);
+            partialRollups = ImmutableMap.copyOf(headMap);
+            headMap.clear();
+            for (PartialRollup partialRollup : partialRollups.values()) {
+                partialRollupBytes -= partialRollup.getEstimatedBytes();
+            }
+        }
+        for (Long rollupTime : partialRollups.keySet()) {
+            if (rollupTime > lastRollupTime) {
+                rollupTimes.add(rollupTime);
+            }
+        }
+        boolean hasNextRollupLevel =
+                toRollupLevel + 1 < configRepository.getRollupConfigs().size();
         for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+            PartialRollup partialRollup = partialRollups.get(rollupTime);
+            List<PartialRollup> rolledUp;
+            if (partialRollup != null && partialRollup.isComplete()) {
+                storePartialRollup(partialRollup, rollupTime, toRollupLevel);
+                rolledUp = ImmutableList.of(partialRollup);
+            } else {
+                rolledUp = rollupFromDisk(rollupTime, fixedIntervalMillis, fromRollupLevel,
+                        toRollupLevel, hasNextRollupLevel);
+            }
+            if (hasNextRollupLevel) {
+                mergeIntoPartialRollup(toRollupLevel + 1, rollupTime, rolledUp);
+            }
+        }
+    }
+
+    private void storePartialRollup(final PartialRollup partialRollup,
+            final long rollupCaptureTime, final int toRollupLevel) throws Exception {
+        final CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+        List<Callable<PartialRollup>> tasks = Lists.newArrayList();
+        for (final String transactionType : partialRollup.getTransactionTypes()) {
+            tasks.add(new Callable<PartialRollup>() {
+                @Override
+                public PartialRollup call() throws Exception {
+                    ScratchBuffer scratchBuffer = new ScratchBuffer();
+                    MutableAggregate overallAggregate =
+                            partialRollup.getOverallAggregate(transactionType);
+                    if (overallAggregate != null) {
+                        dataSource.update(new AggregateInsert(transactionType, null,
+                                rollupCaptureTime, overallAggregate,
+                                getPartitionTableName(null, toRollupLevel, rollupCaptureTime),
+                                cappedDatabase, scratchBuffer));
+                    }
+                    for (Map.Entry<String, MutableAggregate> entry : partialRollup
+                            .getTransactionAggregates(transactionType).entrySet()) {
+                        dataSource.update(new AggregateInsert(transactionType, entry.getKey(),
+                                rollupCaptureTime, entry.getValue(), getPartitionTableName(
+                                        entry.getKey(), toRollupLevel, rollupCaptureTime),
+                                cappedDatabase, scratchBuffer));
+                    }
+                    return partialRollup;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private Set<Long> readRollupTimes(final long lastRollupTime, final long curentRollupTime,
+            final long fixedIntervalMillis, int fromRollupLevel) throws Exception {
+        return overallTables.get(fromRollupLevel).query(lastRollupTime + 1, curentRollupTime,
+                new PartitionQuery<Set<Long>>() {
+                    @Override
+                    public Set<Long> query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        Set<Long> rollupTimes = Sets.newTreeSet();
+                        for (String tableName : tableNames) {
+                            rollupTimes.addAll(dataSource.query(new RollupTimeRowMapper(
+                                    tableName, fixedIntervalMillis, lastRollupTime,
+                                    curentRollupTime)));
+                        }
+                        return rollupTimes;
+                    }
+                });
+    }
+
+    private List<PartialRollup> rollupFromDisk(final long rollupCaptureTime,
+            final long fixedIntervalMillis, final int fromRollupLevel, final int toRollupLevel,
+            final boolean collect) throws Exception {
+        final long from = rollupCaptureTime - fixedIntervalMillis;
+        // the source partitions are not dropped (e.g. by the reaper) until the rollup completes
+        return overallTables.get(fromRollupLevel).query(from + 1, rollupCaptureTime,
+                new PartitionQuery<List<PartialRollup>>() {
+                    @Override
+                    public List<PartialRollup> query(
+                            final List</*@Untainted*/ String> overallTableNames)
+                            throws Exception {
+                        return transactionTables.get(fromRollupLevel).query(from + 1,
+                                rollupCaptureTime, new PartitionQuery<List<PartialRollup>>() {
+                                    @Override
+                                    public List<PartialRollup> query(
+                                            List</*@Untainted*/ String> transactionTableNames)
+                                            throws Exception {
+                                        return rollupFromDisk(rollupCaptureTime,
+                                                fixedIntervalMillis, fromRollupLevel,
+                                                toRollupLevel, collect, overallTableNames,
+                                                transactionTableNames);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private List<PartialRollup> rollupFromDisk(final long rollupCaptureTime,
+            final long fixedIntervalMillis, final int fromRollupLevel, final int toRollupLevel,
+            final boolean collect, final List</*@Untainted*/ String> overallTableNames,
+            final List</*@Untainted*/ String> transactionTableNames) throws Exception {
+        Set<String> transactionTypes = Sets.newLinkedHashSet();
+        for (String overallTableName : overallTableNames) {
+            transactionTypes.addAll(dataSource.query(new RollupTransactionTypeQuery(
+                    overallTableName, rollupCaptureTime - fixedIntervalMillis,
+                    rollupCaptureTime)));
+        }
+        List<Callable<PartialRollup>> tasks = Lists.newArrayList();
+        for (final String transactionType : transactionTypes) {
+            tasks.add(new Callable<PartialRollup>() {
+                @Override
+                public PartialRollup call() throws Exception {
+                    // the rolled up aggregates are only collected when they are needed for the
+                    // next rollup level
+                    PartialRollup rolledUp = new PartialRollup(collect);
+                    dataSource.query(new RollupOverallAggregates(transactionType,
+                            rollupCaptureTime, fixedIntervalMillis, fromRollupLevel,
+                            toRollupLevel, rolledUp, overallTableNames));
+                    if (!transactionTableNames.isEmpty()) {
+                        dataSource.query(new RollupTransactionAggregates(transactionType,
+                                rollupCaptureTime, fixedIntervalMillis, fromRollupLevel,
+                                toRollupLevel, rolledUp, transactionTableNames));
+                    }
+                    return rolledUp;
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+        List<T> results = Lists.newArrayList();
+        if (rollupWorkerExecutor == null || tasks.size() == 1) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        for (Future<T> future : rollupWorkerExecutor.invokeAll(tasks)) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private void mergeIntoPartialRollup(String transactionType, @Nullable String transactionName,
+            long captureTime, Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts) {
+        if (partialRollups.size() <= 1) {
+            return;
+        }
+        synchronized (partialRollupLock) {
+            PartialRollup partialRollup = getPartialRollup(1, captureTime);
+            MutableAggregate mergedAggregate =
+                    partialRollup.getOrCreateAggregate(transactionType, transactionName,
+                            getMaxQueryAggregates(), getMaxServiceCallAggregates());
+            if (mergedAggregate != null) {
+                long priorEstimatedBytes = estimateBytes(mergedAggregate);
+                merge(mergedAggregate, aggregate, truncatedQueryTexts);
+                addEstimatedBytes(partialRollup,
+                        estimateBytes(mergedAggregate) - priorEstimatedBytes);
+            }
+        }
+    }
+
+    private void mergeIntoPartialRollup(int rollupLevel, long captureTime,
+            List<PartialRollup> rolledUp) {
+        int maxQueryAggregates = getMaxQueryAggregates();
+        int maxServiceCallAggregates = getMaxServiceCallAggregates();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        synchronized (partialRollupLock) {
+            PartialRollup partialRollup = getPartialRollup(rollupLevel, captureTime);
+            for (PartialRollup toBeMerged : rolledUp) {
+                if (!toBeMerged.isComplete()) {
+                    partialRollupBytes -= partialRollup.markIncomplete();
+                }
+                for (String transactionType : toBeMerged.getTransactionTypes()) {
+                    MutableAggregate overallAggregate =
+                            toBeMerged.getOverallAggregate(transactionType);
+                    if (overallAggregate != null) {
+                        MutableAggregate mergedAggregate = partialRollup.getOrCreateAggregate(
+                                transactionType, null, maxQueryAggregates,
+                                maxServiceCallAggregates);
+                        if (mergedAggregate != null) {
+                            long priorEstimatedBytes = estimateBytes(mergedAggregate);
+                            merge(mergedAggregate, overallAggregate, scratchBuffer);
+                            addEstimatedBytes(partialRollup,
+                                    estimateBytes(mergedAggregate) - priorEstimatedBytes);
+                        }
+                    }
+                    for (Map.Entry<String, MutableAggregate> entry : toBeMerged
+                            .getTransactionAggregates(transactionType).entrySet()) {
+                        MutableAggregate mergedAggregate = partialRollup.getOrCreateAggregate(
+                                transactionType, entry.getKey(), maxQueryAggregates,
+                                maxServiceCallAggregates);
+                        if (mergedAggregate != null) {
+                            long priorEstimatedBytes = estimateBytes(mergedAggregate);
+                            merge(mergedAggregate, entry.getValue(), scratchBuffer);
+                            addEstimatedBytes(partialRollup,
+                                    estimateBytes(mergedAggregate) - priorEstimatedBytes);
+                        }
+                    }
+                }
+            }
+            partialRollupSourceTimes[rollupLevel] =
+                    Math.max(partialRollupSourceTimes[rollupLevel], captureTime);
+        }
+    }
+
+    @GuardedBy("partialRollupLock")
+    private void addEstimatedBytes(PartialRollup partialRollup, long estimatedBytes) {
+        if (!partialRollup.isComplete()) {
+            return;
+        }
+        partialRollup.addEstimatedBytes(estimatedBytes);
+        partialRollupBytes += estimatedBytes;
+        if (partialRollupBytes > PARTIAL_ROLLUP_MAX_BYTES) {
+            logger.debug("partial rollups exceeded {} bytes, rollup interval will be rolled up"
+                    + " from disk", PARTIAL_ROLLUP_MAX_BYTES);
+            partialRollupBytes -= partialRollup.markIncomplete();
         }
     }
 
+    @GuardedBy("partialRollupLock")
+    private PartialRollup getPartialRollup(int rollupLevel, long sourceCaptureTime) {
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long rollupCaptureTime =
+                RollupLevelService.getCeilRollupTime(sourceCaptureTime, intervalMillis);
+        SortedMap<Long, PartialRollup> partialRollupsForLevel = partialRollups.get(rollupLevel);
+        PartialRollup partialRollup = partialRollupsForLevel.get(rollupCaptureTime);
+        if (partialRollup == null) {
+            // the partial rollup can only be used for the rollup if it sees all of the source data
+            // for its rollup interval, which is not the case when some of the source data was
+            // stored before it was created (e.g. prior to jvm restart)
+            boolean complete = partialRollupSourceTimes[rollupLevel] <= rollupCaptureTime
+                    - intervalMillis;
+            partialRollup = new PartialRollup(complete);
+            partialRollupsForLevel.put(rollupCaptureTime, partialRollup);
+        }
+        return partialRollup;
+    }
+
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
             @Untainted String cappedIdColumnName) throws Exception {
         // get list of capped ids first since that is done under the data source lock
         // then do the expensive part of reading and constructing the protobuf messages outside of
         // the data source lock
-        List<CappedId> cappedIds = dataSource.query(new CappedIdQuery(cappedIdColumnName, query));
+        List<CappedId> cappedIds = readCappedIds(query, cappedIdColumnName);
         long captureTime = Long.MIN_VALUE;
         for (CappedId cappedId : cappedIds) {
             captureTime = Math.max(captureTime, cappedId.captureTime());
@@ -549,6 +1163,140 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // an empty (just created) aggregate is estimated at zero bytes, so that the estimate delta of
+    // its first merge covers the base aggregate estimate too
+    private static long estimateBytes(MutableAggregate aggregate) {
+        if (aggregate.isEmpty()) {
+            return 0;
+        }
+        long estimatedBytes = ESTIMATED_AGGREGATE_BYTES;
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            estimatedBytes += queries.getQueryCount() * (long) ESTIMATED_QUERY_BYTES;
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            estimatedBytes +=
+                    serviceCalls.getServiceCallCount() * (long) ESTIMATED_SERVICE_CALL_BYTES;
+        }
+        CompactProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            estimatedBytes +=
+                    mainThreadProfile.getNodeCount() * (long) ESTIMATED_PROFILE_NODE_BYTES;
+        }
+        CompactProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            estimatedBytes +=
+                    auxThreadProfile.getNodeCount() * (long) ESTIMATED_PROFILE_NODE_BYTES;
+        }
+        return estimatedBytes;
+    }
+
+    // this mirrors merging the aggregate after it has been stored by AggregateInsert
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        Aggregate.ThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(mainThreadStats.hasTotalCpuNanos()
+                ? mainThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalBlockedNanos(mainThreadStats.hasTotalBlockedNanos()
+                ? mainThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalWaitedNanos(mainThreadStats.hasTotalWaitedNanos()
+                ? mainThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.hasTotalAllocatedBytes()
+                ? mainThreadStats.getTotalAllocatedBytes().getValue() : null);
+        Aggregate.ThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(auxThreadStats.hasTotalCpuNanos()
+                ? auxThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.hasTotalBlockedNanos()
+                ? auxThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.hasTotalWaitedNanos()
+                ? auxThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadStats.hasTotalAllocatedBytes()
+                ? auxThreadStats.getTotalAllocatedBytes().getValue() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : aggregate.getQueryList()) {
+            TruncatedQueryText truncatedQueryText =
+                    truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+            mergedAggregate.mergeQuery(query.getType(), truncatedQueryText.truncatedText(),
+                    truncatedQueryText.fullTextSha1(), query.getTotalDurationNanos(),
+                    query.getExecutionCount(), query.hasTotalRows(),
+                    query.getTotalRows().getValue());
+        }
+        for (Aggregate.ServiceCall serviceCall : aggregate.getServiceCallList()) {
+            mergedAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    // this mirrors merging the rolled up aggregate after it has been stored by AggregateInsert
+    private static void merge(MutableAggregate mergedAggregate, MutableAggregate aggregate,
+            ScratchBuffer scratchBuffer) {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.isAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimersProto());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimersProto());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimersProto());
+        MutableThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(
+                NotAvailableAware.orNull(mainThreadStats.getTotalCpuNanos()));
+        mergedAggregate.addMainThreadTotalBlockedNanos(
+                NotAvailableAware.orNull(mainThreadStats.getTotalBlockedNanos()));
+        mergedAggregate.addMainThreadTotalWaitedNanos(
+                NotAvailableAware.orNull(mainThreadStats.getTotalWaitedNanos()));
+        mergedAggregate.addMainThreadTotalAllocatedBytes(
+                NotAvailableAware.orNull(mainThreadStats.getTotalAllocatedBytes()));
+        MutableThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(
+                NotAvailableAware.orNull(auxThreadStats.getTotalCpuNanos()));
+        mergedAggregate.addAuxThreadTotalBlockedNanos(
+                NotAvailableAware.orNull(auxThreadStats.getTotalBlockedNanos()));
+        mergedAggregate.addAuxThreadTotalWaitedNanos(
+                NotAvailableAware.orNull(auxThreadStats.getTotalWaitedNanos()));
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(
+                NotAvailableAware.orNull(auxThreadStats.getTotalAllocatedBytes()));
+        mergedAggregate.mergeDurationNanosHistogram(
+                aggregate.getDurationNanosHistogram().toProto(scratchBuffer));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            for (MutableQuery query : queries.getSortedAndTruncatedQueries()) {
+                mergedAggregate.mergeQuery(query.getType(), query.getTruncatedText(),
+                        query.getFullTextSha1(), query.getTotalDurationNanos(),
+                        query.getExecutionCount(), query.hasTotalRows(), query.getTotalRows());
+            }
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            for (MutableServiceCall serviceCall : serviceCalls
+                    .getSortedAndTruncatedServiceCalls()) {
+                mergedAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+        }
+        CompactProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            mergedAggregate.mergeMainThreadProfile(mainThreadProfile.toProto());
+        }
+        CompactProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            mergedAggregate.mergeAuxThreadProfile(auxThreadProfile.toProto());
+        }
+    }
+
     private int getMaxQueryAggregates() {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(AGENT_ID);
         if (advancedConfig.hasMaxQueryAggregates()) {
@@ -567,14 +1315,6 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static @Untainted String getTableName(TransactionQuery query) {
-        if (query.transactionName() == null) {
-            return "aggregate_tt_rollup_" + castUntainted(query.rollupLevel());
-        } else {
-            return "aggregate_tn_rollup_" + castUntainted(query.rollupLevel());
-        }
-    }
-
     private static @Untainted String getTransactionNameCriteria(TransactionQuery query) {
         if (query.transactionName() == null) {
             return "";
@@ -583,19 +1323,57 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static int bindQuery(PreparedStatement preparedStatement, TransactionQuery query)
-            throws SQLException {
+    private static int bindQuery(PreparedStatement preparedStatement, TransactionQuery query,
+            int partitionCount) throws SQLException {
         int i = 1;
-        preparedStatement.setString(i++, query.transactionType());
-        String transactionName = query.transactionName();
-        if (transactionName != null) {
-            preparedStatement.setString(i++, transactionName);
+        for (int j = 0; j < partitionCount; j++) {
+            preparedStatement.setString(i++, query.transactionType());
+            String transactionName = query.transactionName();
+            if (transactionName != null) {
+                preparedStatement.setString(i++, transactionName);
+            }
+            preparedStatement.setLong(i++, query.from());
+            preparedStatement.setLong(i++, query.to());
+        }
+        return i;
+    }
+
+    private static int bindQuery(PreparedStatement preparedStatement, OverallQuery query,
+            int partitionCount) throws SQLException {
+        int i = 1;
+        for (int j = 0; j < partitionCount; j++) {
+            preparedStatement.setString(i++, query.transactionType());
+            preparedStatement.setLong(i++, query.from());
+            preparedStatement.setLong(i++, query.to());
         }
-        preparedStatement.setLong(i++, query.from());
-        preparedStatement.setLong(i++, query.to());
         return i;
     }
 
+    private static long readMaxCaptureTime(DataSource dataSource, TimePartitionedTable table)
+            throws Exception {
+        // partitions are in capture time order
+        for (String tableName : Lists.reverse(table.getAllPartitionTableNames())) {
+            Long maxCaptureTime =
+                    dataSource.queryForOptionalLong("select max(capture_time) from " + tableName);
+            if (maxCaptureTime != null) {
+                return maxCaptureTime;
+            }
+        }
+        return 0;
+    }
+
+    // with a single partition (the common case) the where clause is applied directly to the
+    // partition table, otherwise it is applied to each partition table and the results are combined
+    // using union all, in both cases the where clause arguments need to be bound once per partition
+    // table
+    private static @Untainted String getFromClause(List</*@Untainted*/ String> tableNames,
+            @Untainted String selectClause, @Untainted String whereClause) {
+        if (tableNames.size() == 1) {
+            return tableNames.get(0) + " where " + whereClause;
+        }
+        return "(" + TimePartitionedTable.unionAll(tableNames, selectClause, whereClause) + ") t";
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -611,10 +1389,13 @@ public class AggregateDao implements AggregateRepository {
 
         private final OverallSummaryCollector collector;
         private final OverallQuery query;
+        private final List</*@Untainted*/ String> tableNames;
 
-        private OverallSummaryQuery(OverallSummaryCollector collector, OverallQuery query) {
+        private OverallSummaryQuery(OverallSummaryCollector collector, OverallQuery query,
+                List</*@Untainted*/ String> tableNames) {
             this.collector = collector;
             this.query = query;
+            this.tableNames = tableNames;
         }
 
         @Override
@@ -622,16 +1403,14 @@ public class AggregateDao implements AggregateRepository {
             // it's important that all these columns are in a single index so h2 can return the
             // result set directly from the index without having to reference the table for each row
             return "select sum(total_duration_nanos), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
-                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
+                    + " from " + getFromClause(tableNames,
+                            "total_duration_nanos, transaction_count, capture_time",
+                            "transaction_type = ? and capture_time > ? and capture_time <= ?");
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            bindQuery(preparedStatement, query, tableNames.size());
         }
 
         @Override
@@ -662,24 +1441,31 @@ public class AggregateDao implements AggregateRepository {
 
         private final TransactionSummaryCollector collector;
 
+        private final List</*@Untainted*/ String> tableNames;
+
         private TransactionSummaryQuery(OverallQuery query, SummarySortOrder sortOrder, int limit,
-                TransactionSummaryCollector collector) {
+                TransactionSummaryCollector collector, List</*@Untainted*/ String> tableNames) {
             this.query = query;
             this.sortOrder = sortOrder;
             this.limit = limit;
             this.collector = collector;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
             // it's important that all these columns are in a single index so h2 can return the
             // result set directly from the index without having to reference the table for each row
+            //
+            // when the range spans multiple partitions, the group by is still performed over all of
+            // them in a single query, so that the limit is applied to the exact totals
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(total_duration_nanos), sum(transaction_count),"
-                    + " max(capture_time) from aggregate_tn_rollup_");
-            sb.append(query.rollupLevel());
-            sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
-                    + " group by transaction_name order by ");
+                    + " max(capture_time) from ");
+            sb.append(getFromClause(tableNames,
+                    "transaction_name, total_duration_nanos, transaction_count, capture_time",
+                    "transaction_type = ? and capture_time > ? and capture_time <= ?"));
+            sb.append(" group by transaction_name order by ");
             sb.append(getSortClause(sortOrder));
             sb.append(", transaction_name limit ?");
             return castUntainted(sb.toString());
@@ -687,10 +1473,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            int i = bindQuery(preparedStatement, query, tableNames.size());
             // limit + 100 since this result still needs to be merged with other results
             preparedStatement.setInt(i++, limit + 100);
         }
@@ -733,25 +1516,26 @@ public class AggregateDao implements AggregateRepository {
         private final OverallErrorSummaryCollector collector;
         private final OverallQuery query;
 
+        private final List</*@Untainted*/ String> tableNames;
+
         private OverallErrorSummaryQuery(OverallErrorSummaryCollector collector,
-                OverallQuery query) {
+                OverallQuery query, List</*@Untainted*/ String> tableNames) {
             this.collector = collector;
             this.query = query;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
             return "select sum(error_count), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
-                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
+                    + " from " + getFromClause(tableNames,
+                            "error_count, transaction_count, capture_time",
+                            "transaction_type = ? and capture_time > ? and capture_time <= ?");
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            bindQuery(preparedStatement, query, tableNames.size());
         }
 
         @Override
@@ -782,12 +1566,16 @@ public class AggregateDao implements AggregateRepository {
 
         private final TransactionErrorSummaryCollector collector;
 
+        private final List</*@Untainted*/ String> tableNames;
+
         private TransactionErrorSummaryQuery(OverallQuery query, ErrorSummarySortOrder sortOrder,
-                int limit, TransactionErrorSummaryCollector collector) {
+                int limit, TransactionErrorSummaryCollector collector,
+                List</*@Untainted*/ String> tableNames) {
             this.query = query;
             this.sortOrder = sortOrder;
             this.limit = limit;
             this.collector = collector;
+            this.tableNames = tableNames;
         }
 
         @Override
@@ -796,10 +1584,11 @@ public class AggregateDao implements AggregateRepository {
             // result set directly from the index without having to reference the table for each row
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(error_count), sum(transaction_count),");
-            sb.append(" max(capture_time) from aggregate_tn_rollup_");
-            sb.append(castUntainted(query.rollupLevel()));
-            sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
-                    + " group by transaction_name having sum(error_count) > 0 order by ");
+            sb.append(" max(capture_time) from ");
+            sb.append(getFromClause(tableNames,
+                    "transaction_name, error_count, transaction_count, capture_time",
+                    "transaction_type = ? and capture_time > ? and capture_time <= ?"));
+            sb.append(" group by transaction_name having sum(error_count) > 0 order by ");
             sb.append(getSortClause(sortOrder));
             sb.append(", transaction_name limit ?");
             return castUntainted(sb.toString());
@@ -807,10 +1596,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            int i = bindQuery(preparedStatement, query, tableNames.size());
             // limit + 100 since this result still needs to be merged with other results
             preparedStatement.setInt(i++, limit + 100);
         }
@@ -848,29 +1634,33 @@ public class AggregateDao implements AggregateRepository {
     private static class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
 
         private final TransactionQuery query;
+        private final List</*@Untainted*/ String> tableNames;
 
-        private OverviewAggregateQuery(TransactionQuery query) {
+        private OverviewAggregateQuery(TransactionQuery query,
+                List</*@Untainted*/ String> tableNames) {
             this.query = query;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, total_duration_nanos, transaction_count,"
+            String columns = "capture_time, total_duration_nanos, transaction_count,"
                     + " async_transactions, main_thread_root_timers, aux_thread_root_timers,"
                     + " async_root_timers, main_thread_total_cpu_nanos,"
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
-                    + " aux_thread_total_allocated_bytes from " + tableName
-                    + " where transaction_type = ?" + transactionNameCriteria
-                    + " and capture_time >= ? and capture_time <= ? order by capture_time";
+                    + " aux_thread_total_allocated_bytes";
+            return "select " + columns + " from " + getFromClause(tableNames, columns,
+                    "transaction_type = ?" + transactionNameCriteria
+                            + " and capture_time >= ? and capture_time <= ?")
+                    + " order by capture_time";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            bindQuery(preparedStatement, query);
+            bindQuery(preparedStatement, query, tableNames.size());
         }
 
         @Override
@@ -918,24 +1708,28 @@ public class AggregateDao implements AggregateRepository {
     private static class PercentileAggregateQuery implements JdbcRowQuery<PercentileAggregate> {
 
         private final TransactionQuery query;
+        private final List</*@Untainted*/ String> tableNames;
 
-        private PercentileAggregateQuery(TransactionQuery query) {
+        private PercentileAggregateQuery(TransactionQuery query,
+                List</*@Untainted*/ String> tableNames) {
             this.query = query;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, total_duration_nanos, transaction_count,"
-                    + " duration_nanos_histogram from " + tableName + " where transaction_type = ?"
-                    + transactionNameCriteria + " and capture_time >= ? and capture_time <= ?"
+            String columns = "capture_time, total_duration_nanos, transaction_count,"
+                    + " duration_nanos_histogram";
+            return "select " + columns + " from " + getFromClause(tableNames, columns,
+                    "transaction_type = ?" + transactionNameCriteria
+                            + " and capture_time >= ? and capture_time <= ?")
                     + " order by capture_time";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            bindQuery(preparedStatement, query);
+            bindQuery(preparedStatement, query, tableNames.size());
         }
 
         @Override
@@ -955,23 +1749,27 @@ public class AggregateDao implements AggregateRepository {
     private static class ThroughputAggregateQuery implements JdbcRowQuery<ThroughputAggregate> {
 
         private final TransactionQuery query;
+        private final List</*@Untainted*/ String> tableNames;
 
-        private ThroughputAggregateQuery(TransactionQuery query) {
+        private ThroughputAggregateQuery(TransactionQuery query,
+                List</*@Untainted*/ String> tableNames) {
             this.query = query;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, transaction_count, error_count from " + tableName
-                    + " where transaction_type = ?" + transactionNameCriteria
-                    + " and capture_time >= ? and capture_time <= ? order by capture_time";
+            String columns = "capture_time, transaction_count, error_count";
+            return "select " + columns + " from " + getFromClause(tableNames, columns,
+                    "transaction_type = ?" + transactionNameCriteria
+                            + " and capture_time >= ? and capture_time <= ?")
+                    + " order by capture_time";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            bindQuery(preparedStatement, query);
+            bindQuery(preparedStatement, query, tableNames.size());
         }
 
         @Override
@@ -987,23 +1785,30 @@ public class AggregateDao implements AggregateRepository {
 
     private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final String transactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final PartialRollup rolledUp;
+        private final List</*@Untainted*/ String> tableNames;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
-        private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupOverallAggregates(String transactionType, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel,
+                PartialRollup rolledUp, List</*@Untainted*/ String> tableNames) {
+            this.transactionType = transactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.rolledUp = rolledUp;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select transaction_type, total_duration_nanos, transaction_count, error_count,"
+            String columns = "total_duration_nanos, transaction_count, error_count,"
                     + " async_transactions, queries_capped_id, service_calls_capped_id,"
                     + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
                     + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
@@ -1011,40 +1816,37 @@ public class AggregateDao implements AggregateRepository {
                     + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
                     + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
                     + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
-                    + " duration_nanos_histogram from aggregate_tt_rollup_"
-                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
+                    + " duration_nanos_histogram";
+            return "select " + columns + " from " + getFromClause(tableNames, columns,
+                    "transaction_type = ? and capture_time > ? and capture_time <= ?");
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
-            preparedStatement.setLong(2, rollupCaptureTime);
+            int i = 1;
+            for (int j = 0; j < tableNames.size(); j++) {
+                preparedStatement.setString(i++, transactionType);
+                preparedStatement.setLong(i++, rollupCaptureTime - fixedIntervalMillis);
+                preparedStatement.setLong(i++, rollupCaptureTime);
+            }
         }
 
         @Override
         public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
-            int maxQueryAggregates = getMaxQueryAggregates();
-            int maxServiceCallAggregates = getMaxServiceCallAggregates();
-            CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
-            MutableOverallAggregate curr = null;
+            MutableAggregate mergedAggregate = null;
             while (resultSet.next()) {
-                String transactionType = checkNotNull(resultSet.getString(1));
-                if (curr == null || !transactionType.equals(curr.transactionType())) {
-                    if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                                cappedDatabase, scratchBuffer));
-                    }
-                    curr = ImmutableMutableOverallAggregate.of(transactionType,
-                            new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
+                if (mergedAggregate == null) {
+                    mergedAggregate = new MutableAggregate(getMaxQueryAggregates(),
+                            getMaxServiceCallAggregates());
                 }
-                merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
+                merge(mergedAggregate, resultSet, 1, fromRollupLevel);
             }
-            if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
-                        scratchBuffer));
+            if (mergedAggregate != null) {
+                dataSource.update(new AggregateInsert(transactionType, null, rollupCaptureTime,
+                        mergedAggregate,
+                        getPartitionTableName(null, toRollupLevel, rollupCaptureTime),
+                        rollupCappedDatabases.get(toRollupLevel), scratchBuffer));
+                rolledUp.add(transactionType, null, mergedAggregate);
             }
             return null;
         }
@@ -1057,39 +1859,50 @@ public class AggregateDao implements AggregateRepository {
 
     private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final String transactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final PartialRollup rolledUp;
+        private final List</*@Untainted*/ String> tableNames;
 
-        private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupTransactionAggregates(String transactionType, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel,
+                PartialRollup rolledUp, List</*@Untainted*/ String> tableNames) {
+            this.transactionType = transactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.rolledUp = rolledUp;
+            this.tableNames = tableNames;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select transaction_type, transaction_name, total_duration_nanos,"
-                    + " transaction_count, error_count, async_transactions, queries_capped_id,"
+            String columns = "transaction_name, total_duration_nanos, transaction_count,"
+                    + " error_count, async_transactions, queries_capped_id,"
                     + " service_calls_capped_id, main_thread_profile_capped_id,"
                     + " aux_thread_profile_capped_id, main_thread_root_timers,"
                     + " aux_thread_root_timers, async_root_timers, main_thread_total_cpu_nanos,"
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
-                    + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
-                    + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
-                    + " where capture_time > ? and capture_time <= ? order by transaction_type,"
-                    + " transaction_name";
+                    + " aux_thread_total_allocated_bytes, duration_nanos_histogram";
+            return "select " + columns + " from " + getFromClause(tableNames, columns,
+                    "transaction_type = ? and capture_time > ? and capture_time <= ?")
+                    + " order by transaction_name";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
-            preparedStatement.setLong(2, rollupCaptureTime);
+            int i = 1;
+            for (int j = 0; j < tableNames.size(); j++) {
+                preparedStatement.setString(i++, transactionType);
+                preparedStatement.setLong(i++, rollupCaptureTime - fixedIntervalMillis);
+                preparedStatement.setLong(i++, rollupCaptureTime);
+            }
         }
 
         @Override
@@ -1100,25 +1913,18 @@ public class AggregateDao implements AggregateRepository {
             ScratchBuffer scratchBuffer = new ScratchBuffer();
             MutableTransactionAggregate curr = null;
             while (resultSet.next()) {
-                int i = 1;
-                String transactionType = checkNotNull(resultSet.getString(i++));
-                String transactionName = checkNotNull(resultSet.getString(i++));
-                if (curr == null || !transactionType.equals(curr.transactionType())
-                        || !transactionName.equals(curr.transactionName())) {
+                String transactionName = checkNotNull(resultSet.getString(1));
+                if (curr == null || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
-                                curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
+                        store(curr, cappedDatabase, scratchBuffer);
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
                 }
-                merge(curr.aggregate(), resultSet, i++, fromRollupLevel);
+                merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                        cappedDatabase, scratchBuffer));
+                store(curr, cappedDatabase, scratchBuffer);
             }
             return null;
         }
@@ -1127,35 +1933,58 @@ public class AggregateDao implements AggregateRepository {
         public @Nullable Void valueIfDataSourceClosed() {
             return null;
         }
+
+        private void store(MutableTransactionAggregate transactionAggregate,
+                CappedDatabase cappedDatabase, ScratchBuffer scratchBuffer) throws Exception {
+            String transactionName = transactionAggregate.transactionName();
+            dataSource.update(new AggregateInsert(transactionAggregate.transactionType(),
+                    transactionName, rollupCaptureTime, transactionAggregate.aggregate(),
+                    getPartitionTableName(transactionName, toRollupLevel, rollupCaptureTime),
+                    cappedDatabase, scratchBuffer));
+            rolledUp.add(transactionAggregate.transactionType(), transactionName,
+                    transactionAggregate.aggregate());
+        }
     }
 
     private class CappedIdQuery implements JdbcQuery<List<CappedId>> {
 
         private final @Untainted String cappedIdColumnName;
         private final TransactionQuery query;
+        private final List</*@Untainted*/ String> tableNames;
         private final long smallestNonExpiredCappedId;
 
-        private CappedIdQuery(@Untainted String cappedIdColumnName, TransactionQuery query) {
+        private CappedIdQuery(@Untainted String cappedIdColumnName, TransactionQuery query,
+                List</*@Untainted*/ String> tableNames) {
             this.cappedIdColumnName = cappedIdColumnName;
             this.query = query;
+            this.tableNames = tableNames;
             smallestNonExpiredCappedId =
                     rollupCappedDatabases.get(query.rollupLevel()).getSmallestNonExpiredId();
         }
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
-            return "select capture_time, " + cappedIdColumnName + " from " + tableName
-                    + " where transaction_type = ?" + transactionNameCriteria
-                    + " and capture_time > ? and capture_time <= ? and " + cappedIdColumnName
-                    + " >= ?";
+            return "select capture_time, " + cappedIdColumnName + " from "
+                    + getFromClause(tableNames, "capture_time, " + cappedIdColumnName,
+                            "transaction_type = ?" + transactionNameCriteria
+                                    + " and capture_time > ? and capture_time <= ? and "
+                                    + cappedIdColumnName + " >= ?");
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            int i = bindQuery(preparedStatement, query);
-            preparedStatement.setLong(i++, smallestNonExpiredCappedId);
+            int i = 1;
+            for (int j = 0; j < tableNames.size(); j++) {
+                preparedStatement.setString(i++, query.transactionType());
+                String transactionName = query.transactionName();
+                if (transactionName != null) {
+                    preparedStatement.setString(i++, transactionName);
+                }
+                preparedStatement.setLong(i++, query.from());
+                preparedStatement.setLong(i++, query.to());
+                preparedStatement.setLong(i++, smallestNonExpiredCappedId);
+            }
         }
 
         @Override
@@ -1177,16 +2006,17 @@ public class AggregateDao implements AggregateRepository {
 
         private final TransactionQuery query;
         private final @Untainted String cappedIdColumnName;
+        private final @Untainted String tableName;
 
         private ShouldHaveSomethingQuery(TransactionQuery query,
-                @Untainted String cappedIdColumnName) {
+                @Untainted String cappedIdColumnName, @Untainted String tableName) {
             this.query = query;
             this.cappedIdColumnName = cappedIdColumnName;
+            this.tableName = tableName;
         }
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select 1 from " + tableName + " where transaction_type = ?"
                     + transactionNameCriteria + " and capture_time > ? and capture_time <= ?"
@@ -1218,14 +2048,14 @@ public class AggregateDao implements AggregateRepository {
 
     private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
-        private final int rollupLevel;
+        private final @Untainted String tableName;
         private final long fixedIntervalMillis;
         private final long lastRollupTime;
         private final long curentRollupTime;
 
-        private RollupTimeRowMapper(int rollupLevel, long fixedIntervalMillis, long lastRollupTime,
-                long curentRollupTime) {
-            this.rollupLevel = rollupLevel;
+        private RollupTimeRowMapper(@Untainted String tableName, long fixedIntervalMillis,
+                long lastRollupTime, long curentRollupTime) {
+            this.tableName = tableName;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.lastRollupTime = lastRollupTime;
             this.curentRollupTime = curentRollupTime;
@@ -1236,8 +2066,8 @@ public class AggregateDao implements AggregateRepository {
             // need ".0" to force double result
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-            return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+            return "select distinct " + captureTimeSql + " from " + tableName
+                    + " where capture_time > ? and capture_time <= ?";
         }
 
         @Override
@@ -1252,6 +2082,143 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class RollupTransactionTypeQuery implements JdbcRowQuery<String> {
+
+        private final @Untainted String tableName;
+        private final long from;
+        private final long to;
+
+        private RollupTransactionTypeQuery(@Untainted String tableName, long from, long to) {
+            this.tableName = tableName;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select distinct transaction_type from " + tableName
+                    + " where capture_time > ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+
+    // aggregates of a single rollup interval, either merged incrementally as the lower rollup
+    // level is stored, or collected while rolling up from disk
+    //
+    // not thread safe, see partialRollupLock
+    private static class PartialRollup {
+
+        private final Map<String, MutableAggregate> overallAggregates = Maps.newHashMap();
+        private final Map<String, Map<String, MutableAggregate>> transactionAggregates =
+                Maps.newHashMap();
+
+        private long estimatedBytes;
+        private boolean complete;
+
+        private PartialRollup(boolean complete) {
+            this.complete = complete;
+        }
+
+        private boolean isComplete() {
+            return complete;
+        }
+
+        private long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        private void addEstimatedBytes(long estimatedBytes) {
+            this.estimatedBytes += estimatedBytes;
+        }
+
+        // returns the estimated bytes that were released
+        private long markIncomplete() {
+            complete = false;
+            // the rollup interval will need to be rolled up from disk anyways
+            overallAggregates.clear();
+            transactionAggregates.clear();
+            long releasedBytes = estimatedBytes;
+            estimatedBytes = 0;
+            return releasedBytes;
+        }
+
+        private Set<String> getTransactionTypes() {
+            return Sets.union(overallAggregates.keySet(), transactionAggregates.keySet());
+        }
+
+        private @Nullable MutableAggregate getOverallAggregate(String transactionType) {
+            return overallAggregates.get(transactionType);
+        }
+
+        private Map<String, MutableAggregate> getTransactionAggregates(String transactionType) {
+            Map<String, MutableAggregate> aggregates = transactionAggregates.get(transactionType);
+            if (aggregates == null) {
+                return ImmutableMap.of();
+            }
+            return aggregates;
+        }
+
+        // returns null if the partial rollup is incomplete
+        private @Nullable MutableAggregate getOrCreateAggregate(String transactionType,
+                @Nullable String transactionName, int maxQueryAggregates,
+                int maxServiceCallAggregates) {
+            if (!complete) {
+                return null;
+            }
+            MutableAggregate aggregate = get(transactionType, transactionName);
+            if (aggregate == null) {
+                aggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                if (!add(transactionType, transactionName, aggregate)) {
+                    return null;
+                }
+            }
+            return aggregate;
+        }
+
+        // returns false if the partial rollup is incomplete
+        private boolean add(String transactionType, @Nullable String transactionName,
+                MutableAggregate aggregate) {
+            if (!complete) {
+                return false;
+            }
+            if (transactionName == null) {
+                overallAggregates.put(transactionType, aggregate);
+            } else {
+                Map<String, MutableAggregate> aggregates =
+                        transactionAggregates.get(transactionType);
+                if (aggregates == null) {
+                    aggregates = Maps.newHashMap();
+                    transactionAggregates.put(transactionType, aggregates);
+                }
+                aggregates.put(transactionName, aggregate);
+            }
+            return true;
+        }
+
+        private @Nullable MutableAggregate get(String transactionType,
+                @Nullable String transactionName) {
+            if (transactionName == null) {
+                return overallAggregates.get(transactionType);
+            }
+            Map<String, MutableAggregate> aggregates = transactionAggregates.get(transactionType);
+            return aggregates == null ? null : aggregates.get(transactionName);
+        }
+    }
+
+    private interface RowQueryFactory<T> {
+        JdbcRowQuery<T> create(TransactionQuery query, List</*@Untainted*/ String> tableNames);
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface CappedId {
@@ -1259,13 +2226,6 @@ public class AggregateDao implements AggregateRepository {
         long cappedId();
     }
 
-    @Value.Immutable
-    @Styles.AllParameters
-    interface MutableOverallAggregate {
-        String transactionType();
-        MutableAggregate aggregate();
-    }
-
     @Value.Immutable
     @Styles.AllParameters
     interface MutableTransactionAggregate {
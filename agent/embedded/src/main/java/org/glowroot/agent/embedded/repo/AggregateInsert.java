@@ -35,8 +35,8 @@ import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.RowMappers;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.QueryCollector;
@@ -75,15 +75,16 @@ class AggregateInsert implements JdbcUpdate {
     private final @Nullable Double auxThreadTotalAllocatedBytes;
     private final byte[] durationNanosHistogramBytes;
 
-    private final int rollupLevel;
+    // the partition table for the capture time
+    private final @Untainted String tableName;
 
     AggregateInsert(String transactionType, @Nullable String transactionName,
             long captureTime, Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts,
-            int rollupLevel, CappedDatabase cappedDatabase) throws IOException {
+            @Untainted String tableName, CappedDatabase cappedDatabase) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
-        this.rollupLevel = rollupLevel;
+        this.tableName = tableName;
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
@@ -138,12 +139,12 @@ class AggregateInsert implements JdbcUpdate {
     }
 
     AggregateInsert(String transactionType, @Nullable String transactionName,
-            long captureTime, MutableAggregate aggregate, int rollupLevel,
+            long captureTime, MutableAggregate aggregate, @Untainted String tableName,
             CappedDatabase cappedDatabase, ScratchBuffer scratchBuffer) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
-        this.rollupLevel = rollupLevel;
+        this.tableName = tableName;
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
@@ -179,14 +180,8 @@ class AggregateInsert implements JdbcUpdate {
     @Override
     public @Untainted String getSql() {
         StringBuilder sb = new StringBuilder();
-        sb.append("merge into aggregate_");
-        if (transactionName != null) {
-            sb.append("tn_");
-        } else {
-            sb.append("tt_");
-        }
-        sb.append("rollup_");
-        sb.append(castUntainted(rollupLevel));
+        sb.append("merge into ");
+        sb.append(tableName);
         sb.append(" (transaction_type,");
         if (transactionName != null) {
             sb.append(" transaction_name,");
@@ -375,7 +370,7 @@ class AggregateInsert implements JdbcUpdate {
     }
 
     private static @Nullable Long writeProfile(CappedDatabase cappedDatabase,
-            @Nullable MutableProfile profile) throws IOException {
+            @Nullable CompactProfile profile) throws IOException {
         if (profile == null) {
             return null;
         }
@@ -102,11 +102,9 @@ class GaugeIdDao {
     }
 
     void deleteBefore(long captureTime) throws Exception {
-        synchronized (lock) {
-            // subtracting 1 day to account for rate limiting of updates
-            dataSource.update("delete from gauge_id where last_capture_time < ?",
-                    captureTime - DAYS.toMillis(1));
-        }
+        // subtracting 1 day to account for rate limiting of updates
+        dataSource.deleteBeforeUsingLock("gauge_id", "last_capture_time",
+                captureTime - DAYS.toMillis(1), lock);
     }
 
     void invalidateCache() {
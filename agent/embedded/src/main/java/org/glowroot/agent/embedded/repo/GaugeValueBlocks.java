@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// packs a series of gauge values (for a single gauge, in capture time order) into a compact block
+// based on the encoding from "Gorilla: A Fast, Scalable, In-Memory Time Series Database"
+//
+// capture times are stored as delta-of-deltas (gauges are collected at a fixed interval, so the
+// delta-of-delta is zero or a few milliseconds of jitter), values are stored as the xor with the
+// prior value (which has few meaningful bits for slowly changing values), and weights are stored
+// only when they change (which is rare)
+class GaugeValueBlocks {
+
+    private GaugeValueBlocks() {}
+
+    static byte[] encode(List<GaugeValue> gaugeValues) {
+        checkArgument(!gaugeValues.isEmpty());
+        BitOutput out = new BitOutput();
+        GaugeValue first = gaugeValues.get(0);
+        out.writeBits(gaugeValues.size(), 32);
+        out.writeBits(first.getCaptureTime(), 64);
+        out.writeBits(Double.doubleToRawLongBits(first.getValue()), 64);
+        out.writeBits(first.getWeight(), 64);
+        long priorCaptureTime = first.getCaptureTime();
+        long priorDelta = 0;
+        long priorValueBits = Double.doubleToRawLongBits(first.getValue());
+        int priorLeadingZeros = -1;
+        int priorTrailingZeros = 0;
+        long priorWeight = first.getWeight();
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            long delta = gaugeValue.getCaptureTime() - priorCaptureTime;
+            writeDeltaOfDelta(out, delta - priorDelta);
+            priorCaptureTime = gaugeValue.getCaptureTime();
+            priorDelta = delta;
+
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            long xor = valueBits ^ priorValueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                // leading zeros are stored in 5 bits
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (priorLeadingZeros != -1 && leadingZeros >= priorLeadingZeros
+                        && trailingZeros >= priorTrailingZeros) {
+                    // meaningful bits fit inside of the prior meaningful bits window
+                    out.writeBit(false);
+                    out.writeBits(xor >>> priorTrailingZeros,
+                            64 - priorLeadingZeros - priorTrailingZeros);
+                } else {
+                    out.writeBit(true);
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    out.writeBits(leadingZeros, 5);
+                    // meaningful bits is between 1 and 64, so store it minus one in 6 bits
+                    out.writeBits(meaningfulBits - 1, 6);
+                    out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    priorLeadingZeros = leadingZeros;
+                    priorTrailingZeros = trailingZeros;
+                }
+            }
+            priorValueBits = valueBits;
+
+            if (gaugeValue.getWeight() == priorWeight) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                out.writeBits(gaugeValue.getWeight(), 64);
+                priorWeight = gaugeValue.getWeight();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static List<GaugeValue> decode(byte[] bytes) {
+        BitInput in = new BitInput(bytes);
+        int count = (int) in.readBits(32);
+        List<GaugeValue> gaugeValues = Lists.newArrayListWithCapacity(count);
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        long delta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            captureTime += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.readBits(5);
+                    int meaningfulBits = (int) in.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                long xor = in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+                valueBits ^= xor;
+            }
+            if (in.readBit()) {
+                weight = in.readBits(64);
+            }
+            gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        }
+        return gaugeValues;
+    }
+
+    private static void writeDeltaOfDelta(BitOutput out, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.writeBits(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            out.writeBits(0x2, 2);
+            out.writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            out.writeBits(0x6, 3);
+            out.writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            out.writeBits(0xE, 4);
+            out.writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            // e.g. gap in collection while jvm was suspended
+            out.writeBits(0xF, 4);
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitInput in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.readBits(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.readBits(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.readBits(12) - 2047;
+        }
+        return in.readBits(64);
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, long valueBits, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(Double.longBitsToDouble(valueBits))
+                .setWeight(weight)
+                .build();
+    }
+
+    private static class BitOutput {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private int currByte;
+        private int currBitCount;
+
+        private void writeBit(boolean bit) {
+            currByte = (currByte << 1) | (bit ? 1 : 0);
+            if (++currBitCount == 8) {
+                out.write(currByte);
+                currByte = 0;
+                currBitCount = 0;
+            }
+        }
+
+        // writes the lowest numBits bits of value, most significant first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (currBitCount > 0) {
+                out.write(currByte << (8 - currBitCount));
+                currByte = 0;
+                currBitCount = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class BitInput {
+
+        private final byte[] bytes;
+
+        private int bitIndex;
+
+        private BitInput(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean readBit() {
+            int b = bytes[bitIndex >>> 3];
+            boolean bit = ((b >>> (7 - (bitIndex & 7))) & 1) != 0;
+            bitIndex++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -28,18 +28,25 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
+import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.QueryResultCache;
+import org.glowroot.agent.embedded.util.QueryResultCache.RangeQuery;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
+import org.glowroot.agent.embedded.util.TimePartitionedTable.PartitionQuery;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common2.config.EmbeddedStorageConfig;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.GaugeValueRepository;
 import org.glowroot.common2.repo.util.Gauges;
@@ -60,40 +67,100 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // index names are appended to the partition table names
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx",
+                    ImmutableList.of("gauge_id", "capture_time", "value", "weight")),
+            // this index is used by rollup query
+            ImmutableIndex.of("by_capture_time_idx",
+                    ImmutableList.of("capture_time", "gauge_id", "value", "weight")));
+
+    // when enabled, completed level 0 partitions (after they have been rolled up) are packed into
+    // one compressed block per gauge in the gauge value block capped database, see
+    // GaugeValueBlocks
+    private static final boolean BLOCKS = Boolean.getBoolean("glowroot.gauge.value.blocks");
+
+    // gauge value blocks have their own capped database (instead of sharing the level 0 rollup
+    // capped database) so that gauge history does not depend on aggregate write volume, and it is
+    // sized against the level 0 gauge value retention
+    //
+    // gauges are collected every 5 seconds, and blocks take a few bytes per gauge value, so this
+    // is roughly 100 gauges
+    private static final int BLOCK_CAPPED_DATABASE_KB_PER_HOUR =
+            Integer.getInteger("glowroot.gauge.value.block.capped.database.kb.per.hour", 512);
+    private static final int MAX_BLOCK_CAPPED_DATABASE_SIZE_KB = 500 * 1024;
+
+    // capture_time is the last capture time in the block
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("first_capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("capped_id", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> blockIndexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("gauge_value_block_idx",
+                    ImmutableList.of("gauge_id", "capture_time", "first_capture_time",
+                            "capped_id")),
+            // this index is used by the reaper
+            ImmutableIndex.of("gauge_value_block_by_capture_time_idx",
+                    ImmutableList.of("capture_time")));
+
+    // each partition holds this many rollup intervals (e.g. one day for the 1 minute rollup level),
+    // which keeps the number of rows per gauge per partition roughly the same across rollup levels
+    private static final int ROLLUP_INTERVALS_PER_PARTITION = 1440;
+
+    // chart query results are cached in buckets of this many rollup intervals
+    private static final int QUERY_RESULT_CACHE_BUCKET_INTERVALS = 30;
+
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
+    private final CappedDatabase blockCappedDatabase;
+    private final QueryResultCache queryResultCache;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
 
+    // index is rollup level
+    private final ImmutableList<TimePartitionedTable> valueTables;
+
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
-    GaugeValueDao(DataSource dataSource, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
+    GaugeValueDao(DataSource dataSource, CappedDatabase blockCappedDatabase,
+            QueryResultCache queryResultCache, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
             Clock clock) throws Exception {
         this.dataSource = dataSource;
+        this.blockCappedDatabase = blockCappedDatabase;
+        this.queryResultCache = queryResultCache;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        List<TimePartitionedTable> valueTables = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
-                    ImmutableList.<Index>of(
-                            ImmutableIndex.of(
-                                    "gauge_value_rollup_" + castUntainted(i) + "_idx",
-                                    ImmutableList.of("gauge_id", "capture_time", "value",
-                                            "weight")),
-                            // this index is used by rollup query
-                            ImmutableIndex.of(
-                                    "gauge_value_rollup_" + castUntainted(i)
-                                            + "_by_capture_time_idx",
-                                    ImmutableList.of("capture_time", "gauge_id", "value",
-                                            "weight"))));
+            long partitionMillis;
+            if (i == 0) {
+                partitionMillis = DAYS.toMillis(1);
+            } else {
+                // rollup capture times for level i are multiples of this interval, which is needed
+                // so that the rows for a given rollup capture time are all in the same partition
+                partitionMillis =
+                        rollupConfigs.get(i - 1).intervalMillis() * ROLLUP_INTERVALS_PER_PARTITION;
+            }
+            @Untainted String tableName = "gauge_value_rollup_" + castUntainted(i);
+            TimePartitionedTable valueTable = new TimePartitionedTable(dataSource, tableName,
+                    columns, indexes, partitionMillis);
+            valueTable.migrateFrom(tableName);
+            valueTables.add(valueTable);
         }
+        this.valueTables = ImmutableList.copyOf(valueTables);
+        // the block table is synced even when blocks are not enabled, so that blocks that were
+        // written while enabled can still be read
+        dataSource.syncTable("gauge_value_block", blockColumns);
+        dataSource.syncIndexes("gauge_value_block", blockIndexes);
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -126,7 +193,9 @@ public class GaugeValueDao implements GaugeValueRepository {
         if (gaugeValues.isEmpty()) {
             return;
         }
-        Map<GaugeValue, Long> gaugeValueIdMap = Maps.newLinkedHashMap();
+        Map</*@Untainted*/ String, Map<GaugeValue, Long>> gaugeValueIdMaps =
+                Maps.newLinkedHashMap();
+        TimePartitionedTable valueTable = valueTables.get(0);
         for (GaugeValue gaugeValue : gaugeValues) {
             long gaugeId = gaugeIdDao.updateLastCaptureTime(gaugeValue.getGaugeName(),
                     gaugeValue.getCaptureTime());
@@ -137,9 +206,19 @@ public class GaugeValueDao implements GaugeValueRepository {
                 return;
             }
             gaugeNameDao.insert(gaugeValue.getCaptureTime(), gaugeValue.getGaugeName());
+            // all gauge values from a single collection are normally in the same partition
+            String tableName = valueTable.getPartitionTableName(gaugeValue.getCaptureTime());
+            Map<GaugeValue, Long> gaugeValueIdMap = gaugeValueIdMaps.get(tableName);
+            if (gaugeValueIdMap == null) {
+                gaugeValueIdMap = Maps.newLinkedHashMap();
+                gaugeValueIdMaps.put(tableName, gaugeValueIdMap);
+            }
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        for (Map.Entry</*@Untainted*/ String, Map<GaugeValue, Long>> entry : gaugeValueIdMaps
+                .entrySet()) {
+            dataSource.batchUpdate(new GaugeValuesBinder(entry.getKey(), entry.getValue()));
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -163,20 +242,51 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    // this is called by the reaper (instead of from store() under the rollup lock) so that packing
+    // a completed partition does not hold up gauge collection
+    void packIntoBlocks() throws Exception {
+        if (BLOCKS) {
+            // level 0 partitions are only packed into blocks after they have been rolled up
+            packIntoBlocks(lastRollupTimes.get(0));
+        }
+    }
+
     // from is INCLUSIVE
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
-            long to, int rollupLevel) throws Exception {
-        Long gaugeId = gaugeIdDao.getGaugeId(gaugeName);
+            long to, final int rollupLevel) throws Exception {
+        final Long gaugeId = gaugeIdDao.getGaugeId(gaugeName);
         if (gaugeId == null) {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        // values are complete once they have been rolled up into the next rollup level (level 0)
+        // or once they have been rolled up from the prior rollup level (all other levels)
+        int rollupConfigIndex = Math.max(rollupLevel - 1, 0);
+        long bucketMillis = rollupConfigs.get(rollupConfigIndex).intervalMillis()
+                * QUERY_RESULT_CACHE_BUCKET_INTERVALS;
+        long completedTime = lastRollupTimes.get(rollupConfigIndex);
+        return queryResultCache.query("gauge", ImmutableList.of(gaugeName), rollupLevel,
+                bucketMillis, from, to, completedTime, new RangeQuery<GaugeValue>() {
+                    @Override
+                    public List<GaugeValue> query(long from, long to) throws Exception {
+                        return readGaugeValues(gaugeId, from, to, rollupLevel);
+                    }
+                    @Override
+                    public long getCaptureTime(GaugeValue gaugeValue) {
+                        return gaugeValue.getCaptureTime();
+                    }
+                });
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        // this drops entire partitions, and only deletes individual rows from (at most) one
+        // partition
+        valueTables.get(rollupLevel).deleteBefore(captureTime);
+        if (rollupLevel == 0) {
+            dataSource.deleteBefore("gauge_value_block", captureTime);
+        }
+        queryResultCache.invalidateAll();
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -186,18 +296,158 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    // from is INCLUSIVE
+    private List<GaugeValue> readGaugeValues(final long gaugeId, final long from, final long to,
+            final int rollupLevel) throws Exception {
+        final TimePartitionedTable valueTable = valueTables.get(rollupLevel);
+        final List<Long> cappedIds = Lists.newArrayList();
+        List<GaugeValue> partitionGaugeValues = valueTable.query(from, to,
+                new PartitionQuery<List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> query(List</*@Untainted*/ String> tableNames)
+                            throws Exception {
+                        if (rollupLevel == 0) {
+                            // blocks are always older than the remaining level 0 partitions, and
+                            // a partition is only dropped after it has been packed into blocks,
+                            // so reading the blocks and the partitions while the partitions
+                            // cannot be dropped sees each value exactly once (blocks of the
+                            // partition that is currently being packed are ignored until that
+                            // partition is dropped)
+                            Long firstPartitionStartTime = valueTable.getFirstPartitionStartTime();
+                            cappedIds.addAll(dataSource.query(new GaugeValueBlockQuery(gaugeId,
+                                    from, to, firstPartitionStartTime == null ? Long.MAX_VALUE
+                                            : firstPartitionStartTime)));
+                        }
+                        List<GaugeValue> gaugeValues = Lists.newArrayList();
+                        for (String tableName : tableNames) {
+                            gaugeValues.addAll(dataSource.query(
+                                    new GaugeValueQuery(tableName, gaugeId, from, to)));
+                        }
+                        return gaugeValues;
+                    }
+                });
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        // blocks are read and decoded outside of the data source lock
+        for (long cappedId : cappedIds) {
+            byte[] bytes = blockCappedDatabase.readBytes(cappedId);
+            if (bytes == null) {
+                // capped database has rolled over
+                continue;
+            }
+            for (GaugeValue gaugeValue : GaugeValueBlocks.decode(bytes)) {
+                long captureTime = gaugeValue.getCaptureTime();
+                if (captureTime >= from && captureTime <= to) {
+                    gaugeValues.add(gaugeValue);
+                }
+            }
+        }
+        gaugeValues.addAll(partitionGaugeValues);
+        return gaugeValues;
+    }
+
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
+        final TimePartitionedTable toValueTable = valueTables.get(toRollupLevel);
+        TimePartitionedTable fromValueTable = valueTables.get(fromRollupLevel);
         // need ".0" to force double result
-        String captureTimeSql = castUntainted(
+        final String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
-                + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+        // rollup into one target partition at a time (normally there is only one), the from
+        // partitions don't line up with the target partitions, so they are combined using union
+        long from = lastRollupTime;
+        while (true) {
+            // skip over time ranges with no data (e.g. the very first rollup)
+            Long nextFromPartitionStartTime = fromValueTable.getNextPartitionStartTime(from);
+            if (nextFromPartitionStartTime == null) {
+                break;
+            }
+            from = Math.max(from, nextFromPartitionStartTime);
+            if (from >= safeRollupTime) {
+                break;
+            }
+            final long to = Math.min(safeRollupTime, toValueTable.getPartitionEndTime(from + 1));
+            final long partitionFrom = from;
+            fromValueTable.query(from + 1, to, new PartitionQuery</*@Nullable*/ Void>() {
+                @Override
+                public @Nullable Void query(List</*@Untainted*/ String> fromTableNames)
+                        throws Exception {
+                    if (fromTableNames.isEmpty()) {
+                        return null;
+                    }
+                    List<Object> args = Lists.newArrayList();
+                    for (int i = 0; i < fromTableNames.size(); i++) {
+                        args.add(partitionFrom);
+                        args.add(to);
+                    }
+                    dataSource.update("merge into " + toValueTable.getPartitionTableName(to)
+                            + " (gauge_id, capture_time, value, weight) key (gauge_id,"
+                            + " capture_time) select gauge_id, " + captureTimeSql
+                            + " ceil_capture_time, sum(value * weight) / sum(weight), sum(weight)"
+                            + " from (" + TimePartitionedTable.unionAll(fromTableNames,
+                                    "gauge_id, capture_time, value, weight",
+                                    "capture_time > ? and capture_time <= ?")
+                            + ") gp group by gp.gauge_id, ceil_capture_time", args.toArray());
+                    return null;
+                }
+            });
+            from = to;
+        }
+    }
+
+    private void packIntoBlocks(long rolledUpTime) throws Exception {
+        TimePartitionedTable valueTable = valueTables.get(0);
+        for (String tableName : valueTable.getCompletedPartitionTableNames(rolledUpTime)) {
+            // the partition is read while it cannot be dropped (e.g. by the reaper), and it is
+            // only dropped (after which readers switch over to the blocks) once it has been
+            // completely packed
+            boolean packed = valueTable.queryPartition(tableName, new PartitionQuery<Boolean>() {
+                @Override
+                public Boolean query(List</*@Untainted*/ String> tableNames) throws Exception {
+                    for (String partitionTableName : tableNames) {
+                        packIntoBlocks(partitionTableName);
+                    }
+                    return !tableNames.isEmpty();
+                }
+            });
+            if (packed) {
+                valueTable.dropPartitionTable(tableName);
+            }
+        }
+    }
+
+    private void packIntoBlocks(@Untainted String tableName) throws Exception {
+        // one gauge at a time so the data source lock is not held for long periods of time
+        List<Long> gaugeIds = dataSource.query(new GaugeIdsQuery(tableName));
+        for (long gaugeId : gaugeIds) {
+            List<GaugeValue> gaugeValues = dataSource.query(
+                    new GaugeValueQuery(tableName, gaugeId, Long.MIN_VALUE, Long.MAX_VALUE));
+            if (gaugeValues.isEmpty()) {
+                continue;
+            }
+            long firstCaptureTime = gaugeValues.get(0).getCaptureTime();
+            long lastCaptureTime = gaugeValues.get(gaugeValues.size() - 1).getCaptureTime();
+            // in case the jvm terminated after writing this block but prior to dropping the
+            // partition
+            dataSource.update("delete from gauge_value_block where gauge_id = ? and"
+                    + " first_capture_time >= ? and capture_time <= ?", gaugeId,
+                    firstCaptureTime, lastCaptureTime);
+            long cappedId = blockCappedDatabase.writeBytes(
+                    GaugeValueBlocks.encode(gaugeValues), RollupCappedDatabaseStats.GAUGE_VALUES);
+            dataSource.update("insert into gauge_value_block (gauge_id, capture_time,"
+                    + " first_capture_time, capped_id) values (?, ?, ?, ?)", gaugeId,
+                    lastCaptureTime, firstCaptureTime, cappedId);
+        }
+    }
+
+    static int getBlockCappedDatabaseSizeKb(EmbeddedStorageConfig storageConfig) {
+        int expirationHours = storageConfig.rollupExpirationHours().get(0);
+        if (expirationHours == 0) {
+            // zero value expiration means never expire
+            return MAX_BLOCK_CAPPED_DATABASE_SIZE_KB;
+        }
+        // at least one (daily) level 0 partition
+        long sizeKb = Math.max(expirationHours, 24) * (long) BLOCK_CAPPED_DATABASE_KB_PER_HOUR;
+        return (int) Math.min(sizeKb, MAX_BLOCK_CAPPED_DATABASE_SIZE_KB);
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -222,15 +472,18 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String tableName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.tableName = tableName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + tableName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -249,6 +502,65 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static class GaugeIdsQuery implements JdbcRowQuery<Long> {
+
+        private final @Untainted String tableName;
+
+        private GaugeIdsQuery(@Untainted String tableName) {
+            this.tableName = tableName;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select distinct gauge_id from " + tableName;
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public Long mapRow(ResultSet resultSet) throws SQLException {
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static class GaugeValueBlockQuery implements JdbcRowQuery<Long> {
+
+        private final long gaugeId;
+        private final long from;
+        private final long to;
+        // blocks with a later (last) capture time are ignored
+        private final long maxCaptureTime;
+
+        private GaugeValueBlockQuery(long gaugeId, long from, long to, long maxCaptureTime) {
+            this.gaugeId = gaugeId;
+            this.from = from;
+            this.to = to;
+            this.maxCaptureTime = maxCaptureTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select capped_id from gauge_value_block where gauge_id = ?"
+                    + " and capture_time >= ? and first_capture_time <= ? and capture_time <= ?"
+                    + " order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, maxCaptureTime);
+        }
+
+        @Override
+        public Long mapRow(ResultSet resultSet) throws SQLException {
+            return resultSet.getLong(1);
+        }
+    }
+
     private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
 
         private final @Untainted String selectClause;
@@ -286,23 +598,23 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
 
+        private final @Untainted String tableName;
         private final long gaugeId;
         private final long from;
         private final long to;
-        private final int rollupLevel;
 
-        private GaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
+        private GaugeValueQuery(@Untainted String tableName, long gaugeId, long from, long to) {
+            this.tableName = tableName;
             this.gaugeId = gaugeId;
             this.from = from;
             this.to = to;
-            this.rollupLevel = rollupLevel;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            return "select capture_time, value, weight from " + tableName
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
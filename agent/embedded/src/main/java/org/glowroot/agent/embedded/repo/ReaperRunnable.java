@@ -15,15 +15,22 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.glowroot.common.Constants;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common2.config.EmbeddedStorageConfig;
 
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class ReaperRunnable extends ScheduledRunnable {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReaperRunnable.class);
+
     private final ConfigRepositoryImpl configRepository;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
@@ -53,6 +60,9 @@ class ReaperRunnable extends ScheduledRunnable {
 
     @Override
     protected void runInternal() throws Exception {
+        // each delete is performed incrementally in small batches (see DataSource.deleteBefore()),
+        // so this does not block ingestion for the duration of the run
+        Stopwatch stopwatch = Stopwatch.createStarted();
         long minCaptureTime = Long.MAX_VALUE;
         long currentTime = clock.currentTimeMillis();
         EmbeddedStorageConfig storageConfig = configRepository.getEmbeddedStorageConfig();
@@ -71,6 +81,8 @@ class ReaperRunnable extends ScheduledRunnable {
             gaugeValueDao.deleteBefore(captureTime, i + 1);
             minCaptureTime = Math.min(minCaptureTime, captureTime);
         }
+        // packed after deleting, so that expired level 0 partitions are not packed needlessly
+        gaugeValueDao.packIntoBlocks();
         if (minCaptureTime != 0) {
             gaugeIdDao.deleteBefore(minCaptureTime);
             gaugeNameDao.deleteBefore(minCaptureTime);
@@ -91,5 +103,6 @@ class ReaperRunnable extends ScheduledRunnable {
         }
         incidentDao.deleteResolvedIncidentsBefore(
                 currentTime - HOURS.toMillis(Constants.RESOLVED_INCIDENT_EXPIRATION_HOURS));
+        logger.debug("reaping completed in {} ms", stopwatch.elapsed(MILLISECONDS));
     }
 }
@@ -28,6 +28,7 @@ import org.checkerframework.checker.tainting.qual.Untainted;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.agent.embedded.util.QueryResultCache;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ImmutableTraceCount;
 import org.glowroot.common2.repo.ImmutableTraceCounts;
@@ -44,41 +45,47 @@ class RepoAdminImpl implements RepoAdmin {
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
+    private final CappedDatabase gaugeValueBlockCappedDatabase;
     private final ConfigRepositoryImpl configRepository;
     private final EnvironmentDao environmentDao;
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final GaugeValueDao gaugeValueDao;
+    private final AggregateDao aggregateDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
+    private final QueryResultCache queryResultCache;
     private final Clock clock;
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
-            CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
-            EnvironmentDao environmentDao, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
-            GaugeValueDao gaugeValueDao, TransactionTypeDao transactionTypeDao,
+            CappedDatabase traceCappedDatabase, CappedDatabase gaugeValueBlockCappedDatabase,
+            ConfigRepositoryImpl configRepository, EnvironmentDao environmentDao,
+            GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
+            AggregateDao aggregateDao, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            Clock clock) {
+            QueryResultCache queryResultCache, Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
+        this.gaugeValueBlockCappedDatabase = gaugeValueBlockCappedDatabase;
         this.configRepository = configRepository;
         this.environmentDao = environmentDao;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.aggregateDao = aggregateDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
+        this.queryResultCache = queryResultCache;
         this.clock = clock;
     }
 
     @Override
     public void runHealthCheck() throws Exception {
         long now = clock.currentTimeMillis();
-        dataSource.queryForLong("select count(*) from aggregate_tt_rollup_0 where capture_time > ?"
-                + " and capture_time < ?", now - HOURS.toMillis(4), now);
+        aggregateDao.countOverallAggregates(now - HOURS.toMillis(4), now);
     }
 
     @Override
@@ -89,9 +96,11 @@ class RepoAdminImpl implements RepoAdmin {
         gaugeIdDao.invalidateCache();
         gaugeNameDao.invalidateCache();
         gaugeValueDao.reinitAfterDeletingDatabase();
+        aggregateDao.reinitAfterDeletingDatabase();
         transactionTypeDao.invalidateCache();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
+        queryResultCache.invalidateAll();
         if (environment != null) {
             environmentDao.store(environment);
         }
@@ -143,6 +152,9 @@ class RepoAdminImpl implements RepoAdmin {
         }
         traceCappedDatabase.resize(
                 configRepository.getEmbeddedStorageConfig().traceCappedDatabaseSizeMb() * 1024);
+        // sized against the level 0 gauge value retention
+        gaugeValueBlockCappedDatabase.resize(GaugeValueDao
+                .getBlockCappedDatabaseSizeKb(configRepository.getEmbeddedStorageConfig()));
     }
 
     @Override
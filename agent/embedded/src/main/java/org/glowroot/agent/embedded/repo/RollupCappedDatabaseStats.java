@@ -23,6 +23,7 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     static final String AGGREGATE_QUERIES = "aggregate queries";
     static final String AGGREGATE_SERVICE_CALLS = "aggregate service calls";
     static final String AGGREGATE_PROFILES = "aggregate profiles";
+    static final String GAUGE_VALUES = "gauge values";
 
     private final CappedDatabase cappedDatabase;
 
@@ -44,4 +45,9 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseStats getGaugeValues() {
+        return cappedDatabase.getStats(GAUGE_VALUES);
+    }
 }
@@ -22,4 +22,5 @@ public interface RollupCappedDatabaseStatsMXBean {
     CappedDatabaseStats getAggregateQueries();
     CappedDatabaseStats getAggregateServiceCalls();
     CappedDatabaseStats getAggregateProfiles();
+    CappedDatabaseStats getGaugeValues();
 }
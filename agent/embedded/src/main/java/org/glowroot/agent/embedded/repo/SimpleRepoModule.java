@@ -30,6 +30,8 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.H2DatabaseStats;
+import org.glowroot.agent.embedded.util.QueryResultCache;
+import org.glowroot.agent.embedded.util.QueryResultCacheStats;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common2.config.EmbeddedStorageConfig;
@@ -50,9 +52,16 @@ public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    // approximate max number of rows (e.g. aggregates and gauge values) held by the chart query
+    // result cache, zero disables the cache
+    private static final long QUERY_RESULT_CACHE_MAX_ROWS =
+            Long.getLong("glowroot.query.result.cache.max.rows", 100000);
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
+    private final CappedDatabase gaugeValueBlockCappedDatabase;
+    private final QueryResultCache queryResultCache;
     private final EnvironmentDao environmentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final AggregateDao aggregateDao;
@@ -85,6 +94,9 @@ public class SimpleRepoModule {
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
                 storageConfig.traceCappedDatabaseSizeMb() * 1024, ticker);
+        gaugeValueBlockCappedDatabase =
+                new CappedDatabase(new File(dataDir, "gauge-value-block.capped.db"),
+                        GaugeValueDao.getBlockCappedDatabaseSizeKb(storageConfig), ticker);
 
         SchemaUpgrade schemaUpgrade = new SchemaUpgrade(dataSource);
         Integer initialSchemaVersion = schemaUpgrade.getInitialSchemaVersion();
@@ -98,14 +110,16 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(dataSource);
+        queryResultCache = new QueryResultCache(QUERY_RESULT_CACHE_MAX_ROWS);
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao, fullQueryTextDao);
+                transactionTypeDao, fullQueryTextDao, queryResultCache);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
                 fullQueryTextDao, traceAttributeNameDao);
         GaugeIdDao gaugeIdDao = new GaugeIdDao(dataSource);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
-        gaugeValueDao = new GaugeValueDao(dataSource, gaugeIdDao, gaugeNameDao, clock);
+        gaugeValueDao = new GaugeValueDao(dataSource, gaugeValueBlockCappedDatabase,
+                queryResultCache, gaugeIdDao, gaugeNameDao, clock);
         incidentDao = new IncidentDao(dataSource);
 
         if (initialSchemaVersion == null) {
@@ -114,8 +128,9 @@ public class SimpleRepoModule {
         }
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, gaugeValueDao,
-                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                gaugeValueBlockCappedDatabase, configRepository, environmentDao, gaugeIdDao,
+                gaugeNameDao, gaugeValueDao, aggregateDao, transactionTypeDao, fullQueryTextDao,
+                traceAttributeNameDao, queryResultCache, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -129,6 +144,11 @@ public class SimpleRepoModule {
                     incidentDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
+            for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
+                cappedDatabase.schedulePeriodicFsync(backgroundExecutor);
+            }
+            traceCappedDatabase.schedulePeriodicFsync(backgroundExecutor);
+            gaugeValueBlockCappedDatabase.schedulePeriodicFsync(backgroundExecutor);
         }
     }
 
@@ -143,6 +163,9 @@ public class SimpleRepoModule {
                 "org.glowroot:type=TraceCappedDatabase");
         platformMBeanServerLifecycle.lazyRegisterMBean(new H2DatabaseStats(dataSource),
                 "org.glowroot:type=H2Database");
+        platformMBeanServerLifecycle.lazyRegisterMBean(
+                new QueryResultCacheStats(queryResultCache),
+                "org.glowroot:type=QueryResultCache");
     }
 
     public EnvironmentDao getEnvironmentDao() {
@@ -199,10 +222,13 @@ public class SimpleRepoModule {
             reaperRunnable.cancel();
         }
         alertingService.close();
+        aggregateDao.close();
+        traceDao.close();
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
         traceCappedDatabase.close();
+        gaugeValueBlockCappedDatabase.close();
         dataSource.close();
     }
 }
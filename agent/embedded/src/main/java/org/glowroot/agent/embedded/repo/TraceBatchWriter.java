@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// write-behind stage for traces (group commit), so that under bursts multiple traces are stored
+// with a single capped database batch (and single fsync) and a single H2 batch merge
+//
+// the batch is stored as soon as it is full, or once the first trace in the batch has been waiting
+// for maxLatencyMillis
+//
+// traces that have been added but not yet stored can still be read (see getUnpersistedTrace()),
+// since by the time they are added the transaction is no longer in the agent's pending
+// transactions
+class TraceBatchWriter implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceBatchWriter.class);
+
+    // a batch that fails is split in half and each half is retried, down to single traces, and
+    // a single trace is retried this many times (with a short pause in between) before it is
+    // dropped, so that one bad trace doesn't cause the whole batch to be dropped, and transient
+    // failures (e.g. lock timeout) don't cause any traces to be dropped
+    private static final int SINGLE_TRACE_MAX_ATTEMPTS = 3;
+    private static final long RETRY_PAUSE_MILLIS = 100;
+
+    private final TraceDao traceDao;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+
+    private final BlockingQueue<Trace> pendingTraces;
+
+    // keyed by trace id, the value is the latest occurrence of the trace (the same trace can be
+    // added more than once, partial trace followed by the final trace)
+    private final ConcurrentMap<String, Trace> unpersistedTraces = Maps.newConcurrentMap();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    TraceBatchWriter(TraceDao traceDao, int maxBatchSize, long maxLatencyMillis, int maxPending) {
+        this.traceDao = traceDao;
+        this.maxBatchSize = maxBatchSize;
+        maxLatencyNanos = MILLISECONDS.toNanos(maxLatencyMillis);
+        pendingTraces = new ArrayBlockingQueue<Trace>(maxPending);
+        thread = new Thread(this, "Glowroot-Trace-Batch-Writer");
+        // daemon so that it doesn't prevent the jvm from exiting, pending traces are instead
+        // flushed by close(), which is called from the storage shutdown hooks
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // blocks when maxPending traces are already pending
+    void add(Trace trace) throws InterruptedException {
+        unpersistedTraces.put(trace.getId(), trace);
+        try {
+            pendingTraces.put(trace);
+        } catch (InterruptedException e) {
+            unpersistedTraces.remove(trace.getId(), trace);
+            throw e;
+        }
+    }
+
+    @Nullable
+    Trace getUnpersistedTrace(String traceId) {
+        return unpersistedTraces.get(traceId);
+    }
+
+    @Override
+    public void run() {
+        while (!closed || !pendingTraces.isEmpty()) {
+            try {
+                List<Trace> batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    store(batch);
+                }
+            } catch (InterruptedException e) {
+                // this thread is not interrupted by glowroot (see close())
+                logger.debug(e.getMessage(), e);
+                return;
+            } catch (Throwable t) {
+                // log and continue with next batch
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private List<Trace> nextBatch() throws InterruptedException {
+        List<Trace> batch = Lists.newArrayList();
+        Trace trace = pendingTraces.poll(closed ? 0 : 100, MILLISECONDS);
+        if (trace == null) {
+            return batch;
+        }
+        batch.add(trace);
+        long deadline = System.nanoTime() + maxLatencyNanos;
+        while (batch.size() < maxBatchSize) {
+            long remainingNanos = closed ? 0 : deadline - System.nanoTime();
+            trace = remainingNanos > 0 ? pendingTraces.poll(remainingNanos, NANOSECONDS)
+                    : pendingTraces.poll();
+            if (trace == null) {
+                break;
+            }
+            batch.add(trace);
+        }
+        return batch;
+    }
+
+    private void store(List<Trace> batch) throws InterruptedException {
+        try {
+            traceDao.store(batch);
+            onStored(batch);
+            return;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                storeSingle(batch.get(0), e);
+                return;
+            }
+            logger.debug(e.getMessage(), e);
+        }
+        // halves are stored in order, which matters when the same trace is in the batch more than
+        // once (partial trace followed by the final trace)
+        int mid = batch.size() / 2;
+        store(Lists.newArrayList(batch.subList(0, mid)));
+        store(Lists.newArrayList(batch.subList(mid, batch.size())));
+    }
+
+    private void storeSingle(Trace trace, Exception firstException) throws InterruptedException {
+        Exception exception = firstException;
+        for (int i = 1; i < SINGLE_TRACE_MAX_ATTEMPTS; i++) {
+            logger.debug(exception.getMessage(), exception);
+            if (!closed) {
+                MILLISECONDS.sleep(RETRY_PAUSE_MILLIS);
+            }
+            try {
+                List<Trace> batch = Lists.newArrayList(trace);
+                traceDao.store(batch);
+                onStored(batch);
+                return;
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+        logger.error("unable to store trace {}: {}", trace.getId(), exception.getMessage(),
+                exception);
+        unpersistedTraces.remove(trace.getId(), trace);
+    }
+
+    private void onStored(List<Trace> batch) {
+        for (Trace trace : batch) {
+            // only removed if it is still the latest occurrence of the trace
+            unpersistedTraces.remove(trace.getId(), trace);
+        }
+    }
+
+    // stores any pending traces before returning (waiting at most 10 seconds)
+    //
+    // this is called from the shutdown hooks of both the data source and the trace capped database
+    // (prior to them closing), so it can be called concurrently and more than once
+    //
+    // the thread is not interrupted since interrupting file io can close the underlying channel
+    void close() throws InterruptedException {
+        closed = true;
+        thread.join(SECONDS.toMillis(10));
+    }
+}
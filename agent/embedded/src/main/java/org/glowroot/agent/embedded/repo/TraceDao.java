@@ -22,10 +22,12 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -35,6 +37,7 @@ import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabase.BatchWriter;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
@@ -58,6 +61,7 @@ import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
@@ -74,6 +78,20 @@ public class TraceDao implements TraceRepository {
 
     private static final String AGENT_ID = "";
 
+    // when greater than zero, traces are stored asynchronously by TraceBatchWriter, in batches of up
+    // to MAX_BATCH_SIZE traces, with each trace waiting at most this long before being stored
+    private static final long BATCH_MAX_LATENCY_MILLIS =
+            Long.getLong("glowroot.trace.write.batch.max.latency.millis", 0);
+    private static final int BATCH_MAX_SIZE =
+            Integer.getInteger("glowroot.trace.write.batch.max.size", 100);
+    // store() blocks once this many traces are pending, which pushes back on the trace collector
+    private static final int BATCH_MAX_PENDING =
+            Integer.getInteger("glowroot.trace.write.batch.max.pending", 1000);
+    // trace point queries with a limit are split into (up to) this many time buckets, each with
+    // its own top-N by duration, so that the points returned are spread across the chart
+    private static final int POINT_QUERY_MAX_BUCKETS =
+            Integer.getInteger("glowroot.trace.point.query.buckets", 10);
+
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
@@ -105,25 +123,25 @@ public class TraceDao implements TraceRepository {
                     ImmutableColumn.of("capture_time", ColumnType.BIGINT));
 
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
-            // duration_nanos, id and error columns are included so database can return the
+            // duration_nanos, id, partial and error columns are included so database can return the
             // result set directly from the index without having to reference the table for each row
             //
             // trace_overall_slow_idx is for readSlowCount() and readSlowPoints()
             ImmutableIndex.of("trace_overall_slow_idx",
                     ImmutableList.of("transaction_type", "slow", "capture_time", "duration_nanos",
-                            "error", "id")),
+                            "partial", "error", "id")),
             // trace_transaction_slow_idx is for readSlowCount() and readSlowPoints()
             ImmutableIndex.of("trace_transaction_slow_idx",
                     ImmutableList.of("transaction_type", "transaction_name", "slow", "capture_time",
-                            "duration_nanos", "error", "id")),
+                            "duration_nanos", "partial", "error", "id")),
             // trace_overall_error_idx is for readErrorCount() and readErrorPoints()
             ImmutableIndex.of("trace_error_idx",
                     ImmutableList.of("transaction_type", "error", "capture_time", "duration_nanos",
-                            "error", "id")),
+                            "partial", "id")),
             // trace_transaction_error_idx is for readErrorCount() and readErrorPoints()
             ImmutableIndex.of("trace_transaction_error_idx",
                     ImmutableList.of("transaction_type", "transaction_name", "error",
-                            "capture_time", "duration_nanos", "id")),
+                            "capture_time", "duration_nanos", "partial", "id")),
             // trace_capture_time_idx is for reaper, this is very important when trace table is huge
             // e.g. after leaving slow threshold at 0 for a while
             ImmutableIndex.of("trace_capture_time_idx", ImmutableList.of("capture_time")),
@@ -139,6 +157,8 @@ public class TraceDao implements TraceRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final @Nullable TraceBatchWriter traceBatchWriter;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao) throws Exception {
@@ -167,6 +187,28 @@ public class TraceDao implements TraceRepository {
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        if (BATCH_MAX_LATENCY_MILLIS > 0) {
+            final TraceBatchWriter traceBatchWriter = new TraceBatchWriter(this, BATCH_MAX_SIZE,
+                    BATCH_MAX_LATENCY_MILLIS, BATCH_MAX_PENDING);
+            // pending traces are flushed at jvm shutdown, before the data source and the trace
+            // capped database are closed (the jvm runs shutdown hooks concurrently, so the flush is
+            // registered with both, and whichever runs first waits for the flush to complete)
+            Runnable flushTask = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        traceBatchWriter.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            dataSource.addPreShutdownTask(flushTask);
+            traceCappedDatabase.addPreShutdownTask(flushTask);
+            this.traceBatchWriter = traceBatchWriter;
+        } else {
+            traceBatchWriter = null;
+        }
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -175,24 +217,59 @@ public class TraceDao implements TraceRepository {
                 .setId(traceReader.traceId())
                 .setUpdate(traceReader.update());
 
+        // the trace reader must be visited synchronously since it reads from the live transaction
         TraceVisitorImpl traceVisitor = new TraceVisitorImpl(captureTime, builder);
         traceReader.accept(traceVisitor);
         Trace trace = builder.build();
-        Trace.Header header = trace.getHeader();
 
-        dataSource.update(new TraceMerge(trace));
-        if (header.getAttributeCount() > 0) {
-            if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+        if (traceBatchWriter == null) {
+            store(ImmutableList.of(trace));
+        } else {
+            traceBatchWriter.add(trace);
+        }
+    }
+
+    // traces are stored in order, which matters when the same trace is stored more than once
+    // (partial trace followed by the final trace)
+    void store(final List<Trace> traces) throws Exception {
+        List<TraceMerge> traceMerges = traceCappedDatabase.writeBatch(
+                new BatchWriter<List<TraceMerge>>() {
+                    @Override
+                    public List<TraceMerge> write() throws Exception {
+                        List<TraceMerge> traceMerges = Lists.newArrayList();
+                        for (Trace trace : traces) {
+                            traceMerges.add(new TraceMerge(trace));
+                        }
+                        return traceMerges;
+                    }
+                });
+        dataSource.batchUpdate(new TraceMergeBatch(traceMerges));
+        // only the attributes from the last occurrence of each trace in the batch are inserted
+        Set<String> traceIds = Sets.newHashSet();
+        List<Trace> tracesWithAttributes = Lists.newArrayList();
+        for (Trace trace : Lists.reverse(traces)) {
+            if (!traceIds.add(trace.getId())) {
+                continue;
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
-                        attribute.getName(), header.getCaptureTime());
+            Trace.Header header = trace.getHeader();
+            if (header.getAttributeCount() > 0) {
+                if (trace.getUpdate()) {
+                    dataSource.update("delete from trace_attribute where trace_id = ?",
+                            trace.getId());
+                }
+                tracesWithAttributes.add(trace);
+                for (Trace.Attribute attribute : header.getAttributeList()) {
+                    traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
+                            attribute.getName(), header.getCaptureTime());
+                }
             }
+            transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
+                    header.getCaptureTime());
+        }
+        if (!tracesWithAttributes.isEmpty()) {
+            // deletes above are all executed prior to the inserts
+            dataSource.batchUpdate(new TraceAttributeInsert(tracesWithAttributes));
         }
-        transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
-                header.getCaptureTime());
     }
 
     @Override
@@ -255,16 +332,46 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentId, String traceId) throws Exception {
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace != null) {
+            return ImmutableHeaderPlus.builder()
+                    .header(trace.getHeader())
+                    .entriesExistence(trace.getEntryCount() > 0 ? Existence.YES : Existence.NO)
+                    .queriesExistence(trace.getQueryCount() > 0 ? Existence.YES : Existence.NO)
+                    .profileExistence(trace.hasMainThreadProfile() || trace.hasAuxThreadProfile()
+                            ? Existence.YES : Existence.NO)
+                    .build();
+        }
         return dataSource.queryAtMostOne(new TraceHeaderQuery(traceId));
     }
 
     @Override
     public @Nullable Entries readEntries(String agentId, String traceId) throws Exception {
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace != null) {
+            if (trace.getEntryCount() == 0) {
+                return null;
+            }
+            return ImmutableEntries.builder()
+                    .addAllEntries(trace.getEntryList())
+                    .addAllSharedQueryTexts(trace.getSharedQueryTextList())
+                    .build();
+        }
         return dataSource.query(new EntriesQuery(traceId));
     }
 
     @Override
     public @Nullable Queries readQueries(String agentId, String traceId) throws Exception {
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace != null) {
+            if (trace.getQueryCount() == 0) {
+                return null;
+            }
+            return ImmutableQueries.builder()
+                    .addAllQueries(trace.getQueryList())
+                    .addAllSharedQueryTexts(trace.getSharedQueryTextList())
+                    .build();
+        }
         return dataSource.query(new QueriesQuery(traceId));
     }
 
@@ -273,7 +380,19 @@ public class TraceDao implements TraceRepository {
     @Override
     public @Nullable EntriesAndQueries readEntriesAndQueriesForExport(String agentId,
             String traceId) throws Exception {
-        EntriesAndQueries entriesAndQueries = dataSource.query(new EntriesAndQueriesQuery(traceId));
+        EntriesAndQueries entriesAndQueries;
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace == null) {
+            entriesAndQueries = dataSource.query(new EntriesAndQueriesQuery(traceId));
+        } else if (trace.getEntryCount() == 0 && trace.getQueryCount() == 0) {
+            entriesAndQueries = null;
+        } else {
+            entriesAndQueries = ImmutableEntriesAndQueries.builder()
+                    .addAllEntries(trace.getEntryList())
+                    .addAllQueries(trace.getQueryList())
+                    .addAllSharedQueryTexts(trace.getSharedQueryTextList())
+                    .build();
+        }
         if (entriesAndQueries == null) {
             return null;
         }
@@ -287,6 +406,10 @@ public class TraceDao implements TraceRepository {
     @Override
     public @Nullable Profile readMainThreadProfile(String agentId, String traceId)
             throws Exception {
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace != null) {
+            return trace.hasMainThreadProfile() ? trace.getMainThreadProfile() : null;
+        }
         Long cappedId = dataSource.queryForOptionalLong(
                 "select main_thread_profile_capped_id from trace where id = ?", traceId);
         if (cappedId == null) {
@@ -298,6 +421,10 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public @Nullable Profile readAuxThreadProfile(String agentId, String traceId) throws Exception {
+        Trace trace = getUnpersistedTrace(traceId);
+        if (trace != null) {
+            return trace.hasAuxThreadProfile() ? trace.getAuxThreadProfile() : null;
+        }
         Long cappedId = dataSource.queryForOptionalLong(
                 "select aux_thread_profile_capped_id from trace where id = ?", traceId);
         if (cappedId == null) {
@@ -307,19 +434,34 @@ public class TraceDao implements TraceRepository {
         return traceCappedDatabase.readMessage(cappedId, Profile.parser());
     }
 
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        if (traceBatchWriter != null) {
+            traceBatchWriter.close();
+        }
+    }
+
     void deleteBefore(long captureTime) throws Exception {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
     }
 
+    // traces that are waiting in the batch writer are not yet in the trace table
+    private @Nullable Trace getUnpersistedTrace(String traceId) {
+        if (traceBatchWriter == null) {
+            return null;
+        }
+        return traceBatchWriter.getUnpersistedTrace(traceId);
+    }
+
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
-        List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
-        // one extra record over the limit is fetched above to identify if the limit was hit
-        return Result.create(points, limit);
+        TracePointQueryBuilder builder = new TracePointQueryBuilder(traceKind, query, filter,
+                limit, POINT_QUERY_MAX_BUCKETS);
+        List<TracePoint> points =
+                dataSource.query(new TracePointQuery(builder.getParameterizedSql()));
+        return builder.getResult(points);
     }
 
     private List<Trace.SharedQueryText> getSharedQueryTextsForExport(
@@ -536,12 +678,35 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceMergeBatch implements JdbcUpdate {
+
+        private final List<TraceMerge> traceMerges;
+
+        private TraceMergeBatch(List<TraceMerge> traceMerges) {
+            this.traceMerges = traceMerges;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return traceMerges.get(0).getSql();
+        }
+
+        // minimal work inside this method as it is called with active connection
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TraceMerge traceMerge : traceMerges) {
+                traceMerge.bind(preparedStatement);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class TraceAttributeInsert implements JdbcUpdate {
 
-        private final Trace trace;
+        private final List<Trace> traces;
 
-        private TraceAttributeInsert(Trace trace) {
-            this.trace = trace;
+        private TraceAttributeInsert(List<Trace> traces) {
+            this.traces = traces;
         }
 
         @Override
@@ -552,18 +717,19 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            Trace.Header header = trace.getHeader();
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                for (String value : attribute.getValueList()) {
-                    int i = 1;
-                    preparedStatement.setString(i++, trace.getId());
-                    preparedStatement.setString(i++, attribute.getName());
-                    preparedStatement.setString(i++, value);
-                    preparedStatement.setLong(i++, header.getCaptureTime());
-                    preparedStatement.addBatch();
+            for (Trace trace : traces) {
+                Trace.Header header = trace.getHeader();
+                for (Trace.Attribute attribute : header.getAttributeList()) {
+                    for (String value : attribute.getValueList()) {
+                        int i = 1;
+                        preparedStatement.setString(i++, trace.getId());
+                        preparedStatement.setString(i++, attribute.getName());
+                        preparedStatement.setString(i++, value);
+                        preparedStatement.setLong(i++, header.getCaptureTime());
+                        preparedStatement.addBatch();
+                    }
                 }
             }
-
         }
     }
 
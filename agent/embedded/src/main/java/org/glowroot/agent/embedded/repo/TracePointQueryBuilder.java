@@ -15,22 +15,29 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
 
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.model.Result;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
 class TracePointQueryBuilder {
 
     private final TraceKind traceKind;
@@ -38,12 +45,27 @@ class TracePointQueryBuilder {
     private final TracePointFilter filter;
     private final int limit;
 
+    // when limit is non-zero, the time range is split into this many buckets, and the top
+    // (limit / buckets) trace points by duration are selected from each bucket
+    private final int buckets;
+    private final long bucketMillis;
+    private final int bucketLimit;
+
     TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+            int limit, int maxBuckets) {
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
         this.limit = limit;
+        long rangeMillis = query.to() - query.from();
+        if (limit == 0 || rangeMillis <= 0) {
+            buckets = 1;
+        } else {
+            buckets = (int) Math.max(1, Math.min(maxBuckets, Math.min(limit, rangeMillis)));
+        }
+        // rounding up so that the last bucket ends at (or after) query.to()
+        bucketMillis = (rangeMillis + buckets - 1) / buckets;
+        bucketLimit = (limit + buckets - 1) / buckets;
     }
 
     // capture time lower bound is non-inclusive so that aggregate data intervals can be mapped
@@ -51,6 +73,54 @@ class TracePointQueryBuilder {
     // inclusive on upper bound)
     ParameterizedSql getParameterizedSql() {
         ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
+        if (buckets == 1) {
+            appendSelect(builder, query.from(), query.to(), limit);
+            return builder.build();
+        }
+        // the per bucket limits are applied by h2 (each bucket is a separate derived table), so
+        // the number of rows returned is bounded regardless of the number of matching traces
+        for (int i = 0; i < buckets; i++) {
+            if (i > 0) {
+                builder.appendText(" union all ");
+            }
+            builder.appendText("select * from (");
+            long from = query.from() + i * bucketMillis;
+            long to = Math.min(from + bucketMillis, query.to());
+            appendSelect(builder, from, to, bucketLimit);
+            builder.appendText(") b" + castUntainted(Integer.toString(i)));
+        }
+        return builder.build();
+    }
+
+    // the points must be the rows returned from the sql above
+    Result<TracePoint> getResult(List<TracePoint> points) {
+        if (buckets == 1) {
+            // one extra record over the limit is fetched to identify if the limit was hit
+            return Result.create(points, limit);
+        }
+        int[] bucketCounts = new int[buckets];
+        List<TracePoint> bucketedPoints = Lists.newArrayList();
+        boolean moreAvailable = false;
+        // points are in duration order within each bucket
+        for (TracePoint point : points) {
+            int bucket = getBucket(point.captureTime());
+            if (bucketCounts[bucket]++ < bucketLimit) {
+                bucketedPoints.add(point);
+            } else {
+                moreAvailable = true;
+            }
+        }
+        Collections.sort(bucketedPoints, byDurationDesc);
+        return new Result<TracePoint>(bucketedPoints, moreAvailable);
+    }
+
+    private int getBucket(long captureTime) {
+        // bucket ranges are non-inclusive on lower bound and inclusive on upper bound
+        long bucket = (captureTime - query.from() - 1) / bucketMillis;
+        return (int) Math.max(0, Math.min(buckets - 1, bucket));
+    }
+
+    private void appendSelect(ParameterizedSqlBuilder builder, long from, long to, int limit) {
         builder.appendText("select trace.id, trace.capture_time, trace.duration_nanos,"
                 + " trace.partial, trace.error from trace");
         ParameterizedSql criteria = getAttributeCriteria();
@@ -59,14 +129,14 @@ class TracePointQueryBuilder {
         } else {
             builder.appendText(", trace_attribute attr where attr.trace_id = trace.id"
                     + " and attr.capture_time > ? and attr.capture_time <= ? and" + criteria.sql());
-            builder.addArg(query.from());
-            builder.addArg(query.to());
+            builder.addArg(from);
+            builder.addArg(to);
             builder.addArgs(criteria.args());
 
         }
         builder.appendText(" trace.capture_time > ? and trace.capture_time <= ?");
-        builder.addArg(query.from());
-        builder.addArg(query.to());
+        builder.addArg(from);
+        builder.addArg(to);
         appendTraceKindCriteria(builder);
         appendTransactionTypeCriteria(builder);
         appendTransactionNameCriteria(builder);
@@ -74,8 +144,7 @@ class TracePointQueryBuilder {
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
-        appendOrderByAndLimit(builder);
-        return builder.build();
+        appendOrderByAndLimit(builder, limit);
     }
 
     private @Nullable ParameterizedSql getAttributeCriteria() {
@@ -165,7 +234,7 @@ class TracePointQueryBuilder {
         }
     }
 
-    private void appendOrderByAndLimit(ParameterizedSqlBuilder builder) {
+    private static void appendOrderByAndLimit(ParameterizedSqlBuilder builder, int limit) {
         builder.appendText(" order by trace.duration_nanos");
         if (limit != 0) {
             // +1 is to identify if limit was exceeded
@@ -174,6 +243,13 @@ class TracePointQueryBuilder {
         }
     }
 
+    private static final Ordering<TracePoint> byDurationDesc = new Ordering<TracePoint>() {
+        @Override
+        public int compare(TracePoint left, TracePoint right) {
+            return Longs.compare(right.durationNanos(), left.durationNanos());
+        }
+    };
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParameterizedSql {
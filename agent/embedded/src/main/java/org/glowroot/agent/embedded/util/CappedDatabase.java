@@ -22,19 +22,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
@@ -45,6 +58,11 @@ import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
 import com.ning.compress.lzf.util.ChunkDecoderFactory;
 import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +72,7 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CappedDatabase {
 
@@ -61,6 +80,30 @@ public class CappedDatabase {
 
     private static final boolean USE_SAFE_LZF_ENCODER;
 
+    // only the pure java lz4 implementations are used (see agent/shaded/embedded/pom.xml)
+    private static final LZ4Factory LZ4_FACTORY;
+    private static final XXHashFactory XX_HASH_FACTORY;
+
+    // same as lz4-java's default
+    private static final int LZ4_BLOCK_SIZE = 65536;
+    private static final int LZ4_CHECKSUM_SEED = 0x9747b28c;
+
+    private static final CappedDatabaseCodec CODEC =
+            CappedDatabaseCodec.fromName(System.getProperty("glowroot.capped.database.codec", ""));
+
+    private static final int DICTIONARY_CACHE_SIZE = 16;
+
+    private static final FsyncPolicy FSYNC_POLICY =
+            FsyncPolicy.fromName(System.getProperty("glowroot.capped.database.fsync", ""));
+
+    private static final long PERIODIC_FSYNC_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // memory mapped reads are lock-free, so reads (e.g. from the UI) never wait on writes (or on
+    // each other), but this is not used on windows since a mapped file cannot be deleted or
+    // replaced there until the mapping is garbage collected (which breaks resize)
+    private static final boolean MMAP = Boolean.getBoolean("glowroot.capped.database.mmap")
+            && !System.getProperty("os.name", "").startsWith("Windows");
+
     static {
         String arch = StandardSystemProperty.OS_ARCH.value();
         // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
@@ -69,6 +112,13 @@ public class CappedDatabase {
                 || "ppc64le".equals(arch);
         USE_SAFE_LZF_ENCODER =
                 !unalignedAccessAllowed || (AppServerDetection.isIbmJvm() && JavaVersion.isJava6());
+        if (USE_SAFE_LZF_ENCODER) {
+            LZ4_FACTORY = LZ4Factory.safeInstance();
+            XX_HASH_FACTORY = XXHashFactory.safeInstance();
+        } else {
+            LZ4_FACTORY = LZ4Factory.fastestJavaInstance();
+            XX_HASH_FACTORY = XXHashFactory.fastestJavaInstance();
+        }
     }
 
     private final File file;
@@ -76,22 +126,107 @@ public class CappedDatabase {
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
+    private final List<Runnable> preShutdownTasks = new CopyOnWriteArrayList<Runnable>();
     @GuardedBy("lock")
     private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    // non-null when using memory mapped reads, replaced (under lock) after each resize
+    private volatile @Nullable CappedDatabaseMappedFile mappedFile;
+
+    private final CappedDatabaseCodec codec;
+    @GuardedBy("lock")
+    private final Map<String, CappedDatabaseDictionaryTrainer> dictionaryTrainersByType =
+            Maps.newHashMap();
+    // dictionary content for a given capped id never changes, so cached dictionaries remain valid
+    // even after the dictionary block has been overwritten
+    @GuardedBy("dictionaryCache")
+    private final Map<Long, byte[]> dictionaryCache = new LinkedHashMap<Long, byte[]>(
+            DICTIONARY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > DICTIONARY_CACHE_SIZE;
+        }
+    };
+
+    @GuardedBy("lock")
+    private int batchDepth;
+    @GuardedBy("lock")
+    private boolean fsyncPending;
+    @GuardedBy("lock")
+    private long lastFsyncTick;
+
+    private final FsyncPolicy fsyncPolicy;
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MMAP, CODEC);
+    }
+
+    @VisibleForTesting
+    public CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean mmap,
+            CappedDatabaseCodec codec) throws IOException {
+        this(file, requestedSizeKb, ticker, mmap, codec, FSYNC_POLICY);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean mmap,
+            CappedDatabaseCodec codec, FsyncPolicy fsyncPolicy) throws IOException {
         this.file = file;
         this.ticker = ticker;
+        this.fsyncPolicy = fsyncPolicy;
+        this.codec = codec;
+        lastFsyncTick = ticker.read();
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
         inFile = new RandomAccessFile(file, "r");
+        if (mmap) {
+            mappedFile = out.map();
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
+    // with the periodic fsync policy, a write inside the one second window is only fsync'd by a
+    // later write, so this fsyncs the tail of a burst of writes when no later write arrives
+    public void schedulePeriodicFsync(ScheduledExecutorService executor) {
+        if (fsyncPolicy != FsyncPolicy.PERIODIC) {
+            return;
+        }
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fsyncIfPending();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, PERIODIC_FSYNC_NANOS, PERIODIC_FSYNC_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    @VisibleForTesting
+    void fsyncIfPending() throws IOException {
+        synchronized (lock) {
+            if (batchDepth == 0 && !closed) {
+                fsyncIfNeeded();
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    boolean isFsyncPending() {
+        synchronized (lock) {
+            return fsyncPending;
+        }
+    }
+
+    // these are run by the shutdown hook before closing, e.g. to flush write-behind buffers that
+    // write to this capped database
+    public void addPreShutdownTask(Runnable task) {
+        preShutdownTasks.add(task);
+    }
+
     public long writeMessage(final AbstractMessage message, String type) throws IOException {
         return write(type, new Copier() {
             @Override
@@ -113,6 +248,15 @@ public class CappedDatabase {
         });
     }
 
+    public long writeBytes(final byte[] bytes, String type) throws IOException {
+        return write(type, new Copier() {
+            @Override
+            public void copyTo(OutputStream writer) throws IOException {
+                writer.write(bytes);
+            }
+        });
+    }
+
     public CappedDatabaseStats getStats(String type) {
         CappedDatabaseStats stats = statsByType.get(type);
         if (stats == null) {
@@ -137,37 +281,161 @@ public class CappedDatabase {
                 return -1;
             }
             long startTick = ticker.read();
+            CappedDatabaseDictionaryTrainer dictionaryTrainer = null;
+            long dictionaryBytes = 0;
+            if (codec == CappedDatabaseCodec.DEFLATE_DICTIONARY) {
+                dictionaryTrainer = getDictionaryTrainer(type);
+                if (dictionaryTrainer.shouldTrain(getMinDictionaryCappedId())) {
+                    dictionaryBytes = writeDictionary(dictionaryTrainer);
+                }
+            }
             out.startBlock();
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
+            OutputStream compressingStream =
+                    newCompressingOutputStream(countingStreamAfterCompression, dictionaryTrainer);
+            SamplingOutputStream samplingStream = null;
+            if (dictionaryTrainer != null) {
+                samplingStream = new SamplingOutputStream(compressingStream);
+                compressingStream = samplingStream;
+            }
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(compressingStream);
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
+            if (dictionaryTrainer != null) {
+                checkNotNull(samplingStream).addSampleTo(dictionaryTrainer);
+            }
             long endTick = ticker.read();
             CappedDatabaseStats stats = statsByType.get(type);
             if (stats == null) {
                 stats = new CappedDatabaseStats();
                 statsByType.put(type, stats);
             }
+            // dictionary blocks are included in the compressed size since they take up space in
+            // the capped database just like the blocks that reference them
             stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+                    countingStreamAfterCompression.getCount() + dictionaryBytes,
+                    endTick - startTick);
+            long cappedId = out.endBlock();
+            fsyncPending = true;
+            if (batchDepth == 0) {
+                fsyncIfNeeded();
+            }
+            return cappedId;
         }
     }
 
-    public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
-            Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
+    // all writes performed by the batch writer are appended back to back under a single lock
+    // acquisition, and are fsync'd (depending on the fsync policy) once at the end of the batch
+    // instead of once per block
+    public <T> T writeBatch(BatchWriter<T> batchWriter) throws Exception {
         synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+            batchDepth++;
+            try {
+                return batchWriter.write();
+            } finally {
+                batchDepth--;
+                if (batchDepth == 0 && !closed) {
+                    fsyncIfNeeded();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void fsyncIfNeeded() throws IOException {
+        if (!fsyncPending) {
+            return;
+        }
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                out.sync();
+                break;
+            case PERIODIC:
+                long currentTick = ticker.read();
+                if (currentTick - lastFsyncTick < PERIODIC_FSYNC_NANOS) {
+                    // leave fsyncPending set so that it is fsync'd by a later write (or by the
+                    // scheduled periodic fsync, see schedulePeriodicFsync())
+                    return;
+                }
+                out.sync();
+                lastFsyncTick = currentTick;
+                break;
+            default:
+                // NEVER, leave it to the operating system
+                break;
         }
-        if (overwritten) {
+        fsyncPending = false;
+    }
+
+    @GuardedBy("lock")
+    private CappedDatabaseDictionaryTrainer getDictionaryTrainer(String type) {
+        CappedDatabaseDictionaryTrainer dictionaryTrainer = dictionaryTrainersByType.get(type);
+        if (dictionaryTrainer == null) {
+            dictionaryTrainer = new CappedDatabaseDictionaryTrainer();
+            dictionaryTrainersByType.put(type, dictionaryTrainer);
+        }
+        return dictionaryTrainer;
+    }
+
+    // blocks can't be read once the dictionary they reference has been overwritten, so the
+    // dictionary is rewritten (and retrained) once 1/8 of the capped database has been written
+    // since the current dictionary, which bounds the portion of history that is lost early to 1/8
+    @GuardedBy("lock")
+    private long getMinDictionaryCappedId() {
+        return Math.max(out.getSmallestNonOverwrittenId(),
+                out.getCurrIndex() - out.getSizeKb() * 1024L / 8);
+    }
+
+    // returns the number of bytes written
+    @GuardedBy("lock")
+    private long writeDictionary(CappedDatabaseDictionaryTrainer dictionaryTrainer)
+            throws IOException {
+        byte[] dictionary = dictionaryTrainer.train();
+        out.startBlock();
+        NonClosingCountingOutputStream countingStream = new NonClosingCountingOutputStream(out);
+        OutputStream compressingStream = newLZFOutputStream(countingStream);
+        compressingStream.write(dictionary);
+        compressingStream.close();
+        long dictionaryCappedId = out.endBlock();
+        dictionaryTrainer.setDictionary(dictionary, dictionaryCappedId);
+        synchronized (dictionaryCache) {
+            dictionaryCache.put(dictionaryCappedId, dictionary);
+        }
+        return countingStream.getCount();
+    }
+
+    private OutputStream newCompressingOutputStream(OutputStream out,
+            @Nullable CappedDatabaseDictionaryTrainer dictionaryTrainer) throws IOException {
+        switch (codec) {
+            case LZ4:
+                out.write(CappedDatabaseCodec.LZ4.getTag());
+                return new LZ4BlockOutputStream(out, LZ4_BLOCK_SIZE, LZ4_FACTORY.fastCompressor(),
+                        newLZ4Checksum(), false);
+            case DEFLATE_DICTIONARY:
+                CappedDatabaseDictionaryTrainer trainer = checkNotNull(dictionaryTrainer);
+                byte[] dictionary = trainer.getDictionary();
+                out.write(CappedDatabaseCodec.DEFLATE_DICTIONARY.getTag());
+                out.write(Longs.toByteArray(
+                        dictionary == null ? -1 : trainer.getDictionaryCappedId()));
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                return new EndingDeflaterOutputStream(out, deflater);
+            default:
+                // LZF blocks are not tagged, see CappedDatabaseCodec
+                return newLZFOutputStream(out);
+        }
+    }
+
+    public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
+            Parser<T> parser) throws IOException {
+        if (isExpired(cappedId)) {
             return null;
         }
-        if (inTheFuture) {
+        if (isInTheFuture(cappedId)) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -175,18 +443,11 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newBlockInputStream(cappedId);
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId) && !isRolledOver(e)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -197,16 +458,10 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        if (isExpired(cappedId)) {
             return ImmutableList.of();
         }
-        if (inTheFuture) {
+        if (isInTheFuture(cappedId)) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -214,11 +469,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newBlockInputStream(cappedId);
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -228,10 +479,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId) && !isRolledOver(e)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -241,17 +489,48 @@ public class CappedDatabase {
         return messages;
     }
 
+    public byte /*@Nullable*/ [] readBytes(long cappedId) throws IOException {
+        if (isExpired(cappedId) || isInTheFuture(cappedId)) {
+            // see comment in readMessage() regarding capped ids in the future
+            return null;
+        }
+        InputStream input = newBlockInputStream(cappedId);
+        try {
+            return ByteStreams.toByteArray(input);
+        } catch (Exception e) {
+            if (!isExpired(cappedId) && !isRolledOver(e)) {
+                logger.error(e.getMessage(), e);
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
     }
 
     boolean isExpired(long cappedId) {
+        CappedDatabaseMappedFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            return mappedFile.isOverwritten(cappedId, out.getWriteLimitIndex());
+        }
         synchronized (lock) {
             return out.isOverwritten(cappedId);
         }
     }
 
+    private boolean isInTheFuture(long cappedId) {
+        if (mappedFile != null) {
+            return cappedId >= out.getCurrIndex();
+        }
+        synchronized (lock) {
+            return cappedId >= out.getCurrIndex();
+        }
+    }
+
     public long getSmallestNonExpiredId() {
         synchronized (lock) {
             return out.getSmallestNonOverwrittenId();
@@ -266,6 +545,11 @@ public class CappedDatabase {
             inFile.close();
             out.resize(newSizeKb);
             inFile = new RandomAccessFile(file, "r");
+            if (mappedFile != null) {
+                // readers still holding the prior mapping will fail with
+                // CappedBlockRolledOverMidReadException
+                mappedFile = out.map();
+            }
         }
     }
 
@@ -279,6 +563,87 @@ public class CappedDatabase {
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private InputStream newBlockInputStream(long cappedId) throws IOException {
+        CappedDatabaseMappedFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            // no buffering needed since reads from the mapping don't incur any system calls
+            return newDecompressingInputStream(new MappedBlockInputStream(mappedFile, cappedId));
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        final int bufferSize = 32768;
+        return newDecompressingInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+    }
+
+    // the codec is determined per block, so that blocks written with a different codec (e.g. before
+    // the codec was changed) can still be read
+    private InputStream newDecompressingInputStream(InputStream in) throws IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, 1);
+        int tag = pushbackIn.read();
+        if (tag == CappedDatabaseCodec.LZ4.getTag()) {
+            return new LZ4BlockInputStream(pushbackIn, LZ4_FACTORY.fastDecompressor(),
+                    newLZ4Checksum());
+        }
+        if (tag == CappedDatabaseCodec.DEFLATE_DICTIONARY.getTag()) {
+            byte[] dictionaryCappedIdBytes = new byte[8];
+            ByteStreams.readFully(pushbackIn, dictionaryCappedIdBytes);
+            long dictionaryCappedId = Longs.fromByteArray(dictionaryCappedIdBytes);
+            byte[] dictionary = null;
+            if (dictionaryCappedId != -1) {
+                dictionary = readDictionary(dictionaryCappedId);
+            }
+            Inflater inflater = new Inflater(true);
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            return new EndingInflaterInputStream(pushbackIn, inflater);
+        }
+        if (tag != -1) {
+            pushbackIn.unread(tag);
+        }
+        return newLZFInputStream(pushbackIn);
+    }
+
+    private byte[] readDictionary(long dictionaryCappedId) throws IOException {
+        synchronized (dictionaryCache) {
+            byte[] dictionary = dictionaryCache.get(dictionaryCappedId);
+            if (dictionary != null) {
+                return dictionary;
+            }
+        }
+        if (isExpired(dictionaryCappedId)) {
+            throw new CappedBlockRolledOverMidReadException("Dictionary block rolled over");
+        }
+        InputStream in = newBlockInputStream(dictionaryCappedId);
+        byte[] dictionary;
+        try {
+            dictionary = ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        synchronized (dictionaryCache) {
+            dictionaryCache.put(dictionaryCappedId, dictionary);
+        }
+        return dictionary;
+    }
+
+    private static Checksum newLZ4Checksum() {
+        return XX_HASH_FACTORY.newStreamingHash32(LZ4_CHECKSUM_SEED).asChecksum();
+    }
+
+    // protobuf parsers wrap IOExceptions thrown by the underlying stream
+    private static boolean isRolledOver(Throwable t) {
+        Throwable cause = t;
+        while (cause != null) {
+            if (cause instanceof CappedBlockRolledOverMidReadException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -306,12 +671,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
+            return new InputStreamReader(newBlockInputStream(cappedId), UTF_8);
         }
     }
 
@@ -365,9 +725,75 @@ public class CappedDatabase {
         }
     }
 
+    // reads directly from the memory mapped file without taking the lock, the data is validated
+    // after copying (the writer advances the write limit before overwriting any data) so that any
+    // data returned to the caller is known not to have been overwritten mid-read
+    private class MappedBlockInputStream extends InputStream {
+
+        private final CappedDatabaseMappedFile mappedFile;
+        private final long cappedId;
+        private long blockLength = -1;
+        private long blockIndex;
+
+        private MappedBlockInputStream(CappedDatabaseMappedFile mappedFile, long cappedId) {
+            this.mappedFile = mappedFile;
+            this.cappedId = cappedId;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (blockIndex == blockLength) {
+                return -1;
+            }
+            if (blockLength == -1) {
+                long blockLength = mappedFile.readLong(mappedFile.convertToFilePosition(cappedId));
+                checkNotRolledOver();
+                if (blockLength < 0 || blockLength > mappedFile.getSizeBytes()) {
+                    throw new IOException("Invalid block length: " + blockLength);
+                }
+                this.blockLength = blockLength;
+                if (blockLength == 0) {
+                    return -1;
+                }
+            }
+            long filePosition = mappedFile.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = mappedFile.getSizeBytes() - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            int numRead = mappedFile.read(filePosition, bytes, off, numToRead);
+            checkNotRolledOver();
+            blockIndex += numRead;
+            return numRead;
+        }
+
+        @Override
+        public int read(byte[] bytes) throws IOException {
+            return read(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            int numRead;
+            do {
+                numRead = read(bytes, 0, 1);
+            } while (numRead == 0);
+            return numRead == -1 ? -1 : bytes[0] & 0xff;
+        }
+
+        private void checkNotRolledOver() throws CappedBlockRolledOverMidReadException {
+            if (CappedDatabase.this.mappedFile != mappedFile
+                    || mappedFile.isOverwritten(cappedId, out.getWriteLimitIndex())) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
+    }
+
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
+            runPreShutdownTasks();
             try {
                 // update flag outside of lock in case there is a backlog of threads already
                 // waiting on the lock (once the flag is set, any threads in the backlog that
@@ -381,12 +807,45 @@ public class CappedDatabase {
                 logger.warn(e.getMessage(), e);
             }
         }
+
+        private void runPreShutdownTasks() {
+            for (Runnable task : preShutdownTasks) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.warn(t.getMessage(), t);
+                }
+            }
+        }
     }
 
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
 
+    public interface BatchWriter<T> {
+        T write() throws Exception;
+    }
+
+    enum FsyncPolicy {
+
+        // fsync after each write (or once after each batch of writes), this is the safest
+        ALWAYS,
+        // fsync at most once per second, so writes from the last second can be lost if the
+        // operating system crashes (but not if only the JVM crashes)
+        PERIODIC,
+        // leave it to the operating system to flush writes to disk
+        NEVER;
+
+        static FsyncPolicy fromName(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return ALWAYS;
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class CappedBlockRolledOverMidReadException extends IOException {
         public CappedBlockRolledOverMidReadException(String message) {
@@ -394,6 +853,75 @@ public class CappedDatabase {
         }
     }
 
+    // captures the start of the uncompressed block for training the dictionary
+    private static class SamplingOutputStream extends FilterOutputStream {
+
+        private final byte[] sample = new byte[CappedDatabaseDictionaryTrainer.MAX_SAMPLE_BYTES];
+        private int sampleLength;
+
+        private SamplingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int numToCopy = Math.min(len, sample.length - sampleLength);
+            System.arraycopy(b, off, sample, sampleLength, numToCopy);
+            sampleLength += numToCopy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (sampleLength < sample.length) {
+                sample[sampleLength++] = (byte) b;
+            }
+        }
+
+        private void addSampleTo(CappedDatabaseDictionaryTrainer dictionaryTrainer) {
+            if (sampleLength > 0) {
+                dictionaryTrainer.addSample(sample, sampleLength);
+            }
+        }
+    }
+
+    // releases the native zlib memory on close (which DeflaterOutputStream only does for its own
+    // default deflater)
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+
+        private EndingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 65536);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    // releases the native zlib memory on close (which InflaterInputStream only does for its own
+    // default inflater)
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+
+        private EndingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, 8192);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
     private static class NonClosingCountingOutputStream extends FilterOutputStream {
 
         private long count;
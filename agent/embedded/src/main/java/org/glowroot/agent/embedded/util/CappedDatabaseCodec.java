@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.Locale;
+
+// compression codec used for new capped database blocks, blocks are tagged with their codec so
+// blocks written with different codecs (e.g. before and after changing codecs) can be read back
+public enum CappedDatabaseCodec {
+
+    // LZF blocks are written without a codec tag since LZF chunks always start with 'Z', which
+    // keeps the on-disk format unchanged from prior versions when using the default codec
+    LZF((byte) -1),
+    LZ4((byte) 1),
+    // raw deflate with a preset dictionary built from recent blocks of the same type, which works
+    // well for trace entries, queries and profiles since they are highly repetitive across traces
+    DEFLATE_DICTIONARY((byte) 2);
+
+    private final byte tag;
+
+    private CappedDatabaseCodec(byte tag) {
+        this.tag = tag;
+    }
+
+    byte getTag() {
+        return tag;
+    }
+
+    static CappedDatabaseCodec fromName(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return LZF;
+        }
+    }
+}
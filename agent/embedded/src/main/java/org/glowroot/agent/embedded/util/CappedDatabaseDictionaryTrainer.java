@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+// builds preset deflate dictionaries from recent (uncompressed) blocks of a single type
+//
+// deflate can only reference the last 32kb of the dictionary, and matches are encoded more
+// cheaply the closer they are to the data, so the dictionary is filled with the most recent
+// samples last (as recommended by the zlib documentation)
+@NotThreadSafe
+class CappedDatabaseDictionaryTrainer {
+
+    static final int MAX_DICTIONARY_BYTES = 32768;
+
+    // only the start of each block is sampled, which is where the repetitive structure (e.g. the
+    // root trace entries, the first queries) is
+    static final int MAX_SAMPLE_BYTES = 4096;
+
+    private static final int MIN_SAMPLE_COUNT = 8;
+
+    // the dictionary is retrained periodically so that it keeps up with changes in the data
+    private static final int RETRAIN_BLOCK_COUNT = 1000;
+
+    private final Deque<byte[]> samples = new ArrayDeque<byte[]>();
+    private int totalSampleBytes;
+
+    private byte /*@Nullable*/ [] dictionary;
+    private long dictionaryCappedId = -1;
+    private int blockCountSinceTraining;
+
+    void addSample(byte[] bytes, int length) {
+        byte[] sample = new byte[Math.min(length, MAX_SAMPLE_BYTES)];
+        System.arraycopy(bytes, 0, sample, 0, sample.length);
+        samples.addLast(sample);
+        totalSampleBytes += sample.length;
+        while (totalSampleBytes - samples.getFirst().length >= MAX_DICTIONARY_BYTES) {
+            totalSampleBytes -= samples.removeFirst().length;
+        }
+        blockCountSinceTraining++;
+    }
+
+    // minDictionaryCappedId is used to retrain well before the dictionary is overwritten, since
+    // blocks that reference an overwritten dictionary can no longer be read
+    boolean shouldTrain(long minDictionaryCappedId) {
+        if (samples.size() < MIN_SAMPLE_COUNT) {
+            return false;
+        }
+        return dictionary == null || dictionaryCappedId < minDictionaryCappedId
+                || blockCountSinceTraining >= RETRAIN_BLOCK_COUNT;
+    }
+
+    byte[] train() {
+        int length = Math.min(totalSampleBytes, MAX_DICTIONARY_BYTES);
+        byte[] dictionary = new byte[length];
+        int remaining = length;
+        Iterator<byte[]> i = samples.descendingIterator();
+        while (remaining > 0 && i.hasNext()) {
+            byte[] sample = i.next();
+            int numToCopy = Math.min(sample.length, remaining);
+            remaining -= numToCopy;
+            System.arraycopy(sample, sample.length - numToCopy, dictionary, remaining, numToCopy);
+        }
+        return dictionary;
+    }
+
+    void setDictionary(byte[] dictionary, long dictionaryCappedId) {
+        this.dictionary = dictionary;
+        this.dictionaryCappedId = dictionaryCappedId;
+        blockCountSinceTraining = 0;
+    }
+
+    byte /*@Nullable*/ [] getDictionary() {
+        return dictionary;
+    }
+
+    long getDictionaryCappedId() {
+        return dictionaryCappedId;
+    }
+}
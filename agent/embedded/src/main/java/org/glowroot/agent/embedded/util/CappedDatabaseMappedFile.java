@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.glowroot.agent.embedded.util.CappedDatabaseOutputStream.HEADER_SKIP_BYTES;
+
+// read-only memory mapping of the capped database file
+//
+// all reads are absolute (they don't touch any shared buffer position) so any number of readers
+// can read concurrently without locking, and the file layout (lastResizeBaseIndex and sizeBytes)
+// is captured at mapping time, a new instance is mapped after each resize
+class CappedDatabaseMappedFile {
+
+    // a single MappedByteBuffer cannot be larger than Integer.MAX_VALUE bytes
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long lastResizeBaseIndex;
+    private final long sizeBytes;
+
+    // the file must already be at least HEADER_SKIP_BYTES + sizeBytes long
+    CappedDatabaseMappedFile(File file, long lastResizeBaseIndex, long sizeBytes)
+            throws IOException {
+        this.lastResizeBaseIndex = lastResizeBaseIndex;
+        this.sizeBytes = sizeBytes;
+        long totalBytes = HEADER_SKIP_BYTES + sizeBytes;
+        int segmentCount = (int) ((totalBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        segments = new MappedByteBuffer[segmentCount];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            for (int i = 0; i < segmentCount; i++) {
+                long position = (long) i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SEGMENT_BYTES, totalBytes - position));
+            }
+        } finally {
+            // the mapping remains valid after the channel is closed
+            in.close();
+        }
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    boolean isOverwritten(long cappedId, long writeLimitIndex) {
+        return cappedId < getSmallestNonOverwrittenId(writeLimitIndex);
+    }
+
+    long getSmallestNonOverwrittenId(long writeLimitIndex) {
+        // see CappedDatabaseOutputStream.getSmallestNonOverwrittenId()
+        return Math.max(lastResizeBaseIndex, writeLimitIndex - sizeBytes);
+    }
+
+    long convertToFilePosition(long index) {
+        return (index - lastResizeBaseIndex) % sizeBytes;
+    }
+
+    // block headers are never split across the end of the capped database (see
+    // CappedDatabaseOutputStream.startBlock()), but they can still span two segments
+    long readLong(long filePosition) {
+        long position = HEADER_SKIP_BYTES + filePosition;
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (readByte(position + i) & 0xff);
+        }
+        return value;
+    }
+
+    // reads from a single segment, so can return fewer than len bytes
+    int read(long filePosition, byte[] bytes, int off, int len) {
+        long position = HEADER_SKIP_BYTES + filePosition;
+        ByteBuffer segment = segments[(int) (position / SEGMENT_BYTES)].duplicate();
+        int segmentPosition = (int) (position % SEGMENT_BYTES);
+        int numToRead = Math.min(len, segment.limit() - segmentPosition);
+        segment.position(segmentPosition);
+        segment.get(bytes, off, numToRead);
+        return numToRead;
+    }
+
+    private byte readByte(long position) {
+        return segments[(int) (position / SEGMENT_BYTES)].get((int) (position % SEGMENT_BYTES));
+    }
+}
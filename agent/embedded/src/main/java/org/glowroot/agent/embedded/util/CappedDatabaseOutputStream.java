@@ -20,8 +20,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
@@ -35,7 +33,13 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is volatile so it can be read by lock-free (memory mapped) readers
+    private volatile long currIndex;
+    // writeLimitIndex is the (exclusive) upper bound of the index range that may currently be
+    // being written, it is advanced before writing so that lock-free (memory mapped) readers can
+    // detect that the block they are reading has been (or is being) overwritten
+    private volatile long writeLimitIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
@@ -66,6 +70,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        writeLimitIndex = currIndex;
     }
 
     void startBlock() {
@@ -79,12 +84,13 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        writeLimitIndex = currIndex;
     }
 
     long endBlock() throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
         out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        // fsync is up to the caller (see CappedDatabase.FsyncPolicy)
         return blockStartIndex;
     }
 
@@ -102,6 +108,11 @@ class CappedDatabaseOutputStream extends OutputStream {
         return currIndex;
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    long getWriteLimitIndex() {
+        return writeLimitIndex;
+    }
+
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
         return sizeKb;
@@ -111,6 +122,16 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
+    // the file is extended to the full capped size first since a read-only mapping cannot extend
+    // the file
+    CappedDatabaseMappedFile map() throws IOException {
+        long fullLength = HEADER_SKIP_BYTES + sizeBytes;
+        if (out.length() < fullLength) {
+            out.setLength(fullLength);
+        }
+        return new CappedDatabaseMappedFile(file, lastResizeBaseIndex, sizeBytes);
+    }
+
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
@@ -175,6 +196,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        writeLimitIndex = currIndex + len;
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -219,7 +241,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
     void sync() throws IOException {
         out.getFD().sync();
     }
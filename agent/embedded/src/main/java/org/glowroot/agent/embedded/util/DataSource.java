@@ -25,7 +25,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -45,6 +47,8 @@ import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.embedded.util.H2ReadConnectionPool.ConnectionFactory;
+import org.glowroot.agent.embedded.util.H2ReadConnectionPool.ReadConnection;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -53,6 +57,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -65,14 +70,58 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // when greater than zero, reads use a pool of this many additional connections (instead of
+    // waiting on the single write connection), this only applies to file based databases since each
+    // connection to an unnamed in-memory database gets its own private database
+    //
+    // h2 only executes statements from different connections concurrently in multi-threaded mode,
+    // in which statements still take table level locks (and mvcc cannot be combined with
+    // multi-threaded mode in h2 1.3), so writes to a table wait (up to the lock timeout) while a read
+    // statement on that table is executing, but no longer wait on reads of other tables
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
+    private static final int DELETE_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.h2.deleteBatchSize", 100);
+
+    private static final long DELETE_SLICE_NANOS = MILLISECONDS
+            .toNanos(Long.getLong("glowroot.internal.h2.deleteSliceMillis", 100));
+
+    private static final long DELETE_PAUSE_MILLIS =
+            Long.getLong("glowroot.internal.h2.deletePauseMillis", 10);
+
+    private static final int LOCK_TIMEOUT_MILLIS =
+            Integer.getInteger("glowroot.internal.h2.lockTimeoutMillis", 10000);
+
+    // writes wait on reads of the same table when using read connections (see above), so the write
+    // connection's lock timeout is longer than the longest read (reads on the read connections are
+    // always bounded by the query timeout, see borrowReadConnection()), otherwise a long running UI
+    // query would cause a write to fail and the collected data to be dropped
+    private static final int WRITE_LOCK_TIMEOUT_MILLIS = QUERY_TIMEOUT_SECONDS <= 0
+            ? Integer.MAX_VALUE
+            : (int) Math.min(Integer.MAX_VALUE,
+                    SECONDS.toMillis(QUERY_TIMEOUT_SECONDS) + LOCK_TIMEOUT_MILLIS);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
+    private final List<Runnable> preShutdownTasks = new CopyOnWriteArrayList<Runnable>();
     private final Object lock = new Object();
+    // defrag, compact, deleteAll and close first acquire this lock and suspend the read connection
+    // pool, and only then acquire the lock above, so that writes don't wait (on the lock above)
+    // while suspending the read connection pool waits for in-progress reads to complete
+    //
+    // lock ordering is always maintenanceLock before lock
+    private final Object maintenanceLock = new Object();
     @GuardedBy("lock")
     private Connection connection;
     private volatile boolean closed;
 
+    private final @Nullable H2ReadConnectionPool readConnectionPool;
+
+    private final AtomicLong lockWaitNanos = new AtomicLong();
+    private final AtomicLong lockCount = new AtomicLong();
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -99,29 +148,61 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        connection = createConnection(null, false, 0);
+        readConnectionPool = null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(final File dbFile, int readConnections) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        final boolean multiThreaded = readConnections > 0;
+        connection = createConnection(dbFile, multiThreaded, WRITE_LOCK_TIMEOUT_MILLIS);
+        if (multiThreaded) {
+            readConnectionPool = new H2ReadConnectionPool(readConnections);
+            readConnectionPool.resume(new ConnectionFactory() {
+                @Override
+                public Connection createConnection() throws SQLException {
+                    return DataSource.createConnection(dbFile, multiThreaded,
+                            LOCK_TIMEOUT_MILLIS);
+                }
+            });
+        } else {
+            readConnectionPool = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
+    // these are run by the shutdown hook before closing, e.g. to flush write-behind buffers that
+    // write to this data source
+    public void addPreShutdownTask(Runnable task) {
+        preShutdownTasks.add(task);
+    }
+
     public void defrag() throws SQLException {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        synchronized (maintenanceLock) {
             if (closed) {
                 return;
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            suspendReadConnectionPool();
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                execute("shutdown defrag");
+                preparedStatementCache.invalidateAll();
+                connection = createWriteConnection(dbFile);
+                resumeReadConnectionPool(dbFile);
+            }
         }
     }
 
@@ -129,13 +210,20 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        synchronized (maintenanceLock) {
             if (closed) {
                 return;
             }
-            execute("shutdown compact");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            suspendReadConnectionPool();
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                execute("shutdown compact");
+                preparedStatementCache.invalidateAll();
+                connection = createWriteConnection(dbFile);
+                resumeReadConnectionPool(dbFile);
+            }
         }
     }
 
@@ -156,35 +244,46 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        synchronized (maintenanceLock) {
             if (closed) {
                 return;
             }
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+            // read connections need to be closed too, otherwise the database remains open
+            suspendReadConnectionPool();
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                List<String> schemaVersionRows =
+                        queryForStringList("select schema_version from schema_version");
+                connection.close();
+                preparedStatementCache.invalidateAll();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createWriteConnection(dbFile);
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                for (String schemaVersionRow : schemaVersionRows) {
+                    update("insert into schema_version (schema_version) values (?)",
+                            schemaVersionRow);
+                }
+                resumeReadConnectionPool(dbFile);
             }
         }
     }
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -205,51 +304,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return query(sql, args, 0L, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        });
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return query(sql, args, null, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        });
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -268,22 +357,22 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(readConnection.prepareStatement(jdbcQuery.getSql(),
+                        getQueryTimeoutSeconds(QUERY_TIMEOUT_SECONDS)), jdbcQuery);
+            } finally {
+                checkNotNull(readConnectionPool).release(readConnection);
+            }
+        }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startTick);
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS), jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -302,26 +391,22 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(readConnection.prepareStatement(jdbcQuery.getSql(),
+                        getQueryTimeoutSeconds(QUERY_TIMEOUT_SECONDS)), jdbcQuery);
+            } finally {
+                checkNotNull(readConnectionPool).release(readConnection);
+            }
+        }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startTick);
             if (closed) {
                 return ImmutableList.of();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS), jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -350,7 +435,9 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startTick);
             if (closed) {
                 return 0;
             }
@@ -369,7 +456,9 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startTick);
             if (closed) {
                 return new int[0];
             }
@@ -380,33 +469,59 @@ public class DataSource {
         }
     }
 
-    public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
-        deleteBefore(tableName, "capture_time", captureTime);
+    public long deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
+        return deleteBefore(tableName, "capture_time", captureTime);
     }
 
-    public void deleteBefore(@Untainted String tableName, @Untainted String columnName,
+    public long deleteBefore(@Untainted String tableName, @Untainted String columnName,
             long captureTime) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
-        int deleted;
-        do {
-            deleted = update("delete from " + tableName + " where " + columnName + " < ? limit 100",
-                    captureTime);
-        } while (deleted > 0);
+        return deleteBeforeUsingLock(tableName, columnName, captureTime, null);
     }
 
-    public void deleteBeforeUsingLock(@Untainted String tableName, @Untainted String columnName,
-            long captureTime, Object lock) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
+    // returns the number of rows deleted
+    public long deleteBeforeUsingLock(@Untainted String tableName, @Untainted String columnName,
+            long captureTime, @Nullable Object lock) throws SQLException {
+        // delete in small batches, which is both faster than deleting all at once, and doesn't
         // lock the single jdbc connection for one large chunk of time
+        //
+        // batches are grouped into time-boxed slices, with a pause between slices so that threads
+        // waiting on the lock (e.g. ingestion) are not starved during a large delete (e.g. after
+        // retention is shortened), since java monitors are not fair and the reaping thread could
+        // otherwise immediately re-acquire the lock after each batch
+        @Untainted String sql = "delete from " + tableName + " where " + columnName + " < ? limit "
+                + DELETE_BATCH_SIZE;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long sliceStartTick = System.nanoTime();
+        long totalDeleted = 0;
+        int slices = 1;
         int deleted;
         do {
-            synchronized (lock) {
-                deleted = update(
-                        "delete from " + tableName + " where " + columnName + " < ? limit 100",
-                        captureTime);
+            if (lock == null) {
+                deleted = update(sql, captureTime);
+            } else {
+                synchronized (lock) {
+                    deleted = update(sql, captureTime);
+                }
             }
-        } while (deleted > 0);
+            totalDeleted += deleted;
+            if (deleted > 0 && System.nanoTime() - sliceStartTick >= DELETE_SLICE_NANOS) {
+                logger.debug("deleted {} rows so far from {}", totalDeleted, tableName);
+                try {
+                    MILLISECONDS.sleep(DELETE_PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    // the remaining rows will be deleted on the next run
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                sliceStartTick = System.nanoTime();
+                slices++;
+            }
+        } while (deleted > 0 && !closed);
+        if (slices > 1) {
+            logger.info("deleted {} rows from {} in {} ms", totalDeleted, tableName,
+                    stopwatch.elapsed(MILLISECONDS));
+        }
+        return totalDeleted;
     }
 
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
@@ -434,6 +549,47 @@ public class DataSource {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    int getReadConnections() {
+        return readConnectionPool == null ? 0 : readConnectionPool.getSize();
+    }
+
+    long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    long getLockCount() {
+        return lockCount.get();
+    }
+
+    long getReadConnectionWaitNanos() {
+        return readConnectionPool == null ? 0 : readConnectionPool.getWaitNanos();
+    }
+
+    long getReadConnectionBorrowCount() {
+        return readConnectionPool == null ? 0 : readConnectionPool.getBorrowCount();
+    }
+
+    public List</*@Untainted*/ String> getAllTableNames() throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return ImmutableList.of();
+            }
+            return getAllTableNamesUnderLock();
+        }
+    }
+
+    public void dropTable(@Untainted String tableName) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            execute("drop table if exists " + tableName);
+            // so that deleteAll() does not re-create the table
+            tables.remove(tableName);
+            indexes.remove(tableName);
+        }
+    }
+
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
@@ -482,12 +638,15 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
+        synchronized (maintenanceLock) {
             if (closed) {
                 return;
             }
             closed = true;
-            connection.close();
+            suspendReadConnectionPool();
+            synchronized (lock) {
+                connection.close();
+            }
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
@@ -531,16 +690,68 @@ public class DataSource {
         return tables;
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
+    private <T extends /*@Nullable*/ Object> T query(@Untainted String sql, Object[] args,
+            T valueIfDataSourceClosed, ResultSetExtractor<T> rse) throws SQLException {
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(readConnection.prepareStatement(sql,
+                        getQueryTimeoutSeconds(QUERY_TIMEOUT_SECONDS)), args, rse);
+            } finally {
+                checkNotNull(readConnectionPool).release(readConnection);
+            }
+        }
+        long startTick = System.nanoTime();
+        synchronized (lock) {
+            recordLockWait(startTick);
+            if (closed) {
+                return valueIfDataSourceClosed;
+            }
+            return query(prepareStatement(sql, QUERY_TIMEOUT_SECONDS), args, rse);
+            // don't need to close statement since they are all cached and used under lock
+        }
+    }
+
+    private @Nullable ReadConnection borrowReadConnection() {
+        if (readConnectionPool == null || closed) {
+            return null;
+        }
+        if (suppressQueryTimeout.get()) {
+            // reads on the read connections must be bounded by the query timeout, since writes can
+            // wait on them (see WRITE_LOCK_TIMEOUT_MILLIS)
+            return null;
+        }
+        return readConnectionPool.borrow();
+    }
+
+    // this waits for borrowed read connections to be released, so it must not be called while
+    // holding the lock (which would block all writes during that time)
+    @GuardedBy("maintenanceLock")
+    private void suspendReadConnectionPool() throws SQLException {
+        if (readConnectionPool != null) {
+            readConnectionPool.suspend();
         }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+    }
+
+    @GuardedBy("maintenanceLock")
+    private void resumeReadConnectionPool(final File dbFile) throws SQLException {
+        if (readConnectionPool != null) {
+            readConnectionPool.resume(new ConnectionFactory() {
+                @Override
+                public Connection createConnection() throws SQLException {
+                    return DataSource.createConnection(dbFile, true, LOCK_TIMEOUT_MILLIS);
+                }
+            });
+        }
+    }
+
+    private void recordLockWait(long startTick) {
+        lockWaitNanos.addAndGet(System.nanoTime() - startTick);
+        lockCount.incrementAndGet();
+    }
+
+    private int getQueryTimeoutSeconds(int queryTimeoutSeconds) {
+        return suppressQueryTimeout.get() ? 0 : queryTimeoutSeconds;
     }
 
     @GuardedBy("lock")
@@ -568,11 +779,7 @@ public class DataSource {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
-            if (suppressQueryTimeout.get()) {
-                preparedStatement.setQueryTimeout(0);
-            } else {
-                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            }
+            preparedStatement.setQueryTimeout(getQueryTimeoutSeconds(queryTimeoutSeconds));
             return preparedStatement;
         } catch (ExecutionException e) {
             Throwable cause = e.getCause();
@@ -584,6 +791,47 @@ public class DataSource {
         }
     }
 
+    private static <T> T query(PreparedStatement preparedStatement, JdbcQuery<T> jdbcQuery)
+            throws Exception {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@NonNull*/ Object> List<T> query(
+            PreparedStatement preparedStatement, JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T query(PreparedStatement preparedStatement,
+            Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            preparedStatement.setObject(i + 1, args[i]);
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        return extractAndClose(resultSet, rse);
+    }
+
     private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
             throws SQLException {
         ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -596,7 +844,12 @@ public class DataSource {
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private Connection createWriteConnection(File dbFile) throws SQLException {
+        return createConnection(dbFile, readConnectionPool != null, WRITE_LOCK_TIMEOUT_MILLIS);
+    }
+
+    private static Connection createConnection(@Nullable File dbFile, boolean multiThreaded,
+            int lockTimeoutMillis) throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -610,6 +863,9 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                url += ";multi_threaded=true;lock_timeout=" + lockTimeoutMillis;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -673,17 +929,31 @@ public class DataSource {
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
+            runPreShutdownTasks();
             try {
                 // update flag outside of lock in case there is a backlog of threads already
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
-                synchronized (lock) {
-                    connection.close();
+                synchronized (maintenanceLock) {
+                    suspendReadConnectionPool();
+                    synchronized (lock) {
+                        connection.close();
+                    }
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
         }
+
+        private void runPreShutdownTasks() {
+            for (Runnable task : preShutdownTasks) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.warn(t.getMessage(), t);
+                }
+            }
+        }
     }
 }
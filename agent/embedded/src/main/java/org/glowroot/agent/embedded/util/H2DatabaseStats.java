@@ -17,6 +17,8 @@ package org.glowroot.agent.embedded.util;
 
 public class H2DatabaseStats implements H2DatabaseStatsMXBean {
 
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
     private final DataSource dataSource;
 
     public H2DatabaseStats(DataSource dataSource) {
@@ -27,4 +29,31 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    // time spent waiting on the single write connection (including reads that did not use the read
+    // connection pool)
+    @Override
+    public double getTotalLockWaitMillis() {
+        return dataSource.getLockWaitNanos() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public long getLockCount() {
+        return dataSource.getLockCount();
+    }
+
+    @Override
+    public int getReadConnections() {
+        return dataSource.getReadConnections();
+    }
+
+    @Override
+    public double getTotalReadConnectionWaitMillis() {
+        return dataSource.getReadConnectionWaitNanos() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public long getReadConnectionBorrowCount() {
+        return dataSource.getReadConnectionBorrowCount();
+    }
 }
@@ -18,4 +18,14 @@ package org.glowroot.agent.embedded.util;
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    double getTotalLockWaitMillis();
+
+    long getLockCount();
+
+    int getReadConnections();
+
+    double getTotalReadConnectionWaitMillis();
+
+    long getReadConnectionBorrowCount();
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// pool of additional connections to the same (file based) H2 database that are only used for
+// reads, so that reads (e.g. UI queries) do not wait on the DataSource lock, which serializes writes
+//
+// the pool can be suspended (e.g. while the database is being defragmented), in which case borrow()
+// returns null and the caller falls back to the (write) connection under the DataSource lock
+class H2ReadConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(H2ReadConnectionPool.class);
+
+    private final int size;
+    private final BlockingQueue<ReadConnection> available;
+
+    private volatile boolean suspended = true;
+
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    H2ReadConnectionPool(int size) {
+        this.size = size;
+        available = new ArrayBlockingQueue<ReadConnection>(size);
+    }
+
+    // must not be called concurrently with suspend()
+    void resume(ConnectionFactory connectionFactory) throws SQLException {
+        for (int i = 0; i < size; i++) {
+            available.add(new ReadConnection(connectionFactory.createConnection()));
+        }
+        suspended = false;
+    }
+
+    // waits for all borrowed connections to be released, and then closes all connections
+    void suspend() throws SQLException {
+        if (suspended) {
+            return;
+        }
+        suspended = true;
+        List<ReadConnection> readConnections = Lists.newArrayList();
+        boolean interrupted = false;
+        while (readConnections.size() < size) {
+            try {
+                readConnections.add(available.take());
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (ReadConnection readConnection : readConnections) {
+            readConnection.connection.close();
+        }
+    }
+
+    @Nullable
+    ReadConnection borrow() {
+        long startTick = System.nanoTime();
+        try {
+            ReadConnection readConnection;
+            while ((readConnection = available.poll(100, MILLISECONDS)) == null) {
+                if (suspended) {
+                    return null;
+                }
+            }
+            if (suspended) {
+                // raced with suspend()
+                available.add(readConnection);
+                return null;
+            }
+            waitNanos.addAndGet(System.nanoTime() - startTick);
+            borrowCount.incrementAndGet();
+            return readConnection;
+        } catch (InterruptedException e) {
+            logger.debug(e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    void release(ReadConnection readConnection) {
+        available.add(readConnection);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    interface ConnectionFactory {
+        Connection createConnection() throws SQLException;
+    }
+
+    static class ReadConnection {
+
+        private final Connection connection;
+
+        // these are only used by the thread that has borrowed the connection
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private ReadConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                    .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            try {
+                PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+                return preparedStatement;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+    }
+}
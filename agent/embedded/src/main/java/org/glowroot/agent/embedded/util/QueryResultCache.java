@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+// caches chart query results (e.g. overview aggregates and gauge values) in fixed size time buckets,
+// but only for buckets that can no longer change, so that refreshing a chart only needs to query
+// the database for the most recent (still open) part of the chart
+public class QueryResultCache {
+
+    private final long maxRows;
+
+    private final Cache<CacheKey, ImmutableList<Object>> cache;
+
+    // incremented by invalidateAll() so that query results read before the invalidation (e.g.
+    // concurrently with expired data being deleted) are not put back into the cache afterwards
+    @GuardedBy("this")
+    private long generation;
+
+    // maxRows is the approximate max total number of rows held across all cached buckets (zero
+    // disables the cache)
+    public QueryResultCache(long maxRows) {
+        this.maxRows = maxRows;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxRows)
+                .weigher(new Weigher<CacheKey, ImmutableList<Object>>() {
+                    @Override
+                    public int weigh(CacheKey key, ImmutableList<Object> rows) {
+                        // + 1 so that empty buckets are also accounted for
+                        return rows.size() + 1;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    // from and to are both INCLUSIVE
+    //
+    // completedTime is the capture time up to which (inclusive) the query results can no longer
+    // change, and bucketMillis must be the same for all calls with the same query name and rollup
+    // level
+    public <T extends /*@NonNull*/ Object> List<T> query(String queryName,
+            List<String> queryArgs, int rollupLevel, long bucketMillis, long from, long to,
+            long completedTime, RangeQuery<T> rangeQuery) throws Exception {
+        if (maxRows == 0) {
+            return rangeQuery.query(from, to);
+        }
+        List<T> rows = Lists.newArrayList();
+        long bucketStart = (long) Math.floor(from / (double) bucketMillis) * bucketMillis;
+        while (bucketStart <= to) {
+            long bucketEnd = bucketStart + bucketMillis - 1;
+            if (bucketEnd > completedTime) {
+                break;
+            }
+            CacheKey key = ImmutableCacheKey.of(queryName, queryArgs, rollupLevel, bucketStart);
+            ImmutableList<T> bucketRows = get(key);
+            if (bucketRows == null) {
+                long generation = getGeneration();
+                bucketRows = ImmutableList.copyOf(rangeQuery.query(bucketStart, bucketEnd));
+                put(key, bucketRows, generation);
+            }
+            if (bucketStart >= from && bucketEnd <= to) {
+                rows.addAll(bucketRows);
+            } else {
+                for (T row : bucketRows) {
+                    long captureTime = rangeQuery.getCaptureTime(row);
+                    if (captureTime >= from && captureTime <= to) {
+                        rows.add(row);
+                    }
+                }
+            }
+            bucketStart += bucketMillis;
+        }
+        long remainingFrom = Math.max(from, bucketStart);
+        if (remainingFrom <= to) {
+            rows.addAll(rangeQuery.query(remainingFrom, to));
+        }
+        return rows;
+    }
+
+    // called when cached query results may no longer be valid, e.g. after expired data is deleted
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.invalidateAll();
+    }
+
+    long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    long getBucketCount() {
+        return cache.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> /*@Nullable*/ ImmutableList<T> get(CacheKey key) {
+        // the query name is part of the cache key, so the row type always matches
+        return (/*@Nullable*/ ImmutableList<T>) (ImmutableList<?>) cache.getIfPresent(key);
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    // the rows are only cached if the cache has not been invalidated since they were read
+    @SuppressWarnings("unchecked")
+    private synchronized <T> void put(CacheKey key, ImmutableList<T> rows,
+            long readGeneration) {
+        if (generation == readGeneration) {
+            cache.put(key, (ImmutableList<Object>) (ImmutableList<?>) rows);
+        }
+    }
+
+    public interface RangeQuery<T> {
+
+        // from and to are both INCLUSIVE, and rows must be returned in capture time order
+        List<T> query(long from, long to) throws Exception;
+
+        long getCaptureTime(T row);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CacheKey {
+        String queryName();
+        List<String> queryArgs();
+        int rollupLevel();
+        long bucketStart();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+public class QueryResultCacheStats implements QueryResultCacheStatsMXBean {
+
+    private final QueryResultCache queryResultCache;
+
+    public QueryResultCacheStats(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    @Override
+    public long getHitCount() {
+        return queryResultCache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return queryResultCache.getMissCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = queryResultCache.getHitCount();
+        long requestCount = hitCount + queryResultCache.getMissCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return queryResultCache.getEvictionCount();
+    }
+
+    // each bucket holds the query results for one query over one time bucket
+    @Override
+    public long getBucketCount() {
+        return queryResultCache.getBucketCount();
+    }
+}
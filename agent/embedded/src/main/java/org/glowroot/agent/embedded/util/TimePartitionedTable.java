@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// splits a logical table into physical tables (partitions) by capture_time, so that range queries
+// only touch the relevant partitions, and expiring data is mostly a matter of dropping partitions
+// instead of deleting rows (and updating large b-tree indexes) one by one
+//
+// partition N holds capture times in the range (N * partitionMillis, (N + 1) * partitionMillis],
+// which matches how rollup capture times are calculated (ceiling), so as long as partitionMillis
+// is a multiple of the rollup interval, all rows for a given rollup capture time are in the same
+// partition
+public class TimePartitionedTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimePartitionedTable.class);
+
+    private final DataSource dataSource;
+    private final @Untainted String tableName;
+    private final ImmutableList<Column> columns;
+    // index names are appended to the partition table name
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+
+    private final @Untainted String columnNames;
+
+    // key is partition number
+    private final ConcurrentNavigableMap<Long, /*@Untainted*/ String> partitions =
+            new ConcurrentSkipListMap<Long, /*@Untainted*/ String>();
+
+    private final Object lock = new Object();
+
+    // partitions are only dropped while holding the write lock, so that queries (which hold the
+    // read lock) never reference a partition table that has been dropped out from under them
+    private final ReadWriteLock dropLock = new ReentrantReadWriteLock();
+
+    public TimePartitionedTable(DataSource dataSource, @Untainted String tableName,
+            List<Column> columns, List<Index> indexes, long partitionMillis) throws SQLException {
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.columns = ImmutableList.copyOf(columns);
+        this.indexes = ImmutableList.copyOf(indexes);
+        this.partitionMillis = partitionMillis;
+        List<String> names = Lists.newArrayList();
+        for (Column column : columns) {
+            names.add(column.name());
+        }
+        columnNames = castUntainted(Joiner.on(", ").join(names));
+        String prefix = getPartitionTableNamePrefix();
+        for (String existingTableName : dataSource.getAllTableNames()) {
+            // h2 returns table names in upper case
+            String name = existingTableName.toLowerCase(Locale.ENGLISH);
+            if (name.startsWith(prefix)) {
+                Long partition = Longs.tryParse(name.substring(prefix.length()));
+                if (partition != null) {
+                    synchronized (lock) {
+                        createPartition(partition);
+                    }
+                }
+            }
+        }
+    }
+
+    // returns the partition table, creating it if needed
+    public @Untainted String getPartitionTableName(long captureTime) throws SQLException {
+        long partition = getPartition(captureTime);
+        String partitionTableName = partitions.get(partition);
+        if (partitionTableName != null) {
+            return partitionTableName;
+        }
+        synchronized (lock) {
+            return createPartition(partition);
+        }
+    }
+
+    // returns existing partition tables that may contain capture times in the range [from, to],
+    // in capture time order
+    public List</*@Untainted*/ String> getPartitionTableNames(long from, long to) {
+        if (from > to) {
+            return ImmutableList.of();
+        }
+        return ImmutableList.copyOf(
+                partitions.subMap(getPartition(from), true, getPartition(to), true).values());
+    }
+
+    // runs the query against the existing partition tables that may contain capture times in the
+    // range [from, to], none of which are dropped until the query completes
+    public <T> T query(long from, long to, PartitionQuery<T> query) throws Exception {
+        dropLock.readLock().lock();
+        try {
+            return query.query(getPartitionTableNames(from, to));
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    // runs the query against the given partition table, or against no partition tables if it has
+    // already been dropped
+    public <T> T queryPartition(String partitionTableName, PartitionQuery<T> query)
+            throws Exception {
+        dropLock.readLock().lock();
+        try {
+            if (partitions.containsValue(partitionTableName)) {
+                return query.query(ImmutableList.of(castUntainted(partitionTableName)));
+            } else {
+                return query.query(ImmutableList.</*@Untainted*/ String>of());
+            }
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    public List</*@Untainted*/ String> getAllPartitionTableNames() {
+        return ImmutableList.copyOf(partitions.values());
+    }
+
+    // returns existing partition tables whose entire range is at or before the given capture
+    // time, in capture time order
+    public List</*@Untainted*/ String> getCompletedPartitionTableNames(long captureTime) {
+        return ImmutableList.copyOf(partitions.headMap(getPartition(captureTime + 1)).values());
+    }
+
+    // returns the (inclusive) end time of the partition that contains the given capture time
+    public long getPartitionEndTime(long captureTime) {
+        return (getPartition(captureTime) + 1) * partitionMillis;
+    }
+
+    // returns the (exclusive) start time of the first existing partition that may contain capture
+    // times after the given capture time, or null if there is no such partition
+    public @Nullable Long getNextPartitionStartTime(long captureTime) {
+        Long partition = partitions.ceilingKey(getPartition(captureTime + 1));
+        if (partition == null) {
+            return null;
+        }
+        return partition == 0 ? Long.MIN_VALUE : partition * partitionMillis;
+    }
+
+    // returns the (exclusive) start time of the earliest existing partition, or null if there are
+    // no partitions
+    public @Nullable Long getFirstPartitionStartTime() {
+        Map.Entry<Long, String> first = partitions.firstEntry();
+        if (first == null) {
+            return null;
+        }
+        long partition = first.getKey();
+        return partition == 0 ? Long.MIN_VALUE : partition * partitionMillis;
+    }
+
+    public void dropPartitionTable(@Untainted String partitionTableName) throws SQLException {
+        dropLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                partitions.values().remove(partitionTableName);
+                dataSource.dropTable(partitionTableName);
+            }
+        } finally {
+            dropLock.writeLock().unlock();
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public void deleteBefore(long captureTime) throws SQLException {
+        long partitionContainingCaptureTime = getPartition(captureTime);
+        // all rows in earlier partitions have capture time < captureTime, so they can be dropped
+        Map<Long, String> expired = partitions.headMap(partitionContainingCaptureTime);
+        for (Map.Entry<Long, String> entry : ImmutableList.copyOf(expired.entrySet())) {
+            @Untainted String partitionTableName = castUntainted(entry.getValue());
+            dropLock.writeLock().lock();
+            try {
+                synchronized (lock) {
+                    partitions.remove(entry.getKey());
+                    dataSource.dropTable(partitionTableName);
+                }
+            } finally {
+                dropLock.writeLock().unlock();
+            }
+            logger.debug("dropped partition {}", partitionTableName);
+        }
+        // only the partition containing captureTime needs rows deleted individually
+        dropLock.readLock().lock();
+        try {
+            String partitionTableName = partitions.get(partitionContainingCaptureTime);
+            if (partitionTableName != null) {
+                dataSource.deleteBefore(castUntainted(partitionTableName), captureTime);
+            }
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    // moves rows from a pre-existing non-partitioned table into partitions, and then drops the
+    // non-partitioned table
+    public void migrateFrom(@Untainted String unpartitionedTableName) throws Exception {
+        if (!dataSource.tableExists(unpartitionedTableName)) {
+            return;
+        }
+        Long minCaptureTime = dataSource.queryForOptionalLong(
+                "select min(capture_time) from " + unpartitionedTableName);
+        if (minCaptureTime != null) {
+            long maxCaptureTime = dataSource.queryForLong(
+                    "select max(capture_time) from " + unpartitionedTableName);
+            long minPartition = getPartition(minCaptureTime);
+            long maxPartition = getPartition(maxCaptureTime);
+            logger.info("moving rows from {} into {} partitions ...", unpartitionedTableName,
+                    maxPartition - minPartition + 1);
+            for (long partition = minPartition; partition <= maxPartition; partition++) {
+                long from = partition == 0 ? Long.MIN_VALUE : partition * partitionMillis;
+                long to = (partition + 1) * partitionMillis;
+                long count = dataSource.queryForLong("select count(*) from "
+                        + unpartitionedTableName + " where capture_time > ? and capture_time <= ?",
+                        from, to);
+                if (count == 0) {
+                    continue;
+                }
+                String partitionTableName;
+                synchronized (lock) {
+                    partitionTableName = createPartition(partition);
+                }
+                dataSource.update("insert into " + partitionTableName + " (" + columnNames
+                        + ") select " + columnNames + " from " + unpartitionedTableName
+                        + " where capture_time > ? and capture_time <= ?", from, to);
+            }
+            logger.info("moving rows from {} into partitions - complete", unpartitionedTableName);
+        }
+        dataSource.dropTable(unpartitionedTableName);
+    }
+
+    // combines the same select over each of the partition tables, e.g. for use as a derived table
+    // when a query needs to group or order across partitions
+    public static @Untainted String unionAll(List</*@Untainted*/ String> partitionTableNames,
+            @Untainted String selectClause, @Untainted String whereClause) {
+        List<String> selects = Lists.newArrayList();
+        for (String partitionTableName : partitionTableNames) {
+            selects.add("select " + selectClause + " from " + partitionTableName + " where "
+                    + whereClause);
+        }
+        return castUntainted(Joiner.on(" union all ").join(selects));
+    }
+
+    private long getPartition(long captureTime) {
+        // capture times at or before partitionMillis (e.g. in tests) all go into partition zero,
+        // which also avoids negative partition numbers in table names
+        return Math.max(0, LongMath.divide(captureTime - 1, partitionMillis, RoundingMode.FLOOR));
+    }
+
+    @GuardedBy("lock")
+    private @Untainted String createPartition(long partition) throws SQLException {
+        String existing = partitions.get(partition);
+        if (existing != null) {
+            return castUntainted(existing);
+        }
+        @Untainted String partitionTableName =
+                getPartitionTableNamePrefix() + castUntainted(partition);
+        dataSource.syncTable(partitionTableName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            partitionIndexes.add(
+                    ImmutableIndex.of(partitionTableName + "_" + index.name(), index.columns()));
+        }
+        dataSource.syncIndexes(partitionTableName, ImmutableList.copyOf(partitionIndexes));
+        partitions.put(partition, partitionTableName);
+        return partitionTableName;
+    }
+
+    private @Untainted String getPartitionTableNamePrefix() {
+        return tableName + "_p";
+    }
+
+    public interface PartitionQuery<T> {
+        // partition table names are in capture time order
+        T query(List</*@Untainted*/ String> partitionTableNames) throws Exception;
+    }
+}
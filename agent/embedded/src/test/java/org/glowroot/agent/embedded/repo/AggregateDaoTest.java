@@ -21,6 +21,7 @@ import java.util.List;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,11 +30,13 @@ import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.QueryResultCache;
 import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
@@ -59,6 +62,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepositoryImpl configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -72,21 +76,19 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
                 ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(
-                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
-                        cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        aggregateDao = createAggregateDao();
     }
 
     @After
     public void afterEachTest() throws Exception {
+        aggregateDao.close();
         dataSource.close();
         cappedDatabase.close();
         cappedFile.delete();
@@ -132,6 +134,117 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollupFromPartialRollup() throws Exception {
+        // given
+        store(aggregateDao, 10000);
+        store(aggregateDao, 20000);
+        // wait for rollup to complete
+        aggregateDao.close();
+
+        // when
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, getRollupQuery(null));
+        List<OverviewAggregate> transactionAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, getRollupQuery("seven"));
+
+        // then
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(0).totalDurationNanos()).isEqualTo(1000000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(transactionAggregates).hasSize(1);
+        assertThat(transactionAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(transactionAggregates.get(0).totalDurationNanos()).isEqualTo(1400000);
+        assertThat(transactionAggregates.get(0).transactionCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldRollupFromDiskAfterRestart() throws Exception {
+        // given
+        store(aggregateDao, 5000);
+        aggregateDao.close();
+        // partial rollup of the first rollup interval is lost on restart
+        aggregateDao = createAggregateDao();
+        store(aggregateDao, 10000);
+        store(aggregateDao, 20000);
+        // wait for rollup to complete
+        aggregateDao.close();
+
+        // when
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, getRollupQuery(null));
+        List<OverviewAggregate> transactionAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, getRollupQuery("seven"));
+
+        // then
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(0).totalDurationNanos()).isEqualTo(2000000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(20);
+        assertThat(transactionAggregates).hasSize(1);
+        assertThat(transactionAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(transactionAggregates.get(0).totalDurationNanos()).isEqualTo(2800000);
+        assertThat(transactionAggregates.get(0).transactionCount()).isEqualTo(14);
+    }
+
+    @Test
+    public void shouldReadTransactionsAcrossPartitions() throws Exception {
+        // given
+        // level 0 partitions hold 1440 rollup intervals, which is 1440 seconds in this test
+        store(aggregateDao, 10000);
+        store(aggregateDao, 2000000);
+
+        // when
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(3000000)
+                .rollupLevel(0)
+                .build();
+        OverallSummaryCollector overallCollector = new OverallSummaryCollector();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        aggregateDao.mergeOverallSummaryInto(AGENT_ID, query, overallCollector);
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query, SummarySortOrder.TOTAL_TIME,
+                10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+
+        // then
+        assertThat(dataSource.tableExists("aggregate_tn_rollup_0_p0")).isTrue();
+        assertThat(dataSource.tableExists("aggregate_tn_rollup_0_p1")).isTrue();
+        assertThat(overallCollector.getOverallSummary().totalDurationNanos()).isEqualTo(2000000);
+        assertThat(overallCollector.getOverallSummary().transactionCount()).isEqualTo(20);
+        assertThat(overallCollector.getLastCaptureTime()).isEqualTo(2000000);
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(2800000);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(14);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        store(aggregateDao, 10000);
+        store(aggregateDao, 2000000);
+
+        // when
+        aggregateDao.deleteBefore(1500000, 0);
+        List<OverviewAggregate> overallAggregates = aggregateDao.readOverviewAggregates(AGENT_ID,
+                ImmutableTransactionQuery.builder()
+                        .transactionType("a type")
+                        .from(0)
+                        .to(3000000)
+                        .rollupLevel(0)
+                        .build());
+
+        // then
+        assertThat(dataSource.tableExists("aggregate_tt_rollup_0_p0")).isFalse();
+        assertThat(dataSource.tableExists("aggregate_tn_rollup_0_p0")).isFalse();
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(2000000);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -216,6 +329,51 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private AggregateDao createAggregateDao() throws Exception {
+        return new AggregateDao(dataSource,
+                ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase, cappedDatabase,
+                        cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                new QueryResultCache(1000));
+    }
+
+    private static void store(AggregateDao aggregateDao, final long captureTime)
+            throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setErrorCount(0)
+                                .setTransactionCount(10)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                aggregateVisitor.visitTransactionAggregate("a type", "seven",
+                        new ArrayList<String>(), Aggregate.newBuilder()
+                                .setTotalDurationNanos(1400000)
+                                .setErrorCount(0)
+                                .setTransactionCount(7)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+    }
+
+    private static TransactionQuery getRollupQuery(@Nullable String transactionName) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName(transactionName)
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
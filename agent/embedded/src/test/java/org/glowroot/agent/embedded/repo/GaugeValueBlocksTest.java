@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlocksTest {
+
+    @Test
+    public void shouldRoundTripSingleValue() {
+        // given
+        List<GaugeValue> gaugeValues = ImmutableList.of(newGaugeValue(1000, 12.5, 1));
+        // when
+        List<GaugeValue> decoded = GaugeValueBlocks.decode(GaugeValueBlocks.encode(gaugeValues));
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldRoundTripRandomValues() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 10000; i++) {
+            // mostly regular intervals, with some jitter and occasional large gaps
+            captureTime += 5000 + random.nextInt(10) - 5;
+            if (random.nextInt(500) == 0) {
+                captureTime += random.nextInt(1000000);
+            }
+            double value;
+            switch (random.nextInt(4)) {
+                case 0:
+                    value = random.nextDouble();
+                    break;
+                case 1:
+                    value = random.nextInt(100);
+                    break;
+                case 2:
+                    value = -random.nextLong();
+                    break;
+                default:
+                    value = Double.NaN;
+            }
+            gaugeValues.add(newGaugeValue(captureTime, value, 1 + random.nextInt(2)));
+        }
+        // when
+        List<GaugeValue> decoded = GaugeValueBlocks.decode(GaugeValueBlocks.encode(gaugeValues));
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldCompressRegularValues() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 17280; i++) {
+            captureTime += 5000;
+            // e.g. heap used, which changes slowly
+            gaugeValues.add(newGaugeValue(captureTime, 100000000 + (i / 10) * 4096, 1));
+        }
+        // when
+        byte[] bytes = GaugeValueBlocks.encode(gaugeValues);
+        // then
+        // row storage is at least 32 bytes per value (gauge_id, capture_time, value, weight)
+        assertThat(bytes.length).isLessThan(gaugeValues.size() * 2);
+        assertThat(GaugeValueBlocks.decode(bytes)).isEqualTo(gaugeValues);
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class TraceBatchWriterTest {
+
+    @Test
+    public void shouldStoreWithinMaxLatency() throws Exception {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        TraceBatchWriter traceBatchWriter = new TraceBatchWriter(traceDao, 100, 50, 1000);
+
+        // when
+        traceBatchWriter.add(Trace.newBuilder().setId("aaa").build());
+
+        // then
+        verify(traceDao, timeout(5000)).store(ArgumentMatchers.<List<Trace>>any());
+        traceBatchWriter.close();
+    }
+
+    @Test
+    public void shouldStoreInBatchesInOrder() throws Exception {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        TraceBatchWriter traceBatchWriter = new TraceBatchWriter(traceDao, 3, 1000, 1000);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            traceBatchWriter.add(Trace.newBuilder().setId(Integer.toString(i)).build());
+        }
+        traceBatchWriter.close();
+
+        // then
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArgumentCaptor<List<Trace>> captor = ArgumentCaptor.forClass((Class) List.class);
+        verify(traceDao, atLeastOnce()).store(captor.capture());
+        int i = 0;
+        for (List<Trace> batch : captor.getAllValues()) {
+            assertThat(batch.size()).isBetween(1, 3);
+            for (Trace trace : batch) {
+                assertThat(trace.getId()).isEqualTo(Integer.toString(i++));
+            }
+        }
+        assertThat(i).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldSplitFailedBatchAndOnlyDropBadTrace() throws Exception {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        final List<String> storedTraceIds = Lists.newArrayList();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                List<Trace> batch = invocation.getArgument(0);
+                for (Trace trace : batch) {
+                    if (trace.getId().equals("bad")) {
+                        throw new Exception("bad trace");
+                    }
+                }
+                for (Trace trace : batch) {
+                    storedTraceIds.add(trace.getId());
+                }
+                return null;
+            }
+        }).when(traceDao).store(ArgumentMatchers.<List<Trace>>any());
+        TraceBatchWriter traceBatchWriter = new TraceBatchWriter(traceDao, 100, 1000, 1000);
+
+        // when
+        traceBatchWriter.add(Trace.newBuilder().setId("1").build());
+        traceBatchWriter.add(Trace.newBuilder().setId("2").build());
+        traceBatchWriter.add(Trace.newBuilder().setId("bad").build());
+        traceBatchWriter.add(Trace.newBuilder().setId("3").build());
+        traceBatchWriter.close();
+
+        // then
+        assertThat(storedTraceIds).containsExactly("1", "2", "3");
+        assertThat(traceBatchWriter.getUnpersistedTrace("bad")).isNull();
+    }
+
+    @Test
+    public void shouldRetryTransientFailure() throws Exception {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        final List<String> storedTraceIds = Lists.newArrayList();
+        doAnswer(new Answer<Void>() {
+            private int count;
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                if (count++ == 0) {
+                    throw new Exception("transient");
+                }
+                List<Trace> batch = invocation.getArgument(0);
+                for (Trace trace : batch) {
+                    storedTraceIds.add(trace.getId());
+                }
+                return null;
+            }
+        }).when(traceDao).store(ArgumentMatchers.<List<Trace>>any());
+        TraceBatchWriter traceBatchWriter = new TraceBatchWriter(traceDao, 100, 1000, 1000);
+
+        // when
+        traceBatchWriter.add(Trace.newBuilder().setId("1").build());
+        traceBatchWriter.close();
+
+        // then
+        assertThat(storedTraceIds).containsExactly("1");
+    }
+
+    @Test
+    public void shouldReadTraceUntilStored() throws Exception {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        final CountDownLatch storeLatch = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                storeLatch.await();
+                return null;
+            }
+        }).when(traceDao).store(ArgumentMatchers.<List<Trace>>any());
+        TraceBatchWriter traceBatchWriter = new TraceBatchWriter(traceDao, 100, 1, 1000);
+        Trace trace = Trace.newBuilder().setId("aaa").build();
+
+        // when
+        traceBatchWriter.add(trace);
+
+        // then
+        assertThat(traceBatchWriter.getUnpersistedTrace("aaa")).isSameAs(trace);
+        storeLatch.countDown();
+        traceBatchWriter.close();
+        assertThat(traceBatchWriter.getUnpersistedTrace("aaa")).isNull();
+    }
+}
@@ -18,6 +18,7 @@ package org.glowroot.agent.embedded.repo;
 import java.io.File;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -35,6 +36,7 @@ import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -286,6 +288,50 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTopPointsPerTimeBucket() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setCaptureTime(10)
+                .setDurationNanos(MILLISECONDS.toNanos(50))
+                .build()));
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setCaptureTime(20)
+                .setDurationNanos(MILLISECONDS.toNanos(40))
+                .build()));
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setCaptureTime(60)
+                .setDurationNanos(MILLISECONDS.toNanos(5))
+                .build()));
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setCaptureTime(100)
+                .setDurationNanos(MILLISECONDS.toNanos(1))
+                .build()));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        // limit 4 splits the range into 4 buckets, each returning its single slowest trace
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 4);
+
+        // then
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(50));
+        assertThat(queryResult.records().get(1).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(5));
+        assertThat(queryResult.records().get(2).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(1));
+        assertThat(queryResult.moreAvailable()).isTrue();
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
@@ -296,4 +342,34 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId())).isNull();
     }
+
+    @Test
+    public void shouldStoreBatchWithPartialAndFinalTrace() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        Trace partialTrace = Trace.newBuilder()
+                .setId("aaa")
+                .setHeader(header.toBuilder().setPartial(true))
+                .build();
+        Trace finalTrace = Trace.newBuilder()
+                .setId("aaa")
+                .setHeader(header)
+                .setUpdate(true)
+                .build();
+        Trace otherTrace = Trace.newBuilder()
+                .setId("bbb")
+                .setHeader(header)
+                .build();
+
+        // when
+        traceDao.store(ImmutableList.of(partialTrace, finalTrace, otherTrace));
+
+        // then
+        assertThat(traceDao.readHeaderPlus(AGENT_ID, "aaa").header().getPartial()).isFalse();
+        assertThat(traceDao.readHeaderPlus(AGENT_ID, "bbb")).isNotNull();
+        assertThat(dataSource.queryForLong(
+                "select count(*) from trace_attribute where trace_id = ?", "aaa")).isEqualTo(2);
+        assertThat(dataSource.queryForLong(
+                "select count(*) from trace_attribute where trace_id = ?", "bbb")).isEqualTo(2);
+    }
 }
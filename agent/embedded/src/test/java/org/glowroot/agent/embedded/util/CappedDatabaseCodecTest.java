@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CappedDatabaseCodecTest {
+
+    private File tempFile;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldWriteAndReadLz4() throws Exception {
+        // given
+        CappedDatabase cappedDatabase = newCappedDatabase(CappedDatabaseCodec.LZ4);
+        String text = createTraceLikeText(new Random());
+
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        cappedDatabase.close();
+    }
+
+    @Test
+    public void shouldWriteAndReadDeflateDictionary() throws Exception {
+        // given
+        CappedDatabase cappedDatabase = newCappedDatabase(CappedDatabaseCodec.DEFLATE_DICTIONARY);
+        Random random = new Random();
+        String firstText = createTraceLikeText(random);
+        long firstCappedId =
+                cappedDatabase.write(ByteSource.wrap(firstText.getBytes(UTF_8)), "test");
+        long firstCompressedBytes =
+                cappedDatabase.getStats("test").getTotalBytesAfterCompression();
+        // train the dictionary
+        for (int i = 0; i < 20; i++) {
+            cappedDatabase.write(ByteSource.wrap(createTraceLikeText(random).getBytes(UTF_8)),
+                    "test");
+        }
+
+        // when
+        String text = createTraceLikeText(random);
+        long compressedBytesBefore =
+                cappedDatabase.getStats("test").getTotalBytesAfterCompression();
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        long compressedBytes = cappedDatabase.getStats("test").getTotalBytesAfterCompression()
+                - compressedBytesBefore;
+
+        // then
+        assertThat(cappedDatabase.read(firstCappedId).read()).isEqualTo(firstText);
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        assertThat(compressedBytes).isLessThan(firstCompressedBytes);
+        cappedDatabase.close();
+    }
+
+    @Test
+    public void shouldReadBlocksWrittenWithOtherCodecs() throws Exception {
+        // given
+        Random random = new Random();
+        String lzfText = createTraceLikeText(random);
+        String lz4Text = createTraceLikeText(random);
+        String deflateText = createTraceLikeText(random);
+        CappedDatabase cappedDatabase = newCappedDatabase(CappedDatabaseCodec.LZF);
+        long lzfCappedId = cappedDatabase.write(ByteSource.wrap(lzfText.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+        cappedDatabase = newCappedDatabase(CappedDatabaseCodec.LZ4);
+        long lz4CappedId = cappedDatabase.write(ByteSource.wrap(lz4Text.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+
+        // when
+        cappedDatabase = newCappedDatabase(CappedDatabaseCodec.DEFLATE_DICTIONARY);
+        long deflateCappedId =
+                cappedDatabase.write(ByteSource.wrap(deflateText.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(lzfCappedId).read()).isEqualTo(lzfText);
+        assertThat(cappedDatabase.read(lz4CappedId).read()).isEqualTo(lz4Text);
+        assertThat(cappedDatabase.read(deflateCappedId).read()).isEqualTo(deflateText);
+        cappedDatabase.close();
+    }
+
+    private CappedDatabase newCappedDatabase(CappedDatabaseCodec codec) throws IOException {
+        return new CappedDatabase(tempFile, 1024, Ticker.systemTicker(), false, codec);
+    }
+
+    // repetitive structure across blocks, with some randomness within each block
+    private static String createTraceLikeText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("{\"depth\":");
+            sb.append(random.nextInt(5));
+            sb.append(",\"durationNanos\":");
+            sb.append(random.nextInt(1000000));
+            sb.append(",\"message\":\"jdbc query: select * from employee where id = ?\"}\n");
+        }
+        return sb.toString();
+    }
+}
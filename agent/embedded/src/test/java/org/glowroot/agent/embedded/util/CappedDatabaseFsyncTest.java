@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.CappedDatabase.FsyncPolicy;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class CappedDatabaseFsyncTest {
+
+    private File tempFile;
+    private FakeTicker ticker;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        ticker = new FakeTicker();
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldFsyncTailOfBurstOncePeriodHasElapsed() throws Exception {
+        // given
+        CappedDatabase cappedDatabase = newCappedDatabase(FsyncPolicy.PERIODIC);
+        cappedDatabase.write(ByteSource.wrap("0123456789".getBytes(UTF_8)), "test");
+        assertThat(cappedDatabase.isFsyncPending()).isTrue();
+
+        // when
+        cappedDatabase.fsyncIfPending();
+
+        // then
+        assertThat(cappedDatabase.isFsyncPending()).isTrue();
+
+        // when
+        ticker.advance(SECONDS.toNanos(1));
+        cappedDatabase.fsyncIfPending();
+
+        // then
+        assertThat(cappedDatabase.isFsyncPending()).isFalse();
+        cappedDatabase.close();
+    }
+
+    @Test
+    public void shouldFsyncTailOfBurstOnSchedule() throws Exception {
+        // given
+        CappedDatabase cappedDatabase = newCappedDatabase(FsyncPolicy.PERIODIC);
+        cappedDatabase.write(ByteSource.wrap("0123456789".getBytes(UTF_8)), "test");
+        ticker.advance(SECONDS.toNanos(1));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        // when
+        cappedDatabase.schedulePeriodicFsync(executor);
+
+        // then
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cappedDatabase.isFsyncPending() && System.currentTimeMillis() < deadline) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(cappedDatabase.isFsyncPending()).isFalse();
+        executor.shutdown();
+        cappedDatabase.close();
+    }
+
+    @Test
+    public void shouldNotScheduleFsyncForOtherPolicies() throws Exception {
+        // given
+        CappedDatabase cappedDatabase = newCappedDatabase(FsyncPolicy.ALWAYS);
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+
+        // when
+        cappedDatabase.schedulePeriodicFsync(executor);
+
+        // then
+        verifyZeroInteractions(executor);
+        cappedDatabase.close();
+    }
+
+    private CappedDatabase newCappedDatabase(FsyncPolicy fsyncPolicy) throws IOException {
+        return new CappedDatabase(tempFile, 1, ticker, false, CappedDatabaseCodec.LZ4,
+                fsyncPolicy);
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        private void advance(long nanos) {
+            this.nanos.addAndGet(nanos);
+        }
+    }
+}
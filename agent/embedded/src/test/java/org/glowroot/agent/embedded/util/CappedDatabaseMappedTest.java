@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CappedDatabaseMappedTest {
+
+    private File tempFile;
+    private CappedDatabase cappedDatabase;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), true,
+                CappedDatabaseCodec.LZF);
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldWrite() throws Exception {
+        // given
+        String text = "0123456789";
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWrap() throws Exception {
+        // given
+        String text = createRandomText(600);
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWrapOverOldBlocks() throws Exception {
+        // given
+        String text = createRandomText(600);
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.isExpired(cappedId)).isTrue();
+        assertThat(getReadExceptionClassName(cappedId)).isEqualTo(
+                "org.glowroot.agent.embedded.util.CappedDatabase"
+                        + "$CappedBlockRolledOverMidReadException");
+    }
+
+    @Test
+    public void shouldReadAfterResize() throws Exception {
+        // given
+        String text = createRandomText(600);
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.resize(2);
+        long cappedId2 = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        long cappedId3 = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(cappedId3).read()).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldReadConcurrentlyWithWrites() throws Exception {
+        // given
+        final String text = createRandomText(100);
+        final long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int j = 0; j < 1000; j++) {
+                        try {
+                            if (!cappedDatabase.read(cappedId).read().equals(text)) {
+                                return false;
+                            }
+                        } catch (IOException e) {
+                            // rolled over is the only acceptable failure
+                            if (!cappedDatabase.isExpired(cappedId)) {
+                                throw e;
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (int i = 0; i < 1000; i++) {
+            cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        }
+
+        // then
+        for (Future<Boolean> future : futures) {
+            assertThat(future.get()).isTrue();
+        }
+        executor.shutdown();
+    }
+
+    private String getReadExceptionClassName(long cappedId) {
+        try {
+            cappedDatabase.read(cappedId).read();
+        } catch (Exception e) {
+            return e.getClass().getName();
+        }
+        return null;
+    }
+
+    // use random text so that the lzf compressed text is also large and forces wrapping
+    private static String createRandomText(int length) {
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSourceReadConnectionPoolTest {
+
+    private File dbFile;
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        // h2 creates the file
+        dbFile.delete();
+        dataSource = new DataSource(dbFile, 2);
+        dataSource.syncTable("test", ImmutableList.<Column>of(
+                ImmutableColumn.of("id", ColumnType.BIGINT),
+                ImmutableColumn.of("value", ColumnType.VARCHAR)));
+        dataSource.update("insert into test (id, value) values (?, ?)", 1, "one");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void shouldReadUsingReadConnection() throws Exception {
+        // when
+        long count = dataSource.queryForLong("select count(*) from test");
+        // then
+        assertThat(count).isEqualTo(1);
+        assertThat(dataSource.getReadConnections()).isEqualTo(2);
+        assertThat(dataSource.getReadConnectionBorrowCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSeeWritesFromReadConnection() throws Exception {
+        // when
+        dataSource.update("insert into test (id, value) values (?, ?)", 2, "two");
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReadAfterDefrag() throws Exception {
+        // when
+        dataSource.defrag();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        assertThat(dataSource.getReadConnectionBorrowCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadAfterDeleteAll() throws Exception {
+        // given
+        dataSource.syncTable("schema_version",
+                ImmutableList.<Column>of(ImmutableColumn.of("schema_version", ColumnType.BIGINT)));
+        dataSource.update("insert into schema_version (schema_version) values (?)", 1);
+        // when
+        dataSource.deleteAll();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+        assertThat(dataSource.queryForLong("select count(*) from schema_version")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotUseReadConnectionWhenQueryTimeoutIsSuppressed() throws Exception {
+        // when
+        long count = dataSource.suppressQueryTimeout(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return dataSource.queryForLong("select count(*) from test");
+            }
+        });
+        // then
+        assertThat(count).isEqualTo(1);
+        assertThat(dataSource.getReadConnectionBorrowCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotBlockWritesWhileWaitingForReadsToSuspend() throws Exception {
+        // given
+        dataSource.syncTable("other",
+                ImmutableList.<Column>of(ImmutableColumn.of("id", ColumnType.BIGINT)));
+        final CountDownLatch readStartedLatch = new CountDownLatch(1);
+        final CountDownLatch readLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Future<?> readFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.query(new BlockingQuery(readStartedLatch, readLatch));
+                return null;
+            }
+        });
+        readStartedLatch.await();
+        Future<?> defragFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.defrag();
+                return null;
+            }
+        });
+
+        // when
+        Future<?> writeFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.update("insert into other (id) values (?)", 1);
+                return null;
+            }
+        });
+
+        // then
+        writeFuture.get(10, SECONDS);
+        assertThat(defragFuture.isDone()).isFalse();
+        readLatch.countDown();
+        readFuture.get(10, SECONDS);
+        defragFuture.get(10, SECONDS);
+        assertThat(dataSource.queryForLong("select count(*) from other")).isEqualTo(1);
+        executor.shutdown();
+    }
+
+    private static class BlockingQuery implements JdbcQuery<Void> {
+
+        private final CountDownLatch startedLatch;
+        private final CountDownLatch latch;
+
+        private BlockingQuery(CountDownLatch startedLatch, CountDownLatch latch) {
+            this.startedLatch = startedLatch;
+            this.latch = latch;
+        }
+
+        @Override
+        public String getSql() {
+            return "select id from test";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public Void processResultSet(ResultSet resultSet) throws Exception {
+            startedLatch.countDown();
+            latch.await();
+            return null;
+        }
+
+        @Override
+        public Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+}
@@ -17,9 +17,14 @@ package org.glowroot.agent.embedded.util;
 
 import java.sql.SQLException;
 
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +99,21 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldDeleteBeforeInBatches() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.syncTable("test", ImmutableList.<Column>of(
+                ImmutableColumn.of("capture_time", ColumnType.BIGINT)));
+        for (int i = 0; i < 250; i++) {
+            dataSource.update("insert into test (capture_time) values (?)", i);
+        }
+        // when
+        long deleted = dataSource.deleteBefore("test", 220);
+        // then
+        assertThat(deleted).isEqualTo(220);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(30);
+        dataSource.close();
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.QueryResultCache.RangeQuery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryResultCacheTest {
+
+    private static final ImmutableList<String> QUERY_ARGS = ImmutableList.of("a type");
+
+    @Test
+    public void shouldOnlyQueryOpenTailWhenCached() throws Exception {
+        // given
+        QueryResultCache cache = new QueryResultCache(1000);
+        TestRangeQuery rangeQuery = new TestRangeQuery();
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 450, 299, rangeQuery);
+        rangeQuery.ranges.clear();
+
+        // when
+        List<Long> rows = cache.query("test", QUERY_ARGS, 0, 100, 0, 450, 299, rangeQuery);
+
+        // then
+        assertThat(rows).containsExactly(0L, 50L, 100L, 150L, 200L, 250L, 300L, 350L, 400L,
+                450L);
+        assertThat(rangeQuery.ranges).containsExactly("300-450");
+        assertThat(cache.getHitCount()).isEqualTo(3);
+        assertThat(cache.getMissCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldFilterPartialBuckets() throws Exception {
+        // given
+        QueryResultCache cache = new QueryResultCache(1000);
+        TestRangeQuery rangeQuery = new TestRangeQuery();
+
+        // when
+        List<Long> rows = cache.query("test", QUERY_ARGS, 0, 100, 120, 260, 299, rangeQuery);
+
+        // then
+        assertThat(rows).containsExactly(150L, 200L, 250L);
+        // full buckets are queried so that they can be cached
+        assertThat(rangeQuery.ranges).containsExactly("100-199", "200-299");
+    }
+
+    @Test
+    public void shouldNotCacheWhenDisabled() throws Exception {
+        // given
+        QueryResultCache cache = new QueryResultCache(0);
+        TestRangeQuery rangeQuery = new TestRangeQuery();
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 450, 299, rangeQuery);
+
+        // when
+        List<Long> rows = cache.query("test", QUERY_ARGS, 0, 100, 0, 450, 299, rangeQuery);
+
+        // then
+        assertThat(rows).hasSize(10);
+        assertThat(rangeQuery.ranges).containsExactly("0-450", "0-450");
+    }
+
+    @Test
+    public void shouldRequeryAfterInvalidate() throws Exception {
+        // given
+        QueryResultCache cache = new QueryResultCache(1000);
+        TestRangeQuery rangeQuery = new TestRangeQuery();
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 99, 299, rangeQuery);
+
+        // when
+        cache.invalidateAll();
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 99, 299, rangeQuery);
+
+        // then
+        assertThat(rangeQuery.ranges).containsExactly("0-99", "0-99");
+    }
+
+    @Test
+    public void shouldNotCacheResultsReadBeforeInvalidate() throws Exception {
+        // given
+        final QueryResultCache cache = new QueryResultCache(1000);
+        TestRangeQuery rangeQuery = new TestRangeQuery() {
+            @Override
+            public List<Long> query(long from, long to) {
+                List<Long> rows = super.query(from, to);
+                // e.g. expired data is deleted while the query is running
+                cache.invalidateAll();
+                return rows;
+            }
+        };
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 99, 299, rangeQuery);
+
+        // when
+        cache.query("test", QUERY_ARGS, 0, 100, 0, 99, 299, rangeQuery);
+
+        // then
+        assertThat(rangeQuery.ranges).containsExactly("0-99", "0-99");
+        assertThat(cache.getBucketCount()).isZero();
+    }
+
+    // returns a row (the capture time) every 50 milliseconds
+    private static class TestRangeQuery implements RangeQuery<Long> {
+
+        private final List<String> ranges = Lists.newArrayList();
+
+        @Override
+        public List<Long> query(long from, long to) {
+            ranges.add(from + "-" + to);
+            List<Long> rows = Lists.newArrayList();
+            for (long captureTime = (from + 49) / 50 * 50; captureTime <= to; captureTime += 50) {
+                rows.add(captureTime);
+            }
+            return rows;
+        }
+
+        @Override
+        public long getCaptureTime(Long row) {
+            return row;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable.PartitionQuery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimePartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("value", ColumnType.DOUBLE));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx", ImmutableList.of("capture_time", "value")));
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldUseCeilingBasedPartitionRanges() throws Exception {
+        // given
+        TimePartitionedTable table =
+                new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        // when
+        String tableName1 = table.getPartitionTableName(1001);
+        String tableName2 = table.getPartitionTableName(2000);
+        String tableName3 = table.getPartitionTableName(2001);
+        // then
+        assertThat(tableName1).isEqualTo("test_p1");
+        assertThat(tableName2).isEqualTo("test_p1");
+        assertThat(tableName3).isEqualTo("test_p2");
+        assertThat(table.getPartitionEndTime(1001)).isEqualTo(2000);
+        assertThat(table.getPartitionTableNames(1500, 2500)).containsExactly("test_p1", "test_p2");
+        assertThat(table.getPartitionTableNames(2001, 2500)).containsExactly("test_p2");
+        assertThat(table.getNextPartitionStartTime(0)).isEqualTo(1000);
+        assertThat(table.getNextPartitionStartTime(2000)).isEqualTo(2000);
+        assertThat(table.getNextPartitionStartTime(3000)).isNull();
+        assertThat(table.getFirstPartitionStartTime()).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        TimePartitionedTable table =
+                new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        for (long captureTime = 1100; captureTime <= 4100; captureTime += 500) {
+            dataSource.update("insert into " + table.getPartitionTableName(captureTime)
+                    + " (capture_time, value) values (?, ?)", captureTime, 1.0);
+        }
+        // when
+        table.deleteBefore(3500);
+        // then
+        assertThat(table.getPartitionCount()).isEqualTo(2);
+        assertThat(dataSource.tableExists("test_p1")).isFalse();
+        assertThat(dataSource.tableExists("test_p2")).isFalse();
+        assertThat(dataSource.queryForLong("select count(*) from test_p3")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test_p4")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDropPartitionWhileQueryIsRunning() throws Exception {
+        // given
+        final TimePartitionedTable table =
+                new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        dataSource.update("insert into " + table.getPartitionTableName(1500)
+                + " (capture_time, value) values (?, ?)", 1500, 1.0);
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch dropStarted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Long> future = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return table.query(0, 2000, new PartitionQuery<Long>() {
+                    @Override
+                    public Long query(List<String> tableNames) throws Exception {
+                        queryStarted.countDown();
+                        dropStarted.await();
+                        // give the drop a chance to run if it were not blocked
+                        Thread.sleep(100);
+                        return dataSource.queryForLong("select count(*) from " + tableNames.get(0));
+                    }
+                });
+            }
+        });
+        queryStarted.await();
+        // when
+        Thread dropThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dropStarted.countDown();
+                try {
+                    table.deleteBefore(2500);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        dropThread.start();
+        // then
+        assertThat(future.get()).isEqualTo(1);
+        dropThread.join();
+        assertThat(dataSource.tableExists("test_p1")).isFalse();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldFindExistingPartitions() throws Exception {
+        // given
+        TimePartitionedTable table =
+                new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        table.getPartitionTableName(1500);
+        table.getPartitionTableName(5500);
+        // when
+        table = new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        // then
+        assertThat(table.getPartitionCount()).isEqualTo(2);
+        assertThat(table.getPartitionTableNames(0, 10000)).containsExactly("test_p1", "test_p5");
+    }
+
+    @Test
+    public void shouldMigrateFromUnpartitionedTable() throws Exception {
+        // given
+        dataSource.syncTable("test", columns);
+        for (long captureTime = 500; captureTime <= 3000; captureTime += 500) {
+            dataSource.update("insert into test (capture_time, value) values (?, ?)", captureTime,
+                    1.0);
+        }
+        TimePartitionedTable table =
+                new TimePartitionedTable(dataSource, "test", columns, indexes, 1000);
+        // when
+        table.migrateFrom("test");
+        // then
+        assertThat(dataSource.tableExists("test")).isFalse();
+        assertThat(table.getPartitionTableNames(0, 3000)).containsExactly("test_p0", "test_p1",
+                "test_p2");
+        assertThat(dataSource.queryForLong("select count(*) from test_p0")).isEqualTo(2);
+        assertThat(dataSource.queryForLong("select count(*) from test_p1")).isEqualTo(2);
+        assertThat(dataSource.queryForLong("select count(*) from test_p2")).isEqualTo(2);
+    }
+}
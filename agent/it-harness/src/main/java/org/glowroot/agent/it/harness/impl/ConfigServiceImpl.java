@@ -210,6 +210,7 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxProfileSamplesPerTransaction(of(10000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
+                .setHistogramKind(AdvancedConfig.HistogramKind.HDR_HISTOGRAM)
                 .build();
     }
 
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.DictionaryEntry;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// in-memory per-agent dictionaries used to decode dictionary coded aggregate streams
+//
+// dictionaries are not shared across central cluster nodes and are not persisted, if an agent
+// references a dictionary (or dictionary entry) that this node does not have, the agent is told
+// to start a new dictionary (see AggregateStreamHeader.dictionary_id)
+class AggregateDictionaries {
+
+    // this is a safety limit, the agent starts a new dictionary well before reaching this
+    private static final int MAX_ENTRIES_PER_DICTIONARY = 100000;
+
+    // approximate memory (in bytes) used by each dictionary entry in addition to its text
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final Cache<String, Dictionary> dictionaries;
+
+    AggregateDictionaries() {
+        this(Long.getLong("glowroot.central.aggregate.dictionary.max.bytes", 64 * 1024 * 1024));
+    }
+
+    // maxBytes bounds the (approximate) memory used by the dictionaries of all agents combined,
+    // when it is exceeded the least recently used dictionaries are evicted
+    AggregateDictionaries(long maxBytes) {
+        dictionaries = CacheBuilder.newBuilder()
+                // aggregates are collected every minute, so this is only reached when an agent
+                // has been disconnected for a while, in which case it will have started a new
+                // dictionary anyways if it had been restarted
+                .expireAfterAccess(1, HOURS)
+                .maximumWeight(maxBytes)
+                .weigher((String agentId, Dictionary dictionary) -> dictionary.getWeight())
+                .build();
+    }
+
+    // starts a new (empty) dictionary for the agent if the dictionary id has changed
+    Dictionary get(String agentId, String dictionaryId) {
+        return dictionaries.asMap().compute(agentId, (k, v) -> {
+            if (v != null && v.dictionaryId.equals(dictionaryId)) {
+                return v;
+            }
+            return new Dictionary(dictionaryId);
+        });
+    }
+
+    // the cache only weighs a dictionary when it is put, so this needs to be called after entries
+    // have been added to the dictionary in order for the weight to be reflected (and enforced)
+    void updateWeight(String agentId, Dictionary dictionary) {
+        // this is a no-op if the dictionary has been evicted or replaced in the meantime
+        dictionaries.asMap().replace(agentId, dictionary, dictionary);
+    }
+
+    @OnlyUsedByTests
+    long size() {
+        dictionaries.cleanUp();
+        return dictionaries.size();
+    }
+
+    static class Dictionary {
+
+        private final String dictionaryId;
+
+        private final Map<Integer, DictionaryEntry> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger weight = new AtomicInteger();
+
+        private Dictionary(String dictionaryId) {
+            this.dictionaryId = dictionaryId;
+        }
+
+        // the agent re-sends entries until it receives a successful response, so adding the same
+        // entry more than once is expected
+        void add(DictionaryEntry entry) throws DictionaryException {
+            if (entries.size() >= MAX_ENTRIES_PER_DICTIONARY
+                    && !entries.containsKey(entry.getId())) {
+                throw new DictionaryException("dictionary is full");
+            }
+            if (entries.put(entry.getId(), entry) == null) {
+                // approximate bytes, with two bytes per char
+                weight.addAndGet(entry.getText().length() * 2 + ENTRY_OVERHEAD_BYTES);
+            }
+        }
+
+        private int getWeight() {
+            return weight.get();
+        }
+
+        String getText(int id) throws DictionaryException {
+            DictionaryEntry entry = entries.get(id);
+            if (entry == null) {
+                throw new DictionaryException("dictionary entry " + id + " not found");
+            }
+            return entry.getText();
+        }
+
+        Aggregate decode(Aggregate aggregate) throws DictionaryException {
+            Aggregate.Builder builder = aggregate.toBuilder()
+                    .clearMainThreadRootTimer()
+                    .clearAuxThreadRootTimer()
+                    .clearAsyncTimer()
+                    .clearServiceCall();
+            for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+                builder.addMainThreadRootTimer(decode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+                builder.addAuxThreadRootTimer(decode(timer));
+            }
+            for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+                builder.addAsyncTimer(decode(timer));
+            }
+            for (Aggregate.ServiceCall serviceCall : aggregate.getServiceCallList()) {
+                builder.addServiceCall(serviceCall.toBuilder()
+                        .clearTextId()
+                        .setText(getText(serviceCall.getTextId())));
+            }
+            if (aggregate.hasMainThreadProfile()) {
+                builder.setMainThreadProfile(decode(aggregate.getMainThreadProfile()));
+            }
+            if (aggregate.hasAuxThreadProfile()) {
+                builder.setAuxThreadProfile(decode(aggregate.getAuxThreadProfile()));
+            }
+            return builder.build();
+        }
+
+        private Aggregate.Timer decode(Aggregate.Timer timer) throws DictionaryException {
+            Aggregate.Timer.Builder builder = timer.toBuilder()
+                    .clearChildTimer();
+            if (timer.getNameId() != 0) {
+                // name id is zero for synthetic root
+                builder.clearNameId()
+                        .setName(getText(timer.getNameId()));
+            }
+            for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+                builder.addChildTimer(decode(childTimer));
+            }
+            return builder.build();
+        }
+
+        private Profile decode(Profile profile) throws DictionaryException {
+            Profile.Builder builder = profile.toBuilder()
+                    .clearPackageNameId()
+                    .clearClassNameId()
+                    .clearMethodNameId()
+                    .clearFileNameId();
+            for (int id : profile.getPackageNameIdList()) {
+                builder.addPackageName(getText(id));
+            }
+            for (int id : profile.getClassNameIdList()) {
+                builder.addClassName(getText(id));
+            }
+            for (int id : profile.getMethodNameIdList()) {
+                builder.addMethodName(getText(id));
+            }
+            for (int id : profile.getFileNameIdList()) {
+                builder.addFileName(getText(id));
+            }
+            return builder.build();
+        }
+    }
+
+    static class DictionaryException extends Exception {
+
+        private DictionaryException(String message) {
+            super(message);
+        }
+    }
+}
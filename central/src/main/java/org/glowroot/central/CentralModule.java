@@ -188,11 +188,15 @@ public class CentralModule {
                     alertingService, heartbeatAlertingService);
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(),
-                    centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(), centralDir,
+                    centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(),
+                    centralConfig.grpcCollectorThreads(),
+                    centralConfig.grpcCollectorMaxQueuedPerAgent(),
+                    centralConfig.grpcCollectorMaxQueued(), centralDir,
                     repos.getAgentConfigDao(), repos.getAgentDao(), repos.getEnvironmentDao(),
                     repos.getHeartbeatDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
-                    repos.getTraceDao(), repos.getV09AgentRollupDao(), centralAlertingService,
-                    clusterManager, clock, version);
+                    repos.getTraceDao(), repos.getQueryTextDictionaryDao(),
+                    repos.getV09AgentRollupDao(), centralAlertingService, clusterManager, clock,
+                    version);
             DownstreamServiceImpl downstreamService = grpcServer.getDownstreamService();
             updateAgentConfigIfNeededService = new UpdateAgentConfigIfNeededService(
                     repos.getAgentDao(), repos.getAgentConfigDao(), downstreamService, clock);
@@ -554,6 +558,20 @@ public class CentralModule {
                 builder.grpcHttpsPort(Integer.parseInt(grpcHttpsPortText));
             }
         }
+        String grpcCollectorThreads = properties.get("glowroot.grpc.collectorThreads");
+        if (!Strings.isNullOrEmpty(grpcCollectorThreads)) {
+            builder.grpcCollectorThreads(Integer.parseInt(grpcCollectorThreads));
+        }
+        String grpcCollectorMaxQueuedPerAgent =
+                properties.get("glowroot.grpc.collectorMaxQueuedPerAgent");
+        if (!Strings.isNullOrEmpty(grpcCollectorMaxQueuedPerAgent)) {
+            builder.grpcCollectorMaxQueuedPerAgent(
+                    Integer.parseInt(grpcCollectorMaxQueuedPerAgent));
+        }
+        String grpcCollectorMaxQueued = properties.get("glowroot.grpc.collectorMaxQueued");
+        if (!Strings.isNullOrEmpty(grpcCollectorMaxQueued)) {
+            builder.grpcCollectorMaxQueued(Integer.parseInt(grpcCollectorMaxQueued));
+        }
         String uiBindAddress = properties.get("glowroot.ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddress(uiBindAddress);
@@ -895,6 +913,24 @@ public class CentralModule {
             return null;
         }
 
+        @Value.Default
+        int grpcCollectorThreads() {
+            // bounds the number of collection requests being stored concurrently (each of which
+            // can perform many async cassandra writes)
+            return 32;
+        }
+
+        @Value.Default
+        int grpcCollectorMaxQueuedPerAgent() {
+            return 100;
+        }
+
+        @Value.Default
+        int grpcCollectorMaxQueued() {
+            // collection requests beyond this are rejected with a retry-after hint
+            return 10000;
+        }
+
         @Value.Default
         String uiBindAddress() {
             return "0.0.0.0";
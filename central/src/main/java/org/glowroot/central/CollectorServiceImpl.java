@@ -17,32 +17,41 @@ package org.glowroot.central;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Joiner;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.AggregateDictionaries.Dictionary;
+import org.glowroot.central.AggregateDictionaries.DictionaryException;
 import org.glowroot.central.repo.AgentConfigDao;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.QueryTextDictionaryDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -52,6 +61,10 @@ import org.glowroot.wire.api.model.CollectorServiceGrpc;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectBatch;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
@@ -63,6 +76,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldAggregateMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldTraceMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextDictionaryEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
@@ -73,12 +87,19 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(CollectorServiceImpl.class);
 
+    // this key is also read by the agent (see CentralConnection in glowroot-agent-core)
+    private static final Metadata.Key<String> RETRY_AFTER_MILLIS_KEY =
+            Metadata.Key.of("glowroot-retry-after-millis", Metadata.ASCII_STRING_MARSHALLER);
+
+    // this key is also read by the agent (see CentralCollector in glowroot-agent-core)
+    private static final Metadata.Key<String> MISSING_QUERY_TEXT_IDS_KEY =
+            Metadata.Key.of("glowroot-missing-query-text-ids", Metadata.ASCII_STRING_MARSHALLER);
+
     private final AgentDao agentDao;
     private final AgentConfigDao agentConfigDao;
     private final EnvironmentDao environmentDao;
@@ -86,29 +107,25 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final TraceDao traceDao;
+    private final QueryTextDictionaryDao queryTextDictionaryDao;
     private final V09AgentRollupDao v09AgentRollupDao;
     private final GrpcCommon grpcCommon;
     private final CentralAlertingService centralAlertingService;
+    private final CollectorThrottle collectorThrottle;
     private final Clock clock;
     private final String version;
 
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
 
     CollectorServiceImpl(AgentDao agentDao, AgentConfigDao agentConfigDao,
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
-            GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
-            GrpcCommon grpcCommon, CentralAlertingService centralAlertingService, Clock clock,
-            String version) {
+            GaugeValueDao gaugeValueDao, TraceDao traceDao,
+            QueryTextDictionaryDao queryTextDictionaryDao, V09AgentRollupDao v09AgentRollupDao,
+            GrpcCommon grpcCommon, CentralAlertingService centralAlertingService,
+            CollectorThrottle collectorThrottle, Clock clock, String version) {
         this.agentDao = agentDao;
         this.agentConfigDao = agentConfigDao;
         this.environmentDao = environmentDao;
@@ -116,9 +133,11 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.traceDao = traceDao;
+        this.queryTextDictionaryDao = queryTextDictionaryDao;
         this.v09AgentRollupDao = v09AgentRollupDao;
         this.grpcCommon = grpcCommon;
         this.centralAlertingService = centralAlertingService;
+        this.collectorThrottle = collectorThrottle;
         this.clock = clock;
         this.version = version;
     }
@@ -155,7 +174,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                 request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
         InitResponse.Builder response = InitResponse.newBuilder()
-                .setGlowrootCentralVersion(version);
+                .setGlowrootCentralVersion(version)
+                .setAggregateDictionarySupported(true)
+                .setQueryTextDictionarySupported(true);
         if (!updatedAgentConfig.equals(request.getAgentConfig())) {
             response.setAgentConfig(updatedAgentConfig);
         }
@@ -213,6 +234,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         throttledCollectTrace(request.getAgentId(), false, request.getTrace(), responseObserver);
     }
 
+    @Override
+    public StreamObserver<CollectStreamMessage> collectStream(
+            StreamObserver<CollectStreamResponse> responseObserver) {
+        return new CollectStreamObserver(responseObserver);
+    }
+
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Log",
             traceHeadline = "Log: {{0.agentId}}", timer = "log")
     @Override
@@ -283,28 +310,21 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         });
     }
 
+    // the runnable is run asynchronously by the collector throttle's worker pool, and is
+    // responsible for completing the response observer
     private <T> void throttle(String agentId, boolean postV09, StreamObserver<T> responseObserver,
             Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
-        try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
-            responseObserver.onError(e);
-            return;
-        }
-        if (!acquired) {
-            logger.warn("{} - collection rejected due to backlog",
-                    getDisplayForLogging(agentId, postV09));
-            responseObserver.onError(new Exception());
+        if (collectorThrottle.submit(agentId, runnable)) {
             return;
         }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
-        }
+        long retryAfterMillis = collectorThrottle.getRetryAfterMillis();
+        logger.warn("{} - collection rejected due to backlog (agent will retry after {} ms)",
+                getDisplayForLogging(agentId, postV09), retryAfterMillis);
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_MILLIS_KEY, Long.toString(retryAfterMillis));
+        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("collection rejected due to backlog")
+                .asRuntimeException(trailers));
     }
 
     private void collectAggregatesUnderThrottle(String agentId, boolean postV09, long captureTime,
@@ -430,6 +450,55 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         return nextDelay.getAndAdd(100) % 10000;
     }
 
+    private Future<?> storeQueryText(String agentId, String version,
+            QueryTextDictionaryEntry entry) throws Exception {
+        return queryTextDictionaryDao.store(agentId, version, entry.getId(), entry.getFullText());
+    }
+
+    // this is run under the collector throttle since it waits on cassandra (the stream's entries
+    // are stored before the stream is acknowledged, since the agent will not send them again once
+    // it is acknowledged), queryTextIds is keyed by index in the stream's shared query texts, and
+    // the full texts are returned keyed the same way, or null after responding with an error
+    //
+    // resolved texts are then stored the same as texts that are sent directly, so long texts are
+    // stored in full_query_text as well as in query_text_dictionary, this is intentional since
+    // stored aggregates and traces reference full_query_text (by sha1), while dictionary entries
+    // only live as long as the agent keeps referencing them
+    private @Nullable Map<Integer, String> resolveQueryTextIds(String agentId, boolean postV09,
+            String version, List<Future<?>> storeFutures, Map<Integer, Integer> queryTextIds,
+            StreamObserver<?> responseObserver) {
+        try {
+            MoreFutures.waitForAll(storeFutures);
+            Collection<Integer> ids = queryTextIds.values();
+            Map<Integer, String> fullTexts =
+                    queryTextDictionaryDao.readFullTexts(agentId, version, ids);
+            List<Integer> missingIds = new ArrayList<>();
+            for (int id : ids) {
+                if (!fullTexts.containsKey(id) && !missingIds.contains(id)) {
+                    missingIds.add(id);
+                }
+            }
+            if (!missingIds.isEmpty()) {
+                throw new QueryTextNotFoundException(version, missingIds);
+            }
+            MoreFutures.waitForAll(queryTextDictionaryDao.updateTTL(agentId, version, fullTexts));
+            Map<Integer, String> resolved = new HashMap<>();
+            for (Map.Entry<Integer, Integer> entry : queryTextIds.entrySet()) {
+                resolved.put(entry.getKey(), checkNotNull(fullTexts.get(entry.getValue())));
+            }
+            return resolved;
+        } catch (QueryTextNotFoundException e) {
+            // the agent will send the missing entries again and retry
+            logger.debug("{} - {}", getDisplayForLogging(agentId, postV09), e.getMessage());
+            responseObserver.onError(e.toStatusRuntimeException());
+            return null;
+        } catch (Exception e) {
+            logger.error("{} - {}", getDisplayForLogging(agentId, postV09), e.getMessage(), e);
+            responseObserver.onError(e);
+            return null;
+        }
+    }
+
     private String getDisplayForLogging(String agentId, boolean postV09) {
         return grpcCommon.getDisplayForLogging(agentId, postV09);
     }
@@ -486,33 +555,99 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = new HashMap<>();
 
+        // query text dictionary references are resolved (in one batch) once the stream completes,
+        // keyed by index in sharedQueryTexts
+        private List<Future<?>> queryTextStoreFutures = new ArrayList<>();
+        private Map<Integer, Integer> queryTextIds = new HashMap<>();
+
+        // only present for dictionary coded streams
+        private @MonotonicNonNull Dictionary dictionary;
+        // set if the stream cannot be decoded
+        private @Nullable Status decodeErrorStatus;
+
         private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
             this.responseObserver = responseObserver;
         }
 
         @Override
         public void onNext(AggregateStreamMessage value) {
+            if (decodeErrorStatus != null) {
+                // the rest of the stream cannot be decoded
+                return;
+            }
+            try {
+                onNextInternal(value);
+            } catch (DictionaryException e) {
+                // the agent will start a new dictionary and retry
+                decodeErrorStatus = Status.FAILED_PRECONDITION.withDescription(e.getMessage());
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                decodeErrorStatus = Status.UNKNOWN.withCause(e);
+            }
+        }
+
+        private void onNextInternal(AggregateStreamMessage value) throws Exception {
             switch (value.getMessageCase()) {
                 case STREAM_HEADER:
                     streamHeader = value.getStreamHeader();
+                    String dictionaryId = streamHeader.getDictionaryId();
+                    if (!dictionaryId.isEmpty()) {
+                        dictionary = aggregateDictionaries.get(streamHeader.getAgentId(),
+                                dictionaryId);
+                    }
+                    break;
+                case DICTIONARY_ENTRY:
+                    getDictionary().add(value.getDictionaryEntry());
                     break;
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case QUERY_TEXT_DICTIONARY_ENTRY:
+                    queryTextStoreFutures.add(storeQueryText(
+                            checkNotNull(streamHeader).getAgentId(),
+                            streamHeader.getQueryTextDictionaryVersion(),
+                            value.getQueryTextDictionaryEntry()));
+                    break;
+                case QUERY_TEXT_ID:
+                    // placeholder until resolved
+                    queryTextIds.put(sharedQueryTexts.size(), value.getQueryTextId());
+                    sharedQueryTexts.add(Aggregate.SharedQueryText.getDefaultInstance());
+                    break;
                 case OVERALL_AGGREGATE:
                     OverallAggregate overallAggregate = value.getOverallAggregate();
-                    String transactionType = overallAggregate.getTransactionType();
+                    String transactionType;
+                    Aggregate aggregate;
+                    if (overallAggregate.getTransactionTypeId() == 0) {
+                        transactionType = overallAggregate.getTransactionType();
+                        aggregate = overallAggregate.getAggregate();
+                    } else {
+                        transactionType =
+                                getDictionary().getText(overallAggregate.getTransactionTypeId());
+                        aggregate = getDictionary().decode(overallAggregate.getAggregate());
+                    }
                     aggregatesByTypeMap.put(transactionType, OldAggregatesByType.newBuilder()
                             .setTransactionType(transactionType)
-                            .setOverallAggregate(overallAggregate.getAggregate()));
+                            .setOverallAggregate(aggregate));
                     break;
                 case TRANSACTION_AGGREGATE:
                     TransactionAggregate transactionAggregate = value.getTransactionAggregate();
-                    OldAggregatesByType.Builder builder = checkNotNull(
-                            aggregatesByTypeMap.get(transactionAggregate.getTransactionType()));
+                    String transactionName;
+                    if (transactionAggregate.getTransactionTypeId() == 0) {
+                        transactionType = transactionAggregate.getTransactionType();
+                        transactionName = transactionAggregate.getTransactionName();
+                        aggregate = transactionAggregate.getAggregate();
+                    } else {
+                        transactionType = getDictionary()
+                                .getText(transactionAggregate.getTransactionTypeId());
+                        transactionName = getDictionary()
+                                .getText(transactionAggregate.getTransactionNameId());
+                        aggregate = getDictionary().decode(transactionAggregate.getAggregate());
+                    }
+                    OldAggregatesByType.Builder builder =
+                            checkNotNull(aggregatesByTypeMap.get(transactionType));
                     builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
-                            .setTransactionName(transactionAggregate.getTransactionName())
-                            .setAggregate(transactionAggregate.getAggregate())
+                            .setTransactionName(transactionName)
+                            .setAggregate(aggregate)
                             .build());
                     break;
                 default:
@@ -520,6 +655,13 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             }
         }
 
+        private Dictionary getDictionary() throws DictionaryException {
+            if (dictionary == null) {
+                throw new DictionaryException("stream is not dictionary coded");
+            }
+            return dictionary;
+        }
+
         @Override
         public void onError(Throwable t) {
             if (streamHeader == null) {
@@ -538,13 +680,41 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         @Override
         public void onCompleted() {
             checkNotNull(streamHeader);
+            if (dictionary != null) {
+                aggregateDictionaries.updateWeight(streamHeader.getAgentId(), dictionary);
+            }
+            if (decodeErrorStatus != null) {
+                logger.debug("{} - {}", grpcCommon.getDisplayForLogging(streamHeader.getAgentId(),
+                        streamHeader.getPostV09()), decodeErrorStatus.getDescription());
+                responseObserver.onError(decodeErrorStatus.asRuntimeException());
+                return;
+            }
             List<OldAggregatesByType> aggregatesByTypeList = new ArrayList<>();
             for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap.values()) {
                 aggregatesByTypeList.add(aggregatesByType.build());
             }
-            throttleCollectAggregates(streamHeader.getAgentId(), streamHeader.getPostV09(),
-                    streamHeader.getCaptureTime(), sharedQueryTexts, aggregatesByTypeList,
-                    responseObserver);
+            String agentId = streamHeader.getAgentId();
+            boolean postV09 = streamHeader.getPostV09();
+            long captureTime = streamHeader.getCaptureTime();
+            String queryTextDictionaryVersion = streamHeader.getQueryTextDictionaryVersion();
+            throttle(agentId, postV09, responseObserver, new Runnable() {
+                @Override
+                public void run() {
+                    Map<Integer, String> fullTexts = resolveQueryTextIds(agentId, postV09,
+                            queryTextDictionaryVersion, queryTextStoreFutures, queryTextIds,
+                            responseObserver);
+                    if (fullTexts == null) {
+                        return;
+                    }
+                    for (Map.Entry<Integer, String> entry : fullTexts.entrySet()) {
+                        sharedQueryTexts.set(entry.getKey(), Aggregate.SharedQueryText.newBuilder()
+                                .setFullText(entry.getValue())
+                                .build());
+                    }
+                    collectAggregatesUnderThrottle(agentId, postV09, captureTime,
+                            sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                }
+            });
         }
     }
 
@@ -553,6 +723,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private final StreamObserver<EmptyMessage> responseObserver;
         private @MonotonicNonNull TraceStreamHeader streamHeader;
         private List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        // query text dictionary references are resolved (in one batch) once the stream completes,
+        // keyed by index in sharedQueryTexts
+        private List<Future<?>> queryTextStoreFutures = new ArrayList<>();
+        private Map<Integer, Integer> queryTextIds = new HashMap<>();
         private @MonotonicNonNull Trace trace;
         private List<Trace.Entry> entries = new ArrayList<>();
         private List<Aggregate.Query> queries = new ArrayList<>();
@@ -560,6 +734,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private @MonotonicNonNull Profile auxThreadProfile;
         private Trace. /*@MonotonicNonNull*/ Header header;
         private @MonotonicNonNull TraceStreamCounts streamCounts;
+        // set if the stream cannot be decoded
+        private @Nullable Status decodeErrorStatus;
 
         private TraceStreamObserver(StreamObserver<EmptyMessage> responseObserver) {
             this.responseObserver = responseObserver;
@@ -567,6 +743,19 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
         @Override
         public void onNext(TraceStreamMessage value) {
+            if (decodeErrorStatus != null) {
+                // the rest of the stream cannot be decoded
+                return;
+            }
+            try {
+                onNextInternal(value);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                decodeErrorStatus = Status.UNKNOWN.withCause(e);
+            }
+        }
+
+        private void onNextInternal(TraceStreamMessage value) throws Exception {
             switch (value.getMessageCase()) {
                 case STREAM_HEADER:
                     streamHeader = value.getStreamHeader();
@@ -574,6 +763,17 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case QUERY_TEXT_DICTIONARY_ENTRY:
+                    queryTextStoreFutures.add(storeQueryText(
+                            checkNotNull(streamHeader).getAgentId(),
+                            streamHeader.getQueryTextDictionaryVersion(),
+                            value.getQueryTextDictionaryEntry()));
+                    break;
+                case QUERY_TEXT_ID:
+                    // placeholder until resolved
+                    queryTextIds.put(sharedQueryTexts.size(), value.getQueryTextId());
+                    sharedQueryTexts.add(Trace.SharedQueryText.getDefaultInstance());
+                    break;
                 case TRACE:
                     // this is for 0.9.12 and prior agents
                     trace = value.getTrace();
@@ -615,6 +815,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         @Override
         public void onCompleted() {
             checkNotNull(streamHeader);
+            if (decodeErrorStatus != null) {
+                logger.debug("{} - {}", getDisplayForLogging(),
+                        decodeErrorStatus.getDescription());
+                responseObserver.onError(decodeErrorStatus.asRuntimeException());
+                return;
+            }
             if (trace == null) {
                 // this is for 0.9.13 and later agents
                 checkNotNull(streamCounts);
@@ -625,27 +831,54 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     responseObserver.onCompleted();
                     return;
                 }
-                Trace.Builder builder = Trace.newBuilder()
-                        .setId(streamHeader.getTraceId())
-                        .setUpdate(streamHeader.getUpdate())
-                        .setHeader(checkNotNull(header))
-                        .addAllEntry(entries)
-                        .addAllQuery(queries)
-                        .addAllSharedQueryText(sharedQueryTexts);
-                if (mainThreadProfile != null) {
-                    builder.setMainThreadProfile(mainThreadProfile);
-                }
-                if (auxThreadProfile != null) {
-                    builder.setAuxThreadProfile(auxThreadProfile);
+            }
+            String agentId = streamHeader.getAgentId();
+            boolean postV09 = streamHeader.getPostV09();
+            String queryTextDictionaryVersion = streamHeader.getQueryTextDictionaryVersion();
+            throttle(agentId, postV09, responseObserver, new Runnable() {
+                @Override
+                public void run() {
+                    Map<Integer, String> fullTexts = resolveQueryTextIds(agentId, postV09,
+                            queryTextDictionaryVersion, queryTextStoreFutures, queryTextIds,
+                            responseObserver);
+                    if (fullTexts == null) {
+                        return;
+                    }
+                    for (Map.Entry<Integer, String> entry : fullTexts.entrySet()) {
+                        sharedQueryTexts.set(entry.getKey(), Trace.SharedQueryText.newBuilder()
+                                .setFullText(entry.getValue())
+                                .build());
+                    }
+                    collectTraceUnderThrottle(agentId, postV09, buildTrace(), responseObserver);
                 }
-                trace = builder.build();
-            } else {
-                trace = trace.toBuilder()
+            });
+        }
+
+        // this is run under the collector throttle, after the query text dictionary references
+        // have been resolved
+        private Trace buildTrace() {
+            checkNotNull(streamHeader);
+            if (trace != null) {
+                // this is for 0.9.12 and prior agents
+                return trace.toBuilder()
                         .addAllSharedQueryText(sharedQueryTexts)
                         .build();
             }
-            throttledCollectTrace(streamHeader.getAgentId(), streamHeader.getPostV09(), trace,
-                    responseObserver);
+            // this is for 0.9.13 and later agents
+            Trace.Builder builder = Trace.newBuilder()
+                    .setId(streamHeader.getTraceId())
+                    .setUpdate(streamHeader.getUpdate())
+                    .setHeader(checkNotNull(header))
+                    .addAllEntry(entries)
+                    .addAllQuery(queries)
+                    .addAllSharedQueryText(sharedQueryTexts);
+            if (mainThreadProfile != null) {
+                builder.setMainThreadProfile(mainThreadProfile);
+            }
+            if (auxThreadProfile != null) {
+                builder.setAuxThreadProfile(auxThreadProfile);
+            }
+            return builder.build();
         }
 
         @RequiresNonNull({"streamHeader", "streamCounts"})
@@ -681,4 +914,200 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     streamHeader.getPostV09());
         }
     }
+
+    // each batch item is dispatched to the same code path as the corresponding rpc (so items are
+    // queued in the agent's collector throttle queue in order), and the batch is acknowledged once
+    // all of its items have been stored (or have failed)
+    private final class CollectStreamObserver implements StreamObserver<CollectStreamMessage> {
+
+        // all access to the response observer is synchronized since batches are acknowledged
+        // from collector throttle worker threads
+        private final StreamObserver<CollectStreamResponse> responseObserver;
+        private volatile @MonotonicNonNull String agentId;
+
+        private CollectStreamObserver(StreamObserver<CollectStreamResponse> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(CollectStreamMessage value) {
+            switch (value.getMessageCase()) {
+                case STREAM_HEADER:
+                    agentId = value.getStreamHeader().getAgentId();
+                    sendResponse(CollectStreamResponse.getDefaultInstance());
+                    break;
+                case BATCH:
+                    collectBatch(value.getBatch());
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected message: " + value.getMessageCase());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // this is expected whenever an agent disconnects (e.g. agent jvm shutdown)
+            if (agentId == null) {
+                logger.debug(t.getMessage(), t);
+            } else {
+                logger.debug("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (responseObserver) {
+                responseObserver.onCompleted();
+            }
+        }
+
+        private void collectBatch(CollectBatch batch) {
+            List<CollectItem> items = batch.getItemList();
+            BatchResponse batchResponse = new BatchResponse(batch.getBatchId(), items.size());
+            if (items.isEmpty()) {
+                batchResponse.sendResponse();
+                return;
+            }
+            for (CollectItem item : items) {
+                collectItem(item, batchResponse);
+            }
+        }
+
+        private void collectItem(CollectItem item, BatchResponse batchResponse) {
+            switch (item.getItemCase()) {
+                case GAUGE_VALUE_MESSAGE:
+                    BatchResponse.ItemObserver<EmptyMessage> gaugeValueObserver =
+                            batchResponse.new ItemObserver<>();
+                    try {
+                        throttledCollectGaugeValues(item.getGaugeValueMessage(),
+                                gaugeValueObserver);
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                        gaugeValueObserver.onError(t);
+                    }
+                    break;
+                case AGGREGATE_STREAM:
+                    BatchResponse.ItemObserver<AggregateResponseMessage> aggregateObserver =
+                            batchResponse.new ItemObserver<>();
+                    try {
+                        AggregateStreamObserver aggregateStreamObserver =
+                                new AggregateStreamObserver(aggregateObserver);
+                        for (AggregateStreamMessage message : item.getAggregateStream()
+                                .getMessageList()) {
+                            aggregateStreamObserver.onNext(message);
+                        }
+                        aggregateStreamObserver.onCompleted();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                        aggregateObserver.onError(t);
+                    }
+                    break;
+                case TRACE_STREAM:
+                    BatchResponse.ItemObserver<EmptyMessage> traceObserver =
+                            batchResponse.new ItemObserver<>();
+                    try {
+                        TraceStreamObserver traceStreamObserver =
+                                new TraceStreamObserver(traceObserver);
+                        for (TraceStreamMessage message : item.getTraceStream()
+                                .getMessageList()) {
+                            traceStreamObserver.onNext(message);
+                        }
+                        traceStreamObserver.onCompleted();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                        traceObserver.onError(t);
+                    }
+                    break;
+                default:
+                    logger.error("unexpected item: {}", item.getItemCase());
+                    batchResponse.new ItemObserver<>().onError(
+                            new IllegalStateException("Unexpected item: " + item.getItemCase()));
+                    break;
+            }
+        }
+
+        private void sendResponse(CollectStreamResponse response) {
+            synchronized (responseObserver) {
+                responseObserver.onNext(response);
+            }
+        }
+
+        private class BatchResponse {
+
+            private final long batchId;
+            private final AtomicInteger remaining;
+            private final AtomicBoolean error = new AtomicBoolean();
+            private final AtomicLong retryAfterMillis = new AtomicLong();
+            private volatile int nextAggregateDelayMillis;
+
+            private BatchResponse(long batchId, int itemCount) {
+                this.batchId = batchId;
+                remaining = new AtomicInteger(itemCount);
+            }
+
+            private void sendResponse() {
+                CollectStreamObserver.this.sendResponse(CollectStreamResponse.newBuilder()
+                        .setBatchId(batchId)
+                        .setError(error.get())
+                        .setRetryAfterMillis(retryAfterMillis.get())
+                        .setNextAggregateDelayMillis(nextAggregateDelayMillis)
+                        .build());
+            }
+
+            private class ItemObserver<T> implements StreamObserver<T> {
+
+                private final AtomicBoolean done = new AtomicBoolean();
+
+                @Override
+                public void onNext(T value) {
+                    if (value instanceof AggregateResponseMessage) {
+                        nextAggregateDelayMillis =
+                                ((AggregateResponseMessage) value).getNextDelayMillis();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    error.set(true);
+                    Metadata trailers = Status.trailersFromThrowable(t);
+                    if (trailers != null) {
+                        String value = trailers.get(RETRY_AFTER_MILLIS_KEY);
+                        if (value != null) {
+                            long itemRetryAfterMillis = Long.parseLong(value);
+                            retryAfterMillis.accumulateAndGet(itemRetryAfterMillis, Math::max);
+                        }
+                    }
+                    onDone();
+                }
+
+                @Override
+                public void onCompleted() {
+                    onDone();
+                }
+
+                private void onDone() {
+                    // guard against an item being completed more than once
+                    if (!done.getAndSet(true) && remaining.decrementAndGet() == 0) {
+                        sendResponse();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class QueryTextNotFoundException extends Exception {
+
+        private final List<Integer> missingIds;
+
+        private QueryTextNotFoundException(String version, List<Integer> missingIds) {
+            super("Query text dictionary entries not found: " + version + "/" + missingIds);
+            this.missingIds = missingIds;
+        }
+
+        private StatusRuntimeException toStatusRuntimeException() {
+            Metadata trailers = new Metadata();
+            trailers.put(MISSING_QUERY_TEXT_IDS_KEY, Joiner.on(',').join(missingIds));
+            return Status.NOT_FOUND.withDescription(getMessage()).asRuntimeException(trailers);
+        }
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// bounded per-agent queues of collection tasks, drained by a fixed size worker pool
+//
+// tasks for a given agent are run one at a time and in the order they were submitted (same as the
+// prior per-agent semaphore), but grpc threads never block waiting for an agent's prior tasks, and
+// the number of concurrent cassandra writes from collection is bounded by the worker pool size
+class CollectorThrottle {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorThrottle.class);
+
+    private static final long MIN_RETRY_AFTER_MILLIS = SECONDS.toMillis(1);
+    private static final long MAX_RETRY_AFTER_MILLIS = MINUTES.toMillis(1);
+
+    private final int threads;
+    private final int maxQueuedPerAgent;
+    private final int maxQueued;
+
+    private final ExecutorService executor;
+
+    private final LoadingCache<String, AgentQueue> agentQueues = CacheBuilder.newBuilder()
+            // agent queues are strongly referenced by the executor while they have pending tasks
+            .weakValues()
+            .build(new CacheLoader<String, AgentQueue>() {
+                @Override
+                public AgentQueue load(String key) {
+                    return new AgentQueue();
+                }
+            });
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    // exponentially weighted moving average, races between updates are ok since this is only used
+    // to estimate retry-after hints
+    private volatile long averageTaskNanos;
+
+    CollectorThrottle(int threads, int maxQueuedPerAgent, int maxQueued) {
+        this.threads = threads;
+        this.maxQueuedPerAgent = maxQueuedPerAgent;
+        this.maxQueued = maxQueued;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Collector-Worker-%d")
+                .build());
+    }
+
+    // returns false if the task was rejected because the agent's queue (or the overall queue) is
+    // full, in which case the caller should respond with getRetryAfterMillis()
+    boolean submit(String agentId, Runnable task) {
+        return agentQueues.getUnchecked(agentId).add(task);
+    }
+
+    // estimate of how long it will take to work through the current backlog
+    long getRetryAfterMillis() {
+        long backlogNanos = (queuedCount.get() / threads + 1) * averageTaskNanos;
+        long retryAfterMillis = NANOSECONDS.toMillis(backlogNanos);
+        return Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+    }
+
+    int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void recordTaskNanos(long nanos) {
+        averageTaskNanos = averageTaskNanos + (nanos - averageTaskNanos) / 8;
+    }
+
+    private class AgentQueue implements Runnable {
+
+        @GuardedBy("this")
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        // true while this agent queue is in the executor queue or is being run by a worker
+        @GuardedBy("this")
+        private boolean scheduled;
+
+        private boolean add(Runnable task) {
+            synchronized (this) {
+                if (tasks.size() >= maxQueuedPerAgent) {
+                    return false;
+                }
+                if (queuedCount.incrementAndGet() > maxQueued) {
+                    queuedCount.decrementAndGet();
+                    return false;
+                }
+                tasks.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+            return true;
+        }
+
+        // runs a single task and then goes to the back of the executor queue (if there are more
+        // tasks), so that an agent with a large backlog does not starve other agents
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            if (task != null) {
+                queuedCount.decrementAndGet();
+                long startTick = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+                recordTaskNanos(System.nanoTime() - startTick);
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            executor.execute(this);
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.QueryTextDictionaryDao;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
 import org.glowroot.central.util.ClusterManager;
@@ -45,23 +46,29 @@ class GrpcServer {
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private final DownstreamServiceImpl downstreamService;
+    private final CollectorThrottle collectorThrottle;
 
     private final @Nullable Server httpServer;
     private final @Nullable Server httpsServer;
 
     GrpcServer(String bindAddress, @Nullable Integer httpPort, @Nullable Integer httpsPort,
+            int collectorThreads, int collectorMaxQueuedPerAgent, int collectorMaxQueued,
             File centralDir, AgentConfigDao agentConfigDao, AgentDao agentDao,
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
-            GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
+            GaugeValueDao gaugeValueDao, TraceDao traceDao,
+            QueryTextDictionaryDao queryTextDictionaryDao, V09AgentRollupDao v09AgentRollupDao,
             CentralAlertingService centralAlertingService, ClusterManager clusterManager,
             Clock clock, String version) throws IOException {
 
         GrpcCommon grpcCommon = new GrpcCommon(agentDao, v09AgentRollupDao);
         downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
 
+        collectorThrottle = new CollectorThrottle(collectorThreads, collectorMaxQueuedPerAgent,
+                collectorMaxQueued);
         CollectorServiceImpl collectorService = new CollectorServiceImpl(agentDao, agentConfigDao,
                 environmentDao, heartbeatDao, aggregateDao, gaugeValueDao, traceDao,
-                v09AgentRollupDao, grpcCommon, centralAlertingService, clock, version);
+                queryTextDictionaryDao, v09AgentRollupDao, grpcCommon, centralAlertingService,
+                collectorThrottle, clock, version);
 
         if (httpPort == null) {
             httpServer = null;
@@ -133,6 +140,8 @@ class GrpcServer {
         if (httpServer != null) {
             shutdownNow(httpServer);
         }
+        // wait for queued collection requests to be stored
+        collectorThrottle.close();
     }
 
     private static File getHttpsConfFile(File confDir, String fileName, String sharedFileName,
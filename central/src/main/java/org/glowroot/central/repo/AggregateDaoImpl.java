@@ -60,9 +60,9 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
@@ -1549,7 +1549,7 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> rollupThreadProfileFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, Table table) throws Exception {
-        MutableProfile profile = new MutableProfile();
+        CompactProfile profile = new CompactProfile();
         for (Row row : rows) {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
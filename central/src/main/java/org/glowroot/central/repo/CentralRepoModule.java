@@ -47,6 +47,7 @@ public class CentralRepoModule {
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
+    private final QueryTextDictionaryDao queryTextDictionaryDao;
     private final SyntheticResultDao syntheticResultDao;
     private final V09AgentRollupDao v09AgentRollupDao;
 
@@ -124,6 +125,7 @@ public class CentralRepoModule {
             traceDao = new TraceDaoWithV09Support(agentRollupIdsWithV09Data, v09LastCaptureTime,
                     v09FqtLastExpirationTime, clock, traceDaoImpl);
         }
+        queryTextDictionaryDao = new QueryTextDictionaryDao(session);
         // need to create V09AgentRollupDao as long as new v09 agents may connect in the future
         v09AgentRollupDao = new V09AgentRollupDao(session, clusterManager);
     }
@@ -180,6 +182,10 @@ public class CentralRepoModule {
         return gaugeValueDao;
     }
 
+    public QueryTextDictionaryDao getQueryTextDictionaryDao() {
+        return queryTextDictionaryDao;
+    }
+
     public SyntheticResultDao getSyntheticResultDao() {
         return syntheticResultDao;
     }
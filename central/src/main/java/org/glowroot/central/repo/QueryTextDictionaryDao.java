@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RateLimiter;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// per-agent query text dictionary (see QueryTextDictionaryEntry in CollectorService.proto)
+//
+// entries are only used to decode incoming aggregates and traces (which are then stored with
+// their full query texts as before), so entries can expire without affecting stored data, in which
+// case the agent re-sends the expired entries the next time it references them
+public class QueryTextDictionaryDao {
+
+    private static final int TTL = (int) DAYS.toSeconds(30);
+
+    // the same query texts are referenced by every aggregate and trace, so the cache avoids reading
+    // them back from cassandra except after central restart
+    private static final long CACHE_MAX_CHARS = 16 * 1024 * 1024;
+
+    private final Session session;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+
+    private final Cache<QueryTextKey, String> cache = CacheBuilder.newBuilder()
+            .maximumWeight(CACHE_MAX_CHARS)
+            .<QueryTextKey, String>weigher((key, fullText) -> fullText.length())
+            .build();
+
+    // entries that are still referenced have their TTL refreshed at most once a day
+    private final RateLimiter<QueryTextKey> rateLimiter = new RateLimiter<>(100000);
+
+    QueryTextDictionaryDao(Session session) throws Exception {
+        this.session = session;
+
+        session.createTableWithSTCS("create table if not exists query_text_dictionary (agent_id"
+                + " varchar, version varchar, id int, full_text varchar, primary key ((agent_id,"
+                + " version), id))");
+
+        insertPS = session.prepare("insert into query_text_dictionary (agent_id, version, id,"
+                + " full_text) values (?, ?, ?, ?) using ttl ?");
+        readPS = session.prepare("select full_text from query_text_dictionary where agent_id = ?"
+                + " and version = ? and id = ?");
+    }
+
+    // the agent re-sends entries until it receives a successful response, so storing the same
+    // entry more than once is expected
+    public Future<?> store(String agentId, String version, int id, String fullText)
+            throws Exception {
+        QueryTextKey key = ImmutableQueryTextKey.of(agentId, version, id);
+        cache.put(key, fullText);
+        // no need to refresh the TTL for the next day
+        rateLimiter.tryAcquire(key);
+        return insert(key, fullText);
+    }
+
+    // the reads are issued in parallel, and only the entries that are found are returned
+    public Map<Integer, String> readFullTexts(String agentId, String version,
+            Collection<Integer> ids) throws Exception {
+        Map<Integer, String> fullTexts = new HashMap<>();
+        Map<Integer, ListenableFuture<ResultSet>> futures = new HashMap<>();
+        for (int id : ids) {
+            if (fullTexts.containsKey(id) || futures.containsKey(id)) {
+                continue;
+            }
+            String fullText = cache.getIfPresent(ImmutableQueryTextKey.of(agentId, version, id));
+            if (fullText != null) {
+                fullTexts.put(id, fullText);
+                continue;
+            }
+            BoundStatement boundStatement = readPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, version);
+            boundStatement.setInt(i++, id);
+            futures.put(id, session.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures.values());
+        for (Map.Entry<Integer, ListenableFuture<ResultSet>> entry : futures.entrySet()) {
+            Row row = entry.getValue().get().one();
+            if (row == null) {
+                continue;
+            }
+            String fullText = row.getString(0);
+            if (fullText == null) {
+                continue;
+            }
+            int id = entry.getKey();
+            cache.put(ImmutableQueryTextKey.of(agentId, version, id), fullText);
+            fullTexts.put(id, fullText);
+        }
+        return fullTexts;
+    }
+
+    // called with the entries that were referenced, so that entries which are still in use by the
+    // agent do not expire
+    public List<Future<?>> updateTTL(String agentId, String version,
+            Map<Integer, String> fullTexts) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : fullTexts.entrySet()) {
+            QueryTextKey key = ImmutableQueryTextKey.of(agentId, version, entry.getKey());
+            if (rateLimiter.tryAcquire(key)) {
+                futures.add(insert(key, entry.getValue()));
+            }
+        }
+        return futures;
+    }
+
+    private Future<?> insert(QueryTextKey key, String fullText) throws Exception {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, key.agentId());
+        boundStatement.setString(i++, key.version());
+        boundStatement.setInt(i++, key.id());
+        boundStatement.setString(i++, fullText);
+        boundStatement.setInt(i++, TTL);
+        ListenableFuture<ResultSet> future;
+        try {
+            future = session.executeAsync(boundStatement);
+        } catch (Exception e) {
+            invalidate(key);
+            throw e;
+        }
+        // if the entry is not stored, the next reference to it after it falls out of the cache
+        // will lead to the agent re-sending it
+        return MoreFutures.onFailure(future, () -> invalidate(key));
+    }
+
+    private void invalidate(QueryTextKey key) {
+        cache.invalidate(key);
+        rateLimiter.invalidate(key);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface QueryTextKey {
+        String agentId();
+        String version();
+        int id();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.central.AggregateDictionaries.Dictionary;
+import org.glowroot.central.AggregateDictionaries.DictionaryException;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.DictionaryEntry;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class AggregateDictionariesTest {
+
+    @Test
+    public void shouldDecode() throws Exception {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        Dictionary dictionary = aggregateDictionaries.get("a", "1");
+        dictionary.add(createEntry(1, "http request"));
+        dictionary.add(createEntry(2, "jdbc query"));
+        dictionary.add(createEntry(3, "GET http://example.org"));
+        dictionary.add(createEntry(4, "org.example"));
+        dictionary.add(createEntry(5, "Example"));
+        dictionary.add(createEntry(6, "run"));
+        dictionary.add(createEntry(7, "Example.java"));
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000)
+                .setTransactionCount(1)
+                // synthetic root has name id zero
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setNameId(1)
+                        .setTotalNanos(1000)
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setNameId(2)
+                                .setTotalNanos(500)
+                                .setCount(2)))
+                .addAsyncTimer(Aggregate.Timer.newBuilder()
+                        .setTotalNanos(100)
+                        .setCount(1))
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType("HTTP")
+                        .setTextId(3)
+                        .setTotalDurationNanos(300)
+                        .setExecutionCount(1))
+                .setMainThreadProfile(Profile.newBuilder()
+                        .addPackageNameId(4)
+                        .addClassNameId(5)
+                        .addMethodNameId(6)
+                        .addFileNameId(7)
+                        .addNode(Profile.ProfileNode.newBuilder()
+                                .setSampleCount(1)))
+                .build();
+
+        // when
+        Aggregate decoded = dictionary.decode(aggregate);
+
+        // then
+        assertThat(decoded.getTotalDurationNanos()).isEqualTo(1000);
+        Aggregate.Timer rootTimer = decoded.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEqualTo("http request");
+        assertThat(rootTimer.getNameId()).isZero();
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(1000);
+        assertThat(rootTimer.getChildTimer(0).getName()).isEqualTo("jdbc query");
+        assertThat(rootTimer.getChildTimer(0).getCount()).isEqualTo(2);
+        assertThat(decoded.getAsyncTimer(0).getName()).isEmpty();
+        assertThat(decoded.getServiceCall(0).getText()).isEqualTo("GET http://example.org");
+        assertThat(decoded.getServiceCall(0).getTextId()).isZero();
+        assertThat(decoded.getServiceCall(0).getType()).isEqualTo("HTTP");
+        Profile profile = decoded.getMainThreadProfile();
+        assertThat(profile.getPackageNameList()).containsExactly("org.example");
+        assertThat(profile.getClassNameList()).containsExactly("Example");
+        assertThat(profile.getMethodNameList()).containsExactly("run");
+        assertThat(profile.getFileNameList()).containsExactly("Example.java");
+        assertThat(profile.getPackageNameIdCount()).isZero();
+        assertThat(profile.getNodeCount()).isEqualTo(1);
+        assertThat(decoded.hasAuxThreadProfile()).isFalse();
+    }
+
+    @Test
+    public void shouldFailOnMissingEntry() throws Exception {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        Dictionary dictionary = aggregateDictionaries.get("a", "1");
+        dictionary.add(createEntry(1, "http request"));
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType("HTTP")
+                        .setTextId(2))
+                .build();
+
+        // when
+        try {
+            dictionary.decode(aggregate);
+            fail("expected DictionaryException");
+        } catch (DictionaryException e) {
+            // then
+            assertThat(e.getMessage()).isEqualTo("dictionary entry 2 not found");
+        }
+    }
+
+    @Test
+    public void shouldStartNewDictionaryWhenDictionaryIdChanges() throws Exception {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries();
+        Dictionary dictionary = aggregateDictionaries.get("a", "1");
+        dictionary.add(createEntry(1, "http request"));
+
+        // when
+        Dictionary sameDictionary = aggregateDictionaries.get("a", "1");
+        Dictionary newDictionary = aggregateDictionaries.get("a", "2");
+        Dictionary otherAgentDictionary = aggregateDictionaries.get("b", "1");
+
+        // then
+        assertThat(sameDictionary).isSameAs(dictionary);
+        assertThat(sameDictionary.getText(1)).isEqualTo("http request");
+        assertThat(newDictionary).isNotSameAs(dictionary);
+        assertThat(otherAgentDictionary).isNotSameAs(dictionary);
+        try {
+            newDictionary.getText(1);
+            fail("expected DictionaryException");
+        } catch (DictionaryException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldEvictDictionariesOverMaxBytes() throws Exception {
+        // given
+        AggregateDictionaries aggregateDictionaries = new AggregateDictionaries(100000);
+        for (int i = 0; i < 10; i++) {
+            String agentId = "agent" + i;
+            Dictionary dictionary = aggregateDictionaries.get(agentId, "1");
+            // each dictionary is roughly 20 kb
+            dictionary.add(createEntry(1, Strings.repeat("x", 10000)));
+            aggregateDictionaries.updateWeight(agentId, dictionary);
+        }
+
+        // when
+        long size = aggregateDictionaries.size();
+
+        // then
+        assertThat(size).isLessThan(10);
+        assertThat(size).isGreaterThan(0);
+    }
+
+    private static DictionaryEntry createEntry(int id, String text) {
+        return DictionaryEntry.newBuilder()
+                .setId(id)
+                .setText(text)
+                .build();
+    }
+}
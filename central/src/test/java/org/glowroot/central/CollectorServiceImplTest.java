@@ -0,0 +1,298 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AgentConfigDao;
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.EnvironmentDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.QueryTextDictionaryDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectBatch;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.CollectStreamResponse;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CollectorServiceImplTest {
+
+    private GaugeValueDao gaugeValueDao;
+    private QueryTextDictionaryDao queryTextDictionaryDao;
+    private CollectorThrottle collectorThrottle;
+    private CollectorServiceImpl collectorService;
+
+    private CountDownLatch started;
+    private CountDownLatch blocker;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        gaugeValueDao = mock(GaugeValueDao.class);
+        queryTextDictionaryDao = mock(QueryTextDictionaryDao.class);
+        GrpcCommon grpcCommon = mock(GrpcCommon.class);
+        when(grpcCommon.getAgentId(anyString(), anyBoolean()))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        // storing gauge values for agent "blocked" waits until the blocker is released
+        started = new CountDownLatch(1);
+        blocker = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            blocker.await(10, SECONDS);
+            return null;
+        }).when(gaugeValueDao).store(eq("blocked"), anyList());
+        doThrow(new IllegalStateException("failed")).when(gaugeValueDao).store(eq("failing"),
+                anyList());
+        collectorThrottle = new CollectorThrottle(2, 1, 100);
+        collectorService = new CollectorServiceImpl(mock(AgentDao.class),
+                mock(AgentConfigDao.class), mock(EnvironmentDao.class), mock(HeartbeatDao.class),
+                mock(AggregateDao.class), gaugeValueDao, mock(TraceDao.class),
+                queryTextDictionaryDao, mock(V09AgentRollupDao.class), grpcCommon,
+                mock(CentralAlertingService.class), collectorThrottle, Clock.systemClock(),
+                "0.0.1");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        blocker.countDown();
+        collectorThrottle.close();
+    }
+
+    @Test
+    public void shouldAcknowledgeStreamHeader() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                collectorService.collectStream(responseObserver);
+
+        // when
+        requestObserver.onNext(CollectStreamMessage.newBuilder()
+                .setStreamHeader(CollectStreamHeader.newBuilder()
+                        .setAgentId("xyz"))
+                .build());
+
+        // then
+        CollectStreamResponse response = responseObserver.responses.poll(10, SECONDS);
+        assertThat(response).isNotNull();
+        assertThat(response.getBatchId()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldAcknowledgeEmptyBatch() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                collectorService.collectStream(responseObserver);
+
+        // when
+        requestObserver.onNext(createBatch(1));
+
+        // then
+        CollectStreamResponse response = responseObserver.responses.poll(10, SECONDS);
+        assertThat(response).isNotNull();
+        assertThat(response.getBatchId()).isEqualTo(1);
+        assertThat(response.getError()).isFalse();
+    }
+
+    @Test
+    public void shouldAcknowledgeBatchOnlyAfterAllItemsComplete() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                collectorService.collectStream(responseObserver);
+
+        // when
+        requestObserver.onNext(createBatch(1, "blocked", "ok"));
+
+        // then
+        assertThat(started.await(10, SECONDS)).isTrue();
+        assertThat(responseObserver.responses.poll(200, MILLISECONDS)).isNull();
+        blocker.countDown();
+        CollectStreamResponse response = responseObserver.responses.poll(10, SECONDS);
+        assertThat(response).isNotNull();
+        assertThat(response.getBatchId()).isEqualTo(1);
+        assertThat(response.getError()).isFalse();
+        assertThat(responseObserver.responses.poll(200, MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void shouldAcknowledgeBatchWithErrorOnlyAfterAllItemsComplete() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                collectorService.collectStream(responseObserver);
+
+        // when
+        requestObserver.onNext(createBatch(1, "blocked", "failing"));
+
+        // then
+        assertThat(started.await(10, SECONDS)).isTrue();
+        assertThat(responseObserver.responses.poll(200, MILLISECONDS)).isNull();
+        blocker.countDown();
+        CollectStreamResponse response = responseObserver.responses.poll(10, SECONDS);
+        assertThat(response).isNotNull();
+        assertThat(response.getBatchId()).isEqualTo(1);
+        assertThat(response.getError()).isTrue();
+        assertThat(response.getRetryAfterMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldAcknowledgeRejectedItemWithRetryAfter() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        StreamObserver<CollectStreamMessage> requestObserver =
+                collectorService.collectStream(responseObserver);
+        requestObserver.onNext(createBatch(1, "blocked"));
+        assertThat(started.await(10, SECONDS)).isTrue();
+
+        // when
+        // the first item is queued behind the blocked item, and the second item is rejected since
+        // only one item per agent can be queued
+        requestObserver.onNext(createBatch(2, "blocked", "blocked"));
+
+        // then
+        assertThat(responseObserver.responses.poll(200, MILLISECONDS)).isNull();
+        blocker.countDown();
+        CollectStreamResponse response1 = responseObserver.responses.poll(10, SECONDS);
+        CollectStreamResponse response2 = responseObserver.responses.poll(10, SECONDS);
+        assertThat(response1).isNotNull();
+        assertThat(response1.getBatchId()).isEqualTo(1);
+        assertThat(response1.getError()).isFalse();
+        assertThat(response2).isNotNull();
+        assertThat(response2.getBatchId()).isEqualTo(2);
+        assertThat(response2.getError()).isTrue();
+        assertThat(response2.getRetryAfterMillis()).isGreaterThanOrEqualTo(1000);
+    }
+
+    @Test
+    public void shouldResolveQueryTextIdsUnderThrottle() throws Exception {
+        // given
+        ResponseObserver responseObserver = new ResponseObserver();
+        collectorService.collectStream(responseObserver).onNext(createBatch(1, "blocked"));
+        assertThat(started.await(10, SECONDS)).isTrue();
+        ErrorObserver<AggregateResponseMessage> aggregateResponseObserver = new ErrorObserver<>();
+        StreamObserver<AggregateStreamMessage> requestObserver =
+                collectorService.collectAggregateStream(aggregateResponseObserver);
+
+        // when
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId("blocked")
+                        .setPostV09(true)
+                        .setQueryTextDictionaryVersion("v1"))
+                .build());
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setQueryTextId(3)
+                .build());
+        requestObserver.onCompleted();
+
+        // then
+        // the lookup is queued behind the blocked item instead of running on the calling thread
+        verify(queryTextDictionaryDao, never()).readFullTexts(anyString(), anyString(), any());
+        blocker.countDown();
+        Throwable t = aggregateResponseObserver.errors.poll(10, SECONDS);
+        assertThat(t).isNotNull();
+        assertThat(Status.fromThrowable(t).getCode()).isEqualTo(Status.Code.NOT_FOUND);
+        Metadata trailers = Status.trailersFromThrowable(t);
+        assertThat(trailers).isNotNull();
+        assertThat(trailers.get(Metadata.Key.of("glowroot-missing-query-text-ids",
+                Metadata.ASCII_STRING_MARSHALLER))).isEqualTo("3");
+    }
+
+    private static CollectStreamMessage createBatch(long batchId, String... agentIds) {
+        CollectBatch.Builder batch = CollectBatch.newBuilder()
+                .setBatchId(batchId);
+        for (String agentId : agentIds) {
+            batch.addItem(CollectItem.newBuilder()
+                    .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                            .setAgentId(agentId)
+                            .setPostV09(true)
+                            .addGaugeValues(GaugeValue.newBuilder()
+                                    .setGaugeName("abc")
+                                    .setCaptureTime(60000)
+                                    .setValue(1)
+                                    .setWeight(1))));
+        }
+        return CollectStreamMessage.newBuilder()
+                .setBatch(batch)
+                .build();
+    }
+
+    private static class ResponseObserver implements StreamObserver<CollectStreamResponse> {
+
+        private final BlockingQueue<CollectStreamResponse> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onNext(CollectStreamResponse value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+
+    private static class ErrorObserver<T> implements StreamObserver<T> {
+
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            errors.add(t);
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
+}
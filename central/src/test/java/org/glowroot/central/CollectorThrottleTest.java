@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorThrottleTest {
+
+    private CollectorThrottle collectorThrottle;
+
+    @Before
+    public void beforeEachTest() {
+        collectorThrottle = new CollectorThrottle(2, 3, 5);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        collectorThrottle.close();
+    }
+
+    @Test
+    public void shouldRunTasksForAgentInOrder() throws Exception {
+        // given
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            int num = i;
+            assertThat(collectorThrottle.submit("a", () -> {
+                order.add(num);
+                latch.countDown();
+            })).isTrue();
+        }
+
+        // then
+        assertThat(latch.await(10, SECONDS)).isTrue();
+        assertThat(order).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void shouldRejectWhenAgentQueueIsFull() throws Exception {
+        // given
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        collectorThrottle.submit("a", () -> {
+            started.countDown();
+            await(blocker);
+        });
+        assertThat(started.await(10, SECONDS)).isTrue();
+
+        // when
+        boolean accepted1 = collectorThrottle.submit("a", () -> {});
+        boolean accepted2 = collectorThrottle.submit("a", () -> {});
+        boolean accepted3 = collectorThrottle.submit("a", () -> {});
+        boolean accepted4 = collectorThrottle.submit("a", () -> {});
+        boolean otherAgentAccepted = collectorThrottle.submit("b", () -> {});
+
+        // then
+        assertThat(accepted1).isTrue();
+        assertThat(accepted2).isTrue();
+        assertThat(accepted3).isTrue();
+        assertThat(accepted4).isFalse();
+        assertThat(otherAgentAccepted).isTrue();
+        assertThat(collectorThrottle.getRetryAfterMillis()).isBetween(1000L, 60000L);
+        blocker.countDown();
+    }
+
+    @Test
+    public void shouldRejectWhenOverallQueueIsFull() throws Exception {
+        // given
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        collectorThrottle.submit("a", () -> {
+            started.countDown();
+            await(blocker);
+        });
+        collectorThrottle.submit("b", () -> {
+            started.countDown();
+            await(blocker);
+        });
+        assertThat(started.await(10, SECONDS)).isTrue();
+
+        // when
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (collectorThrottle.submit("agent" + (i % 5), () -> {})) {
+                accepted++;
+            }
+        }
+
+        // then
+        assertThat(accepted).isEqualTo(5);
+        assertThat(collectorThrottle.getQueuedCount()).isEqualTo(5);
+        blocker.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Map;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Session;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class QueryTextDictionaryDaoIT {
+
+    private static Cluster cluster;
+    private static Session session;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession(), "glowroot_unit_tests");
+
+        // creates the table
+        new QueryTextDictionaryDao(session);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void before() throws Exception {
+        session.execute("truncate query_text_dictionary");
+    }
+
+    @Test
+    public void shouldReadStoredEntries() throws Exception {
+        // given
+        QueryTextDictionaryDao queryTextDictionaryDao = new QueryTextDictionaryDao(session);
+        MoreFutures.waitForAll(ImmutableList.of(
+                queryTextDictionaryDao.store("a", "v1", 1, "select 1"),
+                queryTextDictionaryDao.store("a", "v1", 2, "select 2")));
+
+        // when
+        // new instance so that entries are read from cassandra instead of from the cache
+        Map<Integer, String> fullTexts = new QueryTextDictionaryDao(session)
+                .readFullTexts("a", "v1", ImmutableList.of(1, 2, 3, 1));
+
+        // then
+        assertThat(fullTexts).containsOnly(entry(1, "select 1"), entry(2, "select 2"));
+    }
+
+    @Test
+    public void shouldNotReadEntriesFromOtherVersionOrAgent() throws Exception {
+        // given
+        QueryTextDictionaryDao queryTextDictionaryDao = new QueryTextDictionaryDao(session);
+        MoreFutures.waitForAll(ImmutableList.of(
+                queryTextDictionaryDao.store("a", "v1", 1, "select 1")));
+
+        // when
+        QueryTextDictionaryDao queryTextDictionaryDao2 = new QueryTextDictionaryDao(session);
+        Map<Integer, String> otherVersion =
+                queryTextDictionaryDao2.readFullTexts("a", "v2", ImmutableList.of(1));
+        Map<Integer, String> otherAgent =
+                queryTextDictionaryDao2.readFullTexts("b", "v1", ImmutableList.of(1));
+
+        // then
+        assertThat(otherVersion).isEmpty();
+        assertThat(otherAgent).isEmpty();
+    }
+
+    @Test
+    public void shouldRefreshTTLAtMostOnceADay() throws Exception {
+        // given
+        QueryTextDictionaryDao queryTextDictionaryDao = new QueryTextDictionaryDao(session);
+        MoreFutures.waitForAll(ImmutableList.of(
+                queryTextDictionaryDao.store("a", "v1", 1, "select 1")));
+        session.execute("update query_text_dictionary using ttl 100 set full_text = 'select 1'"
+                + " where agent_id = 'a' and version = 'v1' and id = 1");
+
+        // when
+        QueryTextDictionaryDao queryTextDictionaryDao2 = new QueryTextDictionaryDao(session);
+        Map<Integer, String> fullTexts =
+                queryTextDictionaryDao2.readFullTexts("a", "v1", ImmutableList.of(1));
+        MoreFutures.waitForAll(queryTextDictionaryDao2.updateTTL("a", "v1", fullTexts));
+
+        // then
+        assertThat(readTTL("a", "v1", 1)).isGreaterThan(100);
+        assertThat(queryTextDictionaryDao2.updateTTL("a", "v1", fullTexts)).isEmpty();
+        // the entry was just stored, so its TTL does not need to be refreshed
+        assertThat(queryTextDictionaryDao.updateTTL("a", "v1", fullTexts)).isEmpty();
+    }
+
+    private static int readTTL(String agentId, String version, int id) throws Exception {
+        Row row = session.execute("select ttl(full_text) from query_text_dictionary where"
+                + " agent_id = '" + agentId + "' and version = '" + version + "' and id = " + id)
+                .one();
+        return checkNotNull(row).getInt(0);
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// compact profile tree used for collecting and merging profiles (as opposed to MutableProfile
+// which also supports filtering, truncating and rendering for the UI)
+//
+// nodes are stored in parallel primitive arrays (instead of one object plus one child list per
+// node), and children are found using a single open addressing hash index keyed by parent node and
+// stack frame, so merging a stack frame is O(1) instead of a linear scan over the child nodes
+//
+// parent nodes always have a lower node index than their child nodes
+public class CompactProfile {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompactProfile.class);
+
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private static final int INITIAL_NODE_CAPACITY = 16;
+
+    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+    private final List<String> packageNames = Lists.newArrayList();
+    private final List<String> classNames = Lists.newArrayList();
+    private final List<String> methodNames = Lists.newArrayList();
+    private final List<String> fileNames = Lists.newArrayList();
+
+    private int nodeCount;
+
+    // -1 for root nodes
+    private int[] parentNodes = new int[INITIAL_NODE_CAPACITY];
+    private int[] packageNameIndexArray = new int[INITIAL_NODE_CAPACITY];
+    private int[] classNameIndexArray = new int[INITIAL_NODE_CAPACITY];
+    private int[] methodNameIndexArray = new int[INITIAL_NODE_CAPACITY];
+    private int[] fileNameIndexArray = new int[INITIAL_NODE_CAPACITY];
+    private int[] lineNumbers = new int[INITIAL_NODE_CAPACITY];
+    // LeafThreadState ordinals
+    private byte[] leafThreadStates = new byte[INITIAL_NODE_CAPACITY];
+    private long[] sampleCounts = new long[INITIAL_NODE_CAPACITY];
+
+    // child nodes are linked in insertion order, -1 means none
+    private int[] firstChildNodes = new int[INITIAL_NODE_CAPACITY];
+    private int[] lastChildNodes = new int[INITIAL_NODE_CAPACITY];
+    private int[] nextSiblingNodes = new int[INITIAL_NODE_CAPACITY];
+    private int firstRootNode = -1;
+    private int lastRootNode = -1;
+
+    // open addressing hash index of node index + 1 (0 means empty slot), capacity is always a
+    // power of 2 and kept at least twice the node count
+    private int[] childIndex = new int[INITIAL_NODE_CAPACITY * 2];
+
+    public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
+        int parentNode = -1;
+        boolean lookingForMatch = true;
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
+            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+            int methodNameIndex =
+                    getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
+                            "<null method name>"), methodNameIndexes, methodNames);
+            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
+                    fileNameIndexes, fileNames);
+            int lineNumber = stackTraceElement.getLineNumber();
+            Profile.LeafThreadState leafThreadState =
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            int node = -1;
+            if (lookingForMatch) {
+                node = findChildNode(parentNode, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState.ordinal());
+            }
+            if (node == -1) {
+                // no need to look for matches further down since this is a new branch
+                lookingForMatch = false;
+                node = addNode(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState.ordinal());
+            }
+            sampleCounts[node]++;
+            parentNode = node;
+        }
+    }
+
+    public void merge(Profile profile) {
+        int[] packageNameIndexMapping = makeIndexMapping(profile.getPackageNameList(),
+                packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destination node at each depth of the current branch
+        int[] destinationNodes = new int[16];
+        for (Profile.ProfileNode toBeMergedNode : profile.getNodeList()) {
+            int depth = toBeMergedNode.getDepth();
+            int parentNode = depth == 0 ? -1 : destinationNodes[depth - 1];
+            int node = getOrAddNode(parentNode,
+                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber(),
+                    getOrdinal(toBeMergedNode.getLeafThreadState()));
+            sampleCounts[node] += toBeMergedNode.getSampleCount();
+            if (depth >= destinationNodes.length) {
+                destinationNodes = Arrays.copyOf(destinationNodes,
+                        Math.max(destinationNodes.length << 1, depth + 1));
+            }
+            destinationNodes[depth] = node;
+        }
+    }
+
+    public void merge(CompactProfile profile) {
+        int[] packageNameIndexMapping = makeIndexMapping(profile.packageNames,
+                packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.classNames, classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.methodNames, methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.fileNames, fileNameIndexes, fileNames);
+        // parent nodes always have a lower node index, so their mapping is known by the time their
+        // child nodes are merged
+        int[] nodeMapping = new int[profile.nodeCount];
+        for (int i = 0; i < profile.nodeCount; i++) {
+            int toBeMergedParentNode = profile.parentNodes[i];
+            int parentNode = toBeMergedParentNode == -1 ? -1 : nodeMapping[toBeMergedParentNode];
+            int node = getOrAddNode(parentNode,
+                    packageNameIndexMapping[profile.packageNameIndexArray[i]],
+                    classNameIndexMapping[profile.classNameIndexArray[i]],
+                    methodNameIndexMapping[profile.methodNameIndexArray[i]],
+                    fileNameIndexMapping[profile.fileNameIndexArray[i]], profile.lineNumbers[i],
+                    profile.leafThreadStates[i]);
+            sampleCounts[node] += profile.sampleCounts[i];
+            nodeMapping[i] = node;
+        }
+    }
+
+    public boolean isEmpty() {
+        return nodeCount == 0;
+    }
+
+    public long getSampleCount() {
+        long sampleCount = 0;
+        int node = firstRootNode;
+        while (node != -1) {
+            sampleCount += sampleCounts[node];
+            node = nextSiblingNodes[node];
+        }
+        return sampleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public Profile toProto() {
+        List<Profile.ProfileNode> nodes = Lists.newArrayListWithCapacity(nodeCount);
+        // iterative depth first traversal (to avoid StackOverflowError on very deep stacks)
+        int node = firstRootNode;
+        int depth = 0;
+        while (node != -1) {
+            nodes.add(Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(packageNameIndexArray[node])
+                    .setClassNameIndex(classNameIndexArray[node])
+                    .setMethodNameIndex(methodNameIndexArray[node])
+                    .setFileNameIndex(fileNameIndexArray[node])
+                    .setLineNumber(lineNumbers[node])
+                    .setLeafThreadState(LEAF_THREAD_STATES[leafThreadStates[node]])
+                    .setSampleCount(sampleCounts[node])
+                    .build());
+            if (firstChildNodes[node] != -1) {
+                node = firstChildNodes[node];
+                depth++;
+                continue;
+            }
+            while (node != -1 && nextSiblingNodes[node] == -1) {
+                node = parentNodes[node];
+                depth--;
+            }
+            if (node != -1) {
+                node = nextSiblingNodes[node];
+            }
+        }
+        return Profile.newBuilder()
+                .addAllPackageName(packageNames)
+                .addAllClassName(classNames)
+                .addAllMethodName(methodNames)
+                .addAllFileName(fileNames)
+                .addAllNode(nodes)
+                .build();
+    }
+
+    private int getOrAddNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int node = findChildNode(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber, leafThreadState);
+        if (node == -1) {
+            node = addNode(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+        }
+        return node;
+    }
+
+    private int findChildNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int mask = childIndex.length - 1;
+        int slot = hash(parentNode, packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber, leafThreadState) & mask;
+        while (true) {
+            int entry = childIndex[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            int node = entry - 1;
+            // checking line number first since most likely to be different
+            if (lineNumbers[node] == lineNumber
+                    && parentNodes[node] == parentNode
+                    && fileNameIndexArray[node] == fileNameIndex
+                    && leafThreadStates[node] == leafThreadState
+                    && methodNameIndexArray[node] == methodNameIndex
+                    && classNameIndexArray[node] == classNameIndex
+                    && packageNameIndexArray[node] == packageNameIndex) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int addNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        if (nodeCount == parentNodes.length) {
+            growNodeArrays();
+        }
+        int node = nodeCount++;
+        parentNodes[node] = parentNode;
+        packageNameIndexArray[node] = packageNameIndex;
+        classNameIndexArray[node] = classNameIndex;
+        methodNameIndexArray[node] = methodNameIndex;
+        fileNameIndexArray[node] = fileNameIndex;
+        lineNumbers[node] = lineNumber;
+        leafThreadStates[node] = (byte) leafThreadState;
+        firstChildNodes[node] = -1;
+        lastChildNodes[node] = -1;
+        nextSiblingNodes[node] = -1;
+        if (parentNode == -1) {
+            if (lastRootNode == -1) {
+                firstRootNode = node;
+            } else {
+                nextSiblingNodes[lastRootNode] = node;
+            }
+            lastRootNode = node;
+        } else {
+            if (lastChildNodes[parentNode] == -1) {
+                firstChildNodes[parentNode] = node;
+            } else {
+                nextSiblingNodes[lastChildNodes[parentNode]] = node;
+            }
+            lastChildNodes[parentNode] = node;
+        }
+        if (nodeCount << 1 > childIndex.length) {
+            rehash();
+        } else {
+            putInChildIndex(node);
+        }
+        return node;
+    }
+
+    private void putInChildIndex(int node) {
+        int mask = childIndex.length - 1;
+        int slot = hash(parentNodes[node], packageNameIndexArray[node], classNameIndexArray[node],
+                methodNameIndexArray[node], fileNameIndexArray[node], lineNumbers[node],
+                leafThreadStates[node]) & mask;
+        while (childIndex[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        childIndex[slot] = node + 1;
+    }
+
+    private void rehash() {
+        childIndex = new int[childIndex.length << 1];
+        for (int i = 0; i < nodeCount; i++) {
+            putInChildIndex(i);
+        }
+    }
+
+    private void growNodeArrays() {
+        int newCapacity = parentNodes.length << 1;
+        parentNodes = Arrays.copyOf(parentNodes, newCapacity);
+        packageNameIndexArray = Arrays.copyOf(packageNameIndexArray, newCapacity);
+        classNameIndexArray = Arrays.copyOf(classNameIndexArray, newCapacity);
+        methodNameIndexArray = Arrays.copyOf(methodNameIndexArray, newCapacity);
+        fileNameIndexArray = Arrays.copyOf(fileNameIndexArray, newCapacity);
+        lineNumbers = Arrays.copyOf(lineNumbers, newCapacity);
+        leafThreadStates = Arrays.copyOf(leafThreadStates, newCapacity);
+        sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+        firstChildNodes = Arrays.copyOf(firstChildNodes, newCapacity);
+        lastChildNodes = Arrays.copyOf(lastChildNodes, newCapacity);
+        nextSiblingNodes = Arrays.copyOf(nextSiblingNodes, newCapacity);
+    }
+
+    private static int hash(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int h = parentNode;
+        h = 31 * h + packageNameIndex;
+        h = 31 * h + classNameIndex;
+        h = 31 * h + methodNameIndex;
+        h = 31 * h + fileNameIndex;
+        h = 31 * h + lineNumber;
+        h = 31 * h + leafThreadState;
+        // spread bits since the table index uses the low bits only
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
+            List<String> names) {
+        Integer index = nameIndexes.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    private static int[] makeIndexMapping(List<String> toBeMergedNames,
+            Map<String, Integer> existingIndexes, List<String> existingNames) {
+        int[] indexMapping = new int[toBeMergedNames.size()];
+        for (int i = 0; i < toBeMergedNames.size(); i++) {
+            indexMapping[i] = getNameIndex(toBeMergedNames.get(i), existingIndexes, existingNames);
+        }
+        return indexMapping;
+    }
+
+    private static int getOrdinal(Profile.LeafThreadState leafThreadState) {
+        if (leafThreadState == Profile.LeafThreadState.UNRECOGNIZED) {
+            // e.g. from a newer agent
+            return Profile.LeafThreadState.NONE.ordinal();
+        }
+        return leafThreadState.ordinal();
+    }
+
+    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
+        if (state == null) {
+            return Profile.LeafThreadState.NONE;
+        }
+        switch (state) {
+            case NEW:
+                return Profile.LeafThreadState.NEW;
+            case RUNNABLE:
+                return Profile.LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return Profile.LeafThreadState.BLOCKED;
+            case WAITING:
+                return Profile.LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return Profile.LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return Profile.LeafThreadState.TERMINATED;
+            default:
+                logger.warn("unexpected thread state: {}", state);
+                return Profile.LeafThreadState.NONE;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,25 +26,45 @@ import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+// stores raw values until there are too many, and then converts to either an HdrHistogram or a
+// LogBucketedSketch (depending on HistogramKind)
+//
+// when merging, a histogram that is still storing raw values adopts the representation of the
+// histogram being merged into it, otherwise the histogram being merged is converted (approximately)
+// into the existing representation
 public class LazyHistogram {
 
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    private final HistogramKind histogramKind;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
+    // at most one of histogram and sketch is non-null
     private @MonotonicNonNull Histogram histogram;
+    private @MonotonicNonNull LogBucketedSketch sketch;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(HistogramKind.HDR_HISTOGRAM);
+    }
+
+    public LazyHistogram(HistogramKind histogramKind) {
+        this.histogramKind = histogramKind;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        histogramKind = HistogramKind.HDR_HISTOGRAM;
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (hist.hasLogBucketedSketch()) {
+            sketch = LogBucketedSketch.create(hist.getLogBucketedSketch());
+        } else if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
@@ -58,7 +78,9 @@ public class LazyHistogram {
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (sketch != null) {
+            builder.setLogBucketedSketch(sketch.toProto());
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -86,32 +108,33 @@ public class LazyHistogram {
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (toBeMergedHistogram.hasLogBucketedSketch()) {
+            merge(LogBucketedSketch.create(toBeMergedHistogram.getLogBucketedSketch()));
+        } else if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
-            }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            merge(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        if (toBeMergedHistogram.sketch != null) {
+            merge(toBeMergedHistogram.sketch);
+        } else if (toBeMergedHistogram.histogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
-            }
-            histogram.add(toBeMergedHistogram.histogram);
+            merge(toBeMergedHistogram.histogram);
         }
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (sketch != null) {
+            return sketch.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -132,7 +155,9 @@ public class LazyHistogram {
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
-        if (histogram != null) {
+        if (sketch != null) {
+            sketch.recordValue(value);
+        } else if (histogram != null) {
             histogram.recordValue(value);
         } else {
             values[size++] = value;
@@ -140,12 +165,38 @@ public class LazyHistogram {
         }
     }
 
-    private void ensureCapacity(int capacity) {
+    private void merge(Histogram toBeMergedHistogram) {
+        if (sketch != null) {
+            sketch.merge(toBeMergedHistogram);
+            return;
+        }
+        if (histogram == null) {
+            convertValuesToHistogram();
+        }
+        histogram.add(toBeMergedHistogram);
+    }
+
+    private void merge(LogBucketedSketch toBeMergedSketch) {
         if (histogram != null) {
+            toBeMergedSketch.recordInto(histogram);
+            return;
+        }
+        if (sketch == null) {
+            convertValuesToSketch();
+        }
+        sketch.merge(toBeMergedSketch);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (histogram != null || sketch != null) {
             return;
         }
         if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+            if (histogramKind == HistogramKind.LOG_BUCKETED_SKETCH) {
+                convertValuesToSketch();
+            } else {
+                convertValuesToHistogram();
+            }
             return;
         }
         if (capacity > values.length) {
@@ -167,6 +218,15 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    @EnsuresNonNull("sketch")
+    private void convertValuesToSketch() {
+        sketch = new LogBucketedSketch();
+        for (int i = 0; i < size; i++) {
+            sketch.recordValue(values[i]);
+        }
+        values = new long[0];
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
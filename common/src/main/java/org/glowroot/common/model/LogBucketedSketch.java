@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// mergeable histogram sketch with fixed relative accuracy
+//
+// values are counted in buckets with exponentially increasing boundaries, so any value returned
+// by getValueAtPercentile() is within the relative accuracy of the exact value, and memory is
+// proportional to the log of the ratio between the largest and smallest values (instead of the
+// number of values or the number of significant digits)
+//
+// with the default relative accuracy of 1%, the entire range of positive long values fits in
+// about 2200 buckets, and a typical range of durations (e.g. 1 millisecond to 10 seconds) fits in
+// about 460 buckets
+public class LogBucketedSketch {
+
+    static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    // count of values less than 1
+    private long zeroCount;
+
+    // counts[i] is the count for bucket firstIndex + i
+    private int firstIndex;
+    private long[] counts = new long[0];
+
+    private long totalCount;
+
+    public LogBucketedSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    private LogBucketedSketch(double relativeAccuracy) {
+        this.relativeAccuracy = relativeAccuracy;
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        logGamma = Math.log(gamma);
+    }
+
+    public static LogBucketedSketch create(Aggregate.LogBucketedSketch sketch) {
+        LogBucketedSketch logBucketedSketch =
+                new LogBucketedSketch(sketch.getRelativeAccuracy());
+        logBucketedSketch.zeroCount = sketch.getZeroCount();
+        List<Long> bucketCounts = sketch.getBucketCountList();
+        logBucketedSketch.firstIndex = sketch.getFirstBucketIndex();
+        logBucketedSketch.counts = new long[bucketCounts.size()];
+        long totalCount = logBucketedSketch.zeroCount;
+        for (int i = 0; i < logBucketedSketch.counts.length; i++) {
+            long count = bucketCounts.get(i);
+            logBucketedSketch.counts[i] = count;
+            totalCount += count;
+        }
+        logBucketedSketch.totalCount = totalCount;
+        return logBucketedSketch;
+    }
+
+    public Aggregate.LogBucketedSketch toProto() {
+        Aggregate.LogBucketedSketch.Builder builder = Aggregate.LogBucketedSketch.newBuilder()
+                .setRelativeAccuracy(relativeAccuracy)
+                .setZeroCount(zeroCount);
+        // trim empty buckets at both ends
+        int from = 0;
+        while (from < counts.length && counts[from] == 0) {
+            from++;
+        }
+        int to = counts.length;
+        while (to > from && counts[to - 1] == 0) {
+            to--;
+        }
+        builder.setFirstBucketIndex(firstIndex + from);
+        for (int i = from; i < to; i++) {
+            builder.addBucketCount(counts[i]);
+        }
+        return builder.build();
+    }
+
+    public void recordValue(long value) {
+        recordValueWithCount(value, 1);
+    }
+
+    public void recordValueWithCount(long value, long count) {
+        if (value < 1) {
+            zeroCount += count;
+        } else {
+            int index = getIndex(value);
+            ensureRange(index);
+            counts[index - firstIndex] += count;
+        }
+        totalCount += count;
+    }
+
+    public void merge(LogBucketedSketch sketch) {
+        if (sketch.relativeAccuracy != relativeAccuracy) {
+            for (int i = 0; i < sketch.counts.length; i++) {
+                long count = sketch.counts[i];
+                if (count != 0) {
+                    recordValueWithCount(sketch.getValue(sketch.firstIndex + i), count);
+                }
+            }
+            zeroCount += sketch.zeroCount;
+            totalCount += sketch.zeroCount;
+            return;
+        }
+        if (sketch.counts.length != 0) {
+            ensureRange(sketch.firstIndex);
+            ensureRange(sketch.firstIndex + sketch.counts.length - 1);
+            int offset = sketch.firstIndex - firstIndex;
+            for (int i = 0; i < sketch.counts.length; i++) {
+                counts[offset + i] += sketch.counts[i];
+            }
+        }
+        zeroCount += sketch.zeroCount;
+        totalCount += sketch.totalCount;
+    }
+
+    public void merge(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            recordValueWithCount(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
+    // records the (approximate) values of this sketch into the given histogram
+    public void recordInto(Histogram histogram) {
+        if (zeroCount != 0) {
+            histogram.recordValueWithCount(0, zeroCount);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                histogram.recordValueWithCount(getValue(firstIndex + i), count);
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // percentile 0 means the smallest value
+        long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long cumulativeCount = zeroCount;
+        if (cumulativeCount >= rank) {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return getValue(firstIndex + i);
+            }
+        }
+        // only reachable due to floating point rounding of rank
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return getValue(firstIndex + i);
+            }
+        }
+        return 0;
+    }
+
+    // the number of buckets currently allocated, useful for estimating memory
+    public int getBucketCapacity() {
+        return counts.length;
+    }
+
+    private int getIndex(long value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    // returns a value within the relative accuracy of every value in the bucket
+    private long getValue(int index) {
+        return Math.round(2 * Math.pow(gamma, index) / (gamma + 1));
+    }
+
+    private void ensureRange(int index) {
+        if (counts.length == 0) {
+            firstIndex = index;
+            counts = new long[INITIAL_CAPACITY];
+            return;
+        }
+        if (index < firstIndex) {
+            int lastIndex = firstIndex + counts.length - 1;
+            int newLength = Math.max(counts.length << 1, lastIndex - index + 1);
+            long[] newCounts = new long[newLength];
+            // the additional capacity goes below the requested index
+            int newFirstIndex = lastIndex - newLength + 1;
+            System.arraycopy(counts, 0, newCounts, firstIndex - newFirstIndex, counts.length);
+            firstIndex = newFirstIndex;
+            counts = newCounts;
+        } else if (index >= firstIndex + counts.length) {
+            int newLength = Math.max(counts.length << 1, index - firstIndex + 1);
+            counts = Arrays.copyOf(counts, newLength);
+        }
+    }
+}
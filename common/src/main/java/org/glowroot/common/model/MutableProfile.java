@@ -69,6 +69,10 @@ public class MutableProfile {
         merge(profile.toProto());
     }
 
+    public void merge(CompactProfile profile) {
+        merge(profile.toProto());
+    }
+
     public void merge(Profile profile) {
         Merger merger = new Merger(profile);
         merger.merge(profile.getNodeList(), rootNodes);
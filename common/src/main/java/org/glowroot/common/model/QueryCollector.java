@@ -49,6 +49,16 @@ public class QueryCollector {
         return lastCaptureTime;
     }
 
+    // number of distinct queries collected so far (prior to truncation), not including the limit
+    // exceeded buckets
+    public int getQueryCount() {
+        int count = 0;
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            count += queriesForType.size();
+        }
+        return count;
+    }
+
     public List<MutableQuery> getSortedAndTruncatedQueries() {
         List<MutableQuery> allQueries = Lists.newArrayList();
         for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
@@ -46,6 +46,16 @@ public class ServiceCallCollector {
         return lastCaptureTime;
     }
 
+    // number of distinct service calls collected so far (prior to truncation), not including the
+    // limit exceeded buckets
+    public int getServiceCallCount() {
+        int count = 0;
+        for (Map<String, MutableServiceCall> serviceCallsForType : serviceCalls.values()) {
+            count += serviceCallsForType.size();
+        }
+        return count;
+    }
+
     public List<MutableServiceCall> getSortedAndTruncatedServiceCalls() {
         List<MutableServiceCall> allServiceCalls = Lists.newArrayList();
         for (Map.Entry<String, Map<String, MutableServiceCall>> outerEntry : serviceCalls
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactProfileTest {
+
+    @Test
+    public void testSingleStackTrace() throws IOException {
+        // given
+        CompactProfile profile = new CompactProfile();
+        MutableProfile expected = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = createStackTrace("Main", "main", 3);
+        // when
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        expected.merge(stackTraceElements, Thread.State.RUNNABLE);
+        // then
+        assertThat(profile.getNodeCount()).isEqualTo(3);
+        assertThat(profile.getSampleCount()).isEqualTo(1);
+        assertThat(profile.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void testMerging() throws IOException {
+        // given
+        CompactProfile profile = new CompactProfile();
+        MutableProfile expected = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = createStackTrace("Main", "main", 3);
+        List<StackTraceElement> otherStackTraceElements = createStackTrace("Main", "main", 2);
+        otherStackTraceElements.add(0, new StackTraceElement("aa.bb.Other", "x", "Other.java", 1));
+        // when
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements, Thread.State.BLOCKED);
+        profile.merge(otherStackTraceElements, Thread.State.WAITING);
+        expected.merge(stackTraceElements, Thread.State.RUNNABLE);
+        expected.merge(stackTraceElements, Thread.State.BLOCKED);
+        expected.merge(otherStackTraceElements, Thread.State.WAITING);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+        assertThat(profile.toProto()).isEqualTo(expected.toProto());
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testMergingProto() throws IOException {
+        // given
+        CompactProfile profile = new CompactProfile();
+        profile.merge(createStackTrace("Main", "main", 5), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("Other", "run", 4), Thread.State.TIMED_WAITING);
+        Profile proto = profile.toProto();
+        // when
+        CompactProfile merged = new CompactProfile();
+        merged.merge(proto);
+        merged.merge(proto);
+        // then
+        MutableProfile expected = new MutableProfile();
+        expected.merge(proto);
+        expected.merge(proto);
+        assertThat(merged.getSampleCount()).isEqualTo(4);
+        assertThat(merged.getNodeCount()).isEqualTo(9);
+        assertThat(merged.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void testMergingCompactProfile() throws IOException {
+        // given
+        CompactProfile profile = new CompactProfile();
+        profile.merge(createStackTrace("Main", "main", 5), Thread.State.RUNNABLE);
+        CompactProfile other = new CompactProfile();
+        other.merge(createStackTrace("Main", "main", 3), Thread.State.BLOCKED);
+        other.merge(createStackTrace("Other", "run", 2), Thread.State.RUNNABLE);
+        // when
+        profile.merge(other);
+        // then
+        MutableProfile expected = new MutableProfile();
+        expected.merge(createStackTrace("Main", "main", 5), Thread.State.RUNNABLE);
+        expected.merge(createStackTrace("Main", "main", 3), Thread.State.BLOCKED);
+        expected.merge(createStackTrace("Other", "run", 2), Thread.State.RUNNABLE);
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+        assertThat(profile.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void testDeepStackTrace() throws IOException {
+        // given
+        CompactProfile profile = new CompactProfile();
+        MutableProfile expected = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = createStackTrace("Main", "main", 5000);
+        // when
+        for (int i = 0; i < 10; i++) {
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            expected.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        // then
+        assertThat(profile.getNodeCount()).isEqualTo(5000);
+        assertThat(profile.getSampleCount()).isEqualTo(10);
+        assertThat(profile.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void testEmpty() {
+        CompactProfile profile = new CompactProfile();
+        assertThat(profile.isEmpty()).isTrue();
+        assertThat(profile.toProto().getNodeCount()).isZero();
+    }
+
+    // stack trace elements are ordered leaf first, same as Thread.getStackTrace()
+    private static List<StackTraceElement> createStackTrace(String rootClassName,
+            String rootMethodName, int depth) {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        for (int i = depth - 1; i > 0; i--) {
+            stackTraceElements.add(
+                    new StackTraceElement("aa.bb.cc.Def", "ghi" + i, "Def.java", 100 + i));
+        }
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz." + rootClassName,
+                rootMethodName, rootClassName + ".java", 789));
+        return stackTraceElements;
+    }
+}
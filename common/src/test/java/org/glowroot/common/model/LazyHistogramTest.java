@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,6 +18,7 @@ package org.glowroot.common.model;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -78,6 +79,22 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestSketchPercentiles() {
+        for (int i = 0; i < 2000000; i += 100000) {
+            shouldTestSketchPercentiles(i);
+        }
+        shouldTestSketchPercentiles(10000000);
+    }
+
+    @Test
+    public void shouldTestSketchEncodeDecodeAndMergeIntoHdrHistogram() {
+        for (int i = 0; i < 2000000; i += 100000) {
+            shouldTestSketchEncodeDecodeAndMergeIntoHdrHistogram(i);
+        }
+        shouldTestSketchEncodeDecodeAndMergeIntoHdrHistogram(10000000);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -153,6 +170,50 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    private void shouldTestSketchPercentiles(int num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(HistogramKind.LOG_BUCKETED_SKETCH);
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertSketchPercentile(lazyHistogram, num, 50);
+        assertSketchPercentile(lazyHistogram, num, 95);
+        assertSketchPercentile(lazyHistogram, num, 99);
+        assertSketchPercentile(lazyHistogram, num, 99.9);
+    }
+
+    private void shouldTestSketchEncodeDecodeAndMergeIntoHdrHistogram(int num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(HistogramKind.LOG_BUCKETED_SKETCH);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        LazyHistogram hdrHistogram = new LazyHistogram(HistogramKind.HDR_HISTOGRAM);
+        for (int i = 0; i < 2000; i++) {
+            // force conversion to HdrHistogram
+            hdrHistogram.add(num);
+        }
+        // when
+        lazyHistogram = new LazyHistogram();
+        lazyHistogram.merge(histogram);
+        hdrHistogram.merge(histogram);
+        // then
+        assertSketchPercentile(lazyHistogram, num, 50);
+        assertSketchPercentile(lazyHistogram, num, 99);
+        assertThat(hdrHistogram.getValueAtPercentile(99.99)).isBetween((long) (num * 0.98),
+                (long) Math.ceil(num * 1.02));
+    }
+
+    private void assertSketchPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
+        // log-bucketed sketch has 1% relative accuracy, plus a little slack for the rank
+        long low = (long) Math.floor(num * percentile * 0.98 / (100 * 1000)) * 1000;
+        long high = (long) Math.ceil(num * percentile * 1.02 / (100 * 1000)) * 1000;
+        assertThat(lazyHistogram.getValueAtPercentile(percentile)).isBetween(low, high);
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
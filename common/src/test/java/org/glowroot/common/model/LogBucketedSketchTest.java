@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogBucketedSketchTest {
+
+    @Test
+    public void shouldBeWithinRelativeAccuracy() {
+        // given
+        LogBucketedSketch sketch = new LogBucketedSketch();
+        // when
+        for (int i = 1; i <= 100000; i++) {
+            sketch.recordValue(i * 1000L);
+        }
+        // then
+        assertWithinRelativeAccuracy(sketch, 50, 50000000);
+        assertWithinRelativeAccuracy(sketch, 95, 95000000);
+        assertWithinRelativeAccuracy(sketch, 99, 99000000);
+        assertWithinRelativeAccuracy(sketch, 99.9, 99900000);
+        assertWithinRelativeAccuracy(sketch, 100, 100000000);
+        assertWithinRelativeAccuracy(sketch, 0, 1000);
+    }
+
+    @Test
+    public void shouldHandleZeroAndEmpty() {
+        // given
+        LogBucketedSketch sketch = new LogBucketedSketch();
+        // then
+        assertThat(sketch.getValueAtPercentile(50)).isEqualTo(0);
+        // when
+        sketch.recordValue(0);
+        sketch.recordValue(0);
+        sketch.recordValue(1000);
+        // then
+        assertThat(sketch.getTotalCount()).isEqualTo(3);
+        assertThat(sketch.getValueAtPercentile(50)).isEqualTo(0);
+        assertWithinRelativeAccuracy(sketch, 100, 1000);
+    }
+
+    @Test
+    public void shouldMerge() {
+        // given
+        LogBucketedSketch sketch1 = new LogBucketedSketch();
+        LogBucketedSketch sketch2 = new LogBucketedSketch();
+        for (int i = 1; i <= 1000; i++) {
+            sketch1.recordValue(i * 1000000L);
+        }
+        for (int i = 1; i <= 1000; i++) {
+            sketch2.recordValue(i * 1000L);
+        }
+        // when
+        sketch1.merge(sketch2);
+        // then
+        assertThat(sketch1.getTotalCount()).isEqualTo(2000);
+        assertWithinRelativeAccuracy(sketch1, 25, 500000);
+        assertWithinRelativeAccuracy(sketch1, 75, 500000000);
+    }
+
+    @Test
+    public void shouldEncodeDecode() {
+        // given
+        LogBucketedSketch sketch = new LogBucketedSketch();
+        for (int i = 1; i <= 10000; i++) {
+            sketch.recordValue(i * 1000L);
+        }
+        // when
+        LogBucketedSketch decoded = LogBucketedSketch.create(sketch.toProto());
+        // then
+        assertThat(decoded.getTotalCount()).isEqualTo(10000);
+        for (double percentile : new double[] {0, 50, 95, 99, 99.9, 100}) {
+            assertThat(decoded.getValueAtPercentile(percentile))
+                    .isEqualTo(sketch.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldConvertToAndFromHdrHistogram() {
+        // given
+        LogBucketedSketch sketch = new LogBucketedSketch();
+        for (int i = 1; i <= 10000; i++) {
+            sketch.recordValue(i * 1000L);
+        }
+        Histogram histogram = new Histogram(1000, 2000, 5);
+        histogram.setAutoResize(true);
+        // when
+        sketch.recordInto(histogram);
+        LogBucketedSketch sketch2 = new LogBucketedSketch();
+        sketch2.merge(histogram);
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(10000);
+        assertThat(sketch2.getTotalCount()).isEqualTo(10000);
+        assertThat(histogram.getValueAtPercentile(99)).isBetween(9800000L, 10000000L);
+        assertWithinRelativeAccuracy(sketch2, 99, 9900000);
+    }
+
+    private static void assertWithinRelativeAccuracy(LogBucketedSketch sketch, double percentile,
+            long expected) {
+        // relative accuracy plus a little slack for the percentile rank itself
+        long low = (long) Math.floor(expected * 0.98);
+        long high = (long) Math.ceil(expected * 1.02);
+        assertThat(sketch.getValueAtPercentile(percentile)).isBetween(low, high);
+    }
+}
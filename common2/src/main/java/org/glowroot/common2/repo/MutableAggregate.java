@@ -25,9 +25,9 @@ import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.Styles;
@@ -52,8 +52,8 @@ public class MutableAggregate {
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
-    private @MonotonicNonNull MutableProfile mainThreadProfile;
-    private @MonotonicNonNull MutableProfile auxThreadProfile;
+    private @MonotonicNonNull CompactProfile mainThreadProfile;
+    private @MonotonicNonNull CompactProfile auxThreadProfile;
 
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
@@ -111,11 +111,11 @@ public class MutableAggregate {
         return serviceCalls;
     }
 
-    public @Nullable MutableProfile getMainThreadProfile() {
+    public @Nullable CompactProfile getMainThreadProfile() {
         return mainThreadProfile;
     }
 
-    public @Nullable MutableProfile getAuxThreadProfile() {
+    public @Nullable CompactProfile getAuxThreadProfile() {
         return auxThreadProfile;
     }
 
@@ -245,14 +245,14 @@ public class MutableAggregate {
 
     public void mergeMainThreadProfile(Profile toBeMergedProfile) {
         if (mainThreadProfile == null) {
-            mainThreadProfile = new MutableProfile();
+            mainThreadProfile = new CompactProfile();
         }
         mainThreadProfile.merge(toBeMergedProfile);
     }
 
     public void mergeAuxThreadProfile(Profile toBeMergedProfile) {
         if (auxThreadProfile == null) {
-            auxThreadProfile = new MutableProfile();
+            auxThreadProfile = new CompactProfile();
         }
         auxThreadProfile.merge(toBeMergedProfile);
     }
@@ -36,6 +36,7 @@ import org.glowroot.common2.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common2.repo.TransactionTypeRepository;
 import org.glowroot.ui.GaugeValueJsonService.GaugeOrdering;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig.HistogramKind;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.GeneralConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.JvmConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.PluginConfig;
@@ -536,6 +537,7 @@ class ConfigJsonService {
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxProfileSamplesPerTransaction();
         abstract int mbeanGaugeNotFoundDelaySeconds();
+        abstract HistogramKind histogramKind();
         abstract String version();
 
         private AdvancedConfig convert() {
@@ -549,6 +551,7 @@ class ConfigJsonService {
                     .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                     .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
                     .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                    .setHistogramKind(histogramKind())
                     .build();
         }
 
@@ -566,6 +569,7 @@ class ConfigJsonService {
                             config.getMaxProfileSamplesPerTransaction().getValue())
                     .mbeanGaugeNotFoundDelaySeconds(
                             config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                    .histogramKind(config.getHistogramKind())
                     .version(Versions.getVersion(config))
                     .build();
         }